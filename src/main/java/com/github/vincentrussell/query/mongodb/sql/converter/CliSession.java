@@ -0,0 +1,175 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The state that the command line keeps between the statements of a session, so that statements against a remote
+ * cluster are not slowed down by connecting again: one pooled {@link MongoClient}, the converted statements and the
+ * history of the statements, which is kept in a file when one is given.
+ */
+public class CliSession implements Closeable {
+
+    /**
+     * The default number of converted statements that are kept.
+     */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 100;
+
+    private static final Pattern HISTORY_REFERENCE = Pattern.compile("^!(\\d+)$");
+
+    private final MongoClientSettings mongoClientSettings;
+    private final File historyFile;
+    private final Map<String, QueryConverter> statements;
+    private final List<String> history = new ArrayList<>();
+    private MongoClient mongoClient;
+
+    /**
+     * Default constructor.
+     * @param mongoClientSettings the settings of the {@link MongoClient}, null if statements are only converted
+     * @param historyFile the file the history is read from and added to, or null to only keep it in memory
+     * @param statementCacheSize the number of converted statements that are kept
+     * @throws IOException if the history file could not be read
+     */
+    public CliSession(final MongoClientSettings mongoClientSettings, final File historyFile,
+                      final int statementCacheSize) throws IOException {
+        this.mongoClientSettings = mongoClientSettings;
+        this.historyFile = historyFile;
+        this.statements = new LinkedHashMap<String, QueryConverter>(statementCacheSize, 1, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, QueryConverter> eldest) {
+                return size() > statementCacheSize;
+            }
+        };
+        if (historyFile != null && historyFile.exists()) {
+            for (String line : FileUtils.readLines(historyFile, StandardCharsets.UTF_8)) {
+                history.add(unescape(line));
+            }
+        }
+    }
+
+    /**
+     * Get the {@link MongoClient} of the session, which is connected the first time it is needed.
+     * @return the {@link MongoClient}
+     */
+    public MongoClient getMongoClient() {
+        if (mongoClient == null) {
+            mongoClient = MongoClients.create(mongoClientSettings);
+        }
+        return mongoClient;
+    }
+
+    /**
+     * Get a statement that was converted before.
+     * @param sql the sql of the statement
+     * @return the {@link QueryConverter} or null
+     */
+    public QueryConverter getStatement(final String sql) {
+        return statements.get(sql.trim());
+    }
+
+    /**
+     * Keep a converted statement, so that it does not have to be parsed again.
+     * @param sql the sql of the statement
+     * @param queryConverter the {@link QueryConverter}
+     */
+    public void putStatement(final String sql, final QueryConverter queryConverter) {
+        statements.put(sql.trim(), queryConverter);
+    }
+
+    /**
+     * Replace a reference to the history, i.e: !3 for the third statement, with the statement.
+     * @param input the input of the user
+     * @return the statement from the history or the input
+     * @throws ParseException if there is no such statement in the history
+     */
+    public String getStatementFromHistory(final String input) throws ParseException {
+        Matcher matcher = HISTORY_REFERENCE.matcher(input.trim());
+        if (!matcher.matches()) {
+            return input;
+        }
+        int index = Integer.parseInt(matcher.group(1));
+        SqlUtils.isTrue(index >= 1 && index <= history.size(), "there is no statement " + index
+                + " in the history");
+        return history.get(index - 1);
+    }
+
+    /**
+     * Add a statement to the history.  The statement is kept as it was written, and its line breaks and backslashes
+     * are escaped in the history file, which has one statement per line.
+     * @param sql the sql of the statement
+     * @throws IOException if the statement could not be added to the history file
+     */
+    public void addHistory(final String sql) throws IOException {
+        String statement = sql.trim();
+        history.add(statement);
+        if (historyFile != null) {
+            FileUtils.writeLines(historyFile, StandardCharsets.UTF_8.name(),
+                    Collections.singletonList(escape(statement)), true);
+        }
+    }
+
+    /**
+     * Get the history of the statements.
+     * @return the statements, oldest first
+     */
+    public List<String> getHistory() {
+        return Collections.unmodifiableList(history);
+    }
+
+    /**
+     * Write the numbered history of the statements.
+     * @param outputStream the {@link OutputStream} to write the history to
+     * @throws IOException if the history could not be written
+     */
+    public void writeHistory(final OutputStream outputStream) throws IOException {
+        for (int i = 0; i < history.size(); i++) {
+            IOUtils.write((i + 1) + "  " + history.get(i) + "\n", outputStream, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Close the {@link MongoClient} of the session.
+     */
+    @Override
+    public void close() {
+        if (mongoClient != null) {
+            mongoClient.close();
+        }
+    }
+
+    private static String escape(final String statement) {
+        return statement.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(final String line) {
+        StringBuilder statement = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char current = line.charAt(i);
+            if (current == '\\' && i + 1 < line.length()) {
+                char escaped = line.charAt(++i);
+                statement.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+            } else {
+                statement.append(current);
+            }
+        }
+        return statement.toString();
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.bson.Document;
+
+/**
+ * Provides collection statistics used to choose the join order of queries with more than one INNER JOIN.
+ */
+public interface CollectionStatisticsProvider {
+
+    /**
+     * Get the number of documents in a collection.
+     * @param collection the name of the collection
+     * @return the number of documents in the collection
+     */
+    long getDocumentCount(String collection);
+
+    /**
+     * Estimate the fraction of the documents in the collection that match the filter.
+     * @param collection the name of the collection
+     * @param filter the filter that will be applied to the collection, empty when there is no filter
+     * @return a number between 0 and 1
+     */
+    double getSelectivity(String collection, Document filter);
+
+}
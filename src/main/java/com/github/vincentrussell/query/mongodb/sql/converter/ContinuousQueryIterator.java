@@ -0,0 +1,87 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.calrissian.mango.collect.AbstractCloseableIterator;
+
+/**
+ * {@link java.util.Iterator} over the documents that are inserted or updated to match a watched query, see
+ * {@link QueryConverter#watch(com.mongodb.client.MongoDatabase, ResumeTokenStore)}.  {@link #hasNext()} blocks until
+ * a matching change is read, and changes are only read from the server as fast as they are consumed.  The resume
+ * token of the change stream is saved when the next document is asked for, after every batch that the server returns,
+ * even a batch without matching changes, and when the iterator is closed.  So a document that was returned but not
+ * processed before a crash is returned again when the query is watched again, and a query that rarely matches does not
+ * resume from a token that the oplog no longer has.
+ */
+public class ContinuousQueryIterator extends AbstractCloseableIterator<Document> {
+
+    private final MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+    private final ResumeTokenStore resumeTokenStore;
+    private BsonDocument returnedResumeToken;
+    private BsonDocument savedResumeToken;
+
+    /**
+     * Default constructor.
+     * @param cursor the cursor of the change stream
+     * @param resumeTokenStore the {@link ResumeTokenStore} or null if the resume token is not saved
+     */
+    public ContinuousQueryIterator(final MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor,
+                                   final ResumeTokenStore resumeTokenStore) {
+        this.cursor = cursor;
+        this.resumeTokenStore = resumeTokenStore;
+    }
+
+    /**
+     * Get the resume token of the last document that was returned.
+     * @return the resume token or null if no document was returned
+     */
+    public BsonDocument getResumeToken() {
+        return returnedResumeToken;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return the next matching document.  If {@code endOfData} was called during execution,
+     * the return value will be ignored.
+     */
+    @Override
+    protected Document computeNext() {
+        while (true) {
+            saveResumeToken();
+            ChangeStreamDocument<Document> change = cursor.tryNext();
+            if (change == null) {
+                //an empty batch, the post batch resume token is saved before the next batch is read
+                if (cursor.getServerCursor() == null) {
+                    return endOfData();
+                }
+                continue;
+            }
+            //an updated document that was deleted before it was looked up has no full document
+            if (change.getFullDocument() != null) {
+                returnedResumeToken = change.getResumeToken();
+                return change.getFullDocument();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        saveResumeToken();
+        cursor.close();
+    }
+
+    //the token of the last change that was read or, once a batch is read, the post batch resume token of the batch
+    private void saveResumeToken() {
+        BsonDocument resumeToken = cursor.getResumeToken();
+        if (resumeTokenStore != null && resumeToken != null && !resumeToken.equals(savedResumeToken)) {
+            resumeTokenStore.saveResumeToken(resumeToken);
+            savedResumeToken = resumeToken;
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.bson.BsonDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * {@link ResumeTokenStore} that keeps the resume token as json in a file.  The token is written to a temporary file
+ * that then replaces the file, so the file always holds a whole token.
+ */
+public class FileResumeTokenStore implements ResumeTokenStore {
+
+    private final File file;
+
+    /**
+     * Default constructor.
+     * @param file the file that holds the resume token
+     */
+    public FileResumeTokenStore(final File file) {
+        notNull(file, "file is null");
+        this.file = file;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BsonDocument getResumeToken() {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return BsonDocument.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveResumeToken(final BsonDocument resumeToken) {
+        File temporaryFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try {
+            Files.write(temporaryFile.toPath(), resumeToken.toJson().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
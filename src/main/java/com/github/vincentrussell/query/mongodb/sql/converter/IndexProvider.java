@@ -0,0 +1,20 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * Provides the indexes of a collection, so that queries that only need fields of an index can be answered from
+ * the index without fetching the documents.
+ */
+public interface IndexProvider {
+
+    /**
+     * Get the indexes of a collection that can cover a query.
+     * @param collection the name of the collection
+     * @return the keys of the indexes, i.e: {"status": 1, "createdAt": -1}
+     */
+    List<Document> getIndexes(String collection);
+
+}
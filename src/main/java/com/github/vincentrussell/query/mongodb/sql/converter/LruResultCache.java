@@ -0,0 +1,312 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.apache.commons.lang.Validate.isTrue;
+
+/**
+ * {@link ResultCache} that keeps the results of the most recently used queries, up to a number of queries and a
+ * number of bytes.  When it is created with a {@link MongoDatabase} it opens a change stream on each collection that
+ * a cached query reads and drops the results as soon as the collection changes.  Change streams need a replica set
+ * or a sharded cluster, so results also expire after a time to live, which is the only invalidation on a standalone
+ * server.  Results are kept as BSON, so the documents returned from the cache can be changed by the caller.  The
+ * results of a query are cached once they have been read to the end, and results are not kept from the moment they
+ * are larger than the maximum number of bytes.  The change streams are opened on the {@link MongoDatabase} of the
+ * cache, so the results of queries on other databases are only dropped after the time to live.
+ */
+public class LruResultCache implements ResultCache, Closeable {
+
+    /**
+     * The default number of queries whose results are kept.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    /**
+     * The default number of BSON bytes of results that are kept.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    /**
+     * The default time to live of results in milliseconds.
+     */
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    private final MongoDatabase mongoDatabase;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<Document, CachedResults> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> invalidations = new HashMap<>();
+    private final Map<String, MongoCursor<ChangeStreamDocument<Document>>> changeStreams = new HashMap<>();
+    private long bytes;
+    private boolean closed;
+
+    /**
+     * Constructor for a cache that is only invalidated by the time to live and {@link #invalidate(String)}.
+     * @param maxEntries the number of queries whose results are kept
+     * @param maxBytes the number of BSON bytes of results that are kept, larger results are not cached
+     * @param ttlMillis how long results are kept in milliseconds
+     */
+    public LruResultCache(final int maxEntries, final long maxBytes, final long ttlMillis) {
+        this(null, maxEntries, maxBytes, ttlMillis);
+    }
+
+    /**
+     * Constructor for a cache that watches the collections of the cached queries with change streams.
+     * @param mongoDatabase the {@link MongoDatabase} that the queries are run against
+     * @param maxEntries the number of queries whose results are kept
+     * @param maxBytes the number of BSON bytes of results that are kept, larger results are not cached
+     * @param ttlMillis how long results are kept in milliseconds, when a collection cannot be watched
+     */
+    public LruResultCache(final MongoDatabase mongoDatabase, final int maxEntries, final long maxBytes,
+                          final long ttlMillis) {
+        isTrue(maxEntries > 0, "maxEntries must be greater than 0");
+        isTrue(maxBytes > 0, "maxBytes must be greater than 0");
+        isTrue(ttlMillis > 0, "ttlMillis must be greater than 0");
+        this.mongoDatabase = mongoDatabase;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public QueryResultIterator<Document> get(final Document plan, final Set<String> collections,
+                                             final Supplier<QueryResultIterator<Document>> loader) {
+        long invalidationCount;
+        synchronized (this) {
+            CachedResults cachedResults = entries.get(plan);
+            if (cachedResults != null && cachedResults.expiresAt > System.currentTimeMillis()) {
+                return new QueryResultIterator<>(cachedResults.decode(), new Closeable() {
+                    @Override
+                    public void close() {
+                    }
+                });
+            }
+            invalidationCount = getInvalidationCount(collections);
+        }
+        //the change streams are opened before the query runs, so that no change to the results is missed
+        for (String collection : collections) {
+            watch(collection);
+        }
+        QueryResultIterator<Document> results = loader.get();
+        return new QueryResultIterator<>(new CachingIterator(plan, new HashSet<>(collections), invalidationCount,
+                results), results);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void invalidate(final String collection) {
+        Long count = invalidations.get(collection);
+        invalidations.put(collection, count != null ? count + 1 : 1L);
+        Iterator<CachedResults> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CachedResults cachedResults = iterator.next();
+            if (cachedResults.collections.contains(collection)) {
+                bytes -= cachedResults.size;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the number of queries whose results are in the cache.
+     * @return the number of queries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Close the change streams and drop the results.
+     */
+    @Override
+    public void close() {
+        List<MongoCursor<ChangeStreamDocument<Document>>> cursors;
+        synchronized (this) {
+            closed = true;
+            cursors = new ArrayList<>(changeStreams.values());
+            changeStreams.clear();
+            entries.clear();
+            bytes = 0;
+        }
+        for (MongoCursor<ChangeStreamDocument<Document>> cursor : cursors) {
+            cursor.close();
+        }
+    }
+
+    private long getInvalidationCount(final Set<String> collections) {
+        long count = 0;
+        for (String collection : collections) {
+            Long collectionCount = invalidations.get(collection);
+            count += collectionCount != null ? collectionCount : 0;
+        }
+        return count;
+    }
+
+    private synchronized void put(final Document plan, final Set<String> collections, final long invalidationCount,
+                                  final List<RawBsonDocument> encoded, final long size) {
+        //a collection changed while the query ran, so the results may be stale
+        if (closed || invalidationCount != getInvalidationCount(collections)) {
+            return;
+        }
+        remove(plan);
+        entries.put(plan, new CachedResults(encoded, collections, size, System.currentTimeMillis() + ttlMillis));
+        bytes += size;
+        Iterator<CachedResults> iterator = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    private void remove(final Document plan) {
+        CachedResults previous = entries.remove(plan);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+    }
+
+    private void watch(final String collection) {
+        if (mongoDatabase == null) {
+            return;
+        }
+        synchronized (this) {
+            if (closed || changeStreams.containsKey(collection)) {
+                return;
+            }
+        }
+        final MongoCursor<ChangeStreamDocument<Document>> cursor;
+        try {
+            cursor = mongoDatabase.getCollection(collection).watch().iterator();
+        } catch (MongoException e) {
+            //i.e: a standalone server, the results of the collection expire after the time to live
+            return;
+        }
+        synchronized (this) {
+            if (closed || changeStreams.containsKey(collection)) {
+                cursor.close();
+                return;
+            }
+            changeStreams.put(collection, cursor);
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (cursor.hasNext()) {
+                        cursor.next();
+                        invalidate(collection);
+                    }
+                } catch (MongoException | IllegalStateException e) {
+                    //the stream was closed, or failed and is opened again by the next query
+                } finally {
+                    synchronized (LruResultCache.this) {
+                        changeStreams.remove(collection, cursor);
+                    }
+                    cursor.close();
+                    invalidate(collection);
+                }
+            }
+        }, "result-cache-" + collection);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //keeps the results as they are read, until they are larger than the maximum number of bytes
+    private final class CachingIterator implements Iterator<Document> {
+        private final Document plan;
+        private final Set<String> collections;
+        private final long invalidationCount;
+        private final Iterator<Document> results;
+        private List<RawBsonDocument> encoded = new ArrayList<>();
+        private long size;
+
+        private CachingIterator(final Document plan, final Set<String> collections, final long invalidationCount,
+                                final Iterator<Document> results) {
+            this.plan = plan;
+            this.collections = collections;
+            this.invalidationCount = invalidationCount;
+            this.results = results;
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = results.hasNext();
+            if (!hasNext && encoded != null) {
+                put(plan, collections, invalidationCount, encoded, size);
+                encoded = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Document next() {
+            Document document = results.next();
+            if (encoded != null) {
+                RawBsonDocument rawBsonDocument = new RawBsonDocument(document, CODEC);
+                size += rawBsonDocument.getByteBuffer().remaining();
+                if (size > maxBytes) {
+                    encoded = null;
+                } else {
+                    encoded.add(rawBsonDocument);
+                }
+            }
+            return document;
+        }
+    }
+
+    private static final class CachedResults {
+        private final List<RawBsonDocument> results;
+        private final Set<String> collections;
+        private final long size;
+        private final long expiresAt;
+
+        private CachedResults(final List<RawBsonDocument> results, final Set<String> collections, final long size,
+                              final long expiresAt) {
+            this.results = results;
+            this.collections = collections;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+
+        private Iterator<Document> decode() {
+            final Iterator<RawBsonDocument> iterator = Collections.unmodifiableList(results).iterator();
+            return new Iterator<Document>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Document next() {
+                    return iterator.next().decode(CODEC);
+                }
+            };
+        }
+    }
+
+}
@@ -7,11 +7,11 @@ import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.mongodb.Block;
 import com.mongodb.MongoClientSettings;
-import com.mongodb.client.MongoClient;
+import com.mongodb.MongoCompressor;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
-import com.mongodb.client.MongoClients;
 import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -36,18 +36,12 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -152,6 +146,27 @@ public final class Main {
                 .desc("interactive loopMode mode")
                 .build());
 
+        options.addOption(Option.builder("ps")
+                .longOpt("poolSize")
+                .hasArg(true)
+                .required(false)
+                .desc("the maximum number of pooled connections to mongo")
+                .build());
+
+        options.addOption(Option.builder("c")
+                .longOpt("compressors")
+                .hasArg(true)
+                .required(false)
+                .desc("compressors for the connection to mongo, i.e: zstd,snappy,zlib")
+                .build());
+
+        options.addOption(Option.builder("hf")
+                .longOpt("historyFile")
+                .hasArg(true)
+                .required(false)
+                .desc("the file that the history of the statements in loopMode is kept in")
+                .build());
+
         options.addOptionGroup(sourceOptionGroup);
 
         return options;
@@ -172,7 +187,7 @@ public final class Main {
         CommandLineParser parser = new DefaultParser();
         HelpFormatter help = new HelpFormatter();
         help.setOptionComparator(new OptionComparator(
-                Arrays.asList("s", "sql", "i", "l", "d", "h", "db", "a", "u", "p", "b")));
+                Arrays.asList("s", "sql", "i", "l", "d", "h", "db", "a", "u", "p", "b", "ps", "c", "hf")));
 
         CommandLine cmd = null;
         try {
@@ -183,37 +198,37 @@ public final class Main {
 
             verifyArguments(cmd);
 
-            while (true) {
-                try (InputStream inputStream = getInputStream(cmd);
-                     OutputStream outputStream = getOutputStream(cmd)) {
-
-                    QueryConverter queryConverter = getQueryConverter(inputStream);
-
-                    if (hosts != null) {
-                        try {
-                            runQueryInMongo(cmd, hosts, outputStream, queryConverter);
-                        } catch (ParseException | IOException e) {
-                            if (loopMode) {
-                                e.printStackTrace(System.err);
-                                continue;
-                            } else {
-                                throw e;
+            //one session for all the statements, so that the connection to mongo is only made once
+            try (CliSession session = getSession(cmd, hosts);
+                 StatementReader console = new StatementReader(new UncloseableInputStream(System.in),
+                         1, TimeUnit.SECONDS)) {
+                while (true) {
+                    String input = readInput(cmd, console);
+                    try (OutputStream outputStream = getOutputStream(cmd)) {
+
+                        if (loopMode && "history".equals(input.trim())) {
+                            session.writeHistory(outputStream);
+                        } else {
+                            try {
+                                runStatement(cmd, session, console, input, outputStream);
+                            } catch (ParseException | IOException e) {
+                                if (loopMode) {
+                                    e.printStackTrace(System.err);
+                                    continue;
+                                } else {
+                                    throw e;
+                                }
                             }
                         }
-                    } else {
-                        IOUtils.write("\n\n******Mongo Query:*********\n\n", outputStream, StandardCharsets.UTF_8);
-                        queryConverter.write(outputStream);
-                        IOUtils.write("\n\n", outputStream, StandardCharsets.UTF_8);
                     }
 
-                }
-
-                if (loopMode) {
-                    if (shouldContinue()) {
-                        continue;
+                    if (loopMode) {
+                        if (shouldContinue(console)) {
+                            continue;
+                        }
                     }
+                    break;
                 }
-                break;
             }
         } catch (org.apache.commons.cli.ParseException e) {
             System.err.println(e.getMessage());
@@ -224,8 +239,8 @@ public final class Main {
         System.exit(0);
     }
 
-    private static boolean shouldContinue() throws IOException {
-        if ("y".equals(getCharacterInput(CONTINUE_TEXT).trim().toLowerCase())) {
+    private static boolean shouldContinue(final StatementReader console) throws IOException {
+        if ("y".equals(getCharacterInput(console, CONTINUE_TEXT).trim().toLowerCase())) {
             return true;
         }
             return false;
@@ -249,38 +264,61 @@ public final class Main {
                 "provided option u, but missing p or a");
     }
 
-    private static void runQueryInMongo(final CommandLine cmd, final String[] hosts, final OutputStream outputStream,
+    private static CliSession getSession(final CommandLine cmd, final String[] hosts) throws IOException {
+        final String historyFile = cmd.getOptionValue("hf");
+        return new CliSession(hosts != null ? getMongoClientSettings(cmd, hosts) : null,
+                historyFile != null ? new File(historyFile) : null, CliSession.DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    private static void runStatement(final CommandLine cmd, final CliSession session, final StatementReader console,
+                                     final String input, final OutputStream outputStream)
+            throws ParseException, IOException {
+        final boolean loopMode = cmd.hasOption('l');
+        final long start = System.nanoTime();
+        String sql = loopMode ? session.getStatementFromHistory(input) : input;
+
+        QueryConverter queryConverter = session.getStatement(sql);
+        if (queryConverter == null) {
+            queryConverter = getQueryConverter(sql);
+            session.putStatement(sql, queryConverter);
+        }
+
+        if (cmd.getOptionValues("h") != null) {
+            runQueryInMongo(cmd, session, console, outputStream, queryConverter);
+        } else {
+            IOUtils.write("\n\n******Mongo Query:*********\n\n", outputStream, StandardCharsets.UTF_8);
+            queryConverter.write(outputStream);
+            IOUtils.write("\n\n", outputStream, StandardCharsets.UTF_8);
+        }
+
+        if (loopMode) {
+            session.addHistory(sql);
+            System.err.println("statement " + session.getHistory().size() + " took "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+    }
+
+    private static void runQueryInMongo(final CommandLine cmd, final CliSession session,
+                                        final StatementReader console, final OutputStream outputStream,
                                         final QueryConverter queryConverter) throws ParseException, IOException {
 
         final String db = cmd.getOptionValue("db");
-        final String username = cmd.getOptionValue("u");
-        final String password = cmd.getOptionValue("p");
-        final String authdb = cmd.getOptionValue("a");
         final int batchSize = Integer.parseInt(cmd.getOptionValue("b", "" + DEFAULT_RESULT_BATCH_SIZE));
 
-        MongoClient mongoClient = null;
-        try {
-            mongoClient = getMongoClient(hosts, authdb, username, password);
-            Object result = queryConverter.run(mongoClient.getDatabase(db));
-
-            if (Long.class.isInstance(result) || long.class.isInstance(result)) {
-                IOUtils.write("\n\n******Query Results:*********\n\n", outputStream, StandardCharsets.UTF_8);
-                IOUtils.write("" + result, outputStream, StandardCharsets.UTF_8);
-                IOUtils.write("\n\n", outputStream, StandardCharsets.UTF_8);
-            } else if (QueryResultIterator.class.isInstance(result)) {
-                processMongoResults(batchSize, outputStream, (QueryResultIterator) result);
-            }
+        Object result = queryConverter.run(session.getMongoClient().getDatabase(db));
 
-        } finally {
-            if (mongoClient != null) {
-                mongoClient.close();
-            }
+        if (Long.class.isInstance(result) || long.class.isInstance(result)) {
+            IOUtils.write("\n\n******Query Results:*********\n\n", outputStream, StandardCharsets.UTF_8);
+            IOUtils.write("" + result, outputStream, StandardCharsets.UTF_8);
+            IOUtils.write("\n\n", outputStream, StandardCharsets.UTF_8);
+        } else if (QueryResultIterator.class.isInstance(result)) {
+            processMongoResults(console, batchSize, outputStream, (QueryResultIterator) result);
         }
     }
 
-    private static QueryConverter getQueryConverter(final InputStream inputStream) throws ParseException {
+    private static QueryConverter getQueryConverter(final String sql) throws ParseException {
 
-        QueryConverter.Builder builder = new QueryConverter.Builder().sqlInputStream(inputStream);
+        QueryConverter.Builder builder = new QueryConverter.Builder().sqlString(sql);
 
         if (System.getProperty(D_AGGREGATION_ALLOW_DISK_USE) != null) {
             builder.aggregationAllowDiskUse(Boolean.valueOf(
@@ -313,16 +351,22 @@ public final class Main {
         return outputStream;
     }
 
+    private static String readInput(final CommandLine cmd, final StatementReader console) throws IOException {
+        if (cmd.hasOption('i')) {
+            System.out.println(ENTER_SQL_TEXT);
+            return console.readStatement();
+        }
+        try (InputStream inputStream = getInputStream(cmd)) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+
     private static InputStream getInputStream(final CommandLine cmd) throws FileNotFoundException {
         final String source = cmd.getOptionValue("s");
-        final boolean interactiveMode = cmd.hasOption('i');
         final String sql = cmd.getOptionValue("sql");
 
         InputStream inputStream = null;
-        if (interactiveMode) {
-            inputStream = new TimeoutInputStream(new UncloseableInputStream(System.in), 1, TimeUnit.SECONDS);
-            System.out.println(ENTER_SQL_TEXT);
-        } else if (sql != null) {
+        if (sql != null) {
             inputStream = new ByteArrayInputStream(sql.getBytes(Charsets.UTF_8));
         } else {
             File sourceFile = new File(source);
@@ -334,7 +378,8 @@ public final class Main {
         return inputStream;
     }
 
-    private static void processMongoResults(final int batchSize, final OutputStream outputStream,
+    private static void processMongoResults(final StatementReader console, final int batchSize,
+                                            final OutputStream outputStream,
                                             final QueryResultIterator result) throws IOException {
         QueryResultIterator<Document> iterator = result;
 
@@ -363,7 +408,7 @@ public final class Main {
                     inputLoop:
                     while (true) {
                         String continueString;
-                        continueString = getCharacterInput("more results? (y/n): ");
+                        continueString = getCharacterInput(console, "more results? (y/n): ");
 
                         if ("n".equals(continueString.trim().toLowerCase())) {
                             break resultIterator;
@@ -376,34 +421,11 @@ public final class Main {
         }
     }
 
-    private static String getCharacterInput(final String question) throws IOException {
-        final ExecutorService executorService = Executors.newFixedThreadPool(1);
-
-        Future<String> future = executorService.submit(new Callable<String>() {
-            @SuppressWarnings("checkstyle:magicnumber")
-            @Override
-            public String call() throws Exception {
-                System.out.print(question);
-                while (true) {
-                    Scanner scanner = new Scanner(new UncloseableInputStream(System.in), Charsets.UTF_8.displayName());
-                    String choice = "";
-                    if (scanner.hasNext()) {
-                        choice = scanner.next();
-                    } else {
-                        Thread.sleep(200L);
-                        continue;
-                    }
-                    return choice;
-                }
-            }
-        });
-
-        try {
-            return future.get(1, TimeUnit.MINUTES);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            throw new IOException(e);
-        }
-
+    private static String getCharacterInput(final StatementReader console, final String question)
+            throws IOException {
+        System.out.print(question);
+        System.out.flush();
+        return console.readLine(1, TimeUnit.MINUTES);
     }
 
     private static String toJson(final List<Document> documents) throws IOException {
@@ -421,8 +443,11 @@ public final class Main {
     }
 
     @SuppressWarnings("magicnumber")
-    private static MongoClient getMongoClient(final String[] hosts,
-                                              final String authdb, final String username, final String password) {
+    private static MongoClientSettings getMongoClientSettings(final CommandLine cmd, final String[] hosts)
+            throws IOException {
+        final String username = cmd.getOptionValue("u");
+        final String password = cmd.getOptionValue("p");
+        final String authdb = cmd.getOptionValue("a");
         final Pattern hostAndPort = Pattern.compile("^(.[^:]*){1}([:]){0,1}(\\d+){0,1}$");
         final List<ServerAddress> serverAddresses = Lists.transform(Arrays.asList(hosts),
                 new Function<String, ServerAddress>() {
@@ -455,7 +480,36 @@ public final class Main {
             mongoClientSettingsBuilder.credential(credential);
         }
 
-        return MongoClients.create(mongoClientSettingsBuilder.build());
+        if (cmd.getOptionValue("ps") != null) {
+            final int poolSize = Integer.parseInt(cmd.getOptionValue("ps"));
+            mongoClientSettingsBuilder.applyToConnectionPoolSettings(new Block<ConnectionPoolSettings.Builder>() {
+                public void apply(final ConnectionPoolSettings.Builder builder) {
+                    builder.maxSize(poolSize);
+                }
+            });
+        }
+
+        if (cmd.getOptionValue("c") != null) {
+            mongoClientSettingsBuilder.compressorList(getCompressors(cmd.getOptionValue("c")));
+        }
+
+        return mongoClientSettingsBuilder.build();
+    }
+
+    private static List<MongoCompressor> getCompressors(final String compressors) throws IOException {
+        List<MongoCompressor> compressorList = new ArrayList<>();
+        for (String compressor : compressors.split("\\s*,\\s*")) {
+            if ("zstd".equalsIgnoreCase(compressor)) {
+                compressorList.add(MongoCompressor.createZstdCompressor());
+            } else if ("snappy".equalsIgnoreCase(compressor)) {
+                compressorList.add(MongoCompressor.createSnappyCompressor());
+            } else if ("zlib".equalsIgnoreCase(compressor)) {
+                compressorList.add(MongoCompressor.createZlibCompressor());
+            } else {
+                throw new IOException(compressor + " is not a compressor, use zstd, snappy or zlib");
+            }
+        }
+        return compressorList;
     }
 
     private static void isTrue(final boolean expression, final String message)
@@ -0,0 +1,188 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CountOptions;
+import org.bson.Document;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * {@link CollectionStatisticsProvider} that reads the statistics from a MongoDB database.  Document counts come from
+ * $collStats and the selectivity of a filter is estimated by counting the documents inside the bounds of the
+ * indexes that the filter can use.  Every filter on a field that no index starts with halves the estimate.  The
+ * count stops after 1000 documents or one second, so a filter that matches more documents than that is estimated
+ * like the filters that cannot use an index, but never below the fraction that was counted.  Results are cached so
+ * that the statistics are not read again for every query.
+ */
+public class MongoCollectionStatisticsProvider implements CollectionStatisticsProvider {
+
+    private static final double UNINDEXED_SELECTIVITY = 0.5;
+    private static final int MAX_COUNTED_DOCUMENTS = 1000;
+    private static final long COUNT_MAX_TIME_MS = 1000;
+    private static final long DEFAULT_CACHE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final MongoDatabase mongoDatabase;
+    private final long cacheMillis;
+    private final Map<String, CachedValue> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Default constructor.  Statistics are cached for five minutes.
+     * @param mongoDatabase the {@link MongoDatabase} to read the statistics from
+     */
+    public MongoCollectionStatisticsProvider(final MongoDatabase mongoDatabase) {
+        this(mongoDatabase, DEFAULT_CACHE_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     * @param mongoDatabase the {@link MongoDatabase} to read the statistics from
+     * @param cacheMillis how long the statistics are cached in milliseconds
+     */
+    public MongoCollectionStatisticsProvider(final MongoDatabase mongoDatabase, final long cacheMillis) {
+        notNull(mongoDatabase, "mongoDatabase is null");
+        this.mongoDatabase = mongoDatabase;
+        this.cacheMillis = cacheMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDocumentCount(final String collection) {
+        Long count = getCached("count:" + collection);
+        if (count == null) {
+            count = readDocumentCount(collection);
+            putCached("count:" + collection, count);
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getSelectivity(final String collection, final Document filter) {
+        if (filter == null || filter.isEmpty()) {
+            return 1;
+        }
+        String key = "selectivity:" + collection + ":" + filter.toJson();
+        Double selectivity = getCached(key);
+        if (selectivity == null) {
+            selectivity = estimateSelectivity(collection, filter);
+            putCached(key, selectivity);
+        }
+        return selectivity;
+    }
+
+    private long readDocumentCount(final String collection) {
+        MongoCollection<Document> mongoCollection = mongoDatabase.getCollection(collection);
+        try {
+            long count = 0;
+            //one document per shard
+            for (Document collStats : mongoCollection.aggregate(Collections.singletonList(
+                    new Document("$collStats", new Document("count", new Document()))))) {
+                count += ((Number) collStats.get("count")).longValue();
+            }
+            return count;
+        } catch (MongoException e) {
+            //$collStats is not available on views
+            return mongoCollection.estimatedDocumentCount();
+        }
+    }
+
+    private double estimateSelectivity(final String collection, final Document filter) {
+        long documentCount = getDocumentCount(collection);
+        if (documentCount == 0) {
+            return 1;
+        }
+        Set<String> indexedFields = getIndexedFields(collection);
+        Document indexBounds = new Document();
+        double selectivity = 1;
+        for (Map.Entry<String, Object> entry : filter.entrySet()) {
+            if (indexedFields.contains(entry.getKey())) {
+                indexBounds.put(entry.getKey(), entry.getValue());
+            } else {
+                selectivity *= UNINDEXED_SELECTIVITY;
+            }
+        }
+        if (!indexBounds.isEmpty()) {
+            long countInBounds;
+            try {
+                countInBounds = mongoDatabase.getCollection(collection).countDocuments(indexBounds,
+                        new CountOptions().limit(MAX_COUNTED_DOCUMENTS).maxTime(COUNT_MAX_TIME_MS,
+                                TimeUnit.MILLISECONDS));
+            } catch (MongoExecutionTimeoutException e) {
+                countInBounds = MAX_COUNTED_DOCUMENTS;
+            }
+            selectivity *= getIndexSelectivity(countInBounds, documentCount, indexBounds.size());
+        }
+        return selectivity;
+    }
+
+    /**
+     * Get the fraction of the documents inside the index bounds from a count that stops at 1000 documents.
+     * @param countInBounds the number of documents that were counted
+     * @param documentCount the number of documents of the collection
+     * @param indexedFilters the number of filters that bound the count
+     * @return the fraction that was counted, or if the count stopped at the limit, the estimate of the filters
+     * that cannot use an index but at least the fraction that was counted
+     */
+    static double getIndexSelectivity(final long countInBounds, final long documentCount,
+                                      final int indexedFilters) {
+        double countedSelectivity = Math.min(1, (double) countInBounds / documentCount);
+        if (countInBounds < MAX_COUNTED_DOCUMENTS) {
+            return countedSelectivity;
+        }
+        return Math.max(countedSelectivity, Math.pow(UNINDEXED_SELECTIVITY, indexedFilters));
+    }
+
+    private Set<String> getIndexedFields(final String collection) {
+        Set<String> indexedFields = getCached("indexes:" + collection);
+        if (indexedFields == null) {
+            indexedFields = new HashSet<>();
+            for (Document index : mongoDatabase.getCollection(collection).listIndexes()) {
+                Document indexKey = index.get("key", Document.class);
+                if (indexKey != null && !indexKey.isEmpty()) {
+                    //only the first field of an index can bound the scan on its own
+                    indexedFields.add(indexKey.keySet().iterator().next());
+                }
+            }
+            putCached("indexes:" + collection, indexedFields);
+        }
+        return indexedFields;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T getCached(final String key) {
+        CachedValue cachedValue = cache.get(key);
+        if (cachedValue == null || cachedValue.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return (T) cachedValue.value;
+    }
+
+    private void putCached(final String key, final Object value) {
+        cache.put(key, new CachedValue(value, System.currentTimeMillis() + cacheMillis));
+    }
+
+    private static final class CachedValue {
+        private final Object value;
+        private final long expiresAt;
+
+        private CachedValue(final Object value, final long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.github.vincentrussell.query.mongodb.sql.converter;
 
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.QueryHintHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.SemiJoinHolder;
 import org.bson.Document;
 
 import java.util.ArrayList;
@@ -17,8 +19,12 @@ public class MongoDBQueryHolder {
     private Document sort = new Document();
     private Document aliasProjection = new Document();
     private List<Document> joinPipeline = new ArrayList<Document>();
+    private List<Document> windowPipeline = new ArrayList<Document>();
+    private List<SemiJoinHolder> semiJoins = new ArrayList<SemiJoinHolder>();
     private boolean distinct = false;
     private boolean countAll = false;
+    private String countDistinctField;
+    private String preGroupSortField;
     private List<String> groupBys = new ArrayList<>();
     private Document having = new Document();
     private long limit = -1;
@@ -28,6 +34,8 @@ public class MongoDBQueryHolder {
      */
     private List<Document> prevSteps;
     private boolean requiresMultistepAggregation = false;
+    private Document hint;
+    private QueryHintHolder queryHints = new QueryHintHolder();
 
     /**
      * Pojo to hold the MongoDB data.
@@ -174,6 +182,40 @@ public class MongoDBQueryHolder {
         this.countAll = countAll;
     }
 
+    /**
+     * get the field that is counted with COUNT(DISTINCT field).
+     * @return the field that is counted with COUNT(DISTINCT field) or null if there isn't one
+     */
+    public String getCountDistinctField() {
+        return countDistinctField;
+    }
+
+    /**
+     * set the field that is counted with COUNT(DISTINCT field).  A first $group stage on
+     * this field is needed to remove the duplicates before counting.
+     * @param countDistinctField the field that is counted with COUNT(DISTINCT field)
+     */
+    public void setCountDistinctField(final String countDistinctField) {
+        this.countDistinctField = countDistinctField;
+    }
+
+    /**
+     * get the field that needs to be sorted on before the $group stage.
+     * @return the field that needs to be sorted on before the $group stage or null if there isn't one
+     */
+    public String getPreGroupSortField() {
+        return preGroupSortField;
+    }
+
+    /**
+     * set the field that needs to be sorted on before the $group stage, so that values collected
+     * with $push are in order.
+     * @param preGroupSortField the field that needs to be sorted on before the $group stage
+     */
+    public void setPreGroupSortField(final String preGroupSortField) {
+        this.preGroupSortField = preGroupSortField;
+    }
+
     /**
      * Set the fields that are used to group on.
      * @param groupBys the fields that are used to group on
@@ -279,6 +321,38 @@ public class MongoDBQueryHolder {
         this.joinPipeline = joinPipeline;
     }
 
+    /**
+     * get the IN (SELECT ...) and EXISTS (SELECT ...) conditions compiled to semi joins.
+     * @return the semi joins
+     */
+    public List<SemiJoinHolder> getSemiJoins() {
+        return semiJoins;
+    }
+
+    /**
+     * Set the IN (SELECT ...) and EXISTS (SELECT ...) conditions compiled to semi joins.
+     * @param semiJoins the semi joins
+     */
+    public void setSemiJoins(final List<SemiJoinHolder> semiJoins) {
+        this.semiJoins = semiJoins;
+    }
+
+    /**
+     * get the aggregation pipeline steps needed to compute window functions.
+     * @return the aggregation pipeline steps needed to compute window functions
+     */
+    public List<Document> getWindowPipeline() {
+        return windowPipeline;
+    }
+
+    /**
+     * Set the aggregation pipeline steps needed to compute window functions.
+     * @param windowPipeline the aggregation pipeline steps needed to compute window functions.
+     */
+    public void setWindowPipeline(final List<Document> windowPipeline) {
+        this.windowPipeline = windowPipeline;
+    }
+
     /**
      * Get the aggregation steps for this query.
      * @return the aggregation steps.
@@ -311,5 +385,36 @@ public class MongoDBQueryHolder {
         return requiresMultistepAggregation;
     }
 
-}
+    /**
+     * Get the keys of the index that covers this query.
+     * @return the keys of the covering index or null if the query is not covered
+     */
+    public Document getHint() {
+        return hint;
+    }
+
+    /**
+     * Set the keys of the index that covers this query.
+     * @param hint the keys of the covering index
+     */
+    public void setHint(final Document hint) {
+        this.hint = hint;
+    }
+
+    /**
+     * Get the execution options from the hint comments of the sql.
+     * @return the {@link QueryHintHolder}
+     */
+    public QueryHintHolder getQueryHints() {
+        return queryHints;
+    }
+
+    /**
+     * Set the execution options from the hint comments of the sql.
+     * @param queryHints the {@link QueryHintHolder}
+     */
+    public void setQueryHints(final QueryHintHolder queryHints) {
+        this.queryHints = queryHints;
+    }
 
+}
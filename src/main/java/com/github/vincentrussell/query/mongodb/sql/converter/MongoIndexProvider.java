@@ -0,0 +1,92 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * {@link IndexProvider} that reads the indexes of a collection from a MongoDB database.  Sparse and partial indexes
+ * are left out because they do not hold every document, and so are text, hashed and geospatial indexes because
+ * they do not hold the values of the fields.  Results are cached so that the indexes are not listed again for every
+ * query.
+ */
+public class MongoIndexProvider implements IndexProvider {
+
+    private static final long DEFAULT_CACHE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final MongoDatabase mongoDatabase;
+    private final long cacheMillis;
+    private final Map<String, CachedIndexes> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Default constructor.  Indexes are cached for five minutes.
+     * @param mongoDatabase the {@link MongoDatabase} to read the indexes from
+     */
+    public MongoIndexProvider(final MongoDatabase mongoDatabase) {
+        this(mongoDatabase, DEFAULT_CACHE_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     * @param mongoDatabase the {@link MongoDatabase} to read the indexes from
+     * @param cacheMillis how long the indexes are cached in milliseconds
+     */
+    public MongoIndexProvider(final MongoDatabase mongoDatabase, final long cacheMillis) {
+        notNull(mongoDatabase, "mongoDatabase is null");
+        this.mongoDatabase = mongoDatabase;
+        this.cacheMillis = cacheMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Document> getIndexes(final String collection) {
+        CachedIndexes cachedIndexes = cache.get(collection);
+        if (cachedIndexes == null || cachedIndexes.expiresAt < System.currentTimeMillis()) {
+            cachedIndexes = new CachedIndexes(readIndexes(collection), System.currentTimeMillis() + cacheMillis);
+            cache.put(collection, cachedIndexes);
+        }
+        return cachedIndexes.indexes;
+    }
+
+    private List<Document> readIndexes(final String collection) {
+        List<Document> indexes = new ArrayList<>();
+        for (Document index : mongoDatabase.getCollection(collection).listIndexes()) {
+            Document indexKey = index.get("key", Document.class);
+            if (indexKey != null && !Boolean.TRUE.equals(index.get("sparse"))
+                    && !index.containsKey("partialFilterExpression") && isAscendingOrDescending(indexKey)) {
+                indexes.add(indexKey);
+            }
+        }
+        return Collections.unmodifiableList(indexes);
+    }
+
+    private static boolean isAscendingOrDescending(final Document indexKey) {
+        for (Object direction : indexKey.values()) {
+            if (!(direction instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class CachedIndexes {
+        private final List<Document> indexes;
+        private final long expiresAt;
+
+        private CachedIndexes(final List<Document> indexes, final long expiresAt) {
+            this.indexes = indexes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
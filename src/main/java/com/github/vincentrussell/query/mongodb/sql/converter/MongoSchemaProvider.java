@@ -0,0 +1,140 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * {@link SchemaProvider} that infers the types of the fields by reading a $sample of the collection.  A field is
+ * only given a type when every sampled value of the field has that type, values in arrays count as values of the
+ * field because queries on an array field match its elements.  Results are cached so that the collection is not
+ * sampled again for every query.
+ */
+public class MongoSchemaProvider implements SchemaProvider {
+
+    private static final int DEFAULT_SAMPLE_SIZE = 100;
+    private static final long DEFAULT_CACHE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final MongoDatabase mongoDatabase;
+    private final int sampleSize;
+    private final long cacheMillis;
+    private final Map<String, CachedFieldTypes> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Default constructor.  100 documents are sampled and the types are cached for five minutes.
+     * @param mongoDatabase the {@link MongoDatabase} to sample the collections from
+     */
+    public MongoSchemaProvider(final MongoDatabase mongoDatabase) {
+        this(mongoDatabase, DEFAULT_SAMPLE_SIZE, DEFAULT_CACHE_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     * @param mongoDatabase the {@link MongoDatabase} to sample the collections from
+     * @param sampleSize the number of documents to sample from each collection
+     * @param cacheMillis how long the types are cached in milliseconds
+     */
+    public MongoSchemaProvider(final MongoDatabase mongoDatabase, final int sampleSize, final long cacheMillis) {
+        notNull(mongoDatabase, "mongoDatabase is null");
+        isTrue(sampleSize > 0, "sampleSize must be positive");
+        this.mongoDatabase = mongoDatabase;
+        this.sampleSize = sampleSize;
+        this.cacheMillis = cacheMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, FieldType> getFieldTypes(final String collection) {
+        CachedFieldTypes cachedFieldTypes = cache.get(collection);
+        if (cachedFieldTypes == null || cachedFieldTypes.expiresAt < System.currentTimeMillis()) {
+            cachedFieldTypes = new CachedFieldTypes(sample(collection),
+                    System.currentTimeMillis() + cacheMillis);
+            cache.put(collection, cachedFieldTypes);
+        }
+        return cachedFieldTypes.fieldTypes;
+    }
+
+    private Map<String, FieldType> sample(final String collection) {
+        Map<String, FieldType> fieldTypes = new HashMap<>();
+        for (Document document : mongoDatabase.getCollection(collection).aggregate(Collections.singletonList(
+                new Document("$sample", new Document("size", sampleSize))))) {
+            addFieldTypes(fieldTypes, null, document);
+        }
+        Map<String, FieldType> knownFieldTypes = new HashMap<>();
+        for (Map.Entry<String, FieldType> entry : fieldTypes.entrySet()) {
+            if (entry.getValue() != FieldType.UNKNOWN) {
+                knownFieldTypes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(knownFieldTypes);
+    }
+
+    /**
+     * Add the types of the fields of a document.  Fields that have had more than one type are UNKNOWN.
+     * @param fieldTypes the types found so far
+     * @param prefix the path of the document or null for the top level document
+     * @param document the document
+     */
+    static void addFieldTypes(final Map<String, FieldType> fieldTypes, final String prefix,
+                              final Document document) {
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            addFieldType(fieldTypes, prefix != null ? prefix + "." + entry.getKey() : entry.getKey(),
+                    entry.getValue());
+        }
+    }
+
+    private static void addFieldType(final Map<String, FieldType> fieldTypes, final String path,
+                                     final Object value) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                addFieldType(fieldTypes, path, element);
+            }
+            return;
+        }
+        if (value instanceof Document) {
+            addFieldTypes(fieldTypes, path, (Document) value);
+        }
+        FieldType fieldType = getFieldType(value);
+        FieldType previous = fieldTypes.get(path);
+        fieldTypes.put(path, previous == null || previous == fieldType ? fieldType : FieldType.UNKNOWN);
+    }
+
+    private static FieldType getFieldType(final Object value) {
+        if (value instanceof String) {
+            return FieldType.STRING;
+        } else if (value instanceof Number) {
+            return FieldType.NUMBER;
+        } else if (value instanceof Date) {
+            return FieldType.DATE;
+        } else if (value instanceof Boolean) {
+            return FieldType.BOOLEAN;
+        }
+        return FieldType.UNKNOWN;
+    }
+
+    private static final class CachedFieldTypes {
+        private final Map<String, FieldType> fieldTypes;
+        private final long expiresAt;
+
+        private CachedFieldTypes(final Map<String, FieldType> fieldTypes, final long expiresAt) {
+            this.fieldTypes = fieldTypes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,462 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.bson.BsonBinary;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang.ObjectUtils.defaultIfNull;
+
+/**
+ * Writes a query in the document format of {@link QueryConverter#getQueryAsDocument()} as a mongo shell statement,
+ * i.e: db.orders.find({...}).  The documents are walked once and written straight to the {@link OutputStream} in
+ * shell syntax, so ObjectIds are written as ObjectId("...") and dates as ISODate("...").  Indented documents have
+ * the same layout as before, two spaces per level, and compact documents are written on one line.
+ */
+public final class MongoShellWriter {
+
+    //the largest long that the shell can read as a number without losing precision
+    private static final long MAX_SAFE_INTEGER = 9007199254740991L;
+    //the last millisecond of the year 9999, later dates cannot be written as ISODate
+    private static final long MAX_ISO_DATE = 253402300799999L;
+
+    private final Writer writer;
+    private final boolean indent;
+
+    /**
+     * Default constructor.
+     * @param outputStream the {@link OutputStream} to write the statement to, which is flushed but not closed
+     * @param indent true to write every field of a document on its own line, false to write documents on one line
+     */
+    public MongoShellWriter(final OutputStream outputStream, final boolean indent) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        this.indent = indent;
+    }
+
+    /**
+     * Write the mongo shell statement of a query.
+     * @param queryDocument the document format of the query, see {@link QueryConverter#getQueryAsDocument()}
+     * @throws IOException when there is an issue writing to the {@link OutputStream}
+     */
+    @SuppressWarnings("unchecked")
+    public void writeQuery(final Document queryDocument) throws IOException {
+        String collectionName = queryDocument.getString("collection");
+        boolean isAggregation = queryDocument.get("query") instanceof List;
+        boolean isFindQuery = false;
+        if (queryDocument.get("distinct") != null) {
+            writer.write("db." + collectionName + ".distinct(");
+            writeString(queryDocument.get("distinct").toString());
+            writer.write(" , ");
+            writeValue(queryDocument.get("query"));
+            writeOptions(queryDocument, Arrays.asList("maxTimeMS", "collation"));
+        } else if (Boolean.TRUE.equals(queryDocument.getBoolean("estimatedDocumentCount")) && !isAggregation) {
+            writer.write("db." + collectionName + ".estimatedDocumentCount(");
+            if (queryDocument.get("maxTimeMS") != null) {
+                writeValue(new Document("maxTimeMS", queryDocument.get("maxTimeMS")));
+            }
+        } else if (Boolean.TRUE.equals(queryDocument.getBoolean("countAll")) && !isAggregation) {
+            writer.write("db." + collectionName + ".count(");
+            writeValue(queryDocument.get("query"));
+            writeOptions(queryDocument, Arrays.asList("hint", "maxTimeMS", "collation"));
+        } else if (isAggregation) {
+            writer.write("db." + collectionName + ".aggregate([");
+            String separator = "";
+            for (Object stage : (List<Object>) queryDocument.get("query")) {
+                writer.write(separator);
+                writeValue(stage);
+                separator = ",";
+            }
+            writer.write("]");
+            Document options = (Document) queryDocument.get("options");
+            if (options != null && !options.isEmpty()) {
+                writer.write(",");
+                writeValue(options);
+            }
+        } else {
+            SQLCommandType sqlCommandType = SQLCommandType.valueOf(
+                    defaultIfNull(queryDocument.get("commandType"), SQLCommandType.SELECT.name()).toString());
+            if (SQLCommandType.SELECT.equals(sqlCommandType)) {
+                isFindQuery = true;
+                writer.write("db." + collectionName + ".find(");
+            } else if (SQLCommandType.DELETE.equals(sqlCommandType)) {
+                writer.write("db." + collectionName + ".remove(");
+            } else if (SQLCommandType.UPDATE.equals(sqlCommandType)) {
+                writer.write("db." + collectionName + ".updateMany(");
+            }
+            writeValue(queryDocument.get("query"));
+            writeUpdate((Document) queryDocument.get("updateSet"), (List<String>) queryDocument.get("updateUnSet"));
+            if (queryDocument.get("projection") != null) {
+                writer.write(" , ");
+                writeValue(queryDocument.get("projection"));
+            }
+        }
+        writer.write(")");
+
+        if (isFindQuery) {
+            writeCursorMethod("sort", queryDocument.get("sort"));
+            if (queryDocument.get("skip") != null) {
+                writer.write(".skip(" + queryDocument.get("skip") + ")");
+            }
+            if (queryDocument.get("limit") != null) {
+                writer.write(".limit(" + queryDocument.get("limit") + ")");
+            }
+            writeCursorMethod("hint", queryDocument.get("hint"));
+            writeCursorHints(queryDocument);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write a value in shell syntax, i.e: a document, a list, an ObjectId or a string.
+     * @param value the value
+     * @throws IOException when there is an issue writing to the {@link OutputStream}
+     */
+    public void writeValue(final Object value) throws IOException {
+        writeValue(value, 0);
+    }
+
+    /**
+     * Flush the written statement to the {@link OutputStream}.
+     * @throws IOException when there is an issue writing to the {@link OutputStream}
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void writeUpdate(final Document updateSet, final List<String> updateUnSet) throws IOException {
+        boolean hasSet = updateSet != null && !updateSet.isEmpty();
+        boolean hasUnset = updateUnSet != null && !updateUnSet.isEmpty();
+        if (!hasSet && !hasUnset) {
+            return;
+        }
+        writer.write(hasSet && hasUnset ? ",[" : ",");
+        if (hasSet) {
+            writeValue(new Document("$set", updateSet));
+        }
+        if (hasSet && hasUnset) {
+            writer.write(",");
+        }
+        if (hasUnset) {
+            writeValue(new Document("$unset", updateUnSet));
+        }
+        if (hasSet && hasUnset) {
+            writer.write("]");
+        }
+    }
+
+    private void writeOptions(final Document queryDocument, final List<String> optionNames) throws IOException {
+        Document options = new Document();
+        for (String optionName : optionNames) {
+            if (queryDocument.get(optionName) != null) {
+                options.put(optionName, queryDocument.get(optionName));
+            }
+        }
+        if (!options.isEmpty()) {
+            writer.write(" , ");
+            writeValue(options);
+        }
+    }
+
+    private void writeCursorHints(final Document queryDocument) throws IOException {
+        if (queryDocument.get("maxTimeMS") != null) {
+            writer.write(".maxTimeMS(" + queryDocument.get("maxTimeMS") + ")");
+        }
+        if (queryDocument.get("batchSize") != null) {
+            writer.write(".batchSize(" + queryDocument.get("batchSize") + ")");
+        }
+        writeCursorMethod("readPref", queryDocument.get("readPreference"));
+        if (Boolean.TRUE.equals(queryDocument.get("allowDiskUse"))) {
+            writer.write(".allowDiskUse()");
+        }
+        if (Boolean.TRUE.equals(queryDocument.get("noCursorTimeout"))) {
+            writer.write(".noCursorTimeout()");
+        }
+        writeCursorMethod("collation", queryDocument.get("collation"));
+    }
+
+    private void writeCursorMethod(final String method, final Object argument) throws IOException {
+        if (argument != null) {
+            writer.write("." + method + "(");
+            writeValue(argument);
+            writer.write(")");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeValue(final Object value, final int level) throws IOException {
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Map) {
+            writeDocument((Map<String, Object>) value, level);
+        } else if (value instanceof Iterable) {
+            writeArray((Iterable<Object>) value, level);
+        } else if (value instanceof Object[]) {
+            writeArray(Arrays.asList((Object[]) value), level);
+        } else if (value instanceof Long) {
+            writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value instanceof BsonValue) {
+            writeBsonValue((BsonValue) value, level);
+        } else {
+            writeShellType(value);
+        }
+    }
+
+    private void writeDocument(final Map<String, Object> document, final int level) throws IOException {
+        if (document.isEmpty()) {
+            writer.write("{}");
+            return;
+        }
+        writer.write("{");
+        String separator = "";
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            writer.write(separator);
+            newLine(level + 1);
+            writeString(entry.getKey());
+            writer.write(": ");
+            writeValue(entry.getValue(), level + 1);
+            separator = indent ? "," : ", ";
+        }
+        newLine(level);
+        writer.write("}");
+    }
+
+    private void writeArray(final Iterable<Object> array, final int level) throws IOException {
+        if (!array.iterator().hasNext()) {
+            writer.write("[]");
+            return;
+        }
+        writer.write("[");
+        String separator = "";
+        for (Object element : array) {
+            writer.write(separator);
+            newLine(level + 1);
+            writeValue(element, level + 1);
+            separator = indent ? "," : ", ";
+        }
+        newLine(level);
+        writer.write("]");
+    }
+
+    private void newLine(final int level) throws IOException {
+        if (indent) {
+            writer.write('\n');
+            for (int i = 0; i < level; i++) {
+                writer.write("  ");
+            }
+        }
+    }
+
+    private void writeLong(final long value) throws IOException {
+        if (Math.abs(value) <= MAX_SAFE_INTEGER) {
+            writer.write(Long.toString(value));
+        } else {
+            writer.write("NumberLong(\"" + value + "\")");
+        }
+    }
+
+    private void writeDouble(final double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writer.write(Double.isNaN(value) ? "NaN" : (value > 0 ? "Infinity" : "-Infinity"));
+        } else {
+            writer.write(Double.toString(value));
+        }
+    }
+
+    private void writeShellType(final Object value) throws IOException {
+        if (value instanceof ObjectId) {
+            writer.write("ObjectId(\"" + ((ObjectId) value).toHexString() + "\")");
+        } else if (value instanceof Date) {
+            writeDate(((Date) value).getTime());
+        } else if (value instanceof Decimal128) {
+            writer.write("NumberDecimal(\"" + value + "\")");
+        } else if (value instanceof Pattern) {
+            writeRegularExpression(((Pattern) value).pattern(), getOptions((Pattern) value));
+        } else if (value instanceof Binary) {
+            writeBinary(((Binary) value).getType(), ((Binary) value).getData());
+        } else if (value instanceof UUID) {
+            writer.write("UUID(\"" + value + "\")");
+        } else if (value instanceof Symbol) {
+            writeString(((Symbol) value).getSymbol());
+        } else if (value instanceof Code) {
+            writer.write("Code(");
+            writeString(((Code) value).getCode());
+            writer.write(")");
+        } else if (value instanceof MinKey) {
+            writer.write("MinKey");
+        } else if (value instanceof MaxKey) {
+            writer.write("MaxKey");
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeBsonValue(final BsonValue value, final int level) throws IOException {
+        switch (value.getBsonType()) {
+            case DOCUMENT:
+                writeValue(value.asDocument(), level);
+                break;
+            case ARRAY:
+                writeValue(value.asArray().getValues(), level);
+                break;
+            case STRING:
+                writeString(value.asString().getValue());
+                break;
+            case INT32:
+                writer.write(Integer.toString(value.asInt32().getValue()));
+                break;
+            case INT64:
+                writeLong(value.asInt64().getValue());
+                break;
+            case DOUBLE:
+                writeDouble(value.asDouble().getValue());
+                break;
+            case BOOLEAN:
+                writer.write(Boolean.toString(value.asBoolean().getValue()));
+                break;
+            case DECIMAL128:
+                writeShellType(value.asDecimal128().getValue());
+                break;
+            case OBJECT_ID:
+                writeShellType(value.asObjectId().getValue());
+                break;
+            case DATE_TIME:
+                writeDate(value.asDateTime().getValue());
+                break;
+            case REGULAR_EXPRESSION:
+                BsonRegularExpression regularExpression = value.asRegularExpression();
+                writeRegularExpression(regularExpression.getPattern(), regularExpression.getOptions());
+                break;
+            case BINARY:
+                BsonBinary binary = value.asBinary();
+                writeBinary(binary.getType(), binary.getData());
+                break;
+            case TIMESTAMP:
+                writeTimestamp(value.asTimestamp());
+                break;
+            case NULL:
+                writer.write("null");
+                break;
+            case UNDEFINED:
+                writer.write("undefined");
+                break;
+            case MIN_KEY:
+                writer.write("MinKey");
+                break;
+            case MAX_KEY:
+                writer.write("MaxKey");
+                break;
+            case SYMBOL:
+                writeString(value.asSymbol().getSymbol());
+                break;
+            default:
+                writeString(value.toString());
+                break;
+        }
+    }
+
+    private void writeDate(final long millis) throws IOException {
+        if (millis >= 0 && millis <= MAX_ISO_DATE) {
+            writer.write("ISODate(\"" + Instant.ofEpochMilli(millis) + "\")");
+        } else {
+            writer.write("new Date(" + millis + ")");
+        }
+    }
+
+    private void writeRegularExpression(final String pattern, final String options) throws IOException {
+        writer.write("/" + pattern.replace("/", "\\/") + "/" + options);
+    }
+
+    private void writeBinary(final byte type, final byte[] data) throws IOException {
+        writer.write("BinData(" + Byte.toUnsignedInt(type) + ", \"" + Base64.getEncoder().encodeToString(data) + "\")");
+    }
+
+    private void writeTimestamp(final BsonTimestamp timestamp) throws IOException {
+        writer.write("Timestamp(" + timestamp.getTime() + ", " + timestamp.getInc() + ")");
+    }
+
+    private void writeString(final String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+            switch (character) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\b':
+                    writer.write("\\b");
+                    break;
+                case '\f':
+                    writer.write("\\f");
+                    break;
+                default:
+                    if (character < ' ' || character == '\u2028' || character == '\u2029') {
+                        writer.write(String.format("\\u%04x", (int) character));
+                    } else {
+                        writer.write(character);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
+    }
+
+    private static String getOptions(final Pattern pattern) {
+        StringBuilder options = new StringBuilder();
+        int flags = pattern.flags();
+        if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+            options.append('i');
+        }
+        if ((flags & Pattern.MULTILINE) != 0) {
+            options.append('m');
+        }
+        if ((flags & Pattern.DOTALL) != 0) {
+            options.append('s');
+        }
+        if ((flags & Pattern.COMMENTS) != 0) {
+            options.append('x');
+        }
+        return options.toString();
+    }
+
+}
@@ -1,17 +1,32 @@
 package com.github.vincentrussell.query.mongodb.sql.converter;
 
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.AliasHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.CompiledPlanHolder;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.ExpressionHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.QueryHintHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.SemiJoinHolder;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.FromHolder;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.SQLCommandInfoHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.ChangeStreamProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.CoveredQueryProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.ExclusionProjectionProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.FieldTypeInferenceProcessor;
 import com.github.vincentrussell.query.mongodb.sql.converter.processor.HavingClauseProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.join.ClientSideJoinExecutor;
+import com.github.vincentrussell.query.mongodb.sql.converter.join.ClientSideJoinStrategy;
 import com.github.vincentrussell.query.mongodb.sql.converter.processor.JoinProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.JoinReorderProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.QueryHintProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.SemiJoinProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.TopNProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.UnionProcessor;
 import com.github.vincentrussell.query.mongodb.sql.converter.processor.WhereClauseProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.WindowFunctionProcessor;
 import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import com.github.vincentrussell.query.mongodb.sql.converter.view.IncrementalGroupByView;
 import com.github.vincentrussell.query.mongodb.sql.converter.visitor.ExpVisitorEraseAliasTableBaseBuilder;
 import com.github.vincentrussell.query.mongodb.sql.converter.visitor.WhereVisitorMatchAndLookupPipelineMatchBuilder;
 import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
@@ -19,56 +34,64 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.DistinctIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.changestream.FullDocument;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 import net.sf.jsqlparser.expression.Alias;
+import net.sf.jsqlparser.expression.AnalyticExpression;
 import net.sf.jsqlparser.expression.Expression;
 import net.sf.jsqlparser.expression.Function;
 import net.sf.jsqlparser.expression.NullValue;
 import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
 import net.sf.jsqlparser.parser.CCJSqlParser;
-import net.sf.jsqlparser.parser.StreamProvider;
+import net.sf.jsqlparser.parser.StringProvider;
 import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.FromItem;
+import net.sf.jsqlparser.statement.select.Join;
 import net.sf.jsqlparser.statement.select.OrderByElement;
 import net.sf.jsqlparser.statement.select.SelectExpressionItem;
 import net.sf.jsqlparser.statement.select.SelectItem;
 import net.sf.jsqlparser.statement.select.SubSelect;
 import net.sf.jsqlparser.statement.update.UpdateSet;
+import net.sf.jsqlparser.util.TablesNamesFinder;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.mutable.MutableBoolean;
+import org.bson.BsonDocument;
 import org.bson.BsonValue;
 import org.bson.Document;
-import org.bson.json.JsonMode;
-import org.bson.json.JsonWriterSettings;
 
-import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Supplier;
 
-import static com.google.common.base.MoreObjects.firstNonNull;
 import static org.apache.commons.lang.StringUtils.isEmpty;
+import static org.apache.commons.lang.Validate.isTrue;
 import static org.apache.commons.lang.Validate.notNull;
 
 /**
@@ -78,40 +101,79 @@ public final class QueryConverter {
     private final CCJSqlParser jSqlParser;
     private final Integer aggregationBatchSize;
     private final Boolean aggregationAllowDiskUse;
+    private final boolean useEstimatedDocumentCount;
+    private final boolean percentileFallback;
+    private final boolean equalityLookups;
+    private final boolean conciseLookups;
+    private final int semiJoinInlineThreshold;
+    private final CollectionStatisticsProvider collectionStatisticsProvider;
+    private final IndexProvider indexProvider;
+    private final Map<String, List<String>> defaultExcludedFields;
+    private final List<String> exceptColumns;
+    private final ResultCache resultCache;
+    private final Set<String> collections;
+    private final boolean clientSideJoins;
+    private final long clientSideJoinMemoryBudget;
+    private final ClientSideJoinStrategy clientSideJoinStrategy;
+    private final int nestedLoopJoinBatchSize;
+    private final int nestedLoopJoinParallelism;
     private final MongoDBQueryHolder mongoDBQueryHolder;
 
     private final Map<String, FieldType> fieldNameToFieldTypeMapping;
     private final FieldType defaultFieldType;
     private final SQLCommandInfoHolder sqlCommandInfoHolder;
+    private volatile CompiledPlanHolder compiledPlan;
 
-    private static final JsonWriterSettings RELAXED = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+    private static final String COUNT_DISTINCT_VALUE = "distinctValue";
+    private static final List<String> NUMBER_TYPES = Arrays.asList("double", "int", "long", "decimal");
 
 
 
     /**
-     * Create a QueryConverter with an InputStream.
+     * Create a QueryConverter from the settings in the {@link Builder}.
      *
-     * @param inputStream                 an input stream that has the sql statement in it
-     * @param fieldNameToFieldTypeMapping mapping for each field
-     * @param defaultFieldType            the default {@link FieldType} to be used
-     * @param aggregationAllowDiskUse     set whether or not disk use is allowed during aggregation
-     * @param aggregationBatchSize        set the batch size for aggregation
+     * @param builder the {@link Builder} that holds the sql statement and the conversion options
      * @throws ParseException when the sql query cannot be parsed
      */
-    private QueryConverter(final InputStream inputStream, final Map<String, FieldType> fieldNameToFieldTypeMapping,
-                          final FieldType defaultFieldType, final Boolean aggregationAllowDiskUse,
-                          final Integer aggregationBatchSize) throws ParseException {
+    private QueryConverter(final Builder builder) throws ParseException {
         try {
-            this.aggregationAllowDiskUse = aggregationAllowDiskUse;
-            this.aggregationBatchSize = aggregationBatchSize;
-            this.jSqlParser = new CCJSqlParser(new StreamProvider(inputStream, Charsets.UTF_8.name()));
-            this.defaultFieldType = defaultFieldType != null ? defaultFieldType : FieldType.UNKNOWN;
+            this.aggregationAllowDiskUse = builder.aggregationAllowDiskUse;
+            this.aggregationBatchSize = builder.aggregationBatchSize;
+            this.useEstimatedDocumentCount = builder.useEstimatedDocumentCount;
+            this.percentileFallback = builder.percentileFallback;
+            this.equalityLookups = builder.equalityLookups;
+            this.conciseLookups = builder.conciseLookups;
+            this.semiJoinInlineThreshold = builder.semiJoinInlineThreshold;
+            this.collectionStatisticsProvider = builder.collectionStatisticsProvider;
+            this.indexProvider = builder.indexProvider;
+            this.defaultExcludedFields = builder.defaultExcludedFields;
+            this.resultCache = builder.resultCache;
+            this.clientSideJoins = builder.clientSideJoins;
+            this.clientSideJoinMemoryBudget = builder.clientSideJoinMemoryBudget;
+            this.clientSideJoinStrategy = builder.clientSideJoinStrategy;
+            this.nestedLoopJoinBatchSize = builder.nestedLoopJoinBatchSize;
+            this.nestedLoopJoinParallelism = builder.nestedLoopJoinParallelism;
+            String sql = IOUtils.toString(builder.inputStream, Charsets.UTF_8);
+            QueryHintHolder queryHints = QueryHintProcessor.getHints(sql);
+            sql = QueryHintProcessor.removeHints(sql);
+            this.exceptColumns = ExclusionProjectionProcessor.getExceptColumns(sql);
+            this.jSqlParser = new CCJSqlParser(new StringProvider(
+                    ExclusionProjectionProcessor.removeExceptClause(sql)));
+            this.defaultFieldType = builder.defaultFieldType != null ? builder.defaultFieldType : FieldType.UNKNOWN;
+            //the holders share the mapping, so the inferred types are added to it after the statement is parsed
+            Map<String, FieldType> mapping = new HashMap<>(builder.fieldNameToFieldTypeMapping);
+            Statement statement = jSqlParser.Statement();
             this.sqlCommandInfoHolder = SQLCommandInfoHolder.Builder
-                    .create(defaultFieldType, fieldNameToFieldTypeMapping)
-                    .setStatement(jSqlParser.Statement())
+                    .create(builder.defaultFieldType, mapping)
+                    .setStatement(statement)
                     .build();
-            this.fieldNameToFieldTypeMapping = fieldNameToFieldTypeMapping != null
-                    ? fieldNameToFieldTypeMapping : Collections.emptyMap();
+            if (builder.schemaProvider != null) {
+                Map<String, FieldType> inferred = FieldTypeInferenceProcessor.inferFieldTypes(statement,
+                        sqlCommandInfoHolder, builder.schemaProvider, builder.fieldNameToFieldTypeMapping);
+                mapping.putAll(inferred);
+            }
+            this.fieldNameToFieldTypeMapping = mapping;
+            this.collections = new HashSet<>(new TablesNamesFinder().getTableList(statement));
 
             net.sf.jsqlparser.parser.Token nextToken = jSqlParser.getNextToken();
             SqlUtils.isTrue(
@@ -120,7 +182,12 @@ public final class QueryConverter {
                             + "for this is the use of double equals (==)");
 
             this.mongoDBQueryHolder = getMongoQueryInternal(sqlCommandInfoHolder);
+            mongoDBQueryHolder.setQueryHints(queryHints);
             validate();
+            setUpCoveringIndex(mongoDBQueryHolder);
+            if (queryHints.getIndex() != null && isAggregate(mongoDBQueryHolder)) {
+                mongoDBQueryHolder.setHint(QueryHintProcessor.getIndexKeys(queryHints.getIndex()));
+            }
         } catch (IOException e) {
             throw new ParseException(e);
         } catch (net.sf.jsqlparser.parser.ParseException e) {
@@ -161,6 +228,28 @@ public final class QueryConverter {
                 "illegal expression(s) found in select clause.  Only column names supported");
     }
 
+    private void setUpCoveringIndex(final MongoDBQueryHolder mongoDBQueryHolder) {
+        if (indexProvider == null || !SQLCommandType.SELECT.equals(mongoDBQueryHolder.getSqlCommandType())
+                || mongoDBQueryHolder.isDistinct() || isAggregate(mongoDBQueryHolder)
+                || mongoDBQueryHolder.getQueryHints().getIndex() != null) {
+            return;
+        }
+        boolean isCount = sqlCommandInfoHolder.isCountAll();
+        if (isCount && mongoDBQueryHolder.getQuery().isEmpty()) {
+            return;
+        }
+        Document coveringIndex = CoveredQueryProcessor.findCoveringIndex(mongoDBQueryHolder.getQuery(),
+                isCount ? null : mongoDBQueryHolder.getProjection(), isCount ? null : mongoDBQueryHolder.getSort(),
+                indexProvider.getIndexes(mongoDBQueryHolder.getCollection()));
+        if (coveringIndex != null) {
+            mongoDBQueryHolder.setHint(coveringIndex);
+            if (!isCount) {
+                mongoDBQueryHolder.setProjection(CoveredQueryProcessor.getCoveredProjection(
+                        mongoDBQueryHolder.getProjection(), coveringIndex));
+            }
+        }
+    }
+
     /**
      * get the object that you need to submit a query.
      *
@@ -187,15 +276,15 @@ public final class QueryConverter {
 
     private MongoDBQueryHolder getMongoQueryInternal(final SQLCommandInfoHolder sqlCommandInfoHolder)
             throws ParseException, net.sf.jsqlparser.parser.ParseException {
-        MongoDBQueryHolder mongoDBQueryHolder = new MongoDBQueryHolder(
-                sqlCommandInfoHolder.getBaseTableName(), sqlCommandInfoHolder.getSqlCommandType());
+        SQLCommandInfoHolder reorderedJoinsHolder = JoinReorderProcessor.reorder(sqlCommandInfoHolder,
+                hasClientSideJoins(sqlCommandInfoHolder) ? null : collectionStatisticsProvider,
+                defaultFieldType, fieldNameToFieldTypeMapping);
+        MongoDBQueryHolder mongoDBQueryHolder = new MongoDBQueryHolder(reorderedJoinsHolder != null
+                ? reorderedJoinsHolder.getBaseTableName() : sqlCommandInfoHolder.getBaseTableName(),
+                sqlCommandInfoHolder.getSqlCommandType());
         Document document = new Document();
-        //From Subquery
-        if (sqlCommandInfoHolder.getFromHolder().getBaseFrom().getClass() == SubSelect.class) {
-            mongoDBQueryHolder.setPrevSteps(fromSQLCommandInfoHolderToAggregateSteps(
-                    (SQLCommandInfoHolder) sqlCommandInfoHolder.getFromHolder().getBaseSQLHolder()));
-            mongoDBQueryHolder.setRequiresMultistepAggregation(true);
-        }
+        setUpPrevSteps(sqlCommandInfoHolder, mongoDBQueryHolder);
+        setUpWindowFunctions(sqlCommandInfoHolder, mongoDBQueryHolder);
 
         if (sqlCommandInfoHolder.isDistinct()) {
             document.put(sqlCommandInfoHolder.getSelectItems().get(0).toString(), 1);
@@ -210,6 +299,7 @@ public final class QueryConverter {
                 mongoDBQueryHolder.setGroupBys(groupBys);
             }
             mongoDBQueryHolder.setProjection(createProjectionsFromSelectItems(selects, groupBys));
+            setUpDistinctAndPercentileAggregation(selects, mongoDBQueryHolder);
             AliasProjectionForGroupItems aliasProjectionForGroupItems = createAliasProjectionForGroupItems(
                     selects, groupBys);
             mongoDBQueryHolder.setAliasProjection(aliasProjectionForGroupItems.getDocument());
@@ -219,6 +309,7 @@ public final class QueryConverter {
                     sqlCommandInfoHolder.getFromHolder());
             Document d = createProjectionsFromSelectItems(selects, null);
             mongoDBQueryHolder.setProjection(d);
+            setUpDistinctAndPercentileAggregation(selects, mongoDBQueryHolder);
             AliasProjectionForGroupItems aliasProjectionForGroupItems = createAliasProjectionForGroupItems(
                     selects, null);
             sqlCommandInfoHolder.getAliasHolder().combine(aliasProjectionForGroupItems.getFieldToAliasMapping());
@@ -235,6 +326,8 @@ public final class QueryConverter {
                     Alias alias = selectExpressionItem.getAlias();
                     document.put((alias != null ? alias.getName() : columnName),
                             (alias != null ? "$" + columnName : 1));
+                } else if (selectExpressionItem.getExpression() instanceof AnalyticExpression) {
+                    document.put(WindowFunctionProcessor.getOutputField(selectExpressionItem), 1);
                 } else if (selectExpressionItem.getExpression() instanceof SubSelect) {
                     throw new ParseException("Unsupported subselect expression");
                 } else if (selectExpressionItem.getExpression() instanceof Function) {
@@ -250,19 +343,20 @@ public final class QueryConverter {
                 }
             }
             mongoDBQueryHolder.setProjection(document);
+        } else if (sqlCommandInfoHolder == this.sqlCommandInfoHolder) {
+            mongoDBQueryHolder.setProjection(getExclusionProjection(sqlCommandInfoHolder));
         }
 
-        if (sqlCommandInfoHolder.isCountAll()) {
-            mongoDBQueryHolder.setCountAll(sqlCommandInfoHolder.isCountAll());
-        }
+        mongoDBQueryHolder.setCountAll(sqlCommandInfoHolder.isCountAll());
 
         if (sqlCommandInfoHolder.getJoins() != null) {
-            mongoDBQueryHolder.setRequiresMultistepAggregation(true);
-            mongoDBQueryHolder.setJoinPipeline(
-                    JoinProcessor.toPipelineSteps(this,
-                            sqlCommandInfoHolder.getFromHolder(),
-                            sqlCommandInfoHolder.getJoins(), SqlUtils.cloneExpression(
-                                    sqlCommandInfoHolder.getWhereClause())));
+            setUpJoins(sqlCommandInfoHolder, reorderedJoinsHolder, mongoDBQueryHolder);
+        }
+
+        if (!sqlCommandInfoHolder.getSemiJoins().isEmpty()) {
+            mongoDBQueryHolder.setSemiJoins(SemiJoinProcessor.toSemiJoinHolders(this,
+                    sqlCommandInfoHolder.getFromHolder(), sqlCommandInfoHolder.getSemiJoins(),
+                    defaultFieldType, fieldNameToFieldTypeMapping));
         }
 
         if (sqlCommandInfoHolder.getOrderByElements() != null && sqlCommandInfoHolder.getOrderByElements().size() > 0) {
@@ -276,8 +370,8 @@ public final class QueryConverter {
                     fieldNameToFieldTypeMapping, mongoDBQueryHolder.isRequiresMultistepAggregation());
             Expression preprocessedWhere = preprocessWhere(sqlCommandInfoHolder.getWhereClause(),
                     sqlCommandInfoHolder.getFromHolder());
-            if (preprocessedWhere != null) {
-                //can't be null because of where of joined tables
+            if (preprocessedWhere != null && reorderedJoinsHolder == null) {
+                //can't be null because of where of joined tables, reordered joins filter in the join pipeline
                 mongoDBQueryHolder.setQuery((Document) whereClauseProcessor
                         .parseExpression(new Document(), preprocessedWhere, null));
             }
@@ -332,6 +426,58 @@ public final class QueryConverter {
         return mongoDBQueryHolder;
     }
 
+    //the fields left out of the outer SELECT *, from SELECT * EXCEPT and the default excluded fields
+    private Document getExclusionProjection(final SQLCommandInfoHolder holder) {
+        Set<String> fields = new LinkedHashSet<>();
+        if (!SQLCommandType.SELECT.equals(holder.getSqlCommandType())) {
+            return new Document();
+        }
+        String baseAlias = holder.getFromHolder().getBaseAliasTable();
+        addDefaultExcludedFields(fields, holder.getFromHolder().getBaseFrom(), null);
+        if (holder.getJoins() != null) {
+            for (Join join : holder.getJoins()) {
+                addDefaultExcludedFields(fields, join.getRightItem(), join.getRightItem().getAlias() != null
+                        ? join.getRightItem().getAlias().getName() : null);
+            }
+        }
+        for (String column : exceptColumns) {
+            fields.add(baseAlias != null && column.startsWith(baseAlias + ".")
+                    ? column.substring(baseAlias.length() + 1) : column);
+        }
+        return ExclusionProjectionProcessor.toExclusionProjection(fields);
+    }
+
+    private void addDefaultExcludedFields(final Set<String> fields, final FromItem fromItem, final String alias) {
+        if (!(fromItem instanceof Table) || !defaultExcludedFields.containsKey(((Table) fromItem).getName())) {
+            return;
+        }
+        for (String field : defaultExcludedFields.get(((Table) fromItem).getName())) {
+            fields.add(alias != null ? alias + "." + field : field);
+        }
+    }
+
+    private void setUpJoins(final SQLCommandInfoHolder sqlCommandInfoHolder,
+                            final SQLCommandInfoHolder reorderedJoinsHolder,
+                            final MongoDBQueryHolder mongoDBQueryHolder)
+            throws ParseException, net.sf.jsqlparser.parser.ParseException {
+        mongoDBQueryHolder.setRequiresMultistepAggregation(true);
+        if (reorderedJoinsHolder == null) {
+            mongoDBQueryHolder.setJoinPipeline(
+                    JoinProcessor.toPipelineSteps(this,
+                            sqlCommandInfoHolder.getFromHolder(),
+                            sqlCommandInfoHolder.getJoins(), SqlUtils.cloneExpression(
+                                    sqlCommandInfoHolder.getWhereClause()),
+                            defaultFieldType, fieldNameToFieldTypeMapping, getLookupForm(sqlCommandInfoHolder)));
+        } else {
+            //the where clause is applied while joining from the driving collection
+            List<Document> joinPipeline = new ArrayList<>(
+                    fromSQLCommandInfoHolderToAggregateSteps(reorderedJoinsHolder));
+            joinPipeline.addAll(JoinReorderProcessor.generateRestoreSteps(sqlCommandInfoHolder,
+                    reorderedJoinsHolder));
+            mongoDBQueryHolder.setJoinPipeline(joinPipeline);
+        }
+    }
+
     protected Object recurseFunctions(final Document query, final Object object,
                                       final FieldType defaultFieldType,
                                       final Map<String, FieldType> fieldNameToFieldTypeMapping) throws ParseException {
@@ -611,7 +757,12 @@ public final class QueryConverter {
             Entry<String, String> fieldToAliasMapping = SqlUtils.generateAggField(function, alias);
             String aliasedField = fieldToAliasMapping.getValue();
             aliasProjectionForGroupItems.putAlias(fieldToAliasMapping.getKey(), fieldToAliasMapping.getValue());
-            aliasProjectionForGroupItems.getDocument().put(aliasedField, 1);
+            if (SqlUtils.isPercentileFunction(function)) {
+                aliasProjectionForGroupItems.getDocument().put(aliasedField,
+                        createPercentileProjection(function, "$" + aliasedField));
+            } else {
+                aliasProjectionForGroupItems.getDocument().put(aliasedField, 1);
+            }
         }
 
         aliasProjectionForGroupItems.getDocument().put("_id", 0);
@@ -625,7 +776,28 @@ public final class QueryConverter {
         String aggField = SqlUtils.generateAggField(function, alias).getValue();
         switch (op) {
             case "count":
-                document.put(aggField, new Document("$sum", 1));
+            case "approx_count_distinct":
+                if (SqlUtils.isCountDistinctFunction(function)) {
+                    //the first $group stage puts each distinct value in _id, nulls are not counted
+                    document.put(aggField, new Document("$sum", new Document("$cond", Arrays.<Object>asList(
+                            new Document("$gt", Arrays.asList("$_id." + COUNT_DISTINCT_VALUE, null)), 1, 0))));
+                } else {
+                    document.put(aggField, new Document("$sum", 1));
+                }
+                break;
+            case "median":
+            case "percentile_approx":
+                String field = "$" + SqlUtils.getStringValue(function.getParameters().getExpressions().get(0));
+                if (percentileFallback) {
+                    createFunction("push", aggField, document, field);
+                } else if ("median".equals(op)) {
+                    createFunction(op, aggField, document, new Document("input", field)
+                            .append("method", "approximate"));
+                } else {
+                    createFunction("percentile", aggField, document, new Document("input", field)
+                            .append("p", Collections.singletonList(SqlUtils.getPercentileFromFunction(function)))
+                            .append("method", "approximate"));
+                }
                 break;
             case "sum":
             case "min":
@@ -638,6 +810,88 @@ public final class QueryConverter {
         }
     }
 
+    private void setUpPrevSteps(final SQLCommandInfoHolder sqlCommandInfoHolder,
+                                final MongoDBQueryHolder mongoDBQueryHolder)
+            throws ParseException, net.sf.jsqlparser.parser.ParseException {
+        if (!sqlCommandInfoHolder.getUnionSelects().isEmpty()) {
+            mongoDBQueryHolder.setPrevSteps(UnionProcessor.toPipelineSteps(this,
+                    sqlCommandInfoHolder.getUnionSelects(), sqlCommandInfoHolder.getUnionOperations()));
+            mongoDBQueryHolder.setRequiresMultistepAggregation(true);
+        } else if (sqlCommandInfoHolder.getFromHolder().getBaseFrom().getClass() == SubSelect.class) {
+            //From Subquery
+            mongoDBQueryHolder.setPrevSteps(fromSQLCommandInfoHolderToAggregateSteps(
+                    (SQLCommandInfoHolder) sqlCommandInfoHolder.getFromHolder().getBaseSQLHolder()));
+            mongoDBQueryHolder.setRequiresMultistepAggregation(true);
+        }
+    }
+
+    private void setUpWindowFunctions(final SQLCommandInfoHolder sqlCommandInfoHolder,
+                                      final MongoDBQueryHolder mongoDBQueryHolder) throws ParseException {
+        if (WindowFunctionProcessor.hasWindowFunctions(sqlCommandInfoHolder.getSelectItems())) {
+            SqlUtils.isTrue(sqlCommandInfoHolder.getGroupBys().isEmpty() && !sqlCommandInfoHolder.isTotalGroup()
+                            && !sqlCommandInfoHolder.isDistinct(),
+                    "window functions cannot be combined with GROUP BY, DISTINCT or aggregate functions");
+            mongoDBQueryHolder.setWindowPipeline(WindowFunctionProcessor.toPipelineSteps(
+                    sqlCommandInfoHolder.getSelectItems(), sqlCommandInfoHolder.getFromHolder().getBaseAliasTable(),
+                    defaultFieldType, fieldNameToFieldTypeMapping));
+        }
+    }
+
+    private void setUpDistinctAndPercentileAggregation(final List<SelectItem> selectItems,
+                                                       final MongoDBQueryHolder mongoDBQueryHolder)
+            throws ParseException {
+        int aggregateFunctionCount = 0;
+        for (SelectItem selectItem : selectItems) {
+            if (!SelectExpressionItem.class.isInstance(selectItem)
+                    || !Function.class.isInstance(((SelectExpressionItem) selectItem).getExpression())) {
+                continue;
+            }
+            Function function = (Function) ((SelectExpressionItem) selectItem).getExpression();
+            aggregateFunctionCount++;
+            if (SqlUtils.isCountDistinctFunction(function)) {
+                SqlUtils.isTrue(mongoDBQueryHolder.getCountDistinctField() == null,
+                        "only one COUNT(DISTINCT) is supported per query");
+                mongoDBQueryHolder.setCountDistinctField(SqlUtils.getFieldFromFunction(function));
+            } else if (SqlUtils.isPercentileFunction(function)) {
+                SqlUtils.isTrue(function.getParameters() != null
+                        && !function.getParameters().getExpressions().isEmpty(),
+                        function.getName() + " function requires a field");
+                SqlUtils.getPercentileFromFunction(function);
+                if (percentileFallback) {
+                    String field = SqlUtils.getStringValue(function.getParameters().getExpressions().get(0));
+                    SqlUtils.isTrue(mongoDBQueryHolder.getPreGroupSortField() == null
+                            || mongoDBQueryHolder.getPreGroupSortField().equals(field),
+                            "percentile fallback only supports percentiles on one field per query");
+                    mongoDBQueryHolder.setPreGroupSortField(field);
+                }
+            }
+        }
+        SqlUtils.isFalse(mongoDBQueryHolder.getCountDistinctField() != null && aggregateFunctionCount > 1,
+                "COUNT(DISTINCT) cannot be combined with other aggregate functions");
+    }
+
+    private Object createPercentileProjection(final Function function, final String aggFieldReference)
+            throws ParseException {
+        if (!percentileFallback) {
+            if ("median".equals(function.getName().toLowerCase())) {
+                return 1;
+            }
+            //$percentile returns one value per requested percentile
+            return new Document("$arrayElemAt", Arrays.asList(aggFieldReference, 0));
+        }
+        //values were sorted before $push so the nearest rank can be picked out of the array, after null and the
+        //values that are not numbers were left out like $percentile does.  $type instead of $isNumber, which is
+        //only available from MongoDB 4.4, because the fallback is for older servers
+        Document numbers = new Document("$filter", new Document("input", aggFieldReference).append("as", "value")
+                .append("cond", new Document("$in", Arrays.<Object>asList(new Document("$type", "$$value"),
+                        NUMBER_TYPES))));
+        Document lastIndex = new Document("$subtract", Arrays.asList(new Document("$size", "$$numbers"), 1));
+        Document index = new Document("$floor", new Document("$multiply",
+                Arrays.<Object>asList(lastIndex, SqlUtils.getPercentileFromFunction(function))));
+        return new Document("$let", new Document("vars", new Document("numbers", numbers))
+                .append("in", new Document("$arrayElemAt", Arrays.asList("$$numbers", index))));
+    }
+
     private void createFunction(final String functionName, final String aggField,
                                 final Document document, final Object value) {
         document.put(aggField, new Document("$" + functionName, value));
@@ -651,112 +905,18 @@ public final class QueryConverter {
      * @throws IOException when there is an issue writing to the {@link java.io.OutputStream}
      */
     public void write(final OutputStream outputStream) throws IOException {
-        Document queryDocument = getQueryAsDocument();
-        String collectionName = queryDocument.getString("collection");
-        boolean isAggregation = queryDocument.get("query") != null && List.class.isInstance(queryDocument.get("query"));
-        boolean isFindQuery = false;
-        if (queryDocument.get("distinct") != null) {
-            IOUtils.write("db." + collectionName + ".distinct(", outputStream, StandardCharsets.UTF_8);
-            IOUtils.write("\"" + queryDocument.get("distinct") + "\"", outputStream, StandardCharsets.UTF_8);
-            IOUtils.write(" , ", outputStream, StandardCharsets.UTF_8);
-            IOUtils.write(prettyPrintJson(((Document) queryDocument.get("query")).toJson(RELAXED)),
-                    outputStream, StandardCharsets.UTF_8);
-        } else if (Boolean.TRUE.equals(queryDocument.getBoolean("countAll")) && !isAggregation) {
-            IOUtils.write("db." + collectionName + ".count(", outputStream, StandardCharsets.UTF_8);
-            IOUtils.write(prettyPrintJson(((Document) queryDocument.get("query")).toJson(RELAXED)), outputStream,
-                    StandardCharsets.UTF_8);
-        } else {
-            if (isAggregation) {
-                IOUtils.write("db." + collectionName + ".aggregate(", outputStream, StandardCharsets.UTF_8);
-                IOUtils.write("[", outputStream, StandardCharsets.UTF_8);
-
-                IOUtils.write(Joiner.on(",").join(Lists.transform(
-                        queryDocument.getList("query", Document.class),
-                        new com.google.common.base.Function<Document, String>() {
-                            @Override
-                            public String apply(@Nonnull final Document document) {
-                                return prettyPrintJson(document.toJson(RELAXED));
-                            }
-                        })), outputStream, StandardCharsets.UTF_8);
-                IOUtils.write("]", outputStream, StandardCharsets.UTF_8);
-
-                Document options = (Document) queryDocument.get("options");
-                if (options != null && options.size() > 0) {
-                    IOUtils.write(",", outputStream, StandardCharsets.UTF_8);
-                    IOUtils.write(prettyPrintJson(options.toJson(RELAXED)), outputStream, StandardCharsets.UTF_8);
-                }
-
-
-            } else {
-                SQLCommandType sqlCommandType = SQLCommandType.valueOf(
-                        firstNonNull(queryDocument.get("commandType"), SQLCommandType.SELECT.name()).toString());
-                if (SQLCommandType.SELECT.equals(sqlCommandType)) {
-                    isFindQuery = true;
-                    IOUtils.write("db." + collectionName + ".find(", outputStream, StandardCharsets.UTF_8);
-                } else if (SQLCommandType.DELETE.equals(sqlCommandType)) {
-                    IOUtils.write("db." + collectionName + ".remove(", outputStream, StandardCharsets.UTF_8);
-                } else if (SQLCommandType.UPDATE.equals(sqlCommandType)) {
-                    IOUtils.write("db." + collectionName + ".updateMany(", outputStream, StandardCharsets.UTF_8);
-                }
-                IOUtils.write(prettyPrintJson(((Document) queryDocument.get("query")).toJson(RELAXED)),
-                        outputStream, StandardCharsets.UTF_8);
-
-                Document updateSet = (Document) queryDocument.get("updateSet");
-                List<String> updateUnSet = (List<String>) queryDocument.get("updateUnSet");
-                if ((updateSet != null && !updateSet.isEmpty()) || (updateUnSet != null && !updateUnSet.isEmpty())) {
-                    IOUtils.write(",", outputStream, StandardCharsets.UTF_8);
-                    String setString =  null;
-                    String unsetString = null;
-                    if (updateSet != null && !updateSet.isEmpty()) {
-                        setString = prettyPrintJson(new Document().append("$set", updateSet).toJson(RELAXED));
-                    }
-                    if (updateUnSet != null && !updateUnSet.isEmpty()) {
-                        unsetString = prettyPrintJson(new Document().append("$unset", updateUnSet).toJson(RELAXED));
-                    }
-
-                    if (setString != null && unsetString != null) {
-                        IOUtils.write("[", outputStream, StandardCharsets.UTF_8);
-                        IOUtils.write(setString, outputStream, StandardCharsets.UTF_8);
-                        IOUtils.write(",", outputStream, StandardCharsets.UTF_8);
-                        IOUtils.write(unsetString, outputStream, StandardCharsets.UTF_8);
-                        IOUtils.write("]", outputStream, StandardCharsets.UTF_8);
-                    } else if (setString != null) {
-                        IOUtils.write(setString, outputStream, StandardCharsets.UTF_8);
-                    } else if (unsetString != null) {
-                        IOUtils.write(unsetString, outputStream, StandardCharsets.UTF_8);
-                    }
-
-                }
-
-                if (queryDocument.get("projection") != null) {
-                    IOUtils.write(" , ", outputStream, StandardCharsets.UTF_8);
-                    IOUtils.write(prettyPrintJson(((Document) queryDocument.get("projection")).toJson(RELAXED)),
-                            outputStream, StandardCharsets.UTF_8);
-                }
-            }
-        }
-        IOUtils.write(")", outputStream, StandardCharsets.UTF_8);
-
-        if (isFindQuery) {
-            if (queryDocument.get("sort") != null) {
-                IOUtils.write(".sort(", outputStream, StandardCharsets.UTF_8);
-                IOUtils.write(prettyPrintJson(((Document) queryDocument.get("sort")).toJson(RELAXED)),
-                        outputStream, StandardCharsets.UTF_8);
-                IOUtils.write(")", outputStream, StandardCharsets.UTF_8);
-            }
-
-            if (queryDocument.get("skip") != null) {
-                IOUtils.write(".skip(", outputStream, StandardCharsets.UTF_8);
-                IOUtils.write(queryDocument.get("skip") + "", outputStream, StandardCharsets.UTF_8);
-                IOUtils.write(")", outputStream, StandardCharsets.UTF_8);
-            }
+        write(outputStream, true);
+    }
 
-            if (queryDocument.get("limit") != null) {
-                IOUtils.write(".limit(", outputStream, StandardCharsets.UTF_8);
-                IOUtils.write(queryDocument.get("limit") + "", outputStream, StandardCharsets.UTF_8);
-                IOUtils.write(")", outputStream, StandardCharsets.UTF_8);
-            }
-        }
+    /**
+     * Build a mongo shell statement with the code to run the specified query, see {@link MongoShellWriter}.
+     *
+     * @param outputStream the {@link java.io.OutputStream} to write the data to
+     * @param indent true to write every field of a document on its own line, false to write it on one line
+     * @throws IOException when there is an issue writing to the {@link java.io.OutputStream}
+     */
+    public void write(final OutputStream outputStream, final boolean indent) throws IOException {
+        new MongoShellWriter(outputStream, indent).writeQuery(getQueryAsDocument());
     }
 
 
@@ -769,9 +929,19 @@ public final class QueryConverter {
      *   "query": "the query (Document) for aggregation (List) needed to run this query",
      *   "commandType": "SELECT or DELETE",
      *   "countAll": "true if this is a count all Query",
+     *   "estimatedDocumentCount": "true if the count all Query is answered from the collection metadata",
      *   "distinct": "the field to do a distnct query on",
      *   "options": "A Document with the options for this aggregation",
-     *   "projection": "The projection to use for this query"
+     *   "projection": "The projection to use for this query",
+     *   "hint": "the keys of the index that covers this query, see {@link Builder#indexProvider(IndexProvider)},
+     *            or the name of the index of an INDEX hint comment",
+     *   "covered": "true if the query is answered from the index without fetching the documents",
+     *   "maxTimeMS": "the time limit of a MAXTIME hint comment",
+     *   "batchSize": "the batch size of a BATCHSIZE hint comment",
+     *   "readPreference": "the read preference of a READ hint comment",
+     *   "allowDiskUse": "true if there is an ALLOWDISK hint comment",
+     *   "noCursorTimeout": "true if there is a NOCURSORTIMEOUT hint comment",
+     *   "collation": "the collation of a COLLATION hint comment"
      * }
      * </pre>
      *
@@ -814,22 +984,43 @@ public final class QueryConverter {
             retValDocument.put("collection", collectionName);
             retValDocument.put("distinct", getDistinctFieldName(mongoDBQueryHolder));
             retValDocument.put("query", mongoDBQueryHolder.getQuery());
+            QueryHintProcessor.putHints(retValDocument, mongoDBQueryHolder.getQueryHints());
         } else if (sqlCommandInfoHolder.isCountAll() && !isAggregate(mongoDBQueryHolder)) {
             retValDocument.put("countAll", true);
+            if (isEstimatedDocumentCount(mongoDBQueryHolder)) {
+                retValDocument.put("estimatedDocumentCount", true);
+            }
             retValDocument.put("collection", collectionName);
             retValDocument.put("query", mongoDBQueryHolder.getQuery());
+            putCoveringIndex(retValDocument, mongoDBQueryHolder);
+            QueryHintProcessor.putHints(retValDocument, mongoDBQueryHolder.getQueryHints());
         } else if (isAggregate(mongoDBQueryHolder)) {
             retValDocument.put("collection", collectionName);
             List<Document> aggregationDocuments = generateAggSteps(mongoDBQueryHolder, sqlCommandInfoHolder);
             retValDocument.put("query", aggregationDocuments);
 
+            QueryHintHolder hints = mongoDBQueryHolder.getQueryHints();
             Document options = new Document();
-            if (aggregationAllowDiskUse != null) {
-                options.put("allowDiskUse", aggregationAllowDiskUse);
+            Boolean allowDiskUse = hints.getAllowDiskUse() != null ? hints.getAllowDiskUse() : aggregationAllowDiskUse;
+            if (allowDiskUse != null) {
+                options.put("allowDiskUse", allowDiskUse);
             }
 
-            if (aggregationBatchSize != null) {
-                options.put("cursor", new Document("batchSize", aggregationBatchSize));
+            Integer batchSize = hints.getBatchSize() != null ? hints.getBatchSize() : aggregationBatchSize;
+            if (batchSize != null) {
+                options.put("cursor", new Document("batchSize", batchSize));
+            }
+            if (hints.getMaxTimeMS() != null) {
+                options.put("maxTimeMS", hints.getMaxTimeMS());
+            }
+            if (mongoDBQueryHolder.getHint() != null) {
+                options.put("hint", mongoDBQueryHolder.getHint());
+            }
+            if (hints.getCollation() != null) {
+                options.put("collation", Document.parse(hints.getCollation().asDocument().toJson()));
+            }
+            if (hints.getReadPreference() != null) {
+                retValDocument.put("readPreference", hints.getReadPreference().getName());
             }
 
             if (options.size() > 0) {
@@ -857,6 +1048,8 @@ public final class QueryConverter {
                     && sqlCommandInfoHolder.getSqlCommandType() == SQLCommandType.SELECT) {
                 retValDocument.put("projection", mongoDBQueryHolder.getProjection());
             }
+            putCoveringIndex(retValDocument, mongoDBQueryHolder);
+            QueryHintProcessor.putHints(retValDocument, mongoDBQueryHolder.getQueryHints());
         }
 
         if (isFindQuery) {
@@ -882,13 +1075,115 @@ public final class QueryConverter {
                 || sqlCommandInfoHolder.getGroupBys().size() > 0
                 || (sqlCommandInfoHolder.getJoins() != null && sqlCommandInfoHolder.getJoins().size() > 0)
                 || (mongoDBQueryHolder.getPrevSteps() != null && !mongoDBQueryHolder.getPrevSteps().isEmpty())
+                || !mongoDBQueryHolder.getWindowPipeline().isEmpty()
+                || !mongoDBQueryHolder.getSemiJoins().isEmpty()
                 || (sqlCommandInfoHolder.isTotalGroup() && !SqlUtils.isCountAll(sqlCommandInfoHolder.getSelectItems()));
     }
 
+    //the values of the subqueries that are small enough to replace their $lookup with $in for this run of the query
+    private Map<SemiJoinHolder, List<Object>> inlineSemiJoins(final MongoDatabase mongoDatabase,
+                                                              final MongoDBQueryHolder mongoDBQueryHolder,
+                                                              final QueryExecution execution) {
+        Map<SemiJoinHolder, List<Object>> inlineValues = new HashMap<>();
+        if (semiJoinInlineThreshold <= 0) {
+            return inlineValues;
+        }
+        for (SemiJoinHolder semiJoin : mongoDBQueryHolder.getSemiJoins()) {
+            if (!semiJoin.isInlinable()) {
+                continue;
+            }
+            List<Document> pipeline = new ArrayList<>(semiJoin.getSubqueryPipeline());
+            pipeline.add(new Document("$limit", semiJoinInlineThreshold + 1));
+            List<String> path = Arrays.asList(semiJoin.getSubqueryField().split("\\."));
+            Set<Object> values = new LinkedHashSet<>();
+            int rows = 0;
+            Iterator<Document> iterator = execution.iterator(execution.apply(
+                    mongoDatabase.getCollection(semiJoin.getCollection()).aggregate(pipeline), null));
+            while (iterator.hasNext()) {
+                values.add(iterator.next().getEmbedded(path, Object.class));
+                rows++;
+            }
+            if (rows <= semiJoinInlineThreshold) {
+                inlineValues.put(semiJoin, new ArrayList<>(values));
+            }
+        }
+        return inlineValues;
+    }
+
+    private static void putCoveringIndex(final Document queryDocument, final MongoDBQueryHolder mongoDBQueryHolder) {
+        if (mongoDBQueryHolder.getHint() != null) {
+            queryDocument.put("hint", mongoDBQueryHolder.getHint());
+            queryDocument.put("covered", true);
+        }
+    }
+
+    private boolean isEstimatedDocumentCount(final MongoDBQueryHolder mongoDBQueryHolder) {
+        return useEstimatedDocumentCount && mongoDBQueryHolder.getQuery().isEmpty();
+    }
+
     private String getDistinctFieldName(final MongoDBQueryHolder mongoDBQueryHolder) {
         return Iterables.get(mongoDBQueryHolder.getProjection().keySet(), 0);
     }
 
+    //client side joins are read from localField and foreignField
+    private JoinProcessor.LookupForm getLookupForm(final SQLCommandInfoHolder holder) {
+        if (conciseLookups || hasClientSideJoins(holder)) {
+            return JoinProcessor.LookupForm.CONCISE;
+        }
+        return equalityLookups ? JoinProcessor.LookupForm.LOCAL_FIELD : JoinProcessor.LookupForm.LET;
+    }
+
+    private boolean hasClientSideJoins(final SQLCommandInfoHolder holder) {
+        if (holder.getJoins() == null || holder.getJoins().isEmpty()) {
+            return false;
+        }
+        if (clientSideJoins || clientSideJoinStrategy == ClientSideJoinStrategy.BATCHED_NESTED_LOOP
+                || getDatabaseName(holder.getFromHolder().getBaseFrom()) != null) {
+            return true;
+        }
+        for (Join join : holder.getJoins()) {
+            if (getDatabaseName(join.getRightItem()) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getDatabaseName(final FromItem fromItem) {
+        return fromItem instanceof Table ? ((Table) fromItem).getSchemaName() : null;
+    }
+
+    private MongoDatabase getDatabase(final FromItem fromItem, final MongoDatabase mongoDatabase,
+                                      final Map<String, MongoDatabase> databases) throws ParseException {
+        String databaseName = getDatabaseName(fromItem);
+        if (databaseName == null || databaseName.equals(mongoDatabase.getName())) {
+            return mongoDatabase;
+        }
+        SqlUtils.isTrue(databases.containsKey(databaseName), "no database was provided for " + databaseName);
+        return databases.get(databaseName);
+    }
+
+    private QueryResultIterator<Document> runClientSideJoins(final MongoDatabase mongoDatabase,
+                                                             final Map<String, MongoDatabase> databases,
+                                                             final MongoDBQueryHolder mongoDBQueryHolder,
+                                                             final QueryExecution execution)
+            throws ParseException {
+        SqlUtils.isTrue(mongoDBQueryHolder.getPrevSteps() == null || mongoDBQueryHolder.getPrevSteps().isEmpty(),
+                "client side joins do not support a subquery or union in the FROM clause");
+        Map<String, MongoDatabase> databaseByAlias = new HashMap<>();
+        for (Join join : sqlCommandInfoHolder.getJoins()) {
+            databaseByAlias.put(join.getRightItem().getAlias().getName(),
+                    getDatabase(join.getRightItem(), mongoDatabase, databases));
+        }
+        return execution.register(ClientSideJoinExecutor.execute(
+                getDatabase(sqlCommandInfoHolder.getFromHolder().getBaseFrom(), mongoDatabase, databases),
+                mongoDBQueryHolder.getCollection(), mongoDBQueryHolder.getQuery(),
+                mongoDBQueryHolder.getJoinPipeline(), databaseByAlias,
+                generatePostJoinSteps(mongoDBQueryHolder, sqlCommandInfoHolder,
+                        Collections.<SemiJoinHolder, List<Object>>emptyMap()), clientSideJoinMemoryBudget,
+                clientSideJoinStrategy, nestedLoopJoinBatchSize, nestedLoopJoinParallelism, execution));
+    }
+
     /**
      * @param mongoDatabase the database to run the query against.
      * @param <T>           variable based on the type of query run.
@@ -897,64 +1192,78 @@ public final class QueryConverter {
      * When query does a distinct will return QueryResultIterator&lt;{@link java.lang.String}&gt;
      * @throws ParseException when the sql query cannot be parsed
      */
-    @SuppressWarnings("unchecked")
     public <T> T run(final MongoDatabase mongoDatabase) throws ParseException {
-        MongoDBQueryHolder mongoDBQueryHolder = getMongoQuery();
-
-        MongoCollection mongoCollection = mongoDatabase.getCollection(mongoDBQueryHolder.getCollection());
-
-        if (SQLCommandType.SELECT.equals(mongoDBQueryHolder.getSqlCommandType())) {
-
-            if (mongoDBQueryHolder.isDistinct()) {
-                return (T) new QueryResultIterator<>(mongoCollection.distinct(
-                        getDistinctFieldName(mongoDBQueryHolder), mongoDBQueryHolder.getQuery(), String.class));
-            } else if (sqlCommandInfoHolder.isCountAll() && !isAggregate(mongoDBQueryHolder)) {
-                return (T) Long.valueOf(mongoCollection.countDocuments(mongoDBQueryHolder.getQuery()));
-            } else if (isAggregate(mongoDBQueryHolder)) {
+        return run(mongoDatabase, Collections.<String, MongoDatabase>emptyMap());
+    }
 
-                AggregateIterable aggregate = mongoCollection.aggregate(
-                        generateAggSteps(mongoDBQueryHolder, sqlCommandInfoHolder));
+    /**
+     * Run the query with a deadline or so that it can be cancelled from another thread.
+     * @param mongoDatabase the database to run the query against.
+     * @param execution the {@link QueryExecution} with the deadline of the query
+     * @param <T>           variable based on the type of query run.
+     * @return the same as {@link #run(MongoDatabase)}
+     * @throws ParseException when the sql query cannot be parsed
+     */
+    public <T> T run(final MongoDatabase mongoDatabase, final QueryExecution execution) throws ParseException {
+        return run(mongoDatabase, Collections.<String, MongoDatabase>emptyMap(), execution);
+    }
 
-                if (aggregationAllowDiskUse != null) {
-                    aggregate.allowDiskUse(aggregationAllowDiskUse);
-                }
+    /**
+     * Run the query with tables from more than one database, i.e: select ... from analytics.events e
+     * inner join crm.accounts a on ....  The joins are run in the JVM with a hash join.
+     * @param mongoDatabase the database for tables that are not prefixed with a database
+     * @param databases the database for each prefix, the databases can come from different clusters
+     * @param <T>           variable based on the type of query run.
+     * @return the same as {@link #run(MongoDatabase)}
+     * @throws ParseException when the sql query cannot be parsed or a database is missing
+     */
+    public <T> T run(final MongoDatabase mongoDatabase, final Map<String, MongoDatabase> databases)
+            throws ParseException {
+        return run(mongoDatabase, databases, new QueryExecution());
+    }
 
-                if (aggregationBatchSize != null) {
-                    aggregate.batchSize(aggregationBatchSize);
-                }
+    /**
+     * Run the query with tables from more than one database, with a deadline or so that it can be cancelled.
+     * @param mongoDatabase the database for tables that are not prefixed with a database
+     * @param databases the database for each prefix, the databases can come from different clusters
+     * @param execution the {@link QueryExecution} with the deadline of the query
+     * @param <T>           variable based on the type of query run.
+     * @return the same as {@link #run(MongoDatabase)}
+     * @throws ParseException when the sql query cannot be parsed or a database is missing
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(final MongoDatabase mongoDatabase, final Map<String, MongoDatabase> databases,
+                     final QueryExecution execution) throws ParseException {
+        MongoDBQueryHolder mongoDBQueryHolder = getMongoQuery();
 
-                return (T) new QueryResultIterator<>(aggregate);
-            } else {
-                FindIterable findIterable = mongoCollection.find(mongoDBQueryHolder.getQuery())
-                        .projection(mongoDBQueryHolder.getProjection());
-                if (mongoDBQueryHolder.getSort() != null && mongoDBQueryHolder.getSort().size() > 0) {
-                    findIterable.sort(mongoDBQueryHolder.getSort());
-                }
-                if (mongoDBQueryHolder.getOffset() != -1) {
-                    findIterable.skip((int) mongoDBQueryHolder.getOffset());
-                }
-                if (mongoDBQueryHolder.getLimit() != -1) {
-                    findIterable.limit((int) mongoDBQueryHolder.getLimit());
-                }
+        MongoCollection mongoCollection = mongoDatabase.getCollection(mongoDBQueryHolder.getCollection());
 
-                return (T) new QueryResultIterator<>(findIterable);
+        if (SQLCommandType.SELECT.equals(mongoDBQueryHolder.getSqlCommandType())) {
+            if (hasClientSideJoins(sqlCommandInfoHolder)) {
+                return (T) runClientSideJoins(mongoDatabase, databases, mongoDBQueryHolder, execution);
+            } else if (resultCache != null && !mongoDBQueryHolder.isDistinct()) {
+                return (T) runCached(mongoDatabase, databases, mongoCollection, mongoDBQueryHolder, execution);
             }
-        } else if (SQLCommandType.DELETE.equals(mongoDBQueryHolder.getSqlCommandType())) {
-            DeleteResult deleteResult = mongoCollection.deleteMany(mongoDBQueryHolder.getQuery());
+            return (T) runSelect(mongoDatabase, mongoCollection, mongoDBQueryHolder, execution);
+        }
+        //the driver cannot send maxTimeMS with updates and deletes, so only check the deadline before they start
+        execution.getMaxTimeMS(null);
+        if (SQLCommandType.DELETE.equals(mongoDBQueryHolder.getSqlCommandType())) {
+            DeleteResult deleteResult = mongoCollection.deleteMany(getCompiledPlan().getFilter());
             return (T) ((Long) deleteResult.getDeletedCount());
         } else if (SQLCommandType.UPDATE.equals(mongoDBQueryHolder.getSqlCommandType())) {
             Document updateSet = mongoDBQueryHolder.getUpdateSet();
             List<String> fieldsToUnset = mongoDBQueryHolder.getFieldsToUnset();
             UpdateResult result = new EmptyUpdateResult();
             if ((updateSet != null && !updateSet.isEmpty()) && (fieldsToUnset != null && !fieldsToUnset.isEmpty())) {
-                result = mongoCollection.updateMany(mongoDBQueryHolder.getQuery(),
+                result = mongoCollection.updateMany(getCompiledPlan().getFilter(),
                         Arrays.asList(new Document().append("$set", updateSet),
                                 new Document().append("$unset", fieldsToUnset)));
             } else if (updateSet != null && !updateSet.isEmpty()) {
-                result = mongoCollection.updateMany(mongoDBQueryHolder.getQuery(),
+                result = mongoCollection.updateMany(getCompiledPlan().getFilter(),
                         new Document().append("$set", updateSet));
             } else if (fieldsToUnset != null && !fieldsToUnset.isEmpty()) {
-                result = mongoCollection.updateMany(mongoDBQueryHolder.getQuery(),
+                result = mongoCollection.updateMany(getCompiledPlan().getFilter(),
                         new Document().append("$unset", fieldsToUnset));
             }
             return (T) ((Long) result.getModifiedCount());
@@ -963,17 +1272,220 @@ public final class QueryConverter {
         }
     }
 
+    /**
+     * Get the filter, projection, sort and aggregation pipeline of the query encoded as BSON.  They are encoded the
+     * first time the query runs and every later run sends the same bytes, except for runs that replace subqueries
+     * with $in, see {@link Builder#semiJoinInlineThreshold(Integer)}, whose pipeline is generated for that run.
+     * @return the {@link CompiledPlanHolder}
+     */
+    public CompiledPlanHolder getCompiledPlan() {
+        CompiledPlanHolder plan = compiledPlan;
+        if (plan == null) {
+            plan = new CompiledPlanHolder(mongoDBQueryHolder.getQuery(), mongoDBQueryHolder.getProjection(),
+                    mongoDBQueryHolder.getSort(), isAggregate(mongoDBQueryHolder)
+                    ? generateAggSteps(mongoDBQueryHolder, sqlCommandInfoHolder) : null);
+            compiledPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * Get the change stream pipeline that matches the inserted and updated documents that this query returns, see
+     * {@link #watch(MongoDatabase, ResumeTokenStore)}.
+     * @return the $match and $project steps on the change events
+     * @throws ParseException when the query is not a select with only a WHERE clause and columns
+     */
+    public List<Document> getChangeStreamPipeline() throws ParseException {
+        SqlUtils.isTrue(SQLCommandType.SELECT.equals(mongoDBQueryHolder.getSqlCommandType())
+                        && !mongoDBQueryHolder.isDistinct() && !sqlCommandInfoHolder.isCountAll()
+                        && !isAggregate(mongoDBQueryHolder) && mongoDBQueryHolder.getLimit() == -1
+                        && mongoDBQueryHolder.getOffset() == -1
+                        && (mongoDBQueryHolder.getSort() == null || mongoDBQueryHolder.getSort().isEmpty()),
+                "only select queries with a where clause and columns can be watched");
+        return ChangeStreamProcessor.toChangeStreamPipeline(mongoDBQueryHolder.getQuery(),
+                mongoDBQueryHolder.getProjection());
+    }
+
+    /**
+     * Watch the query for inserted and updated documents that match it, instead of running it again and again.
+     * @param mongoDatabase the database to watch the query against.
+     * @return the same as {@link #watch(MongoDatabase, ResumeTokenStore)}
+     * @throws ParseException when the query cannot be watched
+     */
+    public ContinuousQueryIterator watch(final MongoDatabase mongoDatabase) throws ParseException {
+        return watch(mongoDatabase, null);
+    }
+
+    /**
+     * Watch the query for inserted and updated documents that match it, instead of running it again and again.
+     * The query is run on the change stream of the collection, which needs a replica set or a sharded cluster.
+     * @param mongoDatabase the database to watch the query against.
+     * @param resumeTokenStore the {@link ResumeTokenStore}, the query continues after the saved resume token and
+     * the resume token is saved as documents are read and after every batch of changes, or null to only watch new
+     * changes
+     * @return a {@link ContinuousQueryIterator} over the matching documents, with the projection of the query
+     * @throws ParseException when the query is not a select with only a WHERE clause and columns
+     */
+    public ContinuousQueryIterator watch(final MongoDatabase mongoDatabase, final ResumeTokenStore resumeTokenStore)
+            throws ParseException {
+        ChangeStreamIterable<Document> changeStream = mongoDatabase.getCollection(mongoDBQueryHolder.getCollection())
+                .watch(getChangeStreamPipeline()).fullDocument(FullDocument.UPDATE_LOOKUP);
+        BsonDocument resumeToken = resumeTokenStore != null ? resumeTokenStore.getResumeToken() : null;
+        if (resumeToken != null) {
+            changeStream.resumeAfter(resumeToken);
+        }
+        if (aggregationBatchSize != null) {
+            changeStream.batchSize(aggregationBatchSize);
+        }
+        return new ContinuousQueryIterator(changeStream.cursor(), resumeTokenStore);
+    }
+
+    /**
+     * Keep the results of this GROUP BY query up to date from the change stream of the collection, so that they can
+     * be read again and again without running the aggregation, see {@link IncrementalGroupByView}.
+     * @param mongoDatabase the database to run the query against.
+     * @return the started {@link IncrementalGroupByView}, which has to be closed
+     * @throws ParseException when the query is not a GROUP BY on one collection with COUNT, SUM, MIN, MAX or AVG
+     */
+    public IncrementalGroupByView incrementalView(final MongoDatabase mongoDatabase) throws ParseException {
+        SqlUtils.isTrue(SQLCommandType.SELECT.equals(mongoDBQueryHolder.getSqlCommandType())
+                        && (sqlCommandInfoHolder.getJoins() == null || sqlCommandInfoHolder.getJoins().isEmpty())
+                        && (mongoDBQueryHolder.getPrevSteps() == null || mongoDBQueryHolder.getPrevSteps().isEmpty())
+                        && mongoDBQueryHolder.getSemiJoins().isEmpty()
+                        && mongoDBQueryHolder.getWindowPipeline().isEmpty(),
+                "only GROUP BY queries on one collection can be kept up to date");
+        IncrementalGroupByView view = new IncrementalGroupByView(
+                mongoDatabase.getCollection(mongoDBQueryHolder.getCollection()),
+                generateAggSteps(mongoDBQueryHolder, sqlCommandInfoHolder));
+        view.start();
+        return view;
+    }
+
+    //a Long for counts, otherwise a QueryResultIterator
+    @SuppressWarnings("unchecked")
+    private Object runSelect(final MongoDatabase mongoDatabase, final MongoCollection collection,
+                             final MongoDBQueryHolder mongoDBQueryHolder, final QueryExecution execution) {
+        QueryHintHolder hints = mongoDBQueryHolder.getQueryHints();
+        MongoCollection mongoCollection = hints.getReadPreference() != null
+                ? collection.withReadPreference(hints.getReadPreference()) : collection;
+        if (mongoDBQueryHolder.isDistinct()) {
+            DistinctIterable distinct = mongoCollection.distinct(
+                    getDistinctFieldName(mongoDBQueryHolder), getCompiledPlan().getFilter(), String.class);
+            return execution.iterator(execution.apply(QueryHintProcessor.applyHints(distinct, hints),
+                    hints.getMaxTimeMS()));
+        } else if (sqlCommandInfoHolder.isCountAll() && !isAggregate(mongoDBQueryHolder)) {
+            if (isEstimatedDocumentCount(mongoDBQueryHolder)) {
+                return Long.valueOf(mongoCollection.estimatedDocumentCount(execution.apply(
+                        QueryHintProcessor.getEstimatedDocumentCountOptions(hints), hints.getMaxTimeMS())));
+            }
+            CountOptions countOptions = execution.apply(QueryHintProcessor.getCountOptions(hints),
+                    hints.getMaxTimeMS());
+            if (mongoDBQueryHolder.getHint() != null) {
+                countOptions.hint(mongoDBQueryHolder.getHint());
+            }
+            return Long.valueOf(mongoCollection.countDocuments(getCompiledPlan().getFilter(), countOptions));
+        } else if (isAggregate(mongoDBQueryHolder)) {
+            Map<SemiJoinHolder, List<Object>> inlineValues = inlineSemiJoins(mongoDatabase, mongoDBQueryHolder,
+                    execution);
+
+            AggregateIterable aggregate = mongoCollection.aggregate(inlineValues.isEmpty()
+                    ? getCompiledPlan().getPipeline()
+                    : generateAggSteps(mongoDBQueryHolder, sqlCommandInfoHolder, inlineValues));
+
+            Boolean allowDiskUse = hints.getAllowDiskUse() != null ? hints.getAllowDiskUse() : aggregationAllowDiskUse;
+            if (allowDiskUse != null) {
+                aggregate.allowDiskUse(allowDiskUse);
+            }
+
+            Integer batchSize = hints.getBatchSize() != null ? hints.getBatchSize() : aggregationBatchSize;
+            if (batchSize != null) {
+                aggregate.batchSize(batchSize);
+            }
+            if (mongoDBQueryHolder.getHint() != null) {
+                aggregate.hint(mongoDBQueryHolder.getHint());
+            }
+            QueryHintProcessor.applyHints(aggregate, hints);
+
+            return execution.iterator(execution.apply(aggregate, hints.getMaxTimeMS()));
+        } else {
+            CompiledPlanHolder plan = getCompiledPlan();
+            FindIterable findIterable = mongoCollection.find(plan.getFilter()).projection(plan.getProjection());
+            if (plan.getSort() != null) {
+                findIterable.sort(plan.getSort());
+            }
+            if (mongoDBQueryHolder.getOffset() != -1) {
+                findIterable.skip((int) mongoDBQueryHolder.getOffset());
+            }
+            if (mongoDBQueryHolder.getLimit() != -1) {
+                findIterable.limit((int) mongoDBQueryHolder.getLimit());
+            }
+            if (mongoDBQueryHolder.getHint() != null) {
+                findIterable.hint(mongoDBQueryHolder.getHint());
+            }
+            QueryHintProcessor.applyHints(findIterable, hints);
+
+            return execution.iterator(execution.apply(findIterable, hints.getMaxTimeMS()));
+        }
+    }
+
+    //the plan is the query document and the names of the databases, so the same query converted from different sql
+    //shares the results, and the same query on another database does not
+    private Object runCached(final MongoDatabase mongoDatabase, final Map<String, MongoDatabase> databases,
+                             final MongoCollection mongoCollection, final MongoDBQueryHolder mongoDBQueryHolder,
+                             final QueryExecution execution) {
+        Document databaseNames = new Document();
+        for (Map.Entry<String, MongoDatabase> entry : databases.entrySet()) {
+            databaseNames.put(entry.getKey(), entry.getValue().getName());
+        }
+        Document plan = new Document("database", mongoDatabase.getName()).append("databases", databaseNames)
+                .append("query", getQueryAsDocument());
+        QueryResultIterator<Document> results = resultCache.get(plan, collections,
+                new Supplier<QueryResultIterator<Document>>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public QueryResultIterator<Document> get() {
+                        Object result = runSelect(mongoDatabase, mongoCollection, mongoDBQueryHolder, execution);
+                        if (result instanceof Long) {
+                            return new QueryResultIterator<>(Collections.singletonList(
+                                    new Document("count", result)).iterator(), new Closeable() {
+                                        @Override
+                                        public void close() {
+                                        }
+                                    });
+                        }
+                        return (QueryResultIterator<Document>) result;
+                    }
+                });
+        if (sqlCommandInfoHolder.isCountAll() && !isAggregate(mongoDBQueryHolder)) {
+            //read to the end, so that the count is cached
+            Long count = null;
+            while (results.hasNext()) {
+                count = results.next().getLong("count");
+            }
+            return count;
+        }
+        return results;
+    }
+
     //Set up start pipeline, from other steps, subqueries, ...
     private List<Document> setUpStartPipeline(final MongoDBQueryHolder mongoDBQueryHolder) {
-        List<Document> documents = mongoDBQueryHolder.getPrevSteps();
-        if (documents == null || documents.isEmpty()) {
-            documents = new LinkedList<Document>();
+        //copied, so that the pipeline of the query can be generated more than once
+        List<Document> documents = new LinkedList<Document>();
+        if (mongoDBQueryHolder.getPrevSteps() != null) {
+            documents.addAll(mongoDBQueryHolder.getPrevSteps());
         }
         return documents;
     }
 
     private List<Document> generateAggSteps(final MongoDBQueryHolder mongoDBQueryHolder,
                                            final SQLCommandInfoHolder sqlCommandInfoHolder) {
+        return generateAggSteps(mongoDBQueryHolder, sqlCommandInfoHolder,
+                Collections.<SemiJoinHolder, List<Object>>emptyMap());
+    }
+
+    private List<Document> generateAggSteps(final MongoDBQueryHolder mongoDBQueryHolder,
+                                           final SQLCommandInfoHolder sqlCommandInfoHolder,
+                                           final Map<SemiJoinHolder, List<Object>> inlineValues) {
 
         List<Document> documents = setUpStartPipeline(mongoDBQueryHolder);
 
@@ -983,19 +1495,56 @@ public final class QueryConverter {
         if (sqlCommandInfoHolder.getJoins() != null && !sqlCommandInfoHolder.getJoins().isEmpty()) {
             documents.addAll(mongoDBQueryHolder.getJoinPipeline());
         }
+        documents.addAll(generatePostJoinSteps(mongoDBQueryHolder, sqlCommandInfoHolder, inlineValues));
+        return TopNProcessor.optimize(documents);
+    }
+
+    //the steps that run on the joined documents
+    private List<Document> generatePostJoinSteps(final MongoDBQueryHolder mongoDBQueryHolder,
+                                                 final SQLCommandInfoHolder sqlCommandInfoHolder,
+                                                 final Map<SemiJoinHolder, List<Object>> inlineValues) {
+        List<Document> documents = new LinkedList<>();
+        for (SemiJoinHolder semiJoin : mongoDBQueryHolder.getSemiJoins()) {
+            documents.addAll(inlineValues.containsKey(semiJoin)
+                    ? semiJoin.toInlinedPipelineSteps(inlineValues.get(semiJoin)) : semiJoin.toPipelineSteps());
+        }
+        Document semiJoinCleanUp = SemiJoinProcessor.generateCleanUpStep(mongoDBQueryHolder.getSemiJoins(),
+                inlineValues);
+        if (semiJoinCleanUp != null && (mongoDBQueryHolder.getProjection().isEmpty()
+                || ExclusionProjectionProcessor.isExclusionProjection(mongoDBQueryHolder.getProjection()))
+                && sqlCommandInfoHolder.getGroupBys().isEmpty() && !sqlCommandInfoHolder.isTotalGroup()) {
+            //only needed when there is no inclusion $project or $group at the end to drop the lookup fields
+            documents.add(semiJoinCleanUp);
+        }
+        documents.addAll(mongoDBQueryHolder.getWindowPipeline());
         if (!sqlCommandInfoHolder.getGroupBys().isEmpty() || sqlCommandInfoHolder.isTotalGroup()) {
+            Document dgroup;
             if (mongoDBQueryHolder.getProjection().get("_id") == null) {
                 //Generate _id with empty document
-                Document dgroup = new Document();
+                dgroup = new Document();
                 dgroup.put("_id", new Document());
                 for (Entry<String, Object> keyValue : mongoDBQueryHolder.getProjection().entrySet()) {
                     if (!keyValue.getKey().equals("_id")) {
                         dgroup.put(keyValue.getKey(), keyValue.getValue());
                     }
                 }
-                documents.add(new Document("$group", dgroup));
             } else {
-                documents.add(new Document("$group", mongoDBQueryHolder.getProjection()));
+                dgroup = mongoDBQueryHolder.getProjection();
+            }
+
+            if (mongoDBQueryHolder.getPreGroupSortField() != null) {
+                documents.add(new Document("$sort", new Document(mongoDBQueryHolder.getPreGroupSortField(), 1)));
+            }
+
+            if (mongoDBQueryHolder.getCountDistinctField() != null) {
+                //first group removes the duplicates, second group counts what is left per group
+                documents.add(new Document("$group", new Document("_id", new Document("_id", dgroup.get("_id"))
+                        .append(COUNT_DISTINCT_VALUE, "$" + mongoDBQueryHolder.getCountDistinctField()))));
+                Document countGroup = new Document(dgroup);
+                countGroup.put("_id", "$_id._id");
+                documents.add(new Document("$group", countGroup));
+            } else {
+                documents.add(new Document("$group", dgroup));
             }
 
         }
@@ -1024,32 +1573,9 @@ public final class QueryConverter {
             Document projection = mongoDBQueryHolder.getProjection();
             documents.add(new Document("$project", projection));
         }
-
         return documents;
     }
 
-    private static String toJson(final List<Document> documents) throws IOException {
-        StringWriter stringWriter = new StringWriter();
-        IOUtils.write("[", stringWriter);
-        IOUtils.write(Joiner.on(",").join(Lists.transform(documents,
-                new com.google.common.base.Function<Document, String>() {
-                    @Override
-                    public String apply(@Nonnull final Document document) {
-                        return document.toJson(RELAXED);
-                    }
-                })), stringWriter);
-        IOUtils.write("]", stringWriter);
-        return stringWriter.toString();
-    }
-
-
-    private static String prettyPrintJson(final String json) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        JsonParser jp = new JsonParser();
-        JsonElement je = jp.parse(json);
-        return gson.toJson(je);
-    }
-
     /**
      * Builder for {@link QueryConverter}.
      */
@@ -1057,6 +1583,21 @@ public final class QueryConverter {
 
         private Boolean aggregationAllowDiskUse = null;
         private Integer aggregationBatchSize = null;
+        private boolean useEstimatedDocumentCount = false;
+        private boolean percentileFallback = false;
+        private boolean equalityLookups = false;
+        private boolean conciseLookups = false;
+        private int semiJoinInlineThreshold = 0;
+        private CollectionStatisticsProvider collectionStatisticsProvider = null;
+        private SchemaProvider schemaProvider = null;
+        private IndexProvider indexProvider = null;
+        private Map<String, List<String>> defaultExcludedFields = new HashMap<>();
+        private ResultCache resultCache = null;
+        private boolean clientSideJoins = false;
+        private long clientSideJoinMemoryBudget = ClientSideJoinExecutor.DEFAULT_MEMORY_BUDGET;
+        private ClientSideJoinStrategy clientSideJoinStrategy = ClientSideJoinStrategy.HASH;
+        private int nestedLoopJoinBatchSize = ClientSideJoinExecutor.DEFAULT_BATCH_SIZE;
+        private int nestedLoopJoinParallelism = ClientSideJoinExecutor.DEFAULT_PARALLELISM;
         private InputStream inputStream;
         private Map<String, FieldType> fieldNameToFieldTypeMapping = new HashMap<>();
         private FieldType defaultFieldType = FieldType.UNKNOWN;
@@ -1127,14 +1668,213 @@ public final class QueryConverter {
             return this;
         }
 
+        /**
+         * set whether or not a count(*) without a where clause should be answered with estimatedDocumentCount.
+         * The estimate comes from the collection metadata so it returns in constant time, but it can be
+         * off after an unclean shutdown or while there are orphaned documents on a sharded cluster.
+         * @param useEstimatedDocumentCount set to true to use estimatedDocumentCount for count(*) queries
+         *                                  without a where clause
+         * @return the builder
+         */
+        public Builder useEstimatedDocumentCount(final Boolean useEstimatedDocumentCount) {
+            notNull(useEstimatedDocumentCount);
+            this.useEstimatedDocumentCount = useEstimatedDocumentCount;
+            return this;
+        }
+
+        /**
+         * set whether or not PERCENTILE_APPROX and MEDIAN should avoid the $percentile and $median
+         * operators, which are only available in MongoDB 7.0 and later.  When set to true the values are
+         * sorted, collected with $push and the percentile is picked out of the numbers in the array, null and values
+         * that are not numbers are left out.  The array of a group has to fit in one document, which is limited to
+         * 16MB, so a group can have about a million numbers, and larger groups fail with an error from the server.
+         * @param percentileFallback set to true for servers that do not support $percentile and $median
+         * @return the builder
+         */
+        public Builder percentileFallback(final Boolean percentileFallback) {
+            notNull(percentileFallback);
+            this.percentileFallback = percentileFallback;
+            return this;
+        }
+
+        /**
+         * set whether or not joins whose ON clause is one equality between columns should use localField and
+         * foreignField in the $lookup, so the server can use the index of the foreign field.  Unlike the default
+         * let and $expr, localField and foreignField match every element of an array and treat null and a missing
+         * field as equal.
+         * @param equalityLookups set to true to use localField and foreignField for joins on one equality
+         * @return the builder
+         */
+        public Builder equalityLookups(final Boolean equalityLookups) {
+            notNull(equalityLookups);
+            this.equalityLookups = equalityLookups;
+            return this;
+        }
+
+        /**
+         * set whether or not joins on equalities, including those whose ON clause has more than one equality or that
+         * have a where clause for the joined table, should use localField and foreignField next to let and pipeline
+         * in the $lookup.  This implies {@link #equalityLookups(Boolean)} and the concise form is only available in
+         * MongoDB 5.0 and later.
+         * @param conciseLookups set to true for servers that support the concise $lookup form
+         * @return the builder
+         */
+        public Builder conciseLookups(final Boolean conciseLookups) {
+            notNull(conciseLookups);
+            this.conciseLookups = conciseLookups;
+            return this;
+        }
+
+        /**
+         * set the maximum number of rows an uncorrelated IN (SELECT ...) may return to be run ahead of time and
+         * replaced with $in every time the query is run.  Subqueries that return more rows are joined with $lookup.
+         * The default of 0 always uses $lookup.
+         * @param semiJoinInlineThreshold the maximum number of rows to replace with $in
+         * @return the builder
+         */
+        public Builder semiJoinInlineThreshold(final Integer semiJoinInlineThreshold) {
+            notNull(semiJoinInlineThreshold);
+            this.semiJoinInlineThreshold = semiJoinInlineThreshold;
+            return this;
+        }
+
+        /**
+         * set the {@link SchemaProvider} used to find the types of the fields of the collections in the query, i.e:
+         * {@link MongoSchemaProvider}.  Literals in the where clause, the having clause and the joins are converted
+         * to the inferred types.  Types set with {@link #fieldNameToFieldTypeMapping(Map)} take precedence.
+         * @param schemaProvider the {@link SchemaProvider}
+         * @return the builder
+         */
+        public Builder schemaProvider(final SchemaProvider schemaProvider) {
+            notNull(schemaProvider);
+            this.schemaProvider = schemaProvider;
+            return this;
+        }
+
+        /**
+         * set the {@link IndexProvider} used to answer find and count queries from an index without fetching the
+         * documents, i.e: {@link MongoIndexProvider}.  When one index has every field that the query filters on,
+         * sorts on and returns, the query is hinted to that index and _id is left out of the projection.  SELECT *
+         * queries are never covered.
+         * @param indexProvider the {@link IndexProvider}
+         * @return the builder
+         */
+        public Builder indexProvider(final IndexProvider indexProvider) {
+            notNull(indexProvider);
+            this.indexProvider = indexProvider;
+            return this;
+        }
+
+        /**
+         * set the {@link ResultCache} that holds the results of find, count and aggregate queries, i.e:
+         * {@link LruResultCache}.  Queries on the same database with the same collection, filter, projection, sort and
+         * limit, or the same pipeline, are read from the cache until a collection that they read changes.  Distinct
+         * queries and joins across databases are not cached.
+         * @param resultCache the {@link ResultCache}
+         * @return the builder
+         */
+        public Builder resultCache(final ResultCache resultCache) {
+            notNull(resultCache);
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        /**
+         * set the fields that SELECT * leaves out for each collection, i.e: large embedded documents that are
+         * rarely needed.  The fields are left out with an exclusion projection, like SELECT * EXCEPT (field).
+         * @param defaultExcludedFields the mapping from collection name to the fields to leave out
+         * @return the builder
+         */
+        public Builder defaultExcludedFields(final Map<String, List<String>> defaultExcludedFields) {
+            notNull(defaultExcludedFields);
+            this.defaultExcludedFields = defaultExcludedFields;
+            return this;
+        }
+
+        /**
+         * set the {@link CollectionStatisticsProvider} used to choose the join order of queries that only have
+         * INNER JOINs.  The collection with the fewest estimated rows drives the aggregation and the documents are
+         * put back in the shape of the query after the joins.  Without a provider the joins are done in the order
+         * of the query.
+         * @param collectionStatisticsProvider the {@link CollectionStatisticsProvider}
+         * @return the builder
+         */
+        public Builder collectionStatisticsProvider(final CollectionStatisticsProvider collectionStatisticsProvider) {
+            notNull(collectionStatisticsProvider);
+            this.collectionStatisticsProvider = collectionStatisticsProvider;
+            return this;
+        }
+
+        /**
+         * set whether the joins are run in the JVM with a hash join instead of with $lookup when the query is run.
+         * Joins are always run in the JVM when a table is prefixed with a database, i.e: crm.accounts.
+         * @param clientSideJoins true to run the joins in the JVM
+         * @return the builder
+         */
+        public Builder clientSideJoins(final Boolean clientSideJoins) {
+            notNull(clientSideJoins);
+            this.clientSideJoins = clientSideJoins;
+            return this;
+        }
+
+        /**
+         * set the number of bytes each join that is run in the JVM may use before it spills to temp files.
+         * The default is 64MB.
+         * @param clientSideJoinMemoryBudget the memory budget in bytes
+         * @return the builder
+         */
+        public Builder clientSideJoinMemoryBudget(final Long clientSideJoinMemoryBudget) {
+            notNull(clientSideJoinMemoryBudget);
+            this.clientSideJoinMemoryBudget = clientSideJoinMemoryBudget;
+            return this;
+        }
+
+        /**
+         * set how the joins that are run in the JVM join the collections.  {@link ClientSideJoinStrategy#HASH}
+         * reads the whole joined collection, {@link ClientSideJoinStrategy#BATCHED_NESTED_LOOP} only looks up the
+         * join keys of the left documents with $in queries, which is faster when there are few left documents and
+         * the joined collection is big.  BATCHED_NESTED_LOOP always runs the joins in the JVM.
+         * @param clientSideJoinStrategy the join strategy
+         * @return the builder
+         */
+        public Builder clientSideJoinStrategy(final ClientSideJoinStrategy clientSideJoinStrategy) {
+            notNull(clientSideJoinStrategy);
+            this.clientSideJoinStrategy = clientSideJoinStrategy;
+            return this;
+        }
+
+        /**
+         * set the number of left documents that are looked up with one $in query by a nested loop join.
+         * The default is 1000.
+         * @param nestedLoopJoinBatchSize the batch size
+         * @return the builder
+         */
+        public Builder nestedLoopJoinBatchSize(final Integer nestedLoopJoinBatchSize) {
+            notNull(nestedLoopJoinBatchSize);
+            isTrue(nestedLoopJoinBatchSize > 0, "nestedLoopJoinBatchSize must be positive");
+            this.nestedLoopJoinBatchSize = nestedLoopJoinBatchSize;
+            return this;
+        }
+
+        /**
+         * set the number of $in queries a nested loop join runs at the same time.  The default is 4.
+         * @param nestedLoopJoinParallelism the number of concurrent queries
+         * @return the builder
+         */
+        public Builder nestedLoopJoinParallelism(final Integer nestedLoopJoinParallelism) {
+            notNull(nestedLoopJoinParallelism);
+            isTrue(nestedLoopJoinParallelism > 0, "nestedLoopJoinParallelism must be positive");
+            this.nestedLoopJoinParallelism = nestedLoopJoinParallelism;
+            return this;
+        }
+
         /**
          * build the {@link QueryConverter}.
          * @return the {@link QueryConverter}
          * @throws ParseException if there was a problem processing the sql
          */
         public QueryConverter build() throws ParseException {
-            return new QueryConverter(inputStream, fieldNameToFieldTypeMapping,
-                    defaultFieldType, aggregationAllowDiskUse, aggregationBatchSize);
+            return new QueryConverter(this);
         }
     }
 
@@ -0,0 +1,280 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.DistinctIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle to run a query with a deadline and to cancel it from another thread, see
+ * {@link QueryConverter#run(MongoDatabase, QueryExecution)}.  The time that is left before the deadline is sent as
+ * maxTimeMS with every command of the query, including every lookup of a batched nested loop join, so the server
+ * stops working on the query when the deadline has passed.  {@link #cancel()} closes the open cursors of the query,
+ * which kills them on the server, and {@link #cancel(MongoDatabase)} also kills the find and aggregate commands that
+ * are still running, which are found by {@link #getComment()}.
+ */
+public class QueryExecution {
+
+    //the code of the error the server returns when maxTimeMS has passed
+    private static final int MAX_TIME_MS_EXPIRED = 50;
+
+    private final long deadline;
+    private final boolean hasDeadline;
+    private final String comment = "sql-to-mongo-db-query-converter-" + UUID.randomUUID();
+    private final Set<Closeable> closeables = Collections.newSetFromMap(new IdentityHashMap<Closeable, Boolean>());
+    private volatile boolean cancelled;
+
+    /**
+     * Constructor for a query without a deadline that can be cancelled.
+     */
+    public QueryExecution() {
+        this.deadline = 0;
+        this.hasDeadline = false;
+    }
+
+    /**
+     * Constructor for a query that has to finish within the timeout.
+     * @param timeout the time the query can take, starting now
+     * @param timeUnit the unit of the timeout
+     */
+    public QueryExecution(final long timeout, final TimeUnit timeUnit) {
+        this.deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        this.hasDeadline = true;
+    }
+
+    /**
+     * get the comment that the find and aggregate commands of the query are sent with.
+     * @return the comment
+     */
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * get if the query was cancelled.
+     * @return true if the query was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the time limit to send with the next command of the query.
+     * @param maxTimeMS the time limit of the command itself, i.e: from a MAXTIME hint, or null
+     * @return the smaller of maxTimeMS and the time left before the deadline, or null if there is no limit
+     * @throws CancellationException if the query was cancelled
+     * @throws MongoExecutionTimeoutException if the deadline has passed
+     */
+    public Long getMaxTimeMS(final Long maxTimeMS) {
+        if (cancelled) {
+            throw new CancellationException("the query was cancelled");
+        }
+        if (!hasDeadline) {
+            return maxTimeMS;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new MongoExecutionTimeoutException(MAX_TIME_MS_EXPIRED, "the deadline of the query has passed");
+        }
+        return maxTimeMS != null ? Math.min(maxTimeMS, remaining) : remaining;
+    }
+
+    /**
+     * Send the time left and the comment with a find command.
+     * @param findIterable the find command
+     * @param maxTimeMS the time limit of the command itself or null
+     * @param <T> the type of the documents
+     * @return the find command
+     */
+    public <T> FindIterable<T> apply(final FindIterable<T> findIterable, final Long maxTimeMS) {
+        Long limit = getMaxTimeMS(maxTimeMS);
+        if (limit != null) {
+            findIterable.maxTime(limit, TimeUnit.MILLISECONDS);
+        }
+        return findIterable.comment(comment);
+    }
+
+    /**
+     * Send the time left and the comment with an aggregate command.
+     * @param aggregateIterable the aggregate command
+     * @param maxTimeMS the time limit of the command itself or null
+     * @param <T> the type of the documents
+     * @return the aggregate command
+     */
+    public <T> AggregateIterable<T> apply(final AggregateIterable<T> aggregateIterable, final Long maxTimeMS) {
+        Long limit = getMaxTimeMS(maxTimeMS);
+        if (limit != null) {
+            aggregateIterable.maxTime(limit, TimeUnit.MILLISECONDS);
+        }
+        return aggregateIterable.comment(comment);
+    }
+
+    /**
+     * Send the time left with a distinct command, which the driver cannot send a comment with.
+     * @param distinctIterable the distinct command
+     * @param maxTimeMS the time limit of the command itself or null
+     * @param <T> the type of the values
+     * @return the distinct command
+     */
+    public <T> DistinctIterable<T> apply(final DistinctIterable<T> distinctIterable, final Long maxTimeMS) {
+        Long limit = getMaxTimeMS(maxTimeMS);
+        if (limit != null) {
+            distinctIterable.maxTime(limit, TimeUnit.MILLISECONDS);
+        }
+        return distinctIterable;
+    }
+
+    /**
+     * Send the time left with a count.
+     * @param countOptions the options of the count
+     * @param maxTimeMS the time limit of the count itself or null
+     * @return the options of the count
+     */
+    public CountOptions apply(final CountOptions countOptions, final Long maxTimeMS) {
+        Long limit = getMaxTimeMS(maxTimeMS);
+        return limit != null ? countOptions.maxTime(limit, TimeUnit.MILLISECONDS) : countOptions;
+    }
+
+    /**
+     * Send the time left with an estimated count.
+     * @param options the options of the estimated count
+     * @param maxTimeMS the time limit of the count itself or null
+     * @return the options of the estimated count
+     */
+    public EstimatedDocumentCountOptions apply(final EstimatedDocumentCountOptions options, final Long maxTimeMS) {
+        Long limit = getMaxTimeMS(maxTimeMS);
+        return limit != null ? options.maxTime(limit, TimeUnit.MILLISECONDS) : options;
+    }
+
+    /**
+     * Open the cursor of a command so that it is closed when the query is cancelled, and so that reading it
+     * fails once the query is cancelled or the deadline has passed.
+     * @param mongoIterable the command
+     * @param <T> the type of the documents
+     * @return the results of the command
+     */
+    public <T> QueryResultIterator<T> iterator(final MongoIterable<T> mongoIterable) {
+        final MongoCursor<T> cursor = register(mongoIterable.iterator());
+        return new QueryResultIterator<>(new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                check(cursor);
+                try {
+                    return cursor.hasNext();
+                } catch (MongoException | IllegalStateException e) {
+                    throw cancelled ? (CancellationException) new CancellationException("the query was cancelled")
+                            .initCause(e) : e;
+                }
+            }
+
+            @Override
+            public T next() {
+                return cursor.next();
+            }
+        }, new Closeable() {
+            @Override
+            public void close() {
+                unregister(cursor);
+                cursor.close();
+            }
+        });
+    }
+
+    /**
+     * Close the resource when the query is cancelled, i.e: a cursor or a client side join.
+     * @param closeable the resource
+     * @param <T> the type of the resource
+     * @return the resource
+     * @throws CancellationException if the query was already cancelled, after the resource was closed
+     */
+    public <T extends Closeable> T register(final T closeable) {
+        synchronized (closeables) {
+            closeables.add(closeable);
+        }
+        if (cancelled) {
+            closeQuietly(closeable);
+            throw new CancellationException("the query was cancelled");
+        }
+        return closeable;
+    }
+
+    /**
+     * Forget a resource that was closed by the query.
+     * @param closeable the resource
+     */
+    public void unregister(final Closeable closeable) {
+        synchronized (closeables) {
+            closeables.remove(closeable);
+        }
+    }
+
+    /**
+     * Cancel the query from another thread.  The open cursors are closed, which kills them on the server, and
+     * reading the results fails with a {@link CancellationException}.
+     */
+    public void cancel() {
+        cancelled = true;
+        List<Closeable> open;
+        synchronized (closeables) {
+            open = new ArrayList<>(closeables);
+            closeables.clear();
+        }
+        for (Closeable closeable : open) {
+            closeQuietly(closeable);
+        }
+    }
+
+    /**
+     * Cancel the query from another thread, and also kill its find and aggregate commands that are still running
+     * on the server, which needs the killop privilege.
+     * @param adminDatabase the admin database of the cluster the query runs on
+     */
+    public void cancel(final MongoDatabase adminDatabase) {
+        cancel();
+        Document match = new Document("$or", Arrays.asList(new Document("command.comment", comment),
+                new Document("originatingCommand.comment", comment)));
+        for (Document operation : adminDatabase.aggregate(Arrays.asList(new Document("$currentOp", new Document()),
+                new Document("$match", match)))) {
+            adminDatabase.runCommand(new Document("killOp", 1).append("op", operation.get("opid")));
+        }
+    }
+
+    private void check(final MongoCursor<?> cursor) {
+        try {
+            getMaxTimeMS(null);
+        } catch (RuntimeException e) {
+            unregister(cursor);
+            cursor.close();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException | RuntimeException e) {
+            //the query is cancelled, so it does not matter if a resource cannot be closed
+        }
+    }
+
+}
@@ -4,7 +4,10 @@ import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoIterable;
 import org.calrissian.mango.collect.AbstractCloseableIterator;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
 
 /**
  * Wrapper {@link java.util.Iterator} around the {@link MongoCursor}.
@@ -12,14 +15,29 @@ import java.io.IOException;
  */
 public class QueryResultIterator<T> extends AbstractCloseableIterator<T> {
 
-    private final MongoCursor<T> mongoCursor;
+    private final Iterator<T> iterator;
+    private final Closeable closeable;
 
     /**
      * Default constructor.
      * @param mongoIterable the wrapped {@link MongoIterable}
      */
     public QueryResultIterator(final MongoIterable<T> mongoIterable) {
-        this.mongoCursor = mongoIterable.iterator();
+        this(mongoIterable.iterator());
+    }
+
+    private QueryResultIterator(final MongoCursor<T> mongoCursor) {
+        this(mongoCursor, mongoCursor);
+    }
+
+    /**
+     * Constructor for results that are not read from a single {@link MongoCursor}, i.e: client side joins.
+     * @param iterator the wrapped {@link Iterator}
+     * @param closeable closes the resources used by the iterator
+     */
+    public QueryResultIterator(final Iterator<T> iterator, final Closeable closeable) {
+        this.iterator = iterator;
+        this.closeable = closeable;
     }
 
     /**
@@ -29,10 +47,14 @@ public class QueryResultIterator<T> extends AbstractCloseableIterator<T> {
      */
     @Override
     protected T computeNext() {
-        if (mongoCursor.hasNext()) {
-            return mongoCursor.next();
+        if (iterator.hasNext()) {
+            return iterator.next();
         } else {
-            mongoCursor.close();
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
         return endOfData();
     }
@@ -42,6 +64,6 @@ public class QueryResultIterator<T> extends AbstractCloseableIterator<T> {
      */
     @Override
     public void close() throws IOException {
-        mongoCursor.close();
+        closeable.close();
     }
 }
@@ -0,0 +1,32 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.bson.Document;
+
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Caches the results of read queries, so that the same query is not sent to the server again until one of the
+ * collections it reads changes.
+ */
+public interface ResultCache {
+
+    /**
+     * Get the results of a query from the cache, or run the query and add its results to the cache once they have
+     * all been read.
+     * @param plan the converted query and the databases it reads, i.e: the database, the collection and the filter,
+     * projection, sort and limit of a find, or the pipeline of an aggregation
+     * @param collections the collections that the query reads
+     * @param loader runs the query
+     * @return the results of the query
+     */
+    QueryResultIterator<Document> get(Document plan, Set<String> collections,
+                                      Supplier<QueryResultIterator<Document>> loader);
+
+    /**
+     * Drop the results of every query that reads a collection.
+     * @param collection the name of the collection that changed
+     */
+    void invalidate(String collection);
+
+}
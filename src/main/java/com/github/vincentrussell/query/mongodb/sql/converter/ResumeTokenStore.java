@@ -0,0 +1,23 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.bson.BsonDocument;
+
+/**
+ * Keeps the resume token of a watched query, so that watching the query again continues after the last change
+ * that was read, i.e: after a restart.
+ */
+public interface ResumeTokenStore {
+
+    /**
+     * Get the saved resume token.
+     * @return the resume token or null if none was saved
+     */
+    BsonDocument getResumeToken();
+
+    /**
+     * Save the resume token of the last change that was read.
+     * @param resumeToken the resume token
+     */
+    void saveResumeToken(BsonDocument resumeToken);
+
+}
@@ -0,0 +1,20 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import java.util.Map;
+
+/**
+ * Provides the {@link FieldType} of the fields of a collection, so that literals in the where clause, the having
+ * clause and the joins are converted to the type that is stored in the collection without maintaining a
+ * fieldNameToFieldTypeMapping by hand.
+ */
+public interface SchemaProvider {
+
+    /**
+     * Get the types of the fields of a collection.
+     * @param collection the name of the collection
+     * @return the mapping from field name (with dots for embedded fields) to {@link FieldType}, fields with more
+     * than one type or an unknown type are left out
+     */
+    Map<String, FieldType> getFieldTypes(String collection);
+
+}
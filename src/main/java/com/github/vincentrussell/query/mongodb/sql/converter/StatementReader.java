@@ -0,0 +1,204 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the sql statements that are typed or piped into the command line.  One thread reads the input in bulk
+ * through a {@link ReadableByteChannel}, so there is no handoff between threads for every byte like with
+ * {@link TimeoutInputStream}.  A statement ends at a semicolon at the end of a line, or when no more input has come
+ * for the idle timeout, i.e: a statement that is pasted without a semicolon, or at the end of the input, i.e: a
+ * statement that is piped in.  The answers to the prompts are read
+ * with {@link #readLine(long, TimeUnit)} from the same input, so that nothing that was typed ahead is lost.
+ */
+public class StatementReader implements Closeable {
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final long FIRST_INPUT_TIMEOUT_MINUTES = 1;
+    //how long to wait before reading again when there is no input, i.e: the end of a pipe
+    private static final long NO_INPUT_DELAY_MS = 200;
+    private static final byte[] END_OF_INPUT = new byte[0];
+
+    private final ReadableByteChannel channel;
+    private final long idleTimeoutNanos;
+    private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    private byte[] pending = new byte[CHUNK_SIZE];
+    private int length;
+    private Thread readerThread;
+    private volatile boolean closed;
+
+    /**
+     * Default constructor.
+     * @param inputStream the input
+     * @param idleTimeout the time without input after which a statement without a semicolon ends
+     * @param timeUnit the unit of the idle timeout
+     */
+    public StatementReader(final InputStream inputStream, final long idleTimeout, final TimeUnit timeUnit) {
+        this.channel = Channels.newChannel(inputStream);
+        this.idleTimeoutNanos = timeUnit.toNanos(idleTimeout);
+    }
+
+    /**
+     * Read the next statement.  The first input is waited for for up to a minute.
+     * @return the statement without the semicolon, empty if there was no input
+     * @throws IOException if the input could not be read
+     */
+    public String readStatement() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(FIRST_INPUT_TIMEOUT_MINUTES);
+        while (true) {
+            int semicolon = getStatementEnd();
+            if (semicolon >= 0) {
+                String statement = new String(pending, 0, semicolon, StandardCharsets.UTF_8);
+                remove(indexOf('\n', semicolon) + 1);
+                return statement;
+            }
+            long timeout = isBlank() ? deadline - System.nanoTime() : idleTimeoutNanos;
+            byte[] chunk = poll(timeout);
+            if (chunk == null || (chunk == END_OF_INPUT && !isBlank())) {
+                String statement = new String(pending, 0, length, StandardCharsets.UTF_8);
+                remove(length);
+                return statement;
+            }
+            append(chunk);
+        }
+    }
+
+    /**
+     * Read the next line that is not blank, i.e: the answer to a prompt.
+     * @param timeout the time to wait for the line
+     * @param timeUnit the unit of the timeout
+     * @return the line without the line separator and the spaces around it
+     * @throws IOException if the input could not be read or there was no line within the timeout
+     */
+    public String readLine(final long timeout, final TimeUnit timeUnit) throws IOException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        while (true) {
+            int newLine = indexOf('\n', 0);
+            if (newLine >= 0) {
+                String line = new String(pending, 0, newLine, StandardCharsets.UTF_8).trim();
+                remove(newLine + 1);
+                if (!line.isEmpty()) {
+                    return line;
+                }
+                continue;
+            }
+            byte[] chunk = poll(deadline - System.nanoTime());
+            if (chunk == null) {
+                throw new IOException(new TimeoutException("no input within " + timeout + " " + timeUnit));
+            } else if (chunk == END_OF_INPUT && !isBlank()) {
+                //the last line of the input has no line separator
+                append(new byte[] {'\n'});
+            }
+            append(chunk);
+        }
+    }
+
+    /**
+     * Stop reading the input.  The input is not closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (readerThread != null) {
+            readerThread.interrupt();
+        }
+    }
+
+    private byte[] poll(final long timeoutNanos) throws IOException {
+        if (readerThread == null) {
+            readerThread = new Thread(new ChunkReader(), "statement-reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+        try {
+            return timeoutNanos > 0 ? chunks.poll(timeoutNanos, TimeUnit.NANOSECONDS) : chunks.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    //the index of the semicolon that ends the first statement, only spaces can follow it on its line
+    private int getStatementEnd() {
+        byte quote = 0;
+        for (int i = 0; i < length; i++) {
+            byte current = pending[i];
+            if (quote != 0) {
+                quote = current == quote ? 0 : quote;
+            } else if (current == '\'' || current == '"' || current == '`') {
+                quote = current;
+            } else if (current == ';') {
+                int newLine = indexOf('\n', i);
+                if (newLine >= 0 && new String(pending, i + 1, newLine - i - 1, StandardCharsets.UTF_8)
+                        .trim().isEmpty()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(final char character, final int from) {
+        for (int i = from; i < length; i++) {
+            if (pending[i] == character) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isBlank() {
+        return new String(pending, 0, length, StandardCharsets.UTF_8).trim().isEmpty();
+    }
+
+    private void append(final byte[] chunk) {
+        if (length + chunk.length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, length + chunk.length));
+        }
+        System.arraycopy(chunk, 0, pending, length, chunk.length);
+        length += chunk.length;
+    }
+
+    private void remove(final int count) {
+        System.arraycopy(pending, count, pending, 0, length - count);
+        length -= count;
+    }
+
+    private final class ChunkReader implements Runnable {
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            boolean endOfInput = false;
+            try {
+                while (!closed) {
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    if (read > 0) {
+                        chunks.add(Arrays.copyOf(buffer.array(), read));
+                        endOfInput = false;
+                    } else {
+                        //the end of the input, but more can come, i.e: System.in of a test
+                        if (!endOfInput) {
+                            chunks.add(END_OF_INPUT);
+                            endOfInput = true;
+                        }
+                        Thread.sleep(NO_INPUT_DELAY_MS);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                //the reader was closed
+            }
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.compiled;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryResultIterator;
+import com.github.vincentrussell.query.mongodb.sql.converter.SQLCommandType;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.CompiledPlanHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang.Validate.isTrue;
+
+/**
+ * A query that was converted when the code was compiled, see {@link MongoSql}.  It holds the document format of
+ * the query, see {@link com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter#getQueryAsDocument()},
+ * and runs it without the sql parser.  The filter, projection, sort and pipeline are encoded as BSON once, when the
+ * query is created or its parameters are bound.
+ */
+public class CompiledQuery {
+
+    private static final String PLACEHOLDER_PREFIX = "__mongosql_parameter__";
+
+    private final Document queryDocument;
+    private final List<String> parameterNames;
+    private final boolean bound;
+    private final CompiledPlanHolder plan;
+
+    /**
+     * Constructor for the generated classes.
+     * @param parameterNames the names of the parameters of the query, in the order of the bind method
+     * @param queryDocumentJson the document format of the query as extended json, split in parts because a string
+     * constant of a class is limited to 64k
+     */
+    public CompiledQuery(final List<String> parameterNames, final String... queryDocumentJson) {
+        this(Document.parse(String.join("", queryDocumentJson)), parameterNames, parameterNames.isEmpty());
+    }
+
+    CompiledQuery(final Document queryDocument, final List<String> parameterNames, final boolean bound) {
+        this.queryDocument = queryDocument;
+        this.parameterNames = Collections.unmodifiableList(new ArrayList<>(parameterNames));
+        this.bound = bound;
+        this.plan = bound ? getPlan(queryDocument) : null;
+    }
+
+    /**
+     * Get the string that stands for a parameter in the converted query until the parameter is bound.
+     * @param parameterName the name of the parameter
+     * @return the placeholder
+     */
+    public static String getPlaceholder(final String parameterName) {
+        return PLACEHOLDER_PREFIX + parameterName;
+    }
+
+    /**
+     * Convert a sql query with :name parameters, see {@link MongoSql}.  A parameter is replaced when it is bound, so
+     * every parameter has to be a whole value of the converted query, i.e: not a LIKE pattern, the text of date()
+     * or the number of LIMIT or OFFSET.
+     * @param sql the sql query
+     * @param parameterNames the list the names of the parameters are added to, in the order they first appear
+     * @return the document format of the query, with the placeholders of the parameters
+     * @throws ParseException if the query cannot be converted or a parameter is not a whole value
+     */
+    public static Document convert(final String sql, final List<String> parameterNames) throws ParseException {
+        Document queryDocument = new QueryConverter.Builder().sqlString(replaceParameters(sql, parameterNames))
+                .build().getQueryAsDocument();
+        Set<String> values = new HashSet<>();
+        Set<String> misused = new HashSet<>();
+        findPlaceholders(queryDocument, values, misused);
+        for (String parameterName : parameterNames) {
+            String placeholder = getPlaceholder(parameterName);
+            Pattern inText = Pattern.compile(Pattern.quote(placeholder) + "(?![\\p{javaJavaIdentifierPart}])");
+            boolean isMisused = false;
+            for (String text : misused) {
+                isMisused |= inText.matcher(text).find();
+            }
+            SqlUtils.isTrue(values.contains(placeholder) && !isMisused, "the parameter :" + parameterName
+                    + " can only be used as a value, not in LIKE, date(), LIMIT or OFFSET");
+        }
+        return queryDocument;
+    }
+
+    /**
+     * get the names of the parameters of the query.
+     * @return the names of the parameters
+     */
+    public List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * get the document format of the query, with the placeholders of the parameters that are not bound.
+     * @return the document format of the query
+     */
+    public Document getQueryDocument() {
+        return queryDocument;
+    }
+
+    /**
+     * get the filter, projection, sort and aggregation pipeline of the query encoded as BSON, which every run sends.
+     * @return the {@link CompiledPlanHolder}, or null if the parameters of the query are not bound
+     */
+    public CompiledPlanHolder getCompiledPlan() {
+        return plan;
+    }
+
+    /**
+     * Bind the parameters of the query.
+     * @param values the values of the parameters, in the order of {@link #getParameterNames()}
+     * @return the query with the parameters bound
+     * @throws IllegalArgumentException if the number of values is not the number of parameters
+     * @throws IllegalStateException if a parameter is not a whole value of the query, so it cannot be replaced
+     */
+    public CompiledQuery bind(final Object... values) {
+        isTrue(values.length == parameterNames.size(), "the query has " + parameterNames.size()
+                + " parameters " + parameterNames + " but " + values.length + " values were given");
+        Map<String, Object> valuesByPlaceholder = new HashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            valuesByPlaceholder.put(getPlaceholder(parameterNames.get(i)), values[i]);
+        }
+        Document boundDocument = (Document) replace(queryDocument, valuesByPlaceholder);
+        Set<String> placeholders = new HashSet<>();
+        Set<String> misused = new HashSet<>();
+        findPlaceholders(boundDocument, placeholders, misused);
+        if (!placeholders.isEmpty() || !misused.isEmpty()) {
+            throw new IllegalStateException("the parameters " + parameterNames + " could not all be bound, "
+                    + "a parameter can only be used as a value");
+        }
+        return new CompiledQuery(boundDocument, parameterNames, true);
+    }
+
+    /**
+     * Run the query.
+     * @param mongoDatabase the database to run the query against
+     * @param <T> variable based on the type of query run
+     * @return a Long for counts, deletes and updates, otherwise a {@link QueryResultIterator} of the documents
+     * @throws IllegalStateException if the parameters of the query are not bound
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(final MongoDatabase mongoDatabase) {
+        if (!bound) {
+            throw new IllegalStateException("the parameters " + parameterNames + " of the query are not bound");
+        }
+        MongoCollection<Document> mongoCollection = mongoDatabase.getCollection(queryDocument.getString("collection"));
+        if (queryDocument.get("readPreference") != null) {
+            mongoCollection = mongoCollection.withReadPreference(
+                    ReadPreference.valueOf(queryDocument.getString("readPreference")));
+        }
+        String commandType = queryDocument.get("commandType", SQLCommandType.SELECT.name());
+        if (SQLCommandType.DELETE.name().equals(commandType)) {
+            return (T) (Long) mongoCollection.deleteMany(plan.getFilter()).getDeletedCount();
+        } else if (SQLCommandType.UPDATE.name().equals(commandType)) {
+            return (T) (Long) mongoCollection.updateMany(plan.getFilter(), getUpdate()).getModifiedCount();
+        } else if (queryDocument.get("distinct") != null) {
+            return (T) new QueryResultIterator<>(mongoCollection.distinct(queryDocument.getString("distinct"),
+                    plan.getFilter(), String.class).maxTime(getMaxTimeMS(queryDocument), TimeUnit.MILLISECONDS));
+        } else if (Boolean.TRUE.equals(queryDocument.getBoolean("estimatedDocumentCount"))) {
+            return (T) (Long) mongoCollection.estimatedDocumentCount(new EstimatedDocumentCountOptions()
+                    .maxTime(getMaxTimeMS(queryDocument), TimeUnit.MILLISECONDS));
+        } else if (Boolean.TRUE.equals(queryDocument.getBoolean("countAll"))) {
+            CountOptions countOptions = new CountOptions().maxTime(getMaxTimeMS(queryDocument),
+                    TimeUnit.MILLISECONDS).collation(getCollation(queryDocument));
+            countOptions = queryDocument.get("hint") instanceof String
+                    ? countOptions.hintString(queryDocument.getString("hint"))
+                    : countOptions.hint((Bson) queryDocument.get("hint"));
+            return (T) (Long) mongoCollection.countDocuments(plan.getFilter(), countOptions);
+        } else if (plan.getPipeline() != null) {
+            return (T) new QueryResultIterator<>(getAggregateIterable(mongoCollection));
+        }
+        return (T) new QueryResultIterator<>(getFindIterable(mongoCollection));
+    }
+
+    private AggregateIterable<Document> getAggregateIterable(final MongoCollection<Document> mongoCollection) {
+        AggregateIterable<Document> aggregate = mongoCollection.aggregate(plan.getPipeline());
+        Document options = queryDocument.get("options", new Document());
+        if (options.get("allowDiskUse") != null) {
+            aggregate.allowDiskUse(options.getBoolean("allowDiskUse"));
+        }
+        if (options.get("cursor") != null) {
+            aggregate.batchSize(((Document) options.get("cursor")).getInteger("batchSize"));
+        }
+        if (options.get("hint") != null) {
+            aggregate.hint((Bson) options.get("hint"));
+        }
+        return aggregate.maxTime(getMaxTimeMS(options), TimeUnit.MILLISECONDS).collation(getCollation(options));
+    }
+
+    private FindIterable<Document> getFindIterable(final MongoCollection<Document> mongoCollection) {
+        FindIterable<Document> find = mongoCollection.find(plan.getFilter()).projection(plan.getProjection())
+                .sort(plan.getSort()).maxTime(getMaxTimeMS(queryDocument), TimeUnit.MILLISECONDS)
+                .collation(getCollation(queryDocument));
+        if (queryDocument.get("skip") != null) {
+            find.skip(((Number) queryDocument.get("skip")).intValue());
+        }
+        if (queryDocument.get("limit") != null) {
+            find.limit(((Number) queryDocument.get("limit")).intValue());
+        }
+        if (queryDocument.get("hint") instanceof String) {
+            find.hintString(queryDocument.getString("hint"));
+        } else if (queryDocument.get("hint") != null) {
+            find.hint((Bson) queryDocument.get("hint"));
+        }
+        if (queryDocument.get("batchSize") != null) {
+            find.batchSize(queryDocument.getInteger("batchSize"));
+        }
+        if (queryDocument.get("allowDiskUse") != null) {
+            find.allowDiskUse(queryDocument.getBoolean("allowDiskUse"));
+        }
+        return find.noCursorTimeout(Boolean.TRUE.equals(queryDocument.get("noCursorTimeout")));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Document> getUpdate() {
+        List<Document> update = new ArrayList<>();
+        Document updateSet = (Document) queryDocument.get("updateSet");
+        if (updateSet != null && !updateSet.isEmpty()) {
+            update.add(new Document("$set", updateSet));
+        }
+        List<String> updateUnSet = (List<String>) queryDocument.get("updateUnSet");
+        if (updateUnSet != null && !updateUnSet.isEmpty()) {
+            update.add(new Document("$unset", updateUnSet));
+        }
+        return update;
+    }
+
+    private static long getMaxTimeMS(final Document document) {
+        return document.get("maxTimeMS") != null ? ((Number) document.get("maxTimeMS")).longValue() : 0;
+    }
+
+    private static Collation getCollation(final Document document) {
+        Document collation = (Document) document.get("collation");
+        if (collation == null) {
+            return null;
+        }
+        Collation.Builder builder = Collation.builder().locale(collation.getString("locale"));
+        if (collation.get("strength") != null) {
+            builder.collationStrength(CollationStrength.fromInt(collation.getInteger("strength")));
+        }
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompiledPlanHolder getPlan(final Document queryDocument) {
+        Object query = queryDocument.get("query");
+        if (query instanceof List) {
+            return new CompiledPlanHolder(null, null, null, (List<Document>) query);
+        }
+        return new CompiledPlanHolder((Document) query, (Document) queryDocument.get("projection"),
+                (Document) queryDocument.get("sort"), null);
+    }
+
+    //the placeholders that are whole values, and the keys and values that have a placeholder in them
+    @SuppressWarnings("unchecked")
+    private static void findPlaceholders(final Object value, final Set<String> placeholders,
+                                         final Set<String> misused) {
+        if (value instanceof String && ((String) value).contains(PLACEHOLDER_PREFIX)) {
+            String text = (String) value;
+            if (text.matches(PLACEHOLDER_PREFIX + "[\\p{javaJavaIdentifierPart}]+")) {
+                placeholders.add(text);
+            } else {
+                misused.add(text);
+            }
+        } else if (value instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+                if (entry.getKey().contains(PLACEHOLDER_PREFIX)) {
+                    misused.add(entry.getKey());
+                }
+                findPlaceholders(entry.getValue(), placeholders, misused);
+            }
+        } else if (value instanceof List) {
+            for (Object element : (List<Object>) value) {
+                findPlaceholders(element, placeholders, misused);
+            }
+        }
+    }
+
+    //a copy of the value with the placeholders replaced by the values of the parameters
+    @SuppressWarnings("unchecked")
+    private static Object replace(final Object value, final Map<String, Object> valuesByPlaceholder) {
+        if (value instanceof String && valuesByPlaceholder.containsKey(value)) {
+            return valuesByPlaceholder.get(value);
+        } else if (value instanceof Document) {
+            Document copy = new Document();
+            for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+                copy.put(entry.getKey(), replace(entry.getValue(), valuesByPlaceholder));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object element : (List<Object>) value) {
+                copy.add(replace(element, valuesByPlaceholder));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Replace the :name parameters of a sql query with the string literals of their placeholders, so that the query
+     * can be converted, see {@link MongoSql}.
+     * @param sql the sql query
+     * @param parameterNames the list the names of the parameters are added to, in the order they first appear
+     * @return the sql query with the placeholders
+     */
+    public static String replaceParameters(final String sql, final List<String> parameterNames) {
+        StringBuilder result = new StringBuilder();
+        char quote = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            char current = sql.charAt(i);
+            if (quote != 0) {
+                quote = current == quote ? 0 : quote;
+            } else if (current == '\'' || current == '"' || current == '`') {
+                quote = current;
+            } else if (current == ':' && i + 1 < sql.length() && Character.isJavaIdentifierStart(sql.charAt(i + 1))
+                    && (i == 0 || sql.charAt(i - 1) != ':')) {
+                int end = i + 1;
+                while (end < sql.length() && Character.isJavaIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                String name = sql.substring(i + 1, end);
+                if (!parameterNames.contains(name)) {
+                    parameterNames.add(name);
+                }
+                result.append('\'').append(getPlaceholder(name)).append('\'');
+                i = end;
+                continue;
+            }
+            result.append(current);
+            i++;
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.compiled;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Converts a sql query when the annotated code is compiled, see {@link MongoSqlProcessor}.  The processor generates
+ * the class {@link #name()} in the package of the annotated code, with the converted query in a
+ * {@link CompiledQuery} constant, so the sql is not parsed when the application runs and a query that cannot be
+ * converted fails the build.  Parameters are written as :name in the sql and are bound with the generated bind
+ * method, i.e: select * from orders where status = :status and total &gt; :minTotal.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})
+public @interface MongoSql {
+
+    /**
+     * the sql query.
+     * @return the sql query
+     */
+    String value();
+
+    /**
+     * the simple name of the class that is generated for the query.
+     * @return the simple name of the generated class
+     */
+    String name();
+}
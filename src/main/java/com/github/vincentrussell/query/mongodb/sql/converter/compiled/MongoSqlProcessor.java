@@ -0,0 +1,148 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.compiled;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Annotation processor that converts the sql of every {@link MongoSql} annotation when the code is compiled and
+ * generates a class with the converted query, see {@link CompiledQuery}.  A query that cannot be converted is a
+ * compilation error.  The processor is found by javac on the classpath, so adding this library to the dependencies
+ * of a project is enough to run it.
+ */
+@SupportedAnnotationTypes("com.github.vincentrussell.query.mongodb.sql.converter.compiled.MongoSql")
+public class MongoSqlProcessor extends AbstractProcessor {
+
+    //string constants of a class are limited to 64k of utf-8, and a char takes up to 3 bytes
+    private static final int JSON_PART_LENGTH = 8192;
+    private static final JsonWriterSettings EXTENDED = JsonWriterSettings.builder()
+            .outputMode(JsonMode.EXTENDED).build();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(MongoSql.class)) {
+            MongoSql mongoSql = element.getAnnotation(MongoSql.class);
+            try {
+                generate(element, mongoSql);
+            } catch (ParseException | RuntimeException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "unable to convert the sql of " + mongoSql.name() + ": " + e.getMessage(), element);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "unable to generate " + mongoSql.name() + ": " + e.getMessage(), element);
+            }
+        }
+        return true;
+    }
+
+    private void generate(final Element element, final MongoSql mongoSql) throws ParseException, IOException {
+        List<String> parameterNames = new ArrayList<>();
+        if (!SourceVersion.isName(mongoSql.name()) || mongoSql.name().contains(".")) {
+            throw new ParseException("the name of the generated class is not a java identifier: " + mongoSql.name());
+        }
+        Document queryDocument = CompiledQuery.convert(mongoSql.value(), parameterNames);
+        for (String parameterName : parameterNames) {
+            if (SourceVersion.isKeyword(parameterName)) {
+                throw new ParseException("the parameter :" + parameterName + " is a java keyword");
+            }
+        }
+        String packageName = processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+        String className = packageName.isEmpty() ? mongoSql.name() : packageName + "." + mongoSql.name();
+        try (Writer writer = processingEnv.getFiler().createSourceFile(className, element).openWriter()) {
+            writer.write(getSource(packageName, mongoSql, parameterNames, queryDocument.toJson(EXTENDED)));
+        }
+    }
+
+    private static String getSource(final String packageName, final MongoSql mongoSql,
+                                    final List<String> parameterNames, final String json) {
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import ").append(CompiledQuery.class.getName()).append(";\n\n")
+                .append("/**\n * The query <code>").append(escapeJavadoc(mongoSql.value()))
+                .append("</code>, converted when the code was compiled.\n */\n")
+                .append("public final class ").append(mongoSql.name()).append(" {\n\n")
+                .append("    /**\n     * The sql of the query.\n     */\n")
+                .append("    public static final String SQL = ").append(quote(mongoSql.value())).append(";\n\n")
+                .append("    /**\n     * The converted query.\n     */\n")
+                .append("    public static final CompiledQuery QUERY = new CompiledQuery(java.util.Arrays.asList(");
+        for (int i = 0; i < parameterNames.size(); i++) {
+            source.append(i > 0 ? ", " : "").append(quote(parameterNames.get(i)));
+        }
+        source.append(")");
+        for (int i = 0; i < json.length(); i += JSON_PART_LENGTH) {
+            source.append(",\n            ").append(quote(json.substring(i, Math.min(json.length(),
+                    i + JSON_PART_LENGTH))));
+        }
+        source.append(");\n\n    private ").append(mongoSql.name()).append("() {\n    }\n");
+        if (!parameterNames.isEmpty()) {
+            source.append("\n    /**\n     * Bind the parameters of the query.\n");
+            for (String parameterName : parameterNames) {
+                source.append("     * @param ").append(parameterName).append(" the value of :")
+                        .append(parameterName).append("\n");
+            }
+            source.append("     * @return the query with the parameters bound\n     */\n")
+                    .append("    public static CompiledQuery bind(");
+            for (int i = 0; i < parameterNames.size(); i++) {
+                source.append(i > 0 ? ", " : "").append("final Object ").append(parameterNames.get(i));
+            }
+            source.append(") {\n        return QUERY.bind(");
+            for (int i = 0; i < parameterNames.size(); i++) {
+                source.append(i > 0 ? ", " : "").append(parameterNames.get(i));
+            }
+            source.append(");\n    }\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    private static String quote(final String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char character : value.toCharArray()) {
+            if (character == '"' || character == '\\') {
+                quoted.append('\\').append(character);
+            } else if (character == '\n') {
+                quoted.append("\\n");
+            } else if (character == '\r') {
+                quoted.append("\\r");
+            } else if (character < ' ') {
+                quoted.append(String.format("\\%03o", (int) character));
+            } else if (character > '~') {
+                quoted.append(String.format("\\u%04x", (int) character));
+            } else {
+                quoted.append(character);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String escapeJavadoc(final String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("*/", "*&#47;")
+                .replace("\\u", "\\\\u").replaceAll("\\s+", " ");
+    }
+}
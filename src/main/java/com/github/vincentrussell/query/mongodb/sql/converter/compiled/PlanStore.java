@@ -0,0 +1,302 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.compiled;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * Store of converted queries in an append-only file, so that a process does not convert the queries another
+ * process, or an earlier run, already converted.  Every plan is a bson document with the fingerprint and sql of the
+ * query, the names of its :name parameters, see {@link MongoSql}, and its document format, see
+ * {@link com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter#getQueryAsDocument()}.  The file is
+ * memory mapped, so the processes on a host share the pages of the file, and plans are only decoded when they are
+ * first used.  Every plan records the version of the converter that wrote it, and plans of other versions are
+ * ignored, so a query is converted again, and appended, after the converter is upgraded.  A store that is opened read
+ * only converts the
+ * queries that are missing without appending them.  Plans are appended while the file is locked, and a plan that was
+ * not written completely is ignored and overwritten by the next plan, so more than one process can append to the
+ * file.  Only one store should be open for a file in a process.  The queries are converted with the default options
+ * of {@link com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter.Builder}.
+ */
+public class PlanStore implements Closeable {
+
+    private static final byte[] MAGIC = "MSQLPLN2".getBytes(StandardCharsets.US_ASCII);
+    private static final String VERSION = loadVersion();
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final Map<String, Long> offsets = new HashMap<>();
+    private final Map<String, CompiledQuery> queries = new HashMap<>();
+    private MappedByteBuffer mapped;
+    private long end;
+
+    /**
+     * Open a store, the file is created if it does not exist.
+     * @param file the file of the store
+     * @throws IOException if the file cannot be opened or is not a plan store
+     */
+    public PlanStore(final File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Default constructor.
+     * @param file the file of the store
+     * @param readOnly true to only read the plans of the file, which must exist
+     * @throws IOException if the file cannot be opened or is not a plan store
+     */
+    public PlanStore(final File file, final boolean readOnly) throws IOException {
+        notNull(file, "file is null");
+        this.readOnly = readOnly;
+        this.channel = readOnly ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        try {
+            if (!readOnly && channel.size() == 0) {
+                try (FileLock lock = channel.lock()) {
+                    if (channel.size() == 0) {
+                        channel.write(ByteBuffer.wrap(MAGIC), 0);
+                    }
+                }
+            }
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the fingerprint of a sql query.  Queries that only differ in the whitespace outside of quotes have the same
+     * fingerprint.
+     * @param sql the sql query
+     * @return the fingerprint
+     */
+    public static String fingerprint(final String sql) {
+        StringBuilder normalized = new StringBuilder();
+        char quote = 0;
+        boolean space = false;
+        for (char current : sql.trim().toCharArray()) {
+            if (quote == 0 && Character.isWhitespace(current)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            if (quote != 0) {
+                quote = current == quote ? 0 : quote;
+            } else if (current == '\'' || current == '"' || current == '`') {
+                quote = current;
+            }
+            normalized.append(current);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(normalized.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder fingerprint = new StringBuilder();
+            for (byte b : digest) {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the converted query of a sql query.  The query is converted, and appended to the file if the store is not
+     * read only, when the file does not have its plan.
+     * @param sql the sql query, with :name parameters
+     * @return the converted query
+     * @throws ParseException if the query cannot be converted
+     * @throws IOException if the file cannot be read or written
+     */
+    public synchronized CompiledQuery get(final String sql) throws ParseException, IOException {
+        notNull(sql, "sql is null");
+        String fingerprint = fingerprint(sql);
+        CompiledQuery query = queries.get(fingerprint);
+        if (query != null) {
+            return query;
+        }
+        if (!offsets.containsKey(fingerprint)) {
+            refresh();
+        }
+        Document plan;
+        if (offsets.containsKey(fingerprint)) {
+            plan = read(offsets.get(fingerprint));
+        } else {
+            plan = convert(fingerprint, sql);
+            if (!readOnly) {
+                append(fingerprint, plan);
+            }
+        }
+        @SuppressWarnings("unchecked")
+        List<String> parameterNames = (List<String>) plan.get("parameterNames");
+        query = new CompiledQuery((Document) plan.get("queryDocument"), parameterNames, parameterNames.isEmpty());
+        queries.put(fingerprint, query);
+        return query;
+    }
+
+    /**
+     * Convert the queries that do not have a plan in the file, i.e: when the application starts.
+     * @param sqls the sql queries
+     * @return the number of queries that were converted
+     * @throws ParseException if a query cannot be converted
+     * @throws IOException if the file cannot be read or written
+     */
+    public synchronized int preload(final Iterable<String> sqls) throws ParseException, IOException {
+        notNull(sqls, "sqls is null");
+        refresh();
+        int converted = 0;
+        for (String sql : sqls) {
+            String fingerprint = fingerprint(sql);
+            if (!offsets.containsKey(fingerprint) && !queries.containsKey(fingerprint)) {
+                converted++;
+            }
+            get(sql);
+        }
+        return converted;
+    }
+
+    /**
+     * get the number of plans in the file that were written by this version of the converter.
+     * @return the number of plans
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized int size() throws IOException {
+        refresh();
+        return offsets.size();
+    }
+
+    /**
+     * Close the file.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mapped = null;
+        channel.close();
+    }
+
+    private static Document convert(final String fingerprint, final String sql) throws ParseException {
+        List<String> parameterNames = new ArrayList<>();
+        Document queryDocument = CompiledQuery.convert(sql, parameterNames);
+        return new Document("fingerprint", fingerprint).append("version", VERSION).append("sql", sql)
+                .append("parameterNames", parameterNames).append("queryDocument", queryDocument)
+                .append("created", new Date());
+    }
+
+    private static String loadVersion() {
+        Properties properties = new Properties();
+        try (InputStream inputStream = PlanStore.class.getResourceAsStream("plan-store.properties")) {
+            if (inputStream == null) {
+                throw new IllegalStateException("plan-store.properties is missing");
+            }
+            properties.load(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return properties.getProperty("version");
+    }
+
+    private Document read(final long offset) {
+        return CODEC.decode(reader(offset), DecoderContext.builder().build());
+    }
+
+    //a reader of the plan at the offset, straight from the mapped pages of the file
+    private BsonBinaryReader reader(final long offset) {
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) offset);
+        buffer.limit((int) offset + mapped.getInt((int) offset));
+        return new BsonBinaryReader(buffer.slice());
+    }
+
+    private void append(final String fingerprint, final Document plan) throws IOException {
+        BasicOutputBuffer outputBuffer = new BasicOutputBuffer();
+        CODEC.encode(new BsonBinaryWriter(outputBuffer), plan, EncoderContext.builder().build());
+        ByteBuffer buffer = ByteBuffer.wrap(outputBuffer.toByteArray());
+        try (FileLock lock = channel.lock()) {
+            //another process may have appended plans, or not finished a plan, since the file was read
+            refresh();
+            if (offsets.containsKey(fingerprint)) {
+                return;
+            }
+            channel.truncate(end);
+            long position = end;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            refresh();
+        }
+    }
+
+    //map the plans that were appended since the file was last read
+    private void refresh() throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("the plan store is bigger than 2GB");
+        }
+        if (mapped == null || size > mapped.capacity()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (end == 0) {
+            byte[] magic = new byte[MAGIC.length];
+            if (size < MAGIC.length) {
+                throw new IOException("the file is not a plan store");
+            }
+            ((ByteBuffer) mapped.duplicate().position(0)).get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("the file is not a plan store");
+            }
+            end = MAGIC.length;
+        }
+        while (end + Integer.BYTES <= size) {
+            int length = mapped.getInt((int) end);
+            if (length < Integer.BYTES + 1 || end + length > size || mapped.get((int) (end + length - 1)) != 0) {
+                break;
+            }
+            //the fingerprint and the version are the first fields of a plan, so the rest of the plan is not decoded
+            try (BsonBinaryReader reader = reader(end)) {
+                reader.readStartDocument();
+                String fingerprint = reader.readString("fingerprint");
+                if (VERSION.equals(reader.readString("version"))) {
+                    offsets.put(fingerprint, end);
+                }
+            }
+            end += length;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.holder;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the filter, projection, sort and pipeline of a converted query encoded as BSON once, so that running the
+ * query again does not encode the {@link Document} trees of the query again.  The driver copies the bytes of a
+ * {@link RawBsonDocument} into the command as they are.
+ */
+public class CompiledPlanHolder {
+
+    private static final Codec<Document> DOCUMENT_CODEC = MongoClientSettings.getDefaultCodecRegistry()
+            .get(Document.class);
+
+    private final RawBsonDocument filter;
+    private final RawBsonDocument projection;
+    private final RawBsonDocument sort;
+    private final List<RawBsonDocument> pipeline;
+
+    /**
+     * Default constructor.
+     * @param filter the filter of the query
+     * @param projection the projection of the query or null
+     * @param sort the sort of the query or null
+     * @param pipeline the aggregation pipeline of the query or null if the query is not an aggregation
+     */
+    public CompiledPlanHolder(final Document filter, final Document projection, final Document sort,
+                              final List<Document> pipeline) {
+        this.filter = encode(filter != null ? filter : new Document());
+        this.projection = projection != null ? encode(projection) : null;
+        this.sort = sort != null && !sort.isEmpty() ? encode(sort) : null;
+        if (pipeline != null) {
+            List<RawBsonDocument> stages = new ArrayList<>(pipeline.size());
+            for (Document stage : pipeline) {
+                stages.add(encode(stage));
+            }
+            this.pipeline = Collections.unmodifiableList(stages);
+        } else {
+            this.pipeline = null;
+        }
+    }
+
+    /**
+     * get the encoded filter of the query.
+     * @return the filter
+     */
+    public RawBsonDocument getFilter() {
+        return filter;
+    }
+
+    /**
+     * get the encoded projection of the query.
+     * @return the projection or null
+     */
+    public RawBsonDocument getProjection() {
+        return projection;
+    }
+
+    /**
+     * get the encoded sort of the query.
+     * @return the sort or null if the query is not sorted
+     */
+    public RawBsonDocument getSort() {
+        return sort;
+    }
+
+    /**
+     * get the encoded stages of the aggregation pipeline of the query.
+     * @return the stages or null if the query is not an aggregation
+     */
+    public List<RawBsonDocument> getPipeline() {
+        return pipeline;
+    }
+
+    private static RawBsonDocument encode(final Document document) {
+        return new RawBsonDocument(document, DOCUMENT_CODEC);
+    }
+}
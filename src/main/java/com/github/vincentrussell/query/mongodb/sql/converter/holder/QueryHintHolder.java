@@ -0,0 +1,131 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.holder;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.model.Collation;
+
+/**
+ * Holds the execution options of one query that are given in a hint comment of the sql, i.e: INDEX(status_1) and
+ * MAXTIME(500) in select /*+ INDEX(status_1) MAXTIME(500) ... from orders.
+ */
+public class QueryHintHolder {
+    private String index;
+    private Long maxTimeMS;
+    private Integer batchSize;
+    private ReadPreference readPreference;
+    private Boolean allowDiskUse;
+    private boolean noCursorTimeout;
+    private Collation collation;
+
+    /**
+     * get the name of the index that the query has to use.
+     * @return the name of the index or null
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * set the name of the index that the query has to use.
+     * @param index the name of the index
+     */
+    public void setIndex(final String index) {
+        this.index = index;
+    }
+
+    /**
+     * get the time limit of the query in milliseconds.
+     * @return the time limit or null
+     */
+    public Long getMaxTimeMS() {
+        return maxTimeMS;
+    }
+
+    /**
+     * set the time limit of the query in milliseconds.
+     * @param maxTimeMS the time limit
+     */
+    public void setMaxTimeMS(final Long maxTimeMS) {
+        this.maxTimeMS = maxTimeMS;
+    }
+
+    /**
+     * get the number of documents in each batch of the cursor.
+     * @return the batch size or null
+     */
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * set the number of documents in each batch of the cursor.
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(final Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * get the {@link ReadPreference} of the query.
+     * @return the {@link ReadPreference} or null
+     */
+    public ReadPreference getReadPreference() {
+        return readPreference;
+    }
+
+    /**
+     * set the {@link ReadPreference} of the query.
+     * @param readPreference the {@link ReadPreference}
+     */
+    public void setReadPreference(final ReadPreference readPreference) {
+        this.readPreference = readPreference;
+    }
+
+    /**
+     * get if the query can write temporary files to sort and group.
+     * @return true if the query can use the disk or null
+     */
+    public Boolean getAllowDiskUse() {
+        return allowDiskUse;
+    }
+
+    /**
+     * set if the query can write temporary files to sort and group.
+     * @param allowDiskUse true if the query can use the disk
+     */
+    public void setAllowDiskUse(final Boolean allowDiskUse) {
+        this.allowDiskUse = allowDiskUse;
+    }
+
+    /**
+     * get if the cursor of the query never times out on the server.
+     * @return true if the cursor never times out
+     */
+    public boolean isNoCursorTimeout() {
+        return noCursorTimeout;
+    }
+
+    /**
+     * set if the cursor of the query never times out on the server.
+     * @param noCursorTimeout true if the cursor never times out
+     */
+    public void setNoCursorTimeout(final boolean noCursorTimeout) {
+        this.noCursorTimeout = noCursorTimeout;
+    }
+
+    /**
+     * get the {@link Collation} that strings are compared with.
+     * @return the {@link Collation} or null
+     */
+    public Collation getCollation() {
+        return collation;
+    }
+
+    /**
+     * set the {@link Collation} that strings are compared with.
+     * @param collation the {@link Collation}
+     */
+    public void setCollation(final Collation collation) {
+        this.collation = collation;
+    }
+
+}
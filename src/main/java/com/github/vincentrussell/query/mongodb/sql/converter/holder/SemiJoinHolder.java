@@ -0,0 +1,107 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.holder;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds an IN (SELECT ...) or EXISTS (SELECT ...) condition compiled to a $lookup.
+ */
+public class SemiJoinHolder {
+    private final String collection;
+    private final String as;
+    private final Document lookup;
+    private final List<Document> subqueryPipeline;
+    private final String outerField;
+    private final String subqueryField;
+    private final boolean not;
+    private final boolean correlated;
+
+    /**
+     * Default constructor.
+     * @param collection the collection of the subquery
+     * @param as the temporary field that the $lookup writes to
+     * @param lookup the $lookup step
+     * @param subqueryPipeline the pipeline for the subquery without the correlation
+     * @param outerField the field on the left side of IN or null for EXISTS
+     * @param subqueryField the field selected in the subquery or null for EXISTS
+     * @param not true for NOT IN and NOT EXISTS
+     * @param correlated true if the subquery references the outer query
+     */
+    @SuppressWarnings("checkstyle:parameternumber")
+    public SemiJoinHolder(final String collection, final String as, final Document lookup,
+                          final List<Document> subqueryPipeline, final String outerField,
+                          final String subqueryField, final boolean not, final boolean correlated) {
+        this.collection = collection;
+        this.as = as;
+        this.lookup = lookup;
+        this.subqueryPipeline = subqueryPipeline;
+        this.outerField = outerField;
+        this.subqueryField = subqueryField;
+        this.not = not;
+        this.correlated = correlated;
+    }
+
+    /**
+     * get the collection of the subquery.
+     * @return the collection of the subquery
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * get the temporary field that the $lookup writes to.
+     * @return the temporary field
+     */
+    public String getAs() {
+        return as;
+    }
+
+    /**
+     * get the pipeline for the subquery without the correlation.
+     * @return the pipeline for the subquery
+     */
+    public List<Document> getSubqueryPipeline() {
+        return subqueryPipeline;
+    }
+
+    /**
+     * get the field selected in the subquery.
+     * @return the field selected in the subquery or null for EXISTS
+     */
+    public String getSubqueryField() {
+        return subqueryField;
+    }
+
+    /**
+     * Will return true if this is an uncorrelated IN (SELECT ...) that can be run ahead of time and replaced
+     * with $in.
+     * @return true if the subquery can be replaced with $in
+     */
+    public boolean isInlinable() {
+        return !correlated && outerField != null;
+    }
+
+    /**
+     * Create the aggregation steps for this condition, the $lookup followed by a $match on the size of the looked
+     * up array.
+     * @return the aggregation steps
+     */
+    public List<Document> toPipelineSteps() {
+        return Arrays.asList(lookup, new Document("$match", new Document(as,
+                new Document("$size", not ? 0 : 1))));
+    }
+
+    /**
+     * Create the aggregation steps for this condition when the subquery was run ahead of time, $in or $nin with the
+     * values returned by the subquery instead of the $lookup.
+     * @param inlineValues the values returned by the subquery
+     * @return the aggregation steps
+     */
+    public List<Document> toInlinedPipelineSteps(final List<Object> inlineValues) {
+        return Arrays.asList(new Document("$match", new Document(outerField,
+                new Document(not ? "$nin" : "$in", inlineValues))));
+    }
+}
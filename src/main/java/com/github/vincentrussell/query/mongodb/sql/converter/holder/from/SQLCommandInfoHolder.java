@@ -3,9 +3,11 @@ package com.github.vincentrussell.query.mongodb.sql.converter.holder.from;
 import com.github.vincentrussell.query.mongodb.sql.converter.FieldType;
 import com.github.vincentrussell.query.mongodb.sql.converter.SQLCommandType;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.AliasHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.SemiJoinProcessor;
 import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
 import com.github.vincentrussell.query.mongodb.sql.converter.visitor.ExpVisitorEraseAliasTableBaseBuilder;
 import net.sf.jsqlparser.expression.Alias;
+import net.sf.jsqlparser.expression.AnalyticExpression;
 import net.sf.jsqlparser.expression.Expression;
 import net.sf.jsqlparser.parser.ParseException;
 import net.sf.jsqlparser.statement.Statement;
@@ -19,11 +21,14 @@ import net.sf.jsqlparser.statement.select.Select;
 import net.sf.jsqlparser.statement.select.SelectBody;
 import net.sf.jsqlparser.statement.select.SelectExpressionItem;
 import net.sf.jsqlparser.statement.select.SelectItem;
+import net.sf.jsqlparser.statement.select.SetOperation;
 import net.sf.jsqlparser.statement.select.SetOperationList;
+import net.sf.jsqlparser.statement.select.UnionOp;
 import net.sf.jsqlparser.statement.update.Update;
 import net.sf.jsqlparser.statement.update.UpdateSet;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,6 +52,9 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
     private final AliasHolder aliasHolder;
     private final Expression havingClause;
     private final List<UpdateSet> updateSets;
+    private final List<SQLCommandInfoHolder> unionSelects;
+    private final List<SetOperation> unionOperations;
+    private final List<Expression> semiJoins;
 
 
     private SQLCommandInfoHolder(final Builder builder) {
@@ -65,6 +73,9 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
         this.orderByElements = builder.orderByElements;
         this.aliasHolder = builder.aliasHolder;
         this.updateSets = builder.updateSets;
+        this.unionSelects = builder.unionSelects;
+        this.unionOperations = builder.unionOperations;
+        this.semiJoins = builder.semiJoins;
     }
 
     @Override
@@ -200,6 +211,30 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
         return updateSets;
     }
 
+    /**
+     * Get the selects that are combined with UNION or UNION ALL.  Empty if this is not a UNION query.
+     * @return the selects that are combined with UNION or UNION ALL
+     */
+    public List<SQLCommandInfoHolder> getUnionSelects() {
+        return unionSelects;
+    }
+
+    /**
+     * Get the UNION or UNION ALL operations between each of the union selects.
+     * @return the UNION or UNION ALL operations
+     */
+    public List<SetOperation> getUnionOperations() {
+        return unionOperations;
+    }
+
+    /**
+     * Get the IN (SELECT ...) and EXISTS (SELECT ...) conditions that were taken out of the where clause.
+     * @return the IN (SELECT ...) and EXISTS (SELECT ...) conditions
+     */
+    public List<Expression> getSemiJoins() {
+        return semiJoins;
+    }
+
     /**
      * Builder for {@link SQLCommandInfoHolder}.
      */
@@ -221,6 +256,9 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
         private Expression havingClause;
         private List<OrderByElement> orderByElements = new ArrayList<>();
         private AliasHolder aliasHolder;
+        private List<SQLCommandInfoHolder> unionSelects = new ArrayList<>();
+        private List<SetOperation> unionOperations = new ArrayList<>();
+        private List<Expression> semiJoins = new ArrayList<>();
 
         private Builder(final FieldType defaultFieldType, final Map<String, FieldType> fieldNameToFieldTypeMapping) {
             this.defaultFieldType = defaultFieldType;
@@ -270,6 +308,7 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
                             && PlainSelect.class.isInstance(setOperationList.getSelects().get(0))) {
                         return setPlainSelect((PlainSelect) setOperationList.getSelects().get(0));
                     }
+                    return setUnion(setOperationList);
                 } else if (PlainSelect.class.isInstance(selectBody)) {
                     return setPlainSelect((PlainSelect) selectBody);
                 }
@@ -319,7 +358,7 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
                     "could not parseNaturalLanguageDate SELECT statement from query");
             SqlUtils.isTrue(plainSelect.getFromItem() != null,
                     "could not find table to query.  Only one simple table name is supported.");
-            whereClause = plainSelect.getWhere();
+            whereClause = SemiJoinProcessor.extractSemiJoins(plainSelect.getWhere(), semiJoins);
             isDistinct = (plainSelect.getDistinct() != null);
             isCountAll = SqlUtils.isCountAll(plainSelect.getSelectItems());
             SqlUtils.isTrue(plainSelect.getFromItem() != null,
@@ -340,6 +379,44 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
             return this;
         }
 
+        /**
+         * Set the UNION or UNION ALL query information for this query.  The selects are kept as separate
+         * {@link SQLCommandInfoHolder}s and this query becomes a select * over the combined results, so the
+         * ORDER BY, LIMIT and OFFSET of the union apply to all the selects.
+         * @param setOperationList the {@link SetOperationList}
+         * @return the builder
+         * @throws com.github.vincentrussell.query.mongodb.sql.converter.ParseException if there is an issue
+         * the parsing the sql
+         * @throws ParseException if there is an issue the parsing the sql
+         */
+        public Builder setUnion(final SetOperationList setOperationList)
+                throws com.github.vincentrussell.query.mongodb.sql.converter.ParseException, ParseException {
+            for (SetOperation setOperation : setOperationList.getOperations()) {
+                SqlUtils.isTrue(UnionOp.class.isInstance(setOperation),
+                        "only UNION and UNION ALL are supported: " + setOperation);
+                unionOperations.add(setOperation);
+            }
+            for (SelectBody select : setOperationList.getSelects()) {
+                SqlUtils.isTrue(PlainSelect.class.isInstance(select),
+                        "only simple selects are supported in a UNION: " + select);
+                Builder unionBuilder = create(defaultFieldType, fieldNameToFieldTypeMapping);
+                unionBuilder.sqlCommandType = SQLCommandType.SELECT;
+                SQLCommandInfoHolder unionSelect = unionBuilder.setPlainSelect((PlainSelect) select).build();
+                SqlUtils.isFalse(unionSelect.isDistinct(),
+                        "SELECT DISTINCT is not supported in a UNION, use UNION instead of UNION ALL");
+                unionSelects.add(unionSelect);
+            }
+            from = unionSelects.get(0).getFromHolder();
+            selectItems = Collections.<SelectItem>singletonList(new AllColumns());
+            joins = null;
+            orderByElements = setOperationList.getOrderByElements() != null
+                    ? setOperationList.getOrderByElements() : new ArrayList<OrderByElement>();
+            limit = SqlUtils.getLimitAsLong(setOperationList.getLimit());
+            offset = SqlUtils.getOffsetAsLong(setOperationList.getOffset());
+            aliasHolder = new AliasHolder();
+            return this;
+        }
+
         /**
          * Set the delete information for this query if it is a delete query.
          * @param delete the {@link Delete} object
@@ -365,7 +442,7 @@ public final class SQLCommandInfoHolder implements SQLInfoHolder {
                 if (!(sitem instanceof AllColumns)) {
                     if (sitem instanceof SelectExpressionItem) {
                         SelectExpressionItem seitem = (SelectExpressionItem) sitem;
-                        if (seitem.getAlias() != null) {
+                        if (seitem.getAlias() != null && !(seitem.getExpression() instanceof AnalyticExpression)) {
                             Expression selectExp = seitem.getExpression();
                             selectExp.accept(new ExpVisitorEraseAliasTableBaseBuilder(
                                     this.from.getBaseAliasTable()));
@@ -0,0 +1,256 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryExecution;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryResultIterator;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * {@link Iterator} that joins the left documents with a foreign collection by reading the left documents in
+ * batches and looking up the distinct join keys of each batch with one $in query on the foreign collection.
+ * This only reads the foreign documents that match, so it is the better choice when there are few left documents
+ * and the foreign collection is big and has an index on the join field.  Up to parallelism batches are looked up
+ * at the same time and the joined documents are returned in the order of the left documents.
+ * <p>
+ * The joined documents have the same shape as the ones from {@link HashJoinIterator}.
+ * </p>
+ */
+public final class BatchedNestedLoopJoinIterator implements Iterator<Document>, Closeable {
+
+    private final Iterator<Document> leftRows;
+    private final List<String> localField;
+    private final Function<Document, QueryResultIterator<Document>> foreignLookup;
+    private final String foreignField;
+    private final Document filter;
+    private final String alias;
+    private final boolean preserveUnmatched;
+    private final int batchSize;
+    private final int parallelism;
+    private final ExecutorService executorService;
+    private final Deque<Future<Batch>> batches = new ArrayDeque<>();
+
+    private Batch batch;
+    private int leftIndex;
+    private Document leftRow;
+    private Iterator<Document> matches = Collections.emptyIterator();
+    private Document nextRow;
+
+    /**
+     * Default constructor.
+     * @param leftRows the left documents
+     * @param localField the path of the join key in the left documents
+     * @param foreignCollection the foreign collection
+     * @param foreignField the join field in the foreign collection
+     * @param filter the where clause for the foreign collection
+     * @param projection the fields to read from the foreign collection, null for all the fields
+     * @param alias the alias of the foreign collection
+     * @param preserveUnmatched true if left documents without a match are kept, i.e: LEFT JOIN
+     * @param batchSize the number of left documents in each $in query
+     * @param parallelism the number of $in queries that can run at the same time
+     * @param execution the {@link QueryExecution} that every $in query is run with, with the time that is left
+     */
+    @SuppressWarnings("checkstyle:parameternumber")
+    public BatchedNestedLoopJoinIterator(final Iterator<Document> leftRows, final String localField,
+                                         final MongoCollection<Document> foreignCollection,
+                                         final String foreignField, final Document filter,
+                                         final Document projection, final String alias,
+                                         final boolean preserveUnmatched, final int batchSize,
+                                         final int parallelism, final QueryExecution execution) {
+        this(leftRows, localField, new Function<Document, QueryResultIterator<Document>>() {
+            @Override
+            public QueryResultIterator<Document> apply(final Document query) {
+                return execution.iterator(execution.apply(foreignCollection.find(query).projection(projection),
+                        null));
+            }
+        }, foreignField, filter, alias, preserveUnmatched, batchSize, parallelism);
+    }
+
+    /**
+     * Constructor that reads the foreign documents of every $in query with the foreignLookup.
+     * @param leftRows the left documents
+     * @param localField the path of the join key in the left documents
+     * @param foreignLookup runs a query on the foreign collection
+     * @param foreignField the join field in the foreign collection
+     * @param filter the where clause for the foreign collection
+     * @param alias the alias of the foreign collection
+     * @param preserveUnmatched true if left documents without a match are kept, i.e: LEFT JOIN
+     * @param batchSize the number of left documents in each $in query
+     * @param parallelism the number of $in queries that can run at the same time
+     */
+    @SuppressWarnings("checkstyle:parameternumber")
+    BatchedNestedLoopJoinIterator(final Iterator<Document> leftRows, final String localField,
+                                  final Function<Document, QueryResultIterator<Document>> foreignLookup,
+                                  final String foreignField, final Document filter, final String alias,
+                                  final boolean preserveUnmatched, final int batchSize, final int parallelism) {
+        this.leftRows = leftRows;
+        this.localField = Arrays.asList(localField.split("\\."));
+        this.foreignLookup = foreignLookup;
+        this.foreignField = foreignField;
+        this.filter = filter;
+        this.alias = alias;
+        this.preserveUnmatched = preserveUnmatched;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.executorService = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("nested-loop-join-%d").build());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        if (nextRow == null) {
+            nextRow = advance();
+        }
+        return nextRow != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Document next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Document row = nextRow;
+        nextRow = null;
+        return row;
+    }
+
+    /**
+     * Stop the lookups that are still running and close the left documents.
+     * @throws IOException if the left documents could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        for (Future<Batch> future : batches) {
+            future.cancel(true);
+        }
+        batches.clear();
+        executorService.shutdownNow();
+        if (leftRows instanceof Closeable) {
+            ((Closeable) leftRows).close();
+        }
+    }
+
+    private Document advance() {
+        while (true) {
+            if (matches.hasNext()) {
+                Document joined = new Document(leftRow);
+                joined.put(alias, matches.next());
+                return joined;
+            }
+            if (batch == null || leftIndex == batch.leftRows.size()) {
+                batch = nextBatch();
+                leftIndex = 0;
+                if (batch == null) {
+                    executorService.shutdown();
+                    return null;
+                }
+            }
+            leftRow = batch.leftRows.get(leftIndex++);
+            List<Document> rowMatches = batch.matches.get(HashJoinIterator.getKey(leftRow, localField));
+            if (rowMatches != null) {
+                matches = rowMatches.iterator();
+            } else if (preserveUnmatched) {
+                return leftRow;
+            }
+        }
+    }
+
+    private Batch nextBatch() {
+        //keep reading ahead so that parallelism lookups are running while the current batch is returned
+        while (batches.size() < parallelism && leftRows.hasNext()) {
+            final List<Document> batchRows = new ArrayList<>(batchSize);
+            while (batchRows.size() < batchSize && leftRows.hasNext()) {
+                batchRows.add(leftRows.next());
+            }
+            batches.add(executorService.submit(new Callable<Batch>() {
+                @Override
+                public Batch call() {
+                    return lookup(batchRows);
+                }
+            }));
+        }
+        Future<Batch> future = batches.poll();
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private Batch lookup(final List<Document> batchRows) {
+        //the distinct keys, $in matches numbers regardless of their type and null matches missing fields
+        Set<Object> keys = new LinkedHashSet<>();
+        for (Document row : batchRows) {
+            Object key = HashJoinIterator.getKey(row, localField);
+            keys.add(key == HashJoinIterator.NULL_KEY ? null : key);
+        }
+        Document keyFilter = new Document(foreignField, new Document("$in", new ArrayList<>(keys)));
+        Document query = filter == null || filter.isEmpty() ? keyFilter
+                : new Document("$and", Arrays.asList(filter, keyFilter));
+        List<String> foreignPath = Arrays.asList(foreignField.split("\\."));
+        Map<Object, List<Document>> matches = new HashMap<>();
+        try (QueryResultIterator<Document> foreignRows = foreignLookup.apply(query)) {
+            while (foreignRows.hasNext()) {
+                Document document = foreignRows.next();
+                Object key = HashJoinIterator.getKey(document, foreignPath);
+                List<Document> keyMatches = matches.get(key);
+                if (keyMatches == null) {
+                    keyMatches = new ArrayList<>();
+                    matches.put(key, keyMatches);
+                }
+                keyMatches.add(document);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Batch(batchRows, matches);
+    }
+
+    private static final class Batch {
+        private final List<Document> leftRows;
+        private final Map<Object, List<Document>> matches;
+
+        private Batch(final List<Document> leftRows, final Map<Object, List<Document>> matches) {
+            this.leftRows = leftRows;
+            this.matches = matches;
+        }
+    }
+
+}
@@ -0,0 +1,459 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryExecution;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryResultIterator;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the joins of a query in the JVM instead of with $lookup, so that collections from other databases or other
+ * clusters can be joined.  Every collection is read with its part of the where clause and only the fields the
+ * query needs, and the collections are joined with a {@link HashJoinIterator} or, with
+ * {@link ClientSideJoinStrategy#BATCHED_NESTED_LOOP}, with a {@link BatchedNestedLoopJoinIterator}.  The steps after
+ * the joins are also run in the JVM, so only $project, $sort, $skip and $limit are supported after the joins.
+ */
+public final class ClientSideJoinExecutor {
+
+    /**
+     * The default number of bytes a hash join may use before it spills to disk.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * The default number of left documents that are looked up with one $in query by a nested loop join.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * The default number of $in queries a nested loop join runs at the same time.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final List<String> SUPPORTED_STEPS = Arrays.asList("$project", "$sort", "$skip", "$limit");
+    private static final Object MISSING = new Object();
+
+    private ClientSideJoinExecutor() {
+
+    }
+
+    /**
+     * Run the query.
+     * @param baseDatabase the database of the FROM collection
+     * @param baseCollection the FROM collection
+     * @param baseFilter the where clause for the FROM collection
+     * @param joinPipeline the $lookup and $unwind steps created by
+     * {@link com.github.vincentrussell.query.mongodb.sql.converter.processor.JoinProcessor}
+     * @param databaseByAlias the database of every joined collection by its alias
+     * @param postJoinSteps the steps that run on the joined documents
+     * @param memoryBudget the number of bytes each hash join may use before it spills to disk
+     * @param strategy how the collections are joined
+     * @param batchSize the number of left documents in each $in query of a nested loop join
+     * @param parallelism the number of $in queries each nested loop join runs at the same time
+     * @param execution the {@link QueryExecution} that every query on the collections is run with
+     * @return the joined documents
+     * @throws ParseException if the query cannot be run with client side joins
+     */
+    @SuppressWarnings("checkstyle:parameternumber")
+    public static QueryResultIterator<Document> execute(final MongoDatabase baseDatabase, final String baseCollection,
+                                                        final Document baseFilter, final List<Document> joinPipeline,
+                                                        final Map<String, MongoDatabase> databaseByAlias,
+                                                        final List<Document> postJoinSteps,
+                                                        final long memoryBudget,
+                                                        final ClientSideJoinStrategy strategy,
+                                                        final int batchSize,
+                                                        final int parallelism,
+                                                        final QueryExecution execution) throws ParseException {
+        List<JoinStep> joinSteps = toJoinSteps(joinPipeline);
+        validatePostJoinSteps(postJoinSteps);
+        Set<String> requiredPaths = getRequiredPaths(joinSteps, postJoinSteps);
+
+        final List<Closeable> closeables = new ArrayList<>();
+        MongoCollection<Document> base = baseDatabase.getCollection(baseCollection);
+        Iterator<Document> rows = find(base, baseFilter, getProjection(requiredPaths, null, joinSteps), closeables,
+                execution);
+        for (int i = 0; i < joinSteps.size(); i++) {
+            JoinStep joinStep = joinSteps.get(i);
+            MongoCollection<Document> joined = databaseByAlias.get(joinStep.alias).getCollection(joinStep.collection);
+            Document projection = getProjection(requiredPaths, joinStep.alias, joinSteps);
+            if (strategy == ClientSideJoinStrategy.BATCHED_NESTED_LOOP) {
+                BatchedNestedLoopJoinIterator nestedLoopJoinIterator = new BatchedNestedLoopJoinIterator(rows,
+                        joinStep.localField, joined, joinStep.foreignField, joinStep.filter, projection,
+                        joinStep.alias, joinStep.preserveUnmatched, batchSize, parallelism, execution);
+                closeables.add(nestedLoopJoinIterator);
+                rows = nestedLoopJoinIterator;
+                continue;
+            }
+            Iterator<Document> joinedRows = find(joined, joinStep.filter, projection, closeables, execution);
+            HashJoinIterator hashJoinIterator;
+            if (i == 0 && !joinStep.preserveUnmatched
+                    && estimatedDocumentCount(base, execution) < estimatedDocumentCount(joined, execution)) {
+                //build the hash table from the smaller side
+                hashJoinIterator = new HashJoinIterator(rows, joinStep.localField, joinedRows, joinStep.foreignField,
+                        joinStep.alias, true, false, memoryBudget);
+            } else {
+                hashJoinIterator = new HashJoinIterator(joinedRows, joinStep.foreignField, rows, joinStep.localField,
+                        joinStep.alias, false, joinStep.preserveUnmatched, memoryBudget);
+            }
+            closeables.add(hashJoinIterator);
+            rows = hashJoinIterator;
+        }
+        return new QueryResultIterator<>(applyPostJoinSteps(rows, postJoinSteps), new Closeable() {
+            @Override
+            public void close() throws IOException {
+                for (Closeable closeable : closeables) {
+                    closeable.close();
+                }
+            }
+        });
+    }
+
+    private static List<JoinStep> toJoinSteps(final List<Document> joinPipeline) throws ParseException {
+        List<JoinStep> joinSteps = new ArrayList<>();
+        for (int i = 0; i < joinPipeline.size(); i += 2) {
+            Document lookup = joinPipeline.get(i).get("$lookup", Document.class);
+            Document unwind = i + 1 < joinPipeline.size()
+                    ? joinPipeline.get(i + 1).get("$unwind", Document.class) : null;
+            if (lookup == null || unwind == null) {
+                throw new ParseException("client side joins do not support "
+                        + joinPipeline.get(i).keySet().iterator().next()
+                        + " in the joins, i.e: OR in the where clause across tables");
+            }
+            SqlUtils.isTrue(lookup.containsKey("localField") && !lookup.containsKey("let"),
+                    "client side joins only support ON clauses with one equality between columns");
+            Document filter = new Document();
+            for (Document step : lookup.getList("pipeline", Document.class, Collections.<Document>emptyList())) {
+                SqlUtils.isTrue(step.containsKey("$match"), "client side joins do not support joins on subqueries");
+                filter = filter.isEmpty() ? step.get("$match", Document.class)
+                        : new Document("$and", Arrays.asList(filter, step.get("$match", Document.class)));
+            }
+            joinSteps.add(new JoinStep(lookup.getString("from"), lookup.getString("as"),
+                    lookup.getString("localField"), lookup.getString("foreignField"), filter,
+                    Boolean.TRUE.equals(unwind.get("preserveNullAndEmptyArrays"))));
+        }
+        return joinSteps;
+    }
+
+    private static void validatePostJoinSteps(final List<Document> postJoinSteps) throws ParseException {
+        for (Document step : postJoinSteps) {
+            String operator = step.keySet().iterator().next();
+            SqlUtils.isTrue(SUPPORTED_STEPS.contains(operator), "client side joins do not support " + operator
+                    + " after the joins, only " + SUPPORTED_STEPS);
+            if ("$project".equals(operator)) {
+                for (Object value : step.get(operator, Document.class).values()) {
+                    SqlUtils.isTrue(value instanceof Number || value instanceof Boolean
+                                    || value instanceof String && ((String) value).startsWith("$"),
+                            "client side joins only support selecting fields: " + value);
+                }
+            }
+        }
+    }
+
+    //fields of the joined documents that are used after the joins, null if all the fields are needed
+    private static Set<String> getRequiredPaths(final List<JoinStep> joinSteps, final List<Document> postJoinSteps) {
+        Set<String> requiredPaths = new LinkedHashSet<>();
+        boolean projected = false;
+        for (Document step : postJoinSteps) {
+            if (step.containsKey("$sort")) {
+                requiredPaths.addAll(step.get("$sort", Document.class).keySet());
+            } else if (step.containsKey("$project") && isInclusion(step.get("$project", Document.class))) {
+                for (Map.Entry<String, Object> entry : step.get("$project", Document.class).entrySet()) {
+                    if (entry.getValue() instanceof String) {
+                        requiredPaths.add(((String) entry.getValue()).substring(1));
+                    } else if (isTrue(entry.getValue())) {
+                        requiredPaths.add(entry.getKey());
+                    }
+                }
+                projected = true;
+                break;
+            }
+        }
+        if (!projected) {
+            return null;
+        }
+        for (JoinStep joinStep : joinSteps) {
+            requiredPaths.add(joinStep.localField);
+        }
+        return requiredPaths;
+    }
+
+    private static Document getProjection(final Set<String> requiredPaths, final String alias,
+                                          final List<JoinStep> joinSteps) {
+        if (requiredPaths == null) {
+            return null;
+        }
+        Set<String> aliases = new LinkedHashSet<>();
+        for (JoinStep joinStep : joinSteps) {
+            aliases.add(joinStep.alias);
+        }
+        List<String> paths = new ArrayList<>();
+        for (String path : requiredPaths) {
+            String firstField = path.split("\\.")[0];
+            if (alias == null && !aliases.contains(firstField)) {
+                paths.add(path);
+            } else if (alias != null && alias.equals(firstField)) {
+                if (path.equals(alias)) {
+                    return null;
+                }
+                paths.add(path.substring(alias.length() + 1));
+            }
+        }
+        if (alias != null) {
+            for (JoinStep joinStep : joinSteps) {
+                if (alias.equals(joinStep.alias)) {
+                    paths.add(joinStep.foreignField);
+                }
+            }
+        }
+        Document projection = new Document();
+        for (String path : paths) {
+            addPath(projection, path);
+        }
+        return projection;
+    }
+
+    private static void addPath(final Document projection, final String path) {
+        //a.b and a would collide, a is enough
+        for (String included : new ArrayList<>(projection.keySet())) {
+            if (path.equals(included) || path.startsWith(included + ".")) {
+                return;
+            }
+            if (included.startsWith(path + ".")) {
+                projection.remove(included);
+            }
+        }
+        projection.put(path, 1);
+    }
+
+    private static Iterator<Document> find(final MongoCollection<Document> collection, final Document filter,
+                                           final Document projection, final List<Closeable> closeables,
+                                           final QueryExecution execution) {
+        QueryResultIterator<Document> cursor = execution.iterator(
+                execution.apply(collection.find(filter).projection(projection), null));
+        closeables.add(cursor);
+        return cursor;
+    }
+
+    private static long estimatedDocumentCount(final MongoCollection<Document> collection,
+                                               final QueryExecution execution) {
+        return collection.estimatedDocumentCount(execution.apply(new EstimatedDocumentCountOptions(), null));
+    }
+
+    private static Iterator<Document> applyPostJoinSteps(final Iterator<Document> rows,
+                                                         final List<Document> postJoinSteps) {
+        Iterator<Document> result = rows;
+        for (int i = 0; i < postJoinSteps.size(); i++) {
+            Document step = postJoinSteps.get(i);
+            if (step.containsKey("$project")) {
+                final Document projection = step.get("$project", Document.class);
+                result = Iterators.transform(result, new Function<Document, Document>() {
+                    @Override
+                    public Document apply(final Document document) {
+                        return project(document, projection);
+                    }
+                });
+            } else if (step.containsKey("$sort")) {
+                Ordering<Document> ordering = Ordering.from(getComparator(step.get("$sort", Document.class)));
+                long topRows = getTopRows(postJoinSteps, i + 1);
+                if (topRows >= 0 && topRows <= Integer.MAX_VALUE) {
+                    //only keep the top rows in memory
+                    result = ordering.leastOf(result, (int) topRows).iterator();
+                } else {
+                    result = ordering.sortedCopy(Lists.newArrayList(result)).iterator();
+                }
+            } else if (step.containsKey("$skip")) {
+                Iterators.advance(result, ((Number) step.get("$skip")).intValue());
+            } else if (step.containsKey("$limit")) {
+                result = Iterators.limit(result, ((Number) step.get("$limit")).intValue());
+            }
+        }
+        return result;
+    }
+
+    //the number of rows needed after a sort, -1 if there is no limit
+    private static long getTopRows(final List<Document> postJoinSteps, final int index) {
+        long skip = 0;
+        for (Document step : postJoinSteps.subList(index, postJoinSteps.size())) {
+            if (step.containsKey("$skip")) {
+                skip += ((Number) step.get("$skip")).longValue();
+            } else if (step.containsKey("$limit")) {
+                return skip + ((Number) step.get("$limit")).longValue();
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static Document project(final Document document, final Document projection) {
+        if (!isInclusion(projection)) {
+            Document projected = new Document(document);
+            for (Map.Entry<String, Object> entry : projection.entrySet()) {
+                removePath(projected, entry.getKey());
+            }
+            return projected;
+        }
+        Document projected = new Document();
+        if (!projection.containsKey("_id") && document.containsKey("_id")) {
+            projected.put("_id", document.get("_id"));
+        }
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            String path = entry.getValue() instanceof String ? ((String) entry.getValue()).substring(1)
+                    : isTrue(entry.getValue()) ? entry.getKey() : null;
+            Object value = path != null ? getPath(document, path) : MISSING;
+            if (value != MISSING) {
+                setPath(projected, entry.getKey(), value);
+            }
+        }
+        return projected;
+    }
+
+    private static boolean isInclusion(final Document projection) {
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            if (!"_id".equals(entry.getKey()) && (entry.getValue() instanceof String || isTrue(entry.getValue()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTrue(final Object value) {
+        return Boolean.TRUE.equals(value) || value instanceof Number && ((Number) value).doubleValue() != 0;
+    }
+
+    private static Object getPath(final Document document, final String path) {
+        Object value = document;
+        for (String field : path.split("\\.")) {
+            if (!(value instanceof Document) || !((Document) value).containsKey(field)) {
+                return MISSING;
+            }
+            value = ((Document) value).get(field);
+        }
+        return value;
+    }
+
+    private static void setPath(final Document document, final String path, final Object value) {
+        String[] fields = path.split("\\.");
+        Document parent = document;
+        for (int i = 0; i < fields.length - 1; i++) {
+            Object child = parent.get(fields[i]);
+            if (!(child instanceof Document)) {
+                child = new Document();
+                parent.put(fields[i], child);
+            }
+            parent = (Document) child;
+        }
+        parent.put(fields[fields.length - 1], value);
+    }
+
+    private static void removePath(final Document document, final String path) {
+        String[] fields = path.split("\\.");
+        Document parent = document;
+        for (int i = 0; i < fields.length - 1; i++) {
+            Object child = parent.get(fields[i]);
+            if (!(child instanceof Document)) {
+                return;
+            }
+            //joined rows can share embedded documents, so copy before changing them
+            Document copy = new Document((Document) child);
+            parent.put(fields[i], copy);
+            parent = copy;
+        }
+        parent.remove(fields[fields.length - 1]);
+    }
+
+    private static Comparator<Document> getComparator(final Document sort) {
+        return new Comparator<Document>() {
+            @Override
+            public int compare(final Document left, final Document right) {
+                for (Map.Entry<String, Object> entry : sort.entrySet()) {
+                    int compare = compareValues(getPath(left, entry.getKey()), getPath(right, entry.getKey()));
+                    if (compare != 0) {
+                        return ((Number) entry.getValue()).intValue() < 0 ? -compare : compare;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(final Object left, final Object right) {
+        int leftType = getTypeOrder(left);
+        int rightType = getTypeOrder(right);
+        if (leftType != rightType) {
+            return Integer.compare(leftType, rightType);
+        }
+        if (left instanceof Number) {
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+        if (left instanceof String || left instanceof ObjectId || left instanceof Boolean || left instanceof Date) {
+            return ((Comparable<Object>) left).compareTo(right);
+        }
+        return 0;
+    }
+
+    //the order of the types when mongodb sorts
+    @SuppressWarnings("checkstyle:magicnumber")
+    private static int getTypeOrder(final Object value) {
+        if (value == MISSING || value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return 1;
+        } else if (value instanceof String) {
+            return 2;
+        } else if (value instanceof Document) {
+            return 3;
+        } else if (value instanceof List) {
+            return 4;
+        } else if (value instanceof ObjectId) {
+            return 6;
+        } else if (value instanceof Boolean) {
+            return 7;
+        } else if (value instanceof Date) {
+            return 8;
+        }
+        return 5;
+    }
+
+    private static final class JoinStep {
+        private final String collection;
+        private final String alias;
+        private final String localField;
+        private final String foreignField;
+        private final Document filter;
+        private final boolean preserveUnmatched;
+
+        private JoinStep(final String collection, final String alias, final String localField,
+                         final String foreignField, final Document filter, final boolean preserveUnmatched) {
+            this.collection = collection;
+            this.alias = alias;
+            this.localField = localField;
+            this.foreignField = foreignField;
+            this.filter = filter;
+            this.preserveUnmatched = preserveUnmatched;
+        }
+    }
+
+}
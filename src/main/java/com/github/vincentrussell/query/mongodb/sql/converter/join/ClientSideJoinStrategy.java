@@ -0,0 +1,17 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+/**
+ * How {@link ClientSideJoinExecutor} joins a collection with the documents that were joined before it.
+ */
+public enum ClientSideJoinStrategy {
+    /**
+     * Read both collections and join them with a {@link HashJoinIterator}.  Best when both sides are big.
+     */
+    HASH,
+    /**
+     * Look up the join keys of the left documents in batches with $in queries, see
+     * {@link BatchedNestedLoopJoinIterator}.  Best when there are few left documents and the foreign collection
+     * is big and has an index on the join field.
+     */
+    BATCHED_NESTED_LOOP
+}
@@ -0,0 +1,326 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link Iterator} that joins two streams of documents with a hash join.  The build side is loaded into a
+ * {@link JoinHashTable} and the probe side is streamed through it.  When the build side is bigger than the memory
+ * budget both sides are split into partitions on disk by the hash code of the join key and joined one partition
+ * at a time.
+ * <p>
+ * The joined documents have the same shape as a $lookup followed by an $unwind: the right document is put in a
+ * field named after its alias, one document per match.  Unmatched left documents are kept without that field
+ * when preserveNullAndEmptyArrays would be true, i.e: LEFT JOIN.  Like localField/foreignField, a missing key
+ * matches a null key and numbers match regardless of their type.
+ * </p>
+ */
+public final class HashJoinIterator implements Iterator<Document>, Closeable {
+
+    private static final int PARTITION_BITS = 4;
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+    static final Object NULL_KEY = new Object();
+
+    private final Iterator<Document> buildSide;
+    private final List<String> buildKey;
+    private final Iterator<Document> probeSide;
+    private final List<String> probeKey;
+    private final String alias;
+    private final boolean buildIsLeft;
+    private final boolean preserveUnmatched;
+    private final long memoryBudget;
+
+    private JoinHashTable table;
+    private boolean built;
+    private SpillFile[] buildPartitions;
+    private SpillFile[] probePartitions;
+    private int partition = -1;
+    private Document probeRow;
+    private int entry = -1;
+    private Document nextRow;
+
+    /**
+     * Default constructor.
+     * @param buildSide the documents that are loaded into the hash table
+     * @param buildKey the path of the join key in the build side documents
+     * @param probeSide the documents that are streamed through the hash table
+     * @param probeKey the path of the join key in the probe side documents
+     * @param alias the alias of the right side of the join
+     * @param buildIsLeft true if the build side is the left side of the join, only allowed for inner joins
+     * @param preserveUnmatched true if left documents without a match are kept, i.e: LEFT JOIN
+     * @param memoryBudget the number of bytes the build side may use before the join spills to disk
+     */
+    @SuppressWarnings("checkstyle:parameternumber")
+    public HashJoinIterator(final Iterator<Document> buildSide, final String buildKey,
+                            final Iterator<Document> probeSide, final String probeKey,
+                            final String alias, final boolean buildIsLeft, final boolean preserveUnmatched,
+                            final long memoryBudget) {
+        if (buildIsLeft && preserveUnmatched) {
+            throw new IllegalArgumentException("the left side must be the probe side of a left join");
+        }
+        this.buildSide = buildSide;
+        this.buildKey = Arrays.asList(buildKey.split("\\."));
+        this.probeSide = probeSide;
+        this.probeKey = Arrays.asList(probeKey.split("\\."));
+        this.alias = alias;
+        this.buildIsLeft = buildIsLeft;
+        this.preserveUnmatched = preserveUnmatched;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        if (nextRow == null) {
+            try {
+                nextRow = advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return nextRow != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Document next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Document row = nextRow;
+        nextRow = null;
+        return row;
+    }
+
+    /**
+     * Close both sides and delete the spill files.
+     * @throws IOException if a spill file could not be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        closeIfCloseable(buildSide);
+        closeIfCloseable(probeSide);
+        closePartitions(buildPartitions);
+        closePartitions(probePartitions);
+        table = null;
+    }
+
+    /**
+     * Get the join key at the path of the document.  Numbers are normalized so that 1, 1L and 1.0 are the same
+     * key, and missing and null values are the same key.  $lookup matches every element of an array, which one key
+     * cannot do, so arrays are not supported.
+     * @param document the document
+     * @param path the path of the key
+     * @return the key
+     * @throws UnsupportedOperationException if there is an array at the path
+     */
+    static Object getKey(final Document document, final List<String> path) {
+        Object value = document;
+        for (String field : path) {
+            if (value instanceof List) {
+                break;
+            }
+            if (!(value instanceof Document)) {
+                return NULL_KEY;
+            }
+            value = ((Document) value).get(field);
+        }
+        if (value instanceof List) {
+            throw new UnsupportedOperationException("the join key " + String.join(".", path)
+                    + " is an array, which client side joins do not support");
+        }
+        if (value == null) {
+            return NULL_KEY;
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double doubleValue = ((Number) value).doubleValue();
+            if (doubleValue == Math.rint(doubleValue) && Math.abs(doubleValue) < Long.MAX_VALUE) {
+                return (long) doubleValue;
+            }
+            return doubleValue;
+        }
+        return value;
+    }
+
+    /**
+     * Spread the hash code of a key over all the bits.  The low bits pick the bucket in the {@link JoinHashTable}
+     * and the high bits pick the partition when the join spills to disk.
+     * @param key the key from {@link #getKey(Document, List)}
+     * @return the hash code
+     */
+    @SuppressWarnings("checkstyle:magicnumber")
+    static int hash(final Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Encode a document as bson.
+     * @param document the document
+     * @return the bson bytes
+     */
+    static byte[] encode(final Document document) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        CODEC.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decode a document from bson.
+     * @param bytes the bson bytes
+     * @return the document
+     */
+    static Document decode(final byte[] bytes) {
+        return new RawBsonDocument(bytes).decode(CODEC);
+    }
+
+    private Document advance() throws IOException {
+        if (!built) {
+            build();
+        }
+        while (true) {
+            if (probeRow != null && entry != -1) {
+                Document joined = join(probeRow, decode(table.getRow(entry)));
+                entry = table.next(entry);
+                if (entry == -1) {
+                    probeRow = null;
+                }
+                return joined;
+            }
+            probeRow = nextProbeRow();
+            if (probeRow == null) {
+                return null;
+            }
+            Object key = getKey(probeRow, probeKey);
+            entry = table.first(hash(key), key);
+            if (entry == -1) {
+                Document unmatched = probeRow;
+                probeRow = null;
+                if (preserveUnmatched) {
+                    return unmatched;
+                }
+            }
+        }
+    }
+
+    private Document join(final Document probeDocument, final Document buildDocument) {
+        Document left = buildIsLeft ? buildDocument : new Document(probeDocument);
+        left.put(alias, buildIsLeft ? probeDocument : buildDocument);
+        return left;
+    }
+
+    private void build() throws IOException {
+        built = true;
+        table = new JoinHashTable();
+        while (buildSide.hasNext()) {
+            Document document = buildSide.next();
+            Object key = getKey(document, buildKey);
+            int hash = hash(key);
+            byte[] row = encode(document);
+            if (buildPartitions != null) {
+                buildPartitions[getPartition(hash)].write(hash, row);
+            } else {
+                table.add(hash, key, row);
+                if (table.getSizeInBytes() > memoryBudget) {
+                    spill();
+                }
+            }
+        }
+        if (buildPartitions != null) {
+            while (probeSide.hasNext()) {
+                Document document = probeSide.next();
+                int hash = hash(getKey(document, probeKey));
+                probePartitions[getPartition(hash)].write(hash, encode(document));
+            }
+            for (int i = 0; i < PARTITIONS; i++) {
+                buildPartitions[i].startReading();
+                probePartitions[i].startReading();
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        buildPartitions = new SpillFile[PARTITIONS];
+        probePartitions = new SpillFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            buildPartitions[i] = new SpillFile();
+            probePartitions[i] = new SpillFile();
+        }
+        for (int i = 0; i < table.size(); i++) {
+            buildPartitions[getPartition(table.getHash(i))].write(table.getHash(i), table.getRow(i));
+        }
+        table = null;
+    }
+
+    private Document nextProbeRow() throws IOException {
+        if (buildPartitions == null) {
+            return probeSide.hasNext() ? probeSide.next() : null;
+        }
+        while (partition == -1 || !probePartitions[partition].next()) {
+            if (partition != -1) {
+                buildPartitions[partition].close();
+                probePartitions[partition].close();
+            }
+            if (++partition == PARTITIONS) {
+                table = null;
+                return null;
+            }
+            loadPartition(partition);
+        }
+        return decode(probePartitions[partition].getRow());
+    }
+
+    private void loadPartition(final int index) throws IOException {
+        //a partition is loaded even if it is bigger than the memory budget on its own
+        table = new JoinHashTable();
+        SpillFile spillFile = buildPartitions[index];
+        while (spillFile.next()) {
+            table.add(spillFile.getHash(), getKey(decode(spillFile.getRow()), buildKey), spillFile.getRow());
+        }
+    }
+
+    private static int getPartition(final int hash) {
+        return hash >>> (Integer.SIZE - PARTITION_BITS);
+    }
+
+    private static void closeIfCloseable(final Object object) throws IOException {
+        if (object instanceof Closeable) {
+            ((Closeable) object).close();
+        }
+    }
+
+    private static void closePartitions(final SpillFile[] partitions) throws IOException {
+        if (partitions == null) {
+            return;
+        }
+        for (SpillFile spillFile : partitions) {
+            spillFile.close();
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+import java.util.Arrays;
+
+/**
+ * Hash table from join key to the encoded rows with that key.  Entries are kept in parallel arrays and chained
+ * through an int array, so adding a row does not allocate anything but the row itself and probing does not
+ * allocate at all.  The hash code of every entry is kept so that keys are only compared when the hash codes match.
+ */
+public final class JoinHashTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private int[] buckets;
+    private int[] tails;
+    private int[] next;
+    private int[] hashes;
+    private Object[] keys;
+    private byte[][] rows;
+    private int size;
+    private long sizeInBytes;
+
+    /**
+     * Default constructor.
+     */
+    public JoinHashTable() {
+        buckets = new int[INITIAL_CAPACITY];
+        Arrays.fill(buckets, -1);
+        tails = new int[INITIAL_CAPACITY];
+        next = new int[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        keys = new Object[INITIAL_CAPACITY];
+        rows = new byte[INITIAL_CAPACITY][];
+    }
+
+    /**
+     * Add a row to the table.
+     * @param hash the hash code of the key, see {@link HashJoinIterator#hash(Object)}
+     * @param key the normalized join key
+     * @param row the row encoded as bson
+     */
+    public void add(final int hash, final Object key, final byte[] row) {
+        if (size == next.length) {
+            grow();
+        }
+        hashes[size] = hash;
+        keys[size] = key;
+        rows[size] = row;
+        link(size);
+        size++;
+        sizeInBytes += row.length + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Find the first entry with the key.
+     * @param hash the hash code of the key
+     * @param key the normalized join key
+     * @return the entry or -1 if no row has the key
+     */
+    public int first(final int hash, final Object key) {
+        return find(buckets[hash & (buckets.length - 1)], hash, key);
+    }
+
+    /**
+     * Find the next entry with the same key.
+     * @param entry the entry returned by {@link #first(int, Object)} or this method
+     * @return the next entry or -1 if there are no more rows with the key
+     */
+    public int next(final int entry) {
+        return find(next[entry], hashes[entry], keys[entry]);
+    }
+
+    /**
+     * Get the encoded row of an entry.
+     * @param entry the entry
+     * @return the row encoded as bson
+     */
+    public byte[] getRow(final int entry) {
+        return rows[entry];
+    }
+
+    /**
+     * Get the hash code of the key of an entry.
+     * @param entry the entry
+     * @return the hash code
+     */
+    public int getHash(final int entry) {
+        return hashes[entry];
+    }
+
+    /**
+     * Get the number of rows in the table.
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the approximate memory used by the rows in the table.
+     * @return the approximate size in bytes
+     */
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    private int find(final int start, final int hash, final Object key) {
+        for (int entry = start; entry != -1; entry = next[entry]) {
+            if (hashes[entry] == hash && keys[entry].equals(key)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void grow() {
+        int capacity = next.length * 2;
+        next = Arrays.copyOf(next, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        rows = Arrays.copyOf(rows, capacity);
+        //keep the load factor at one entry per bucket
+        buckets = new int[capacity];
+        Arrays.fill(buckets, -1);
+        tails = new int[capacity];
+        for (int entry = 0; entry < size; entry++) {
+            link(entry);
+        }
+    }
+
+    private void link(final int entry) {
+        //rows are appended to the chain so that matches come back in the order they were added
+        int bucket = hashes[entry] & (buckets.length - 1);
+        next[entry] = -1;
+        if (buckets[bucket] == -1) {
+            buckets[bucket] = entry;
+        } else {
+            next[tails[bucket]] = entry;
+        }
+        tails[bucket] = entry;
+    }
+
+}
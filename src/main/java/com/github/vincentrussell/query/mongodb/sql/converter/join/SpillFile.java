@@ -0,0 +1,144 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Temporary file that holds one partition of a hash join that did not fit in memory.  Rows are appended with the
+ * hash code of their join key and read back through a memory mapped window of the file.  The file is deleted when it
+ * is closed, so it has to be closed.
+ */
+final class SpillFile implements Closeable {
+
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final File file;
+    private DataOutputStream outputStream;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long length;
+    private int hash;
+    private byte[] row;
+
+    /**
+     * Create an empty spill file in the temp directory.
+     * @throws IOException if the file cannot be created
+     */
+    SpillFile() throws IOException {
+        file = File.createTempFile("sql-to-mongo-join", ".spill");
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Append a row.
+     * @param rowHash the hash code of the join key of the row
+     * @param encodedRow the row encoded as bson
+     * @throws IOException if the row cannot be written
+     */
+    public void write(final int rowHash, final byte[] encodedRow) throws IOException {
+        outputStream.writeInt(rowHash);
+        outputStream.writeInt(encodedRow.length);
+        outputStream.write(encodedRow);
+    }
+
+    /**
+     * Stop writing and move to the first row.
+     * @throws IOException if the file cannot be mapped
+     */
+    public void startReading() throws IOException {
+        outputStream.close();
+        outputStream = null;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        length = randomAccessFile.length();
+        position = 0;
+        window = null;
+    }
+
+    /**
+     * Move to the next row.
+     * @return false if there are no more rows
+     * @throws IOException if the file cannot be mapped
+     */
+    public boolean next() throws IOException {
+        if (position >= length) {
+            return false;
+        }
+        ensureMapped(RECORD_HEADER);
+        int offset = (int) (position - windowStart);
+        hash = window.getInt(offset);
+        int rowLength = window.getInt(offset + Integer.BYTES);
+        ensureMapped(RECORD_HEADER + rowLength);
+        row = new byte[rowLength];
+        window.position((int) (position - windowStart) + RECORD_HEADER);
+        window.get(row);
+        position += RECORD_HEADER + rowLength;
+        return true;
+    }
+
+    /**
+     * Get the hash code of the join key of the current row.
+     * @return the hash code
+     */
+    public int getHash() {
+        return hash;
+    }
+
+    /**
+     * Get the current row.
+     * @return the row encoded as bson
+     */
+    public byte[] getRow() {
+        return row;
+    }
+
+    /**
+     * Close and delete the file.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (outputStream != null) {
+                outputStream.close();
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } finally {
+            window = null;
+            delete();
+        }
+    }
+
+    private void delete() throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("unable to delete the spill file " + file);
+        }
+    }
+
+    private void ensureMapped(final int bytes) throws IOException {
+        if (window != null && position + bytes <= windowStart + window.limit()) {
+            return;
+        }
+        //rows can be bigger than the window, so map at least the whole row
+        windowStart = position;
+        long size = Math.min(length - position, Math.max(WINDOW_SIZE, bytes));
+        window = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class used to turn the filter and projection of a find query into a change stream pipeline, so that a query can
+ * be watched for inserted and updated documents that match it instead of being run again and again.  The fields
+ * of the documents are under fullDocument in the change events.
+ */
+public final class ChangeStreamProcessor {
+
+    private static final String FULL_DOCUMENT = "fullDocument";
+    private static final List<String> OPERATION_TYPES = Arrays.asList("insert", "update", "replace");
+    private static final List<String> LOGICAL_OPERATORS = Arrays.asList("$and", "$or", "$nor");
+
+    private ChangeStreamProcessor() {
+
+    }
+
+    /**
+     * Create the change stream pipeline for a find query.
+     * @param query the filter of the query
+     * @param projection the projection of the query, empty when all the fields are returned
+     * @return the $match and $project steps
+     * @throws ParseException if the filter uses an operator that cannot run on change events, like $text
+     */
+    public static List<Document> toChangeStreamPipeline(final Document query, final Document projection)
+            throws ParseException {
+        Document match = new Document("operationType", new Document("$in", OPERATION_TYPES));
+        match.putAll(toFullDocumentQuery(query));
+        List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$match", match));
+        if (projection != null && !projection.isEmpty()) {
+            pipeline.add(new Document("$project", toFullDocumentProjection(projection)));
+        }
+        return pipeline;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Document toFullDocumentQuery(final Document query) throws ParseException {
+        Document fullDocumentQuery = new Document();
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            String key = entry.getKey();
+            if (LOGICAL_OPERATORS.contains(key)) {
+                List<Object> clauses = new ArrayList<>();
+                for (Object clause : (List<Object>) entry.getValue()) {
+                    clauses.add(toFullDocumentQuery((Document) clause));
+                }
+                fullDocumentQuery.put(key, clauses);
+            } else if ("$expr".equals(key)) {
+                fullDocumentQuery.put(key, toFullDocumentExpression(entry.getValue()));
+            } else if (key.startsWith("$")) {
+                throw new ParseException(key + " is not supported when watching a query");
+            } else {
+                fullDocumentQuery.put(FULL_DOCUMENT + "." + key, entry.getValue());
+            }
+        }
+        return fullDocumentQuery;
+    }
+
+    //field paths like $status become $fullDocument.status, variables like $$ROOT are left as they are
+    @SuppressWarnings("unchecked")
+    private static Object toFullDocumentExpression(final Object expression) {
+        if (expression instanceof String && ((String) expression).startsWith("$")
+                && !((String) expression).startsWith("$$")) {
+            return "$" + FULL_DOCUMENT + "." + ((String) expression).substring(1);
+        } else if (expression instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (List<Object>) expression) {
+                list.add(toFullDocumentExpression(element));
+            }
+            return list;
+        } else if (expression instanceof Document) {
+            Document document = new Document();
+            for (Map.Entry<String, Object> entry : ((Document) expression).entrySet()) {
+                document.put(entry.getKey(), "$literal".equals(entry.getKey()) ? entry.getValue()
+                        : toFullDocumentExpression(entry.getValue()));
+            }
+            return document;
+        }
+        return expression;
+    }
+
+    //the _id of the change event is the resume token, so it is always kept
+    private static Document toFullDocumentProjection(final Document projection) {
+        Document fullDocumentProjection = new Document();
+        boolean exclusion = ExclusionProjectionProcessor.isExclusionProjection(projection);
+        if (!exclusion) {
+            fullDocumentProjection.put("operationType", 1);
+            fullDocumentProjection.put("documentKey", 1);
+        }
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            Object value = entry.getValue();
+            if (!exclusion && value instanceof Number && ((Number) value).intValue() == 0) {
+                continue;
+            }
+            fullDocumentProjection.put(FULL_DOCUMENT + "." + entry.getKey(), toFullDocumentExpression(value));
+        }
+        if (!exclusion && !projection.containsKey("_id")) {
+            fullDocumentProjection.put(FULL_DOCUMENT + "._id", 1);
+        }
+        return fullDocumentProjection;
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class used to answer find and count queries from an index only, without fetching the documents.  A query is
+ * covered when one index has every field that the query filters on, sorts on and returns, and the query does not
+ * return _id unless the index has it.  Queries that return all the fields are never covered, so that the index does
+ * not change what they return.
+ */
+public final class CoveredQueryProcessor {
+
+    private static final String ID = "_id";
+    private static final List<String> LOGICAL_OPERATORS = Arrays.asList("$and", "$or", "$nor");
+    private static final List<String> UNCOVERABLE_OPERATORS = Arrays.asList("$exists", "$elemMatch", "$size",
+            "$type", "$all", "$mod");
+
+    private CoveredQueryProcessor() {
+
+    }
+
+    /**
+     * Find the smallest index that covers the query.  The first field of the index must be filtered or sorted on,
+     * so that the index is not scanned from start to end.
+     * @param query the filter of the query
+     * @param projection the projection of the query, null for a count, which does not return fields.  An empty
+     * projection returns all the fields, so the query is not covered
+     * @param sort the sort of the query
+     * @param indexes the keys of the indexes of the collection
+     * @return the keys of the covering index or null if no index covers the query
+     */
+    public static Document findCoveringIndex(final Document query, final Document projection, final Document sort,
+                                             final List<Document> indexes) {
+        Set<String> filteredFields = new HashSet<>();
+        if (!addQueryFields(query, filteredFields)) {
+            return null;
+        }
+        Set<String> usedFields = new HashSet<>(filteredFields);
+        if (sort != null) {
+            usedFields.addAll(sort.keySet());
+        }
+        if (projection != null && (projection.isEmpty() || !addProjectionFields(projection, usedFields))) {
+            return null;
+        }
+        Document coveringIndex = null;
+        for (Document index : indexes) {
+            if (index.isEmpty() || !index.keySet().containsAll(usedFields)) {
+                continue;
+            }
+            String firstField = index.keySet().iterator().next();
+            if (!filteredFields.contains(firstField) && (sort == null || !sort.containsKey(firstField))) {
+                continue;
+            }
+            if (coveringIndex == null || index.size() < coveringIndex.size()) {
+                coveringIndex = index;
+            }
+        }
+        return coveringIndex;
+    }
+
+    /**
+     * Get the projection that keeps the query covered by the index, _id is left out unless it is in the index.
+     * @param projection the projection of the query, with the fields it returns
+     * @param index the keys of the covering index
+     * @return the projection
+     */
+    public static Document getCoveredProjection(final Document projection, final Document index) {
+        Document coveredProjection = new Document();
+        if (!index.containsKey(ID)) {
+            coveredProjection.put(ID, 0);
+        }
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            if (!ID.equals(entry.getKey()) || index.containsKey(ID)) {
+                coveredProjection.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return coveredProjection;
+    }
+
+    //false if the filter needs the whole document, like $exists or a match on null
+    private static boolean addQueryFields(final Document query, final Set<String> fields) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            if (LOGICAL_OPERATORS.contains(entry.getKey())) {
+                for (Object clause : (List<?>) entry.getValue()) {
+                    if (!(clause instanceof Document) || !addQueryFields((Document) clause, fields)) {
+                        return false;
+                    }
+                }
+            } else if (entry.getKey().startsWith("$") || !isCoverable(entry.getValue())) {
+                return false;
+            } else {
+                fields.add(entry.getKey());
+            }
+        }
+        return true;
+    }
+
+    private static boolean isCoverable(final Object value) {
+        if (value == null || value instanceof List) {
+            return false;
+        }
+        if (!(value instanceof Document)) {
+            return true;
+        }
+        Document operators = (Document) value;
+        for (Map.Entry<String, Object> entry : operators.entrySet()) {
+            //a match on an embedded document compares the whole document
+            if (!entry.getKey().startsWith("$") || UNCOVERABLE_OPERATORS.contains(entry.getKey())) {
+                return false;
+            }
+            Object operand = entry.getValue();
+            if (operand instanceof List) {
+                for (Object element : (List<?>) operand) {
+                    if (element == null || element instanceof List || element instanceof Document) {
+                        return false;
+                    }
+                }
+            } else if (!isCoverable(operand)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //false if the projection excludes fields or computes values
+    private static boolean addProjectionFields(final Document projection, final Set<String> fields) {
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String && ((String) value).startsWith("$")) {
+                fields.add(((String) value).substring(1));
+            } else if (isTrue(value)) {
+                fields.add(entry.getKey());
+            } else if (!ID.equals(entry.getKey()) || !(value instanceof Number || value instanceof Boolean)) {
+                return false;
+            }
+        }
+        //_id is returned unless it is excluded
+        if (!projection.containsKey(ID)) {
+            fields.add(ID);
+        }
+        return true;
+    }
+
+    private static boolean isTrue(final Object value) {
+        return Boolean.TRUE.equals(value) || value instanceof Number && ((Number) value).doubleValue() != 0;
+    }
+
+}
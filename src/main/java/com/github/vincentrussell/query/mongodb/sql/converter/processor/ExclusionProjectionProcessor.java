@@ -0,0 +1,94 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class used to support SELECT * EXCEPT (column1, column2), which returns every field but the listed ones with an
+ * exclusion projection.  The sql parser does not know EXCEPT after *, so the clause is taken out of the sql before
+ * it is parsed.
+ */
+public final class ExclusionProjectionProcessor {
+
+    private static final Pattern SELECT_ALL_EXCEPT = Pattern.compile(
+            "^(\\s*SELECT\\s+\\*)\\s+EXCEPT\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
+    private ExclusionProjectionProcessor() {
+
+    }
+
+    /**
+     * Get the columns of the EXCEPT clause of the outer SELECT *.
+     * @param sql the sql
+     * @return the columns or an empty list if there is no EXCEPT clause
+     * @throws ParseException if the EXCEPT clause has no columns
+     */
+    public static List<String> getExceptColumns(final String sql) throws ParseException {
+        Matcher matcher = SELECT_ALL_EXCEPT.matcher(sql);
+        if (!matcher.find()) {
+            return Collections.emptyList();
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : matcher.group(2).split(",")) {
+            String trimmed = column.trim();
+            if (trimmed.length() > 1 && (trimmed.startsWith("\"") && trimmed.endsWith("\"")
+                    || trimmed.startsWith("`") && trimmed.endsWith("`"))) {
+                trimmed = trimmed.substring(1, trimmed.length() - 1);
+            }
+            if (!trimmed.isEmpty()) {
+                columns.add(trimmed);
+            }
+        }
+        SqlUtils.isTrue(!columns.isEmpty(), "SELECT * EXCEPT needs at least one column");
+        return columns;
+    }
+
+    /**
+     * Remove the EXCEPT clause of the outer SELECT * so that the sql can be parsed.
+     * @param sql the sql
+     * @return the sql without the EXCEPT clause
+     */
+    public static String removeExceptClause(final String sql) {
+        Matcher matcher = SELECT_ALL_EXCEPT.matcher(sql);
+        return matcher.find() ? matcher.group(1) + sql.substring(matcher.end()) : sql;
+    }
+
+    /**
+     * Create the exclusion projection for the fields.
+     * @param fields the fields to leave out
+     * @return the projection, empty if there are no fields
+     */
+    public static Document toExclusionProjection(final Collection<String> fields) {
+        Document projection = new Document();
+        for (String field : fields) {
+            projection.put(field, 0);
+        }
+        return projection;
+    }
+
+    /**
+     * Check if a projection only leaves fields out.
+     * @param projection the projection
+     * @return true if every value of the projection is 0
+     */
+    public static boolean isExclusionProjection(final Document projection) {
+        if (projection == null || projection.isEmpty()) {
+            return false;
+        }
+        for (Object value : projection.values()) {
+            if (!(value instanceof Number) || ((Number) value).intValue() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.FieldType;
+import com.github.vincentrussell.query.mongodb.sql.converter.SchemaProvider;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.SQLCommandInfoHolder;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.FromItem;
+import net.sf.jsqlparser.statement.select.Join;
+import net.sf.jsqlparser.util.TablesNamesFinder;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class used to build the field name to {@link FieldType} mapping from a {@link SchemaProvider}.
+ */
+public final class FieldTypeInferenceProcessor {
+
+    private FieldTypeInferenceProcessor() {
+
+    }
+
+    /**
+     * Build the field name to {@link FieldType} mapping for a statement.  The fields of every collection in the
+     * statement are added by name, a field that has different types in different collections is left out.  The
+     * fields of the FROM and JOIN collections are also added prefixed with the alias of the collection, the way they
+     * are written in the sql.  The types in the explicit mapping are always kept.  Collections that are prefixed with
+     * a database are skipped because the {@link SchemaProvider} reads a single database.
+     * @param statement the statement
+     * @param sqlCommandInfoHolder the {@link SQLCommandInfoHolder} of the statement
+     * @param schemaProvider the {@link SchemaProvider}
+     * @param fieldNameToFieldTypeMapping the explicit field name to {@link FieldType} mapping
+     * @return the field name to {@link FieldType} mapping
+     */
+    public static Map<String, FieldType> inferFieldTypes(final Statement statement,
+                                                         final SQLCommandInfoHolder sqlCommandInfoHolder,
+                                                         final SchemaProvider schemaProvider,
+                                                         final Map<String, FieldType> fieldNameToFieldTypeMapping) {
+        Map<String, FieldType> inferred = new HashMap<>();
+        Set<String> conflicts = new HashSet<>();
+        for (String collection : new TablesNamesFinder().getTableList(statement)) {
+            if (collection.contains(".")) {
+                continue;
+            }
+            for (Map.Entry<String, FieldType> entry : schemaProvider.getFieldTypes(collection).entrySet()) {
+                FieldType previous = inferred.put(entry.getKey(), entry.getValue());
+                if (previous != null && previous != entry.getValue()) {
+                    conflicts.add(entry.getKey());
+                }
+            }
+        }
+        inferred.keySet().removeAll(conflicts);
+
+        addAliasedFieldTypes(inferred, sqlCommandInfoHolder.getFromHolder().getBaseFrom(), schemaProvider);
+        if (sqlCommandInfoHolder.getJoins() != null) {
+            for (Join join : sqlCommandInfoHolder.getJoins()) {
+                addAliasedFieldTypes(inferred, join.getRightItem(), schemaProvider);
+            }
+        }
+        inferred.putAll(fieldNameToFieldTypeMapping);
+        return inferred;
+    }
+
+    private static void addAliasedFieldTypes(final Map<String, FieldType> inferred, final FromItem fromItem,
+                                             final SchemaProvider schemaProvider) {
+        if (!(fromItem instanceof Table) || ((Table) fromItem).getSchemaName() != null) {
+            return;
+        }
+        Table table = (Table) fromItem;
+        String prefix = (table.getAlias() != null ? table.getAlias().getName() : table.getName()) + ".";
+        for (Map.Entry<String, FieldType> entry : schemaProvider.getFieldTypes(table.getName()).entrySet()) {
+            inferred.put(prefix + entry.getKey(), entry.getValue());
+        }
+    }
+
+}
@@ -6,27 +6,52 @@ import com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.ExpressionHolder;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.FromHolder;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.SQLCommandInfoHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
 import com.github.vincentrussell.query.mongodb.sql.converter.visitor.ExpVisitorEraseAliasTableBaseBuilder;
 import com.github.vincentrussell.query.mongodb.sql.converter.visitor.OnVisitorLetsBuilder;
 import com.github.vincentrussell.query.mongodb.sql.converter.visitor.OnVisitorMatchLookupBuilder;
 import com.github.vincentrussell.query.mongodb.sql.converter.visitor.WhereVisitorMatchAndLookupPipelineMatchBuilder;
 import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Parenthesis;
 import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.relational.EqualsTo;
+import net.sf.jsqlparser.schema.Column;
 import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.select.Join;
 import net.sf.jsqlparser.statement.select.SubSelect;
 import org.apache.commons.lang.mutable.MutableBoolean;
 import org.bson.Document;
 
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class used to help with sql joins.
  */
 public final class JoinProcessor {
 
+    /**
+     * How a join on equalities between columns is looked up.
+     */
+    public enum LookupForm {
+        /**
+         * always match with let and $expr, which compares values like the ON clause does.
+         */
+        LET,
+        /**
+         * use localField and foreignField for joins on one equality, which matches every element of an array and
+         * treats null and a missing field as equal.
+         */
+        LOCAL_FIELD,
+        /**
+         * use localField and foreignField for all joins on equalities, with the other conditions in let and
+         * pipeline next to them, which needs MongoDB 5.0.
+         */
+        CONCISE
+    }
+
     private JoinProcessor() {
 
     }
@@ -40,36 +65,159 @@ public final class JoinProcessor {
 
     private static Document generateMatchJoin(final FromHolder tholder, final Expression onExp,
                                               final Expression wherePartialExp,
-                                              final String joinTableAlias) throws ParseException {
+                                              final String joinTableAlias,
+                                              final WhereClauseProcessor whereClauseProcessor)
+            throws ParseException {
         Document matchJoinStep = new Document();
-        onExp.accept(new OnVisitorMatchLookupBuilder(joinTableAlias, tholder.getBaseAliasTable()));
-        WhereClauseProcessor whereClauseProcessor = new WhereClauseProcessor(FieldType.UNKNOWN,
-                Collections.<String, FieldType>emptyMap(), true);
+        if (onExp != null) {
+            onExp.accept(new OnVisitorMatchLookupBuilder(joinTableAlias, tholder.getBaseAliasTable()));
+        }
 
-        matchJoinStep.put("$match", whereClauseProcessor
-                .parseExpression(new Document(), wherePartialExp != null
-                        ? new AndExpression(onExp, wherePartialExp) : onExp, null));
+        Expression matchExp = onExp;
+        if (wherePartialExp != null) {
+            matchExp = onExp != null ? new AndExpression(onExp, wherePartialExp) : wherePartialExp;
+        }
+        matchJoinStep.put("$match", whereClauseProcessor.parseExpression(new Document(), matchExp, null));
         return matchJoinStep;
     }
 
+    /**
+     * Split the ON clause into equalities between a column of the joined table and a column of the tables
+     * before it.
+     * @param onExp the ON clause
+     * @param joinTableAlias the alias of the join table
+     * @return the equalities with the join table column on the right or null if the ON clause is not only
+     * equalities joined with AND
+     */
+    private static List<EqualsTo> getEqualityConditions(final Expression onExp, final String joinTableAlias) {
+        List<EqualsTo> equalities = new LinkedList<>();
+        Expression expression = onExp;
+        while (Parenthesis.class.isInstance(expression)) {
+            expression = ((Parenthesis) expression).getExpression();
+        }
+        if (AndExpression.class.isInstance(expression)) {
+            List<EqualsTo> left = getEqualityConditions(((AndExpression) expression).getLeftExpression(),
+                    joinTableAlias);
+            List<EqualsTo> right = getEqualityConditions(((AndExpression) expression).getRightExpression(),
+                    joinTableAlias);
+            if (left == null || right == null) {
+                return null;
+            }
+            equalities.addAll(left);
+            equalities.addAll(right);
+            return equalities;
+        }
+        if (!EqualsTo.class.isInstance(expression)) {
+            return null;
+        }
+        EqualsTo equalsTo = (EqualsTo) expression;
+        if (!SqlUtils.isColumn(equalsTo.getLeftExpression()) || !SqlUtils.isColumn(equalsTo.getRightExpression())) {
+            return null;
+        }
+        boolean leftIsJoinTable = joinTableAlias.equals(getTableOfColumn((Column) equalsTo.getLeftExpression()));
+        boolean rightIsJoinTable = joinTableAlias.equals(getTableOfColumn((Column) equalsTo.getRightExpression()));
+        if (leftIsJoinTable == rightIsJoinTable) {
+            return null;
+        }
+        EqualsTo orientedEqualsTo = new EqualsTo();
+        orientedEqualsTo.setLeftExpression(leftIsJoinTable ? equalsTo.getRightExpression()
+                : equalsTo.getLeftExpression());
+        orientedEqualsTo.setRightExpression(leftIsJoinTable ? equalsTo.getLeftExpression()
+                : equalsTo.getRightExpression());
+        equalities.add(orientedEqualsTo);
+        return equalities;
+    }
+
+    private static String getTableOfColumn(final Column column) {
+        String columnName = column.getName(false);
+        int dotIndex = columnName.indexOf('.');
+        return dotIndex > 0 ? columnName.substring(0, dotIndex) : null;
+    }
+
+    private static String getLocalField(final FromHolder tholder, final Column column) {
+        String columnName = column.getName(false);
+        String table = getTableOfColumn(column);
+        if (table == null || table.equals(tholder.getBaseAliasTable())) {
+            return table == null ? columnName : columnName.substring(table.length() + 1);
+        }
+        //columns of tables joined before this one are in a field named after their alias
+        return columnName;
+    }
+
+    /**
+     * Will generate a lookup with localField and foreignField so the server can use the index on the foreign
+     * field.  Like this:
+     * <pre>
+     *      {
+     *          "from": "rightCollection",
+     *          "localField": "leftField",
+     *          "foreignField": "rightField",
+     *          "as": ""
+     *      }
+     * </pre>
+     * If the ON clause has more equalities or there is a where clause for the joined table, those conditions are
+     * added with let and pipeline next to localField and foreignField, which only MongoDB 5.0 and later accept.
+     * @param tholder the {@link FromHolder}
+     * @param joinTableName the join table name
+     * @param joinTableAlias the alias for the join table
+     * @param equalities the equalities from the ON clause
+     * @param wherePartialExp the where clause for the joined table
+     * @param whereClauseProcessor the {@link WhereClauseProcessor} for the fields of the joined table
+     * @return the internal lookup document
+     * @throws ParseException if there is an issue parsing the sql
+     */
+    private static Document generateInternalEqualityLookup(final FromHolder tholder, final String joinTableName,
+                                                           final String joinTableAlias,
+                                                           final List<EqualsTo> equalities,
+                                                           final Expression wherePartialExp,
+                                                           final WhereClauseProcessor whereClauseProcessor)
+            throws ParseException {
+        Document lookupInternal = new Document();
+        lookupInternal.put("from", joinTableName);
+        EqualsTo keyEquality = equalities.get(0);
+        lookupInternal.put("localField", getLocalField(tholder, (Column) keyEquality.getLeftExpression()));
+        lookupInternal.put("foreignField", ((Column) keyEquality.getRightExpression()).getName(false)
+                .substring(joinTableAlias.length() + 1));
+
+        Expression remainingOnExp = null;
+        for (EqualsTo equality : equalities.subList(1, equalities.size())) {
+            remainingOnExp = remainingOnExp == null ? equality : new AndExpression(remainingOnExp, equality);
+        }
+        if (remainingOnExp != null) {
+            lookupInternal.put("let", generateLetsFromON(tholder, remainingOnExp, joinTableAlias));
+        }
+        if (remainingOnExp != null || wherePartialExp != null) {
+            List<Document> pipeline = new LinkedList<>();
+            pipeline.add(generateMatchJoin(tholder, remainingOnExp, wherePartialExp, joinTableAlias,
+                    whereClauseProcessor));
+            lookupInternal.put("pipeline", pipeline);
+        }
+        lookupInternal.put("as", joinTableAlias);
+        return lookupInternal;
+    }
+
     private static List<Document> generateSubPipelineLookup(final FromHolder tholder, final Expression onExp,
                                                             final Expression wherePartialExp,
                                                             final String aliasTableName,
-                                                            final List<Document> subqueryDocs) throws ParseException {
+                                                            final List<Document> subqueryDocs,
+                                                            final WhereClauseProcessor whereClauseProcessor)
+            throws ParseException {
         List<Document> ldoc = subqueryDocs;
-        ldoc.add(generateMatchJoin(tholder, onExp, wherePartialExp, aliasTableName));
+        ldoc.add(generateMatchJoin(tholder, onExp, wherePartialExp, aliasTableName, whereClauseProcessor));
         return ldoc;
     }
 
     private static Document generateInternalLookup(final FromHolder tholder, final String joinTableName,
                                                    final String joinTableAlias, final Expression onExp,
                                                    final Expression wherePartialExp,
-                                                   final List<Document> subqueryDocs) throws ParseException {
+                                                   final List<Document> subqueryDocs,
+                                                   final WhereClauseProcessor whereClauseProcessor)
+            throws ParseException {
         Document lookupInternal = new Document();
         lookupInternal.put("from", joinTableName);
         lookupInternal.put("let", generateLetsFromON(tholder, onExp, joinTableAlias));
         lookupInternal.put("pipeline", generateSubPipelineLookup(tholder, onExp,
-                wherePartialExp, joinTableAlias, subqueryDocs));
+                wherePartialExp, joinTableAlias, subqueryDocs, whereClauseProcessor));
         lookupInternal.put("as", joinTableAlias);
 
         return lookupInternal;
@@ -95,22 +243,38 @@ public final class JoinProcessor {
      *                 }
      *               }
      * </pre>
+     * With {@link LookupForm#LOCAL_FIELD}, when the ON clause is one equality between columns, there is no where
+     * clause for the joined table and the join is not on a subquery, the lookup uses localField and foreignField
+     * instead.  With {@link LookupForm#CONCISE}, ON clauses with more equalities and where clauses for the joined
+     * table also use localField and foreignField, with the other conditions in the pipeline.
      * @param tholder the {@link FromHolder}
-     * @param joinTableName the join table name
-     * @param joinTableAlias the alias for the join table
-     * @param onExp {@link Expression}
+     * @param join the {@link Join}
      * @param mixedOnAndWhereExp the mixed on and where {@link Expression}
      * @param subqueryDocs the sub query {@link Document}s
+     * @param whereClauseProcessor the {@link WhereClauseProcessor} for the fields of the joined table
+     * @param lookupForm the {@link LookupForm} of joins on equalities
      * @return the lookup step
      * @throws ParseException if there is an issue parsing the sql
      */
-    private static Document generateLookupStep(final FromHolder tholder, final String joinTableName,
-                                               final String joinTableAlias, final Expression onExp,
+    private static Document generateLookupStep(final FromHolder tholder, final Join join,
                                                final Expression mixedOnAndWhereExp,
-                                               final List<Document> subqueryDocs) throws ParseException {
+                                               final List<Document> subqueryDocs,
+                                               final WhereClauseProcessor whereClauseProcessor,
+                                               final LookupForm lookupForm)
+            throws ParseException {
         Document lookup = new Document();
-        lookup.put("$lookup", generateInternalLookup(tholder, joinTableName,
-                joinTableAlias, onExp, mixedOnAndWhereExp, subqueryDocs));
+        String joinTableAlias = join.getRightItem().getAlias().getName();
+        String joinTableName = tholder.getSQLHolder(join.getRightItem()).getBaseTableName();
+        Expression onExp = join.getOnExpression();
+        List<EqualsTo> equalities = getEqualityConditions(onExp, joinTableAlias);
+        if (equalities != null && subqueryDocs.isEmpty() && (lookupForm == LookupForm.CONCISE
+                || lookupForm == LookupForm.LOCAL_FIELD && equalities.size() == 1 && mixedOnAndWhereExp == null)) {
+            lookup.put("$lookup", generateInternalEqualityLookup(tholder, joinTableName,
+                    joinTableAlias, equalities, mixedOnAndWhereExp, whereClauseProcessor));
+        } else {
+            lookup.put("$lookup", generateInternalLookup(tholder, joinTableName,
+                    joinTableAlias, onExp, mixedOnAndWhereExp, subqueryDocs, whereClauseProcessor));
+        }
         return lookup;
     }
 
@@ -147,9 +311,12 @@ public final class JoinProcessor {
     }
 
     private static Document generateInternalMatchAfterJoin(final String baseAliasTable,
-                                                           final Expression whereExpression) throws ParseException {
-        WhereClauseProcessor whereClauseProcessor = new WhereClauseProcessor(FieldType.UNKNOWN,
-                Collections.<String, FieldType>emptyMap());
+                                                           final Expression whereExpression,
+                                                           final FieldType defaultFieldType,
+                                                           final Map<String, FieldType> fieldNameToFieldTypeMapping)
+            throws ParseException {
+        WhereClauseProcessor whereClauseProcessor = new WhereClauseProcessor(defaultFieldType,
+                fieldNameToFieldTypeMapping);
 
         whereExpression.accept(new ExpVisitorEraseAliasTableBaseBuilder(baseAliasTable));
 
@@ -169,13 +336,19 @@ public final class JoinProcessor {
      * </pre>
      * @param tholder the {@link FromHolder}
      * @param whereExpression the where expression from the query
+     * @param defaultFieldType the default {@link FieldType}
+     * @param fieldNameToFieldTypeMapping the field name to {@link FieldType} map
      * @return the unwind step
      * @throws ParseException if there is an issue parsing the sql
      */
     private static Document generateMatchAfterJoin(final FromHolder tholder,
-                                                   final Expression whereExpression) throws ParseException {
+                                                   final Expression whereExpression,
+                                                   final FieldType defaultFieldType,
+                                                   final Map<String, FieldType> fieldNameToFieldTypeMapping)
+            throws ParseException {
         Document match = new Document();
-        match.put("$match", generateInternalMatchAfterJoin(tholder.getBaseAliasTable(), whereExpression));
+        match.put("$match", generateInternalMatchAfterJoin(tholder.getBaseAliasTable(), whereExpression,
+                defaultFieldType, fieldNameToFieldTypeMapping));
         return match;
     }
 
@@ -185,13 +358,20 @@ public final class JoinProcessor {
      * @param tholder the {@link FromHolder}
      * @param ljoins the list of joined tables
      * @param whereExpression the where expression from the query
+     * @param defaultFieldType the default {@link FieldType}
+     * @param fieldNameToFieldTypeMapping the field name to {@link FieldType} map, the fields of joined tables are
+     * prefixed with the alias of the table
+     * @param lookupForm the {@link LookupForm} of joins on equalities
      * @return the aggregation pipeline steps
      * @throws ParseException if there is an issue parsing the sql
      * @throws net.sf.jsqlparser.parser.ParseException if there is an issue parsing the sql
      */
     public static List<Document> toPipelineSteps(final QueryConverter queryConverter,
                                                  final FromHolder tholder, final List<Join> ljoins,
-                                                 final Expression whereExpression)
+                                                 final Expression whereExpression,
+                                                 final FieldType defaultFieldType,
+                                                 final Map<String, FieldType> fieldNameToFieldTypeMapping,
+                                                 final LookupForm lookupForm)
             throws ParseException, net.sf.jsqlparser.parser.ParseException {
         List<Document> ldoc = new LinkedList<Document>();
         MutableBoolean haveOrExpression = new MutableBoolean();
@@ -201,7 +381,6 @@ public final class JoinProcessor {
                 if (j.getRightItem() instanceof Table || j.getRightItem() instanceof SubSelect) {
                     ExpressionHolder whereExpHolder;
                     String joinTableAlias = j.getRightItem().getAlias().getName();
-                    String joinTableName = tholder.getSQLHolder(j.getRightItem()).getBaseTableName();
 
                     whereExpHolder = new ExpressionHolder(null);
 
@@ -224,8 +403,11 @@ public final class JoinProcessor {
                                 (SQLCommandInfoHolder) tholder.getSQLHolder(j.getRightItem()));
                     }
 
-                    ldoc.add(generateLookupStep(tholder, joinTableName,
-                            joinTableAlias, j.getOnExpression(), whereExpHolder.getExpression(), subqueryDocs));
+                    //the lookup pipeline matches the fields of the joined table without its alias
+                    WhereClauseProcessor joinWhereClauseProcessor = new WhereClauseProcessor(defaultFieldType,
+                            getJoinTableFieldTypes(fieldNameToFieldTypeMapping, joinTableAlias), true);
+                    ldoc.add(generateLookupStep(tholder, j, whereExpHolder.getExpression(), subqueryDocs,
+                            joinWhereClauseProcessor, lookupForm));
                     ldoc.add(generateUnwindStep(tholder, joinTableAlias, j.isLeft()));
                 } else {
                     throw new ParseException("From join not supported");
@@ -237,9 +419,22 @@ public final class JoinProcessor {
         }
         if (haveOrExpression.booleanValue()) {
             //if there is some "or" we use this step for support this logic and no other match steps
-            ldoc.add(generateMatchAfterJoin(tholder, whereExpression));
+            ldoc.add(generateMatchAfterJoin(tholder, whereExpression, defaultFieldType,
+                    fieldNameToFieldTypeMapping));
         }
         return ldoc;
     }
 
+    private static Map<String, FieldType> getJoinTableFieldTypes(
+            final Map<String, FieldType> fieldNameToFieldTypeMapping, final String joinTableAlias) {
+        Map<String, FieldType> joinTableFieldTypes = new HashMap<>();
+        String prefix = joinTableAlias + ".";
+        for (Map.Entry<String, FieldType> entry : fieldNameToFieldTypeMapping.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                joinTableFieldTypes.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return joinTableFieldTypes;
+    }
+
 }
@@ -0,0 +1,291 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.CollectionStatisticsProvider;
+import com.github.vincentrussell.query.mongodb.sql.converter.FieldType;
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.ExpressionHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.FromHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.SQLCommandInfoHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import com.github.vincentrussell.query.mongodb.sql.converter.visitor.ExpVisitorEraseAliasTableBaseBuilder;
+import com.github.vincentrussell.query.mongodb.sql.converter.visitor.WhereVisitorMatchAndLookupPipelineMatchBuilder;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.select.AllColumns;
+import net.sf.jsqlparser.statement.select.Join;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import org.apache.commons.lang.mutable.MutableBoolean;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class used to choose the order of INNER JOINs from collection statistics.
+ */
+public final class JoinReorderProcessor {
+
+    private JoinReorderProcessor() {
+
+    }
+
+    /**
+     * Choose the driving collection and the lookup order for a query that only has INNER JOINs on collections.
+     * The collection with the fewest estimated rows after its where clause drives the aggregation and the other
+     * collections are looked up from the smallest to the largest, as long as they are joined with a collection
+     * that is already in the pipeline.  ON conditions are moved to the join where all of their collections are
+     * available.
+     * @param sqlCommandInfoHolder the {@link SQLCommandInfoHolder} for the query
+     * @param statisticsProvider the {@link CollectionStatisticsProvider}, can be null
+     * @param defaultFieldType the default {@link FieldType}
+     * @param fieldNameToFieldTypeMapping the mapping from field name to {@link FieldType}
+     * @return a {@link SQLCommandInfoHolder} that selects all the fields from the joins in the new order or null
+     * if the joins should stay in the order of the query
+     * @throws ParseException if there is an issue parsing the sql
+     * @throws net.sf.jsqlparser.parser.ParseException if there is an issue parsing the sql
+     */
+    public static SQLCommandInfoHolder reorder(final SQLCommandInfoHolder sqlCommandInfoHolder,
+                                               final CollectionStatisticsProvider statisticsProvider,
+                                               final FieldType defaultFieldType,
+                                               final Map<String, FieldType> fieldNameToFieldTypeMapping)
+            throws ParseException, net.sf.jsqlparser.parser.ParseException {
+        List<Join> joins = sqlCommandInfoHolder.getJoins();
+        FromHolder fromHolder = sqlCommandInfoHolder.getFromHolder();
+        if (statisticsProvider == null || joins == null || joins.isEmpty()
+                || !Table.class.isInstance(fromHolder.getBaseFrom()) || fromHolder.getBaseAliasTable() == null) {
+            return null;
+        }
+
+        Map<String, Table> aliasToTable = new LinkedHashMap<>();
+        aliasToTable.put(fromHolder.getBaseAliasTable(), (Table) fromHolder.getBaseFrom());
+        List<Expression> conditions = new ArrayList<>();
+        for (Join join : joins) {
+            if (!join.isInner() || !Table.class.isInstance(join.getRightItem())
+                    || join.getRightItem().getAlias() == null || join.getOnExpression() == null) {
+                return null;
+            }
+            aliasToTable.put(join.getRightItem().getAlias().getName(), (Table) join.getRightItem());
+            splitConditions(SqlUtils.cloneExpression(join.getOnExpression()), conditions);
+        }
+
+        Expression where = SqlUtils.cloneExpression(sqlCommandInfoHolder.getWhereClause());
+        if (where != null && getAliases(where, aliasToTable.keySet()) == null) {
+            //columns without a table alias belong to the base table and would move with it
+            return null;
+        }
+        List<Set<String>> conditionAliases = new ArrayList<>();
+        List<Expression> joinConditions = new ArrayList<>();
+        for (Expression condition : conditions) {
+            Set<String> aliases = getAliases(condition, aliasToTable.keySet());
+            if (aliases == null) {
+                return null;
+            }
+            if (aliases.size() < 2) {
+                //a condition on one table of an inner join filters just like the where clause
+                where = where != null ? new AndExpression(where, condition) : condition;
+            } else {
+                conditionAliases.add(aliases);
+                joinConditions.add(condition);
+            }
+        }
+
+        Map<String, Double> estimatedRows = new HashMap<>();
+        for (Map.Entry<String, Table> entry : aliasToTable.entrySet()) {
+            String collection = entry.getValue().getName();
+            estimatedRows.put(entry.getKey(), statisticsProvider.getDocumentCount(collection)
+                    * statisticsProvider.getSelectivity(collection, getFilter(where, entry.getKey(),
+                    defaultFieldType, fieldNameToFieldTypeMapping)));
+        }
+
+        List<String> queryOrder = new ArrayList<>(aliasToTable.keySet());
+        List<String> joinOrder = new ArrayList<>();
+        Map<String, Expression> onExpressions = new HashMap<>();
+        joinOrder.add(getSmallest(queryOrder, estimatedRows, null, null));
+        while (joinOrder.size() < queryOrder.size()) {
+            String next = getSmallest(queryOrder, estimatedRows, joinOrder, conditionAliases);
+            if (next == null) {
+                //a collection that is not joined with the others is a cross join, keep the query order
+                return null;
+            }
+            onExpressions.put(next, getOnExpression(next, joinOrder, conditionAliases, joinConditions));
+            joinOrder.add(next);
+        }
+        if (joinOrder.equals(queryOrder)) {
+            return null;
+        }
+
+        PlainSelect plainSelect = new PlainSelect();
+        plainSelect.setSelectItems(Collections.<SelectItem>singletonList(new AllColumns()));
+        plainSelect.setFromItem(aliasToTable.get(joinOrder.get(0)));
+        List<Join> reorderedJoins = new ArrayList<>();
+        for (String alias : joinOrder.subList(1, joinOrder.size())) {
+            Join join = new Join();
+            join.setInner(true);
+            join.setRightItem(aliasToTable.get(alias));
+            join.setOnExpression(onExpressions.get(alias));
+            reorderedJoins.add(join);
+        }
+        plainSelect.setJoins(reorderedJoins);
+        plainSelect.setWhere(where);
+        return SQLCommandInfoHolder.Builder.create(defaultFieldType, fieldNameToFieldTypeMapping)
+                .setPlainSelect(plainSelect).build();
+    }
+
+    /**
+     * Create the steps that put the documents back in the shape of the query after the joins were done from
+     * another collection.  The fields of the base table are moved back to the root and the fields of the driving
+     * collection are moved under its alias.  Like this:
+     * <pre>
+     *     {
+     *       "$replaceRoot": {
+     *         "newRoot": { "$mergeObjects": [ "$t1", { "t2": "$$ROOT", "t3": "$t3" } ] }
+     *       }
+     *     },
+     *     {
+     *       "$project": { "t2.t1": 0, "t2.t3": 0 }
+     *     }
+     * </pre>
+     * @param sqlCommandInfoHolder the {@link SQLCommandInfoHolder} for the query
+     * @param reorderedHolder the {@link SQLCommandInfoHolder} returned by
+     * {@link #reorder(SQLCommandInfoHolder, CollectionStatisticsProvider, FieldType, Map)}
+     * @return the steps, empty if the base table still drives the aggregation
+     */
+    public static List<Document> generateRestoreSteps(final SQLCommandInfoHolder sqlCommandInfoHolder,
+                                                      final SQLCommandInfoHolder reorderedHolder) {
+        String baseAlias = sqlCommandInfoHolder.getFromHolder().getBaseAliasTable();
+        String drivingAlias = reorderedHolder.getFromHolder().getBaseAliasTable();
+        if (baseAlias.equals(drivingAlias)) {
+            return Collections.emptyList();
+        }
+        Document joinedFields = new Document(drivingAlias, "$$ROOT");
+        Document removedFields = new Document(drivingAlias + "." + baseAlias, 0);
+        for (Join join : reorderedHolder.getJoins()) {
+            String alias = join.getRightItem().getAlias().getName();
+            if (!alias.equals(baseAlias)) {
+                joinedFields.put(alias, "$" + alias);
+                removedFields.put(drivingAlias + "." + alias, 0);
+            }
+        }
+        return Arrays.asList(
+                new Document("$replaceRoot", new Document("newRoot",
+                        new Document("$mergeObjects", Arrays.asList("$" + baseAlias, joinedFields)))),
+                new Document("$project", removedFields));
+    }
+
+    private static void splitConditions(final Expression expression, final List<Expression> conditions) {
+        Expression unwrapped = expression;
+        while (Parenthesis.class.isInstance(unwrapped)) {
+            unwrapped = ((Parenthesis) unwrapped).getExpression();
+        }
+        if (AndExpression.class.isInstance(unwrapped)) {
+            splitConditions(((AndExpression) unwrapped).getLeftExpression(), conditions);
+            splitConditions(((AndExpression) unwrapped).getRightExpression(), conditions);
+        } else {
+            conditions.add(expression);
+        }
+    }
+
+    private static Set<String> getAliases(final Expression expression, final Set<String> knownAliases) {
+        final Set<String> aliases = new HashSet<>();
+        final MutableBoolean unknownAlias = new MutableBoolean(false);
+        expression.accept(new ExpressionVisitorAdapter() {
+            @Override
+            public void visit(final Column column) {
+                if (!SqlUtils.isColumn(column)) {
+                    return;
+                }
+                String columnName = column.getName(false);
+                int dotIndex = columnName.indexOf('.');
+                String alias = dotIndex > 0 ? columnName.substring(0, dotIndex) : null;
+                if (alias != null && knownAliases.contains(alias)) {
+                    aliases.add(alias);
+                } else {
+                    unknownAlias.setValue(true);
+                }
+            }
+        });
+        return unknownAlias.booleanValue() ? null : aliases;
+    }
+
+    private static Document getFilter(final Expression where, final String alias,
+                                      final FieldType defaultFieldType,
+                                      final Map<String, FieldType> fieldNameToFieldTypeMapping) throws ParseException {
+        if (where == null) {
+            return new Document();
+        }
+        ExpressionHolder filterHolder = new ExpressionHolder(null);
+        MutableBoolean haveOrExpression = new MutableBoolean(false);
+        SqlUtils.cloneExpression(where).accept(new WhereVisitorMatchAndLookupPipelineMatchBuilder(alias,
+                filterHolder, haveOrExpression));
+        if (haveOrExpression.booleanValue() || filterHolder.getExpression() == null) {
+            return new Document();
+        }
+        filterHolder.getExpression().accept(new ExpVisitorEraseAliasTableBaseBuilder(alias));
+        return (Document) new WhereClauseProcessor(defaultFieldType, fieldNameToFieldTypeMapping)
+                .parseExpression(new Document(), filterHolder.getExpression(), null);
+    }
+
+    private static String getSmallest(final List<String> queryOrder, final Map<String, Double> estimatedRows,
+                                      final List<String> joinOrder, final List<Set<String>> conditionAliases) {
+        String smallest = null;
+        for (String alias : queryOrder) {
+            if (joinOrder != null && (joinOrder.contains(alias)
+                    || !isJoinable(alias, joinOrder, conditionAliases))) {
+                continue;
+            }
+            //ties keep the query order
+            if (smallest == null || estimatedRows.get(alias) < estimatedRows.get(smallest)) {
+                smallest = alias;
+            }
+        }
+        return smallest;
+    }
+
+    private static boolean isJoinable(final String alias, final List<String> joinOrder,
+                                      final List<Set<String>> conditionAliases) {
+        for (Set<String> aliases : conditionAliases) {
+            if (isAvailable(aliases, alias, joinOrder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAvailable(final Set<String> aliases, final String alias, final List<String> joinOrder) {
+        if (!aliases.contains(alias)) {
+            return false;
+        }
+        for (String conditionAlias : aliases) {
+            if (!conditionAlias.equals(alias) && !joinOrder.contains(conditionAlias)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Expression getOnExpression(final String alias, final List<String> joinOrder,
+                                              final List<Set<String>> conditionAliases,
+                                              final List<Expression> joinConditions) {
+        Expression onExpression = null;
+        for (int i = 0; i < joinConditions.size(); i++) {
+            if (isAvailable(conditionAliases.get(i), alias, joinOrder)) {
+                onExpression = onExpression != null
+                        ? new AndExpression(onExpression, joinConditions.get(i)) : joinConditions.get(i);
+            }
+        }
+        return onExpression;
+    }
+
+}
@@ -0,0 +1,294 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.QueryHintHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.DistinctIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class used to read the execution options of a query from optimizer hint comments in the sql, i.e:
+ * select /*+ INDEX(status_1) MAXTIME(500) BATCHSIZE(5000) READ(secondaryPreferred) ALLOWDISK NOCURSORTIMEOUT
+ * COLLATION(en, 2) ... from orders.  Only the comment right after the leading SELECT is read, like in Oracle and
+ * MySQL.  The sql parser does not keep comments, so the hint comment is taken out of the sql before it is parsed.
+ */
+public final class QueryHintProcessor {
+
+    private static final String HINT_COMMENT_START = "/*+";
+    private static final String HINT_COMMENT_END = "*/";
+    private static final Pattern LEADING_HINT_COMMENT = Pattern.compile("^\\s*select\\s*/\\*\\+",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern HINT = Pattern.compile("\\s*([A-Za-z]+)\\s*(?:\\(([^)]*)\\))?\\s*,?\\s*");
+    private static final List<String> HINT_NAMES = Arrays.asList("INDEX", "MAXTIME", "BATCHSIZE", "READ",
+            "ALLOWDISK", "NOCURSORTIMEOUT", "COLLATION");
+    private static final Pattern INDEX_KEY = Pattern.compile("(.+?)_(-?1)(?:_|$)");
+
+    private QueryHintProcessor() {
+
+    }
+
+    /**
+     * Read the hints of the hint comment after the leading SELECT of the sql.
+     * @param sql the sql
+     * @return the hints, without options when there is no hint comment
+     * @throws ParseException if a hint is unknown or has a wrong argument
+     */
+    public static QueryHintHolder getHints(final String sql) throws ParseException {
+        QueryHintHolder hints = new QueryHintHolder();
+        int[] comment = findHintComment(sql);
+        if (comment != null) {
+            String content = sql.substring(comment[0] + HINT_COMMENT_START.length(),
+                    comment[1] - HINT_COMMENT_END.length());
+            Matcher hint = HINT.matcher(content);
+            int position = 0;
+            while (position < content.length() && !content.substring(position).trim().isEmpty()) {
+                SqlUtils.isTrue(hint.find(position) && hint.start() == position,
+                        "unable to parse hint: " + content.substring(position).trim());
+                addHint(hints, hint.group(1).toUpperCase(Locale.ENGLISH), hint.group(2));
+                position = hint.end();
+            }
+        }
+        return hints;
+    }
+
+    /**
+     * Remove the hint comment after the leading SELECT from the sql so that it can be parsed.
+     * @param sql the sql
+     * @return the sql without the hint comment
+     */
+    public static String removeHints(final String sql) {
+        int[] comment = findHintComment(sql);
+        if (comment == null) {
+            return sql;
+        }
+        return sql.substring(0, comment[0]) + " " + sql.substring(comment[1]);
+    }
+
+    //the start and the end of the hint comment after the leading SELECT, a */ in quotes does not end the comment
+    private static int[] findHintComment(final String sql) {
+        Matcher start = LEADING_HINT_COMMENT.matcher(sql);
+        if (!start.find()) {
+            return null;
+        }
+        char quote = 0;
+        for (int i = start.end(); i < sql.length(); i++) {
+            char current = sql.charAt(i);
+            if (quote != 0) {
+                quote = current == quote ? 0 : quote;
+            } else if (current == '\'' || current == '"' || current == '`') {
+                quote = current;
+            } else if (sql.startsWith(HINT_COMMENT_END, i)) {
+                return new int[] {start.end() - HINT_COMMENT_START.length(), i + HINT_COMMENT_END.length()};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the keys of an index from its default name, because aggregations can only be hinted with the keys.
+     * @param indexName the name of the index, i.e: status_1_createdAt_-1
+     * @return the keys of the index, i.e: {"status": 1, "createdAt": -1}
+     * @throws ParseException if the name is not a default index name
+     */
+    public static Document getIndexKeys(final String indexName) throws ParseException {
+        Document keys = new Document();
+        Matcher matcher = INDEX_KEY.matcher(indexName);
+        int position = 0;
+        while (position < indexName.length() && matcher.find(position) && matcher.start() == position) {
+            keys.put(matcher.group(1), Integer.parseInt(matcher.group(2)));
+            position = matcher.end();
+        }
+        SqlUtils.isTrue(!keys.isEmpty() && position == indexName.length(), "the INDEX hint of an aggregation "
+                + "needs the default name of the index, i.e: status_1_createdAt_-1");
+        return keys;
+    }
+
+    /**
+     * Put the hints in the document format of a query, see {@link
+     * com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter#getQueryAsDocument()}.
+     * @param queryDocument the document format of the query
+     * @param hints the hints
+     */
+    public static void putHints(final Document queryDocument, final QueryHintHolder hints) {
+        if (hints.getIndex() != null) {
+            queryDocument.put("hint", hints.getIndex());
+        }
+        if (hints.getMaxTimeMS() != null) {
+            queryDocument.put("maxTimeMS", hints.getMaxTimeMS());
+        }
+        if (hints.getBatchSize() != null) {
+            queryDocument.put("batchSize", hints.getBatchSize());
+        }
+        if (hints.getReadPreference() != null) {
+            queryDocument.put("readPreference", hints.getReadPreference().getName());
+        }
+        if (hints.getAllowDiskUse() != null) {
+            queryDocument.put("allowDiskUse", hints.getAllowDiskUse());
+        }
+        if (hints.isNoCursorTimeout()) {
+            queryDocument.put("noCursorTimeout", true);
+        }
+        if (hints.getCollation() != null) {
+            queryDocument.put("collation", Document.parse(hints.getCollation().asDocument().toJson()));
+        }
+    }
+
+    /**
+     * Apply the hints to a find query.
+     * @param findIterable the find query
+     * @param hints the hints
+     * @param <T> the type of the documents
+     * @return the find query
+     */
+    public static <T> FindIterable<T> applyHints(final FindIterable<T> findIterable, final QueryHintHolder hints) {
+        if (hints.getIndex() != null) {
+            findIterable.hintString(hints.getIndex());
+        }
+        if (hints.getMaxTimeMS() != null) {
+            findIterable.maxTime(hints.getMaxTimeMS(), TimeUnit.MILLISECONDS);
+        }
+        if (hints.getBatchSize() != null) {
+            findIterable.batchSize(hints.getBatchSize());
+        }
+        if (hints.getAllowDiskUse() != null) {
+            findIterable.allowDiskUse(hints.getAllowDiskUse());
+        }
+        if (hints.isNoCursorTimeout()) {
+            findIterable.noCursorTimeout(true);
+        }
+        if (hints.getCollation() != null) {
+            findIterable.collation(hints.getCollation());
+        }
+        return findIterable;
+    }
+
+    /**
+     * Apply the hints to a distinct query.
+     * @param distinctIterable the distinct query
+     * @param hints the hints
+     * @param <T> the type of the values
+     * @return the distinct query
+     */
+    public static <T> DistinctIterable<T> applyHints(final DistinctIterable<T> distinctIterable,
+                                                     final QueryHintHolder hints) {
+        if (hints.getMaxTimeMS() != null) {
+            distinctIterable.maxTime(hints.getMaxTimeMS(), TimeUnit.MILLISECONDS);
+        }
+        if (hints.getBatchSize() != null) {
+            distinctIterable.batchSize(hints.getBatchSize());
+        }
+        if (hints.getCollation() != null) {
+            distinctIterable.collation(hints.getCollation());
+        }
+        return distinctIterable;
+    }
+
+    /**
+     * Apply the time limit and the collation of the hints to an aggregation.  The index, the batch size and
+     * allowDiskUse are merged with the options of the {@link
+     * com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter.Builder} by the caller.
+     * @param aggregateIterable the aggregation
+     * @param hints the hints
+     * @param <T> the type of the documents
+     * @return the aggregation
+     */
+    public static <T> AggregateIterable<T> applyHints(final AggregateIterable<T> aggregateIterable,
+                                                      final QueryHintHolder hints) {
+        if (hints.getMaxTimeMS() != null) {
+            aggregateIterable.maxTime(hints.getMaxTimeMS(), TimeUnit.MILLISECONDS);
+        }
+        if (hints.getCollation() != null) {
+            aggregateIterable.collation(hints.getCollation());
+        }
+        return aggregateIterable;
+    }
+
+    /**
+     * Get the {@link CountOptions} of a count query with hints.
+     * @param hints the hints
+     * @return the {@link CountOptions}
+     */
+    public static CountOptions getCountOptions(final QueryHintHolder hints) {
+        CountOptions countOptions = new CountOptions();
+        if (hints.getIndex() != null) {
+            countOptions.hintString(hints.getIndex());
+        }
+        if (hints.getMaxTimeMS() != null) {
+            countOptions.maxTime(hints.getMaxTimeMS(), TimeUnit.MILLISECONDS);
+        }
+        if (hints.getCollation() != null) {
+            countOptions.collation(hints.getCollation());
+        }
+        return countOptions;
+    }
+
+    /**
+     * Get the {@link EstimatedDocumentCountOptions} of an estimated count with hints.
+     * @param hints the hints
+     * @return the {@link EstimatedDocumentCountOptions}
+     */
+    public static EstimatedDocumentCountOptions getEstimatedDocumentCountOptions(final QueryHintHolder hints) {
+        EstimatedDocumentCountOptions options = new EstimatedDocumentCountOptions();
+        if (hints.getMaxTimeMS() != null) {
+            options.maxTime(hints.getMaxTimeMS(), TimeUnit.MILLISECONDS);
+        }
+        return options;
+    }
+
+    private static void addHint(final QueryHintHolder hints, final String name, final String argument)
+            throws ParseException {
+        String value = argument != null ? argument.trim() : null;
+        SqlUtils.isTrue(HINT_NAMES.contains(name), "unknown hint " + name);
+        SqlUtils.isTrue(("ALLOWDISK".equals(name) || "NOCURSORTIMEOUT".equals(name)) == (value == null),
+                "wrong argument for hint " + name);
+        try {
+            switch (name) {
+                case "INDEX":
+                    hints.setIndex(value.replaceAll("^[\"'`]|[\"'`]$", ""));
+                    break;
+                case "MAXTIME":
+                    hints.setMaxTimeMS(Long.parseLong(value));
+                    break;
+                case "BATCHSIZE":
+                    hints.setBatchSize(Integer.parseInt(value));
+                    break;
+                case "READ":
+                    hints.setReadPreference(ReadPreference.valueOf(value));
+                    break;
+                case "ALLOWDISK":
+                    hints.setAllowDiskUse(true);
+                    break;
+                case "NOCURSORTIMEOUT":
+                    hints.setNoCursorTimeout(true);
+                    break;
+                case "COLLATION":
+                    String[] parts = value.split("\\s*,\\s*");
+                    Collation.Builder collation = Collation.builder().locale(parts[0]);
+                    if (parts.length > 1) {
+                        collation.collationStrength(CollationStrength.fromInt(Integer.parseInt(parts[1])));
+                    }
+                    hints.setCollation(collation.build());
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("wrong argument for hint " + name + ": " + value);
+        }
+    }
+
+}
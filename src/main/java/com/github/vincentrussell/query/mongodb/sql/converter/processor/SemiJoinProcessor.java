@@ -0,0 +1,343 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.FieldType;
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.SemiJoinHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.FromHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.SQLCommandInfoHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import com.github.vincentrussell.query.mongodb.sql.converter.visitor.CorrelatedSubqueryVisitor;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.expression.NotExpression;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.relational.ExistsExpression;
+import net.sf.jsqlparser.expression.operators.relational.InExpression;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.select.AllColumns;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import net.sf.jsqlparser.statement.select.SubSelect;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class used to help with IN (SELECT ...) and EXISTS (SELECT ...) conditions, which are compiled to semi joins
+ * and anti joins with $lookup.
+ */
+public final class SemiJoinProcessor {
+
+    private static final String SEMI_JOIN_FIELD_PREFIX = "__semi_join_";
+
+    private SemiJoinProcessor() {
+
+    }
+
+    /**
+     * Will return true if the expression is an IN (SELECT ...) or an EXISTS (SELECT ...), which can be negated with
+     * NOT, i.e: NOT EXISTS (SELECT ...).
+     * @param expression the expression
+     * @return true if the expression is an IN (SELECT ...) or an EXISTS (SELECT ...)
+     */
+    public static boolean isSemiJoin(final Expression expression) {
+        Expression unwrapped = unwrapNot(expression);
+        return (InExpression.class.isInstance(unwrapped) && getSubSelect((InExpression) unwrapped) != null)
+                || (ExistsExpression.class.isInstance(unwrapped)
+                && SubSelect.class.isInstance(((ExistsExpression) unwrapped).getRightExpression()));
+    }
+
+    /**
+     * Remove the IN (SELECT ...) and EXISTS (SELECT ...) conditions that are joined with AND at the top
+     * level of the where clause.
+     * @param whereClause the where clause
+     * @param semiJoins the list that the removed conditions are added to
+     * @return the where clause without the conditions or null if nothing is left
+     */
+    public static Expression extractSemiJoins(final Expression whereClause, final List<Expression> semiJoins) {
+        List<Expression> remaining = new ArrayList<>();
+        for (Expression expression : splitAnd(whereClause)) {
+            if (isSemiJoin(expression)) {
+                semiJoins.add(expression);
+            } else {
+                remaining.add(expression);
+            }
+        }
+        if (semiJoins.isEmpty()) {
+            return whereClause;
+        }
+        return joinAnd(remaining);
+    }
+
+    /**
+     * Create the semi joins for the IN (SELECT ...) and EXISTS (SELECT ...) conditions.  Each condition becomes:
+     * <pre>
+     *     {
+     *       "$lookup": {
+     *         "from": "subqueryCollection",
+     *         "let": { outer fields },
+     *         "pipeline": [ correlation match, subquery steps, IN match, { "$limit": 1 } ],
+     *         "as": "__semi_join_0"
+     *       }
+     *     },
+     *     { "$match": { "__semi_join_0": { "$size": 1 } } }
+     * </pre>
+     * NOT IN and NOT EXISTS match on a size of 0 instead.
+     * @param queryConverter the {@link QueryConverter}
+     * @param tholder the {@link FromHolder} of the outer query
+     * @param semiJoins the IN (SELECT ...) and EXISTS (SELECT ...) conditions
+     * @param defaultFieldType the default {@link FieldType}
+     * @param fieldNameToFieldTypeMapping the field name to {@link FieldType} map
+     * @return the semi joins
+     * @throws ParseException if there is an issue parsing the sql
+     * @throws net.sf.jsqlparser.parser.ParseException if there is an issue parsing the sql
+     */
+    public static List<SemiJoinHolder> toSemiJoinHolders(final QueryConverter queryConverter,
+                                                         final FromHolder tholder,
+                                                         final List<Expression> semiJoins,
+                                                         final FieldType defaultFieldType,
+                                                         final Map<String, FieldType> fieldNameToFieldTypeMapping)
+            throws ParseException, net.sf.jsqlparser.parser.ParseException {
+        Set<String> outerTables = new HashSet<>();
+        outerTables.add(tholder.getBaseFromTableName());
+        if (tholder.getBaseAliasTable() != null) {
+            outerTables.add(tholder.getBaseAliasTable());
+        }
+        List<SemiJoinHolder> semiJoinHolders = new ArrayList<>();
+        for (Expression semiJoin : semiJoins) {
+            semiJoinHolders.add(toSemiJoinHolder(queryConverter, outerTables, semiJoin,
+                    SEMI_JOIN_FIELD_PREFIX + semiJoinHolders.size(), defaultFieldType,
+                    fieldNameToFieldTypeMapping));
+        }
+        return semiJoinHolders;
+    }
+
+    /**
+     * Create the step that removes the temporary fields written by the $lookup steps.
+     * @param semiJoinHolders the semi joins
+     * @param inlineValues the values of the semi joins that were run ahead of time and replaced with $in
+     * @return the $project step or null if no $lookup steps are used
+     */
+    public static Document generateCleanUpStep(final List<SemiJoinHolder> semiJoinHolders,
+                                               final Map<SemiJoinHolder, List<Object>> inlineValues) {
+        Document project = new Document();
+        for (SemiJoinHolder semiJoinHolder : semiJoinHolders) {
+            if (!inlineValues.containsKey(semiJoinHolder)) {
+                project.put(semiJoinHolder.getAs(), 0);
+            }
+        }
+        return project.isEmpty() ? null : new Document("$project", project);
+    }
+
+    private static SemiJoinHolder toSemiJoinHolder(final QueryConverter queryConverter, final Set<String> outerTables,
+                                                   final Expression semiJoin, final String as,
+                                                   final FieldType defaultFieldType,
+                                                   final Map<String, FieldType> fieldNameToFieldTypeMapping)
+            throws ParseException, net.sf.jsqlparser.parser.ParseException {
+        SubSelect subSelect;
+        String outerField = null;
+        boolean not;
+        Expression unwrapped = unwrapNot(semiJoin);
+        if (InExpression.class.isInstance(unwrapped)) {
+            InExpression inExpression = (InExpression) unwrapped;
+            SqlUtils.isTrue(SqlUtils.isColumn(inExpression.getLeftExpression()),
+                    "only columns are supported on the left side of IN (SELECT ...): " + semiJoin);
+            subSelect = getSubSelect(inExpression);
+            outerField = getOuterFieldName((Column) inExpression.getLeftExpression(), outerTables);
+            not = inExpression.isNot();
+        } else {
+            ExistsExpression existsExpression = (ExistsExpression) unwrapped;
+            subSelect = (SubSelect) existsExpression.getRightExpression();
+            not = existsExpression.isNot();
+        }
+        not ^= isNegated(semiJoin);
+        SqlUtils.isTrue(PlainSelect.class.isInstance(subSelect.getSelectBody()),
+                "only simple selects are supported in a subquery: " + subSelect);
+        PlainSelect plainSelect = (PlainSelect) subSelect.getSelectBody();
+        SqlUtils.isTrue(Table.class.isInstance(plainSelect.getFromItem()),
+                "only tables are supported in the from of a subquery: " + subSelect);
+        Table table = (Table) plainSelect.getFromItem();
+        Set<String> innerTables = new HashSet<>();
+        innerTables.add(table.getName());
+        if (table.getAlias() != null) {
+            innerTables.add(table.getAlias().getName());
+        }
+
+        List<Expression> correlations = new ArrayList<>();
+        List<Expression> subqueryConditions = new ArrayList<>();
+        for (Expression expression : splitAnd(plainSelect.getWhere())) {
+            CorrelatedSubqueryVisitor visitor = new CorrelatedSubqueryVisitor(outerTables, innerTables, null);
+            expression.accept(visitor);
+            if (visitor.isCorrelated()) {
+                correlations.add(expression);
+            } else {
+                subqueryConditions.add(expression);
+            }
+        }
+        //the columns of the subquery are fields of the documents of its collection, i.e: u.d is d
+        ExpressionVisitorAdapter unqualify = new ExpressionVisitorAdapter() {
+            @Override
+            public void visit(final Column column) {
+                if (SqlUtils.isColumn(column)) {
+                    String fieldName = getInnerFieldName(column, innerTables);
+                    if (!fieldName.equals(column.getName(false))) {
+                        column.setTable(null);
+                        column.setColumnName(fieldName);
+                    }
+                }
+            }
+        };
+        for (Expression expression : subqueryConditions) {
+            expression.accept(unqualify);
+        }
+        for (SelectItem selectItem : plainSelect.getSelectItems()) {
+            if (SelectExpressionItem.class.isInstance(selectItem)) {
+                ((SelectExpressionItem) selectItem).getExpression().accept(unqualify);
+            }
+        }
+        plainSelect.setWhere(joinAnd(subqueryConditions));
+
+        String subqueryField = null;
+        String subqueryColumn = null;
+        if (outerField != null) {
+            SqlUtils.isTrue(plainSelect.getSelectItems().size() == 1
+                            && SelectExpressionItem.class.isInstance(plainSelect.getSelectItems().get(0)),
+                    "a subquery used with IN must select exactly one column: " + subSelect);
+            SelectExpressionItem selectItem = (SelectExpressionItem) plainSelect.getSelectItems().get(0);
+            if (SqlUtils.isColumn(selectItem.getExpression())) {
+                subqueryColumn = getInnerFieldName((Column) selectItem.getExpression(), innerTables);
+            }
+        } else if (plainSelect.getGroupBy() == null) {
+            //the select list of EXISTS does not matter
+            plainSelect.setSelectItems(Collections.<SelectItem>singletonList(new AllColumns()));
+        }
+
+        Select select = new Select();
+        select.setSelectBody(plainSelect);
+        SQLCommandInfoHolder subqueryHolder = SQLCommandInfoHolder.Builder.create(defaultFieldType,
+                fieldNameToFieldTypeMapping).setStatement(select).build();
+        List<Document> subqueryPipeline = queryConverter.fromSQLCommandInfoHolderToAggregateSteps(subqueryHolder);
+        if (outerField != null) {
+            subqueryField = UnionProcessor.getOutputFieldNames(subqueryHolder.getSelectItems()).get(0);
+        }
+
+        Document lets = new Document();
+        List<Document> lookupPipeline = new LinkedList<>();
+        if (!correlations.isEmpty()) {
+            CorrelatedSubqueryVisitor visitor = new CorrelatedSubqueryVisitor(outerTables, innerTables, lets);
+            Expression correlation = joinAnd(correlations);
+            correlation.accept(visitor);
+            lookupPipeline.add(new Document("$match", new WhereClauseProcessor(defaultFieldType,
+                    fieldNameToFieldTypeMapping, true)
+                    .parseExpression(new Document(), correlation, null)));
+        }
+        Document inMatch = null;
+        if (outerField != null) {
+            String variable = CorrelatedSubqueryVisitor.getVariable(lets, outerField);
+            boolean canMatchFirst = subqueryColumn != null && isSimpleSelect(subqueryHolder);
+            inMatch = new Document("$match", new Document("$expr", new Document("$eq",
+                    Arrays.asList("$" + (canMatchFirst ? subqueryColumn : subqueryField), "$$" + variable))));
+            if (canMatchFirst) {
+                lookupPipeline.add(inMatch);
+                inMatch = null;
+            }
+        }
+        lookupPipeline.addAll(subqueryPipeline);
+        if (inMatch != null) {
+            lookupPipeline.add(inMatch);
+        }
+        lookupPipeline.add(new Document("$limit", 1));
+
+        Document lookup = new Document("$lookup", new Document("from", table.getName())
+                .append("let", lets)
+                .append("pipeline", lookupPipeline)
+                .append("as", as));
+        return new SemiJoinHolder(table.getName(), as, lookup, subqueryPipeline, outerField, subqueryField,
+                not, !correlations.isEmpty());
+    }
+
+    //NOT EXISTS (SELECT ...) and NOT (a IN (SELECT ...)) are parsed as a NotExpression around the condition
+    private static Expression unwrapNot(final Expression expression) {
+        if (NotExpression.class.isInstance(expression)) {
+            return unwrapNot(((NotExpression) expression).getExpression());
+        } else if (Parenthesis.class.isInstance(expression)) {
+            return unwrapNot(((Parenthesis) expression).getExpression());
+        }
+        return expression;
+    }
+
+    private static boolean isNegated(final Expression expression) {
+        if (NotExpression.class.isInstance(expression)) {
+            return !isNegated(((NotExpression) expression).getExpression());
+        } else if (Parenthesis.class.isInstance(expression)) {
+            return isNegated(((Parenthesis) expression).getExpression());
+        }
+        return false;
+    }
+
+    private static SubSelect getSubSelect(final InExpression inExpression) {
+        if (SubSelect.class.isInstance(inExpression.getRightExpression())) {
+            return (SubSelect) inExpression.getRightExpression();
+        } else if (SubSelect.class.isInstance(inExpression.getRightItemsList())) {
+            return (SubSelect) inExpression.getRightItemsList();
+        }
+        return null;
+    }
+
+    private static boolean isSimpleSelect(final SQLCommandInfoHolder sqlCommandInfoHolder) {
+        return sqlCommandInfoHolder.getGroupBys().isEmpty() && !sqlCommandInfoHolder.isTotalGroup()
+                && !sqlCommandInfoHolder.isDistinct() && sqlCommandInfoHolder.getLimit() == -1
+                && sqlCommandInfoHolder.getOffset() == -1;
+    }
+
+    private static String getOuterFieldName(final Column column, final Set<String> outerTables) {
+        String columnName = column.getName(false);
+        int dotIndex = columnName.indexOf('.');
+        if (dotIndex > 0 && outerTables.contains(columnName.substring(0, dotIndex))) {
+            return columnName.substring(dotIndex + 1);
+        }
+        return columnName;
+    }
+
+    private static String getInnerFieldName(final Column column, final Set<String> innerTables) {
+        return getOuterFieldName(column, innerTables);
+    }
+
+    private static List<Expression> splitAnd(final Expression expression) {
+        List<Expression> expressions = new ArrayList<>();
+        if (expression == null) {
+            return expressions;
+        }
+        if (AndExpression.class.isInstance(expression)) {
+            expressions.addAll(splitAnd(((AndExpression) expression).getLeftExpression()));
+            expressions.addAll(splitAnd(((AndExpression) expression).getRightExpression()));
+        } else if (Parenthesis.class.isInstance(expression)
+                && AndExpression.class.isInstance(((Parenthesis) expression).getExpression())) {
+            expressions.addAll(splitAnd(((Parenthesis) expression).getExpression()));
+        } else {
+            expressions.add(expression);
+        }
+        return expressions;
+    }
+
+    private static Expression joinAnd(final List<Expression> expressions) {
+        Expression result = null;
+        for (Expression expression : expressions) {
+            result = result == null ? expression : new AndExpression(result, expression);
+        }
+        return result;
+    }
+
+}
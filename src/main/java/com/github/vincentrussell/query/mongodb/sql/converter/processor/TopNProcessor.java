@@ -0,0 +1,107 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class used to optimize top-n (ORDER BY ... LIMIT) aggregation pipelines.
+ */
+public final class TopNProcessor {
+
+    private static final String SORT = "$sort";
+    private static final String SKIP = "$skip";
+    private static final String LIMIT = "$limit";
+    private static final String LOOKUP = "$lookup";
+    private static final String UNWIND = "$unwind";
+
+    private TopNProcessor() {
+
+    }
+
+    /**
+     * Rewrite the pipeline so that the server can use a bounded top-k sort.
+     * <ul>
+     *     <li>$sort, $skip(k), $limit(n) becomes $sort, $limit(k+n), $skip(k) so that $limit directly follows
+     *     $sort.</li>
+     *     <li>When a $sort and $limit follow left join $lookup/$unwind steps and only sort on base collection fields,
+     *     the $sort and $limit are also done before the $lookup steps.  Every base document produces at least one
+     *     row and $lookup/$unwind keep the order, so only the first k+n base documents need to be joined.</li>
+     * </ul>
+     * @param pipeline the aggregation pipeline
+     * @return the optimized aggregation pipeline
+     */
+    public static List<Document> optimize(final List<Document> pipeline) {
+        List<Document> optimized = new ArrayList<>(pipeline);
+        moveLimitNextToSort(optimized);
+        moveSortAndLimitBeforeLookups(optimized);
+        return optimized;
+    }
+
+    private static void moveLimitNextToSort(final List<Document> pipeline) {
+        for (int i = 0; i + 2 < pipeline.size(); i++) {
+            if (isStep(pipeline.get(i), SORT) && isStep(pipeline.get(i + 1), SKIP)
+                    && isStep(pipeline.get(i + 2), LIMIT)) {
+                Document skip = pipeline.get(i + 1);
+                long limit = getNumber(skip, SKIP) + getNumber(pipeline.get(i + 2), LIMIT);
+                pipeline.set(i + 1, new Document(LIMIT, limit));
+                pipeline.set(i + 2, skip);
+            }
+        }
+    }
+
+    private static void moveSortAndLimitBeforeLookups(final List<Document> pipeline) {
+        int sortIndex = -1;
+        for (int i = 0; i + 1 < pipeline.size(); i++) {
+            if (isStep(pipeline.get(i), SORT) && isStep(pipeline.get(i + 1), LIMIT)) {
+                sortIndex = i;
+                break;
+            }
+        }
+        if (sortIndex < 2) {
+            return;
+        }
+
+        int firstLookupIndex = sortIndex;
+        Set<String> joinedAliases = new HashSet<>();
+        while (firstLookupIndex >= 2 && isStep(pipeline.get(firstLookupIndex - 2), LOOKUP)
+                && isPreservingUnwind(pipeline.get(firstLookupIndex - 1))) {
+            joinedAliases.add(pipeline.get(firstLookupIndex - 2).get(LOOKUP, Document.class).getString("as"));
+            firstLookupIndex -= 2;
+        }
+        if (joinedAliases.isEmpty()) {
+            return;
+        }
+
+        Document sort = pipeline.get(sortIndex);
+        for (String sortField : sort.get(SORT, Document.class).keySet()) {
+            for (String joinedAlias : joinedAliases) {
+                if (sortField.equals(joinedAlias) || sortField.startsWith(joinedAlias + ".")) {
+                    return;
+                }
+            }
+        }
+
+        Document limit = pipeline.get(sortIndex + 1);
+        pipeline.remove(sortIndex);
+        pipeline.add(firstLookupIndex, new Document(limit));
+        pipeline.add(firstLookupIndex, sort);
+    }
+
+    private static boolean isPreservingUnwind(final Document step) {
+        return isStep(step, UNWIND) && step.get(UNWIND) instanceof Document
+                && Boolean.TRUE.equals(step.get(UNWIND, Document.class).get("preserveNullAndEmptyArrays"));
+    }
+
+    private static boolean isStep(final Document step, final String operator) {
+        return step.size() == 1 && step.containsKey(operator);
+    }
+
+    private static long getNumber(final Document step, final String operator) {
+        return ((Number) step.get(operator)).longValue();
+    }
+
+}
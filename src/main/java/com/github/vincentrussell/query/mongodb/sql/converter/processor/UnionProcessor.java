@@ -0,0 +1,153 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.from.SQLCommandInfoHolder;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import net.sf.jsqlparser.statement.select.SetOperation;
+import net.sf.jsqlparser.statement.select.UnionOp;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class used to help with sql UNION and UNION ALL.
+ */
+public final class UnionProcessor {
+
+    private UnionProcessor() {
+
+    }
+
+    /**
+     * Create the aggregation pipeline steps needed to perform a union.  The first select runs against the base
+     * collection and each of the other selects is added with $unionWith.  Like this:
+     * <pre>
+     *     {
+     *       "$unionWith": {
+     *         "coll": "otherCollection",
+     *         "pipeline": [ steps for the select ]
+     *       }
+     *     }
+     * </pre>
+     * UNION (without ALL) removes the duplicates from everything before it with:
+     * <pre>
+     *     { "$group": { "_id": "$$ROOT" } },
+     *     { "$replaceRoot": { "newRoot": "$_id" } }
+     * </pre>
+     * @param queryConverter the {@link QueryConverter}
+     * @param unionSelects the selects that are combined
+     * @param unionOperations the UNION or UNION ALL operations between the selects
+     * @return the aggregation pipeline steps
+     * @throws ParseException if there is an issue parsing the sql
+     * @throws net.sf.jsqlparser.parser.ParseException if there is an issue parsing the sql
+     */
+    public static List<Document> toPipelineSteps(final QueryConverter queryConverter,
+                                                 final List<SQLCommandInfoHolder> unionSelects,
+                                                 final List<SetOperation> unionOperations)
+            throws ParseException, net.sf.jsqlparser.parser.ParseException {
+        SQLCommandInfoHolder firstSelect = unionSelects.get(0);
+        List<Document> steps = new LinkedList<>(queryConverter.fromSQLCommandInfoHolderToAggregateSteps(firstSelect));
+        List<String> fieldNames = getOutputFieldNames(firstSelect.getSelectItems());
+
+        for (int i = 1; i < unionSelects.size(); i++) {
+            SQLCommandInfoHolder unionSelect = unionSelects.get(i);
+            List<Document> pipeline = new LinkedList<>(
+                    queryConverter.fromSQLCommandInfoHolderToAggregateSteps(unionSelect));
+            Document rename = generateRenameProjection(fieldNames,
+                    getOutputFieldNames(unionSelect.getSelectItems()));
+            if (rename != null) {
+                addRenameProjection(pipeline, rename);
+            }
+            steps.add(new Document("$unionWith", new Document("coll", unionSelect.getBaseTableName())
+                    .append("pipeline", pipeline)));
+
+            if (!((UnionOp) unionOperations.get(i - 1)).isAll()) {
+                steps.add(new Document("$group", new Document("_id", "$$ROOT")));
+                steps.add(new Document("$replaceRoot", new Document("newRoot", "$_id")));
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Add the rename projection to the pipeline.  If the pipeline already ends with a $project the rename is merged
+     * into it so that the fields are not projected twice.
+     * @param pipeline the pipeline of the select
+     * @param rename the rename projection
+     */
+    private static void addRenameProjection(final List<Document> pipeline, final Document rename) {
+        int lastIndex = pipeline.size() - 1;
+        if (lastIndex < 0 || !pipeline.get(lastIndex).containsKey("$project")) {
+            pipeline.add(new Document("$project", rename));
+            return;
+        }
+        Document projection = pipeline.get(lastIndex).get("$project", Document.class);
+        Document merged = new Document("_id", 0);
+        for (Map.Entry<String, Object> renamed : rename.entrySet()) {
+            if ("_id".equals(renamed.getKey())) {
+                continue;
+            }
+            Object projected = projection.get(((String) renamed.getValue()).substring(1));
+            merged.put(renamed.getKey(), projected == null || Integer.valueOf(1).equals(projected)
+                    || Boolean.TRUE.equals(projected) ? renamed.getValue() : projected);
+        }
+        pipeline.set(lastIndex, new Document("$project", merged));
+    }
+
+    /**
+     * Get the names of the fields for each select item or null if a name can not be determined,
+     * i.e: select * or a function without an alias.
+     * @param selectItems the {@link SelectItem}s of the select
+     * @return the names of the fields or null
+     */
+    static List<String> getOutputFieldNames(final List<SelectItem> selectItems) {
+        List<String> fieldNames = new ArrayList<>();
+        for (SelectItem selectItem : selectItems) {
+            if (!SelectExpressionItem.class.isInstance(selectItem)) {
+                return null;
+            }
+            SelectExpressionItem selectExpressionItem = (SelectExpressionItem) selectItem;
+            if (selectExpressionItem.getAlias() != null) {
+                fieldNames.add(selectExpressionItem.getAlias().getName());
+            } else if (Column.class.isInstance(selectExpressionItem.getExpression())) {
+                fieldNames.add(SqlUtils.getStringValue(selectExpressionItem.getExpression()));
+            } else {
+                return null;
+            }
+        }
+        return fieldNames;
+    }
+
+    /**
+     * Sql matches the columns of a union by position and mongo by name, so the fields of the other selects are
+     * renamed to the names from the first select.
+     * @param fieldNames the field names from the first select
+     * @param unionFieldNames the field names from the other select
+     * @return the $project to rename the fields or null if no renaming is needed
+     * @throws ParseException if the selects have a different number of columns
+     */
+    private static Document generateRenameProjection(final List<String> fieldNames,
+                                                     final List<String> unionFieldNames) throws ParseException {
+        if (fieldNames == null || unionFieldNames == null) {
+            return null;
+        }
+        SqlUtils.isTrue(fieldNames.size() == unionFieldNames.size(),
+                "each select in a UNION must have the same number of columns");
+        if (fieldNames.equals(unionFieldNames)) {
+            return null;
+        }
+        Document rename = new Document("_id", 0);
+        for (int i = 0; i < fieldNames.size(); i++) {
+            rename.put(fieldNames.get(i), "$" + unionFieldNames.get(i));
+        }
+        return rename;
+    }
+
+}
@@ -241,6 +241,9 @@ public class WhereClauseProcessor {
                 query.put(SqlUtils.getStringValue(isNullExpression.getLeftExpression()),
                     new Document("$exists", isNullExpression.isNot()));
             }
+        } else if (SemiJoinProcessor.isSemiJoin(incomingExpression)) {
+            throw new ParseException("IN (SELECT ...) and EXISTS (SELECT ...) are only supported "
+                    + "when joined with AND in the where clause");
         } else if (InExpression.class.isInstance(incomingExpression)) {
             final InExpression inExpression = (InExpression) incomingExpression;
             final Expression leftExpression = ((InExpression) incomingExpression).getLeftExpression();
@@ -0,0 +1,279 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.processor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.FieldType;
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import net.sf.jsqlparser.expression.AnalyticExpression;
+import net.sf.jsqlparser.expression.AnalyticType;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.WindowElement;
+import net.sf.jsqlparser.expression.WindowOffset;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.statement.select.OrderByElement;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+
+/**
+ * Class used to help with sql window functions, i.e: ROW_NUMBER() OVER (PARTITION BY a ORDER BY b).
+ */
+public final class WindowFunctionProcessor {
+
+    private static final String UNBOUNDED = "unbounded";
+    private static final String CURRENT = "current";
+
+    private WindowFunctionProcessor() {
+
+    }
+
+    /**
+     * Will return true if the {@link SelectItem} is a window function, i.e: RANK() OVER (ORDER BY score).
+     * @param selectItem the {@link SelectItem}
+     * @return true if the {@link SelectItem} is a window function
+     */
+    public static boolean isWindowFunction(final SelectItem selectItem) {
+        return SelectExpressionItem.class.isInstance(selectItem)
+                && AnalyticExpression.class.isInstance(((SelectExpressionItem) selectItem).getExpression());
+    }
+
+    /**
+     * Will return true if any of the {@link SelectItem}s is a window function.
+     * @param selectItems list of {@link SelectItem}s
+     * @return true if any of the {@link SelectItem}s is a window function
+     */
+    public static boolean hasWindowFunctions(final List<SelectItem> selectItems) {
+        if (selectItems == null) {
+            return false;
+        }
+        for (SelectItem selectItem : selectItems) {
+            if (isWindowFunction(selectItem)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the name of the field that the window function will be written to.  This is the alias if there is one,
+     * otherwise the function name and the field, i.e: SUM(amount) OVER (...) -&gt; sum_amount.
+     * @param selectExpressionItem the {@link SelectExpressionItem} with the window function
+     * @return the name of the field that the window function will be written to
+     */
+    public static String getOutputField(final SelectExpressionItem selectExpressionItem) {
+        if (selectExpressionItem.getAlias() != null) {
+            return selectExpressionItem.getAlias().getName();
+        }
+        AnalyticExpression analyticExpression = (AnalyticExpression) selectExpressionItem.getExpression();
+        String functionName = analyticExpression.getName().toLowerCase();
+        if (analyticExpression.getExpression() == null || analyticExpression.isAllColumns()) {
+            return functionName;
+        }
+        return functionName + "_" + SqlUtils.getStringValue(analyticExpression.getExpression()).replaceAll("\\.", "_");
+    }
+
+    /**
+     * Create the $setWindowFields steps needed to compute the window functions.  Window functions that share the
+     * same PARTITION BY and ORDER BY are computed in the same step.  Like this:
+     * <pre>
+     *     {
+     *       "$setWindowFields": {
+     *         "partitionBy": "$region",
+     *         "sortBy": { "amount": -1 },
+     *         "output": {
+     *           "rank": { "$rank": {} },
+     *           "running_total": { "$sum": "$amount", "window": { "range": [ "unbounded", "current" ] } }
+     *         }
+     *       }
+     *     }
+     * </pre>
+     * @param selectItems the {@link SelectItem}s from the query
+     * @param baseAliasTable the alias for the base table
+     * @param defaultFieldType the default {@link FieldType}
+     * @param fieldNameToFieldTypeMapping the mapping from field name to {@link FieldType}
+     * @return the $setWindowFields steps
+     * @throws ParseException if a window function is not supported
+     */
+    public static List<Document> toPipelineSteps(final List<SelectItem> selectItems, final String baseAliasTable,
+                                                 final FieldType defaultFieldType,
+                                                 final Map<String, FieldType> fieldNameToFieldTypeMapping)
+            throws ParseException {
+        Map<String, Document> windowFieldsBySpecification = new LinkedHashMap<>();
+        for (SelectItem selectItem : selectItems) {
+            if (!isWindowFunction(selectItem)) {
+                continue;
+            }
+            SelectExpressionItem selectExpressionItem = (SelectExpressionItem) selectItem;
+            AnalyticExpression analyticExpression = (AnalyticExpression) selectExpressionItem.getExpression();
+            SqlUtils.isTrue(AnalyticType.OVER.equals(analyticExpression.getType()),
+                    "only OVER is supported for window functions: " + analyticExpression);
+
+            Object partitionBy = generatePartitionBy(analyticExpression, baseAliasTable);
+            Document sortBy = generateSortBy(analyticExpression, baseAliasTable);
+            String specification = partitionBy + "|" + sortBy.toJson();
+            Document windowFields = windowFieldsBySpecification.get(specification);
+            if (windowFields == null) {
+                windowFields = new Document();
+                if (partitionBy != null) {
+                    windowFields.put("partitionBy", partitionBy);
+                }
+                if (!sortBy.isEmpty()) {
+                    windowFields.put("sortBy", sortBy);
+                }
+                windowFields.put("output", new Document());
+                windowFieldsBySpecification.put(specification, windowFields);
+            }
+            FieldType sortFieldType = sortBy.size() == 1 ? firstNonNull(
+                    fieldNameToFieldTypeMapping.get(sortBy.keySet().iterator().next()), defaultFieldType) : null;
+            Document output = generateOutput(analyticExpression, sortBy, sortFieldType, baseAliasTable);
+            windowFields.get("output", Document.class).put(getOutputField(selectExpressionItem), output);
+        }
+
+        List<Document> steps = new ArrayList<>();
+        for (Document windowFields : windowFieldsBySpecification.values()) {
+            steps.add(new Document("$setWindowFields", windowFields));
+        }
+        return steps;
+    }
+
+    private static String getFieldName(final Expression expression, final String baseAliasTable)
+            throws ParseException {
+        SqlUtils.isTrue(SqlUtils.isColumn(expression),
+                "only columns are supported in window functions: " + expression);
+        Column column = (Column) expression;
+        if (baseAliasTable != null) {
+            SqlUtils.removeAliasFromColumn(column, baseAliasTable);
+        }
+        return SqlUtils.getStringValue(column);
+    }
+
+    private static Object generatePartitionBy(final AnalyticExpression analyticExpression,
+                                              final String baseAliasTable) throws ParseException {
+        if (analyticExpression.getPartitionExpressionList() == null
+                || analyticExpression.getPartitionExpressionList().getExpressions() == null
+                || analyticExpression.getPartitionExpressionList().getExpressions().isEmpty()) {
+            return null;
+        }
+        List<Expression> expressions = analyticExpression.getPartitionExpressionList().getExpressions();
+        if (expressions.size() == 1) {
+            return "$" + getFieldName(expressions.get(0), baseAliasTable);
+        }
+        Document partitionBy = new Document();
+        for (Expression expression : expressions) {
+            String fieldName = getFieldName(expression, baseAliasTable);
+            partitionBy.put(fieldName.replaceAll("\\.", "_"), "$" + fieldName);
+        }
+        return partitionBy;
+    }
+
+    private static Document generateSortBy(final AnalyticExpression analyticExpression,
+                                           final String baseAliasTable) throws ParseException {
+        Document sortBy = new Document();
+        List<OrderByElement> orderByElements = analyticExpression.getOrderByElements() != null
+                ? analyticExpression.getOrderByElements() : Collections.<OrderByElement>emptyList();
+        for (OrderByElement orderByElement : orderByElements) {
+            sortBy.put(getFieldName(orderByElement.getExpression(), baseAliasTable), orderByElement.isAsc() ? 1 : -1);
+        }
+        return sortBy;
+    }
+
+    private static Document generateOutput(final AnalyticExpression analyticExpression, final Document sortBy,
+                                           final FieldType sortFieldType, final String baseAliasTable)
+            throws ParseException {
+        String functionName = analyticExpression.getName().toLowerCase();
+        switch (functionName) {
+            case "row_number":
+                SqlUtils.isFalse(sortBy.isEmpty(), "ROW_NUMBER requires ORDER BY in the OVER clause");
+                return new Document("$documentNumber", new Document());
+            case "rank":
+            case "dense_rank":
+                SqlUtils.isTrue(sortBy.size() == 1,
+                        analyticExpression.getName() + " requires ORDER BY on exactly one field in the OVER clause");
+                return new Document("rank".equals(functionName) ? "$rank" : "$denseRank", new Document());
+            case "lag":
+            case "lead":
+                SqlUtils.isFalse(sortBy.isEmpty(),
+                        analyticExpression.getName() + " requires ORDER BY in the OVER clause");
+                return new Document("$shift", generateShift(analyticExpression, baseAliasTable));
+            case "count":
+                return addWindow(new Document("$sum", 1), analyticExpression, sortBy, sortFieldType);
+            case "sum":
+            case "avg":
+            case "min":
+            case "max":
+                return addWindow(new Document("$" + functionName,
+                        "$" + getFieldName(analyticExpression.getExpression(), baseAliasTable)),
+                        analyticExpression, sortBy, sortFieldType);
+            default:
+                throw new ParseException("window function not supported: " + analyticExpression.getName());
+        }
+    }
+
+    private static Document generateShift(final AnalyticExpression analyticExpression,
+                                          final String baseAliasTable) throws ParseException {
+        long offset = 1;
+        if (analyticExpression.getOffset() != null) {
+            SqlUtils.isTrue(LongValue.class.isInstance(analyticExpression.getOffset()),
+                    analyticExpression.getName() + " offset must be a number");
+            offset = ((LongValue) analyticExpression.getOffset()).getValue();
+        }
+        Document shift = new Document("output", "$" + getFieldName(analyticExpression.getExpression(),
+                baseAliasTable));
+        shift.put("by", "lag".equals(analyticExpression.getName().toLowerCase()) ? -offset : offset);
+        if (analyticExpression.getDefaultValue() != null) {
+            shift.put("default", SqlUtils.getNormalizedValue(analyticExpression.getDefaultValue(), null,
+                    FieldType.UNKNOWN, Collections.<String, FieldType>emptyMap(), null));
+        }
+        return shift;
+    }
+
+    private static Document addWindow(final Document output, final AnalyticExpression analyticExpression,
+                                      final Document sortBy, final FieldType sortFieldType) throws ParseException {
+        WindowElement windowElement = analyticExpression.getWindowElement();
+        if (windowElement == null) {
+            //without a frame the sql default is all rows up to the current row and the rows with the same ORDER BY
+            //values, or the whole partition without ORDER BY.  A range window needs one numeric sort field, otherwise
+            //the rows with the same values are added one at a time
+            if (!sortBy.isEmpty()) {
+                output.put("window", new Document(FieldType.NUMBER.equals(sortFieldType) ? "range" : "documents",
+                        Arrays.asList(UNBOUNDED, CURRENT)));
+            }
+            return output;
+        }
+        String windowType = WindowElement.Type.RANGE.equals(windowElement.getType()) ? "range" : "documents";
+        Object lowerBound;
+        Object upperBound;
+        if (windowElement.getRange() != null) {
+            lowerBound = generateBound(windowElement.getRange().getStart());
+            upperBound = generateBound(windowElement.getRange().getEnd());
+        } else {
+            lowerBound = generateBound(windowElement.getOffset());
+            upperBound = CURRENT;
+        }
+        output.put("window", new Document(windowType, Arrays.asList(lowerBound, upperBound)));
+        return output;
+    }
+
+    private static Object generateBound(final WindowOffset windowOffset) throws ParseException {
+        if (WindowOffset.Type.CURRENT.equals(windowOffset.getType())) {
+            return CURRENT;
+        }
+        if (windowOffset.getExpression() == null) {
+            return UNBOUNDED;
+        }
+        SqlUtils.isTrue(LongValue.class.isInstance(windowOffset.getExpression()),
+                "window frame offset must be a number: " + windowOffset);
+        long offset = ((LongValue) windowOffset.getExpression()).getValue();
+        return WindowOffset.Type.PRECEDING.equals(windowOffset.getType()) ? -offset : offset;
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.util;
+
+import com.joestelmach.natty.DateGroup;
+import com.joestelmach.natty.Parser;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Parses natural language dates with natty, which is an optional dependency.  Only this class refers to natty, so
+ * that natty, antlr and ical4j are not needed, or loaded, unless a natural language date is converted, see
+ * {@link SqlUtils#parseNaturalLanguageDate(String)}.
+ */
+final class NaturalLanguageDateParser {
+
+    private NaturalLanguageDateParser() {
+
+    }
+
+    /**
+     * Parse natural language to Date object.
+     * @param text the natural language text to convert to a date
+     * @return parsed date or null if the text is not a date
+     */
+    static Date parse(final String text) {
+        Parser parser = new Parser();
+        List<DateGroup> groups = parser.parse(text);
+        for (DateGroup group : groups) {
+            List<Date> dates = group.getDates();
+            if (dates.size() > 0) {
+                return dates.get(0);
+            }
+        }
+        return null;
+    }
+}
@@ -4,11 +4,10 @@ import com.github.vincentrussell.query.mongodb.sql.converter.FieldType;
 import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
 import com.github.vincentrussell.query.mongodb.sql.converter.holder.AliasHolder;
 import com.github.vincentrussell.query.mongodb.sql.converter.processor.WhereClauseProcessor;
+import com.github.vincentrussell.query.mongodb.sql.converter.processor.WindowFunctionProcessor;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.joestelmach.natty.DateGroup;
-import com.joestelmach.natty.Parser;
 import net.sf.jsqlparser.JSQLParserException;
 import net.sf.jsqlparser.expression.Alias;
 import net.sf.jsqlparser.expression.DateValue;
@@ -74,6 +73,7 @@ public final class SqlUtils {
             YYMMDDFORMATTER));
 
     private static final Character NEGATIVE_NUMBER_SIGN = Character.valueOf('-');
+    private static final boolean NATTY_PRESENT = isClassPresent("com.joestelmach.natty.Parser");
 
     private SqlUtils() {
 
@@ -333,20 +333,30 @@ public final class SqlUtils {
     }
 
     /**
-     * Parse natural language to Date object.
+     * Parse natural language to Date object.  Natural language dates need the optional dependency
+     * com.joestelmach:natty.
      * @param text the natural language text to convert to a date
      * @return parsed date
      */
     public static Date parseNaturalLanguageDate(final String text) {
-        Parser parser = new Parser();
-        List<DateGroup> groups = parser.parse(text);
-        for (DateGroup group : groups) {
-            List<Date> dates = group.getDates();
-            if (dates.size() > 0) {
-                return dates.get(0);
-            }
+        if (!NATTY_PRESENT) {
+            throw new IllegalArgumentException("could not natural language date: " + text
+                    + ", com.joestelmach:natty is not on the classpath");
+        }
+        Date date = NaturalLanguageDateParser.parse(text);
+        if (date == null) {
+            throw new IllegalArgumentException("could not natural language date: " + text);
+        }
+        return date;
+    }
+
+    private static boolean isClassPresent(final String className) {
+        try {
+            Class.forName(className, false, SqlUtils.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
         }
-        throw new IllegalArgumentException("could not natural language date: " + text);
     }
 
     /**
@@ -731,7 +741,58 @@ public final class SqlUtils {
         String fieldForAgg = field.trim().toLowerCase();
         return fieldForAgg.startsWith("sum(") || fieldForAgg.startsWith("avg(")
                 || fieldForAgg.startsWith("min(") || fieldForAgg.startsWith("max(")
-                || fieldForAgg.startsWith("count(");
+                || fieldForAgg.startsWith("count(") || fieldForAgg.startsWith("approx_count_distinct(")
+                || fieldForAgg.startsWith("percentile_approx(") || fieldForAgg.startsWith("median(");
+    }
+
+    /**
+     * Will return true if the function counts distinct values, i.e: COUNT(DISTINCT field) or
+     * APPROX_COUNT_DISTINCT(field).
+     * @param function the {@link Function}
+     * @return true if the function counts distinct values
+     */
+    public static boolean isCountDistinctFunction(final Function function) {
+        String functionName = function.getName().toLowerCase();
+        return ("count".equals(functionName) && function.isDistinct())
+                || "approx_count_distinct".equals(functionName);
+    }
+
+    /**
+     * Will return true if the function is a percentile function, i.e: PERCENTILE_APPROX(field, 0.95) or
+     * MEDIAN(field).
+     * @param function the {@link Function}
+     * @return true if the function is a percentile function
+     */
+    public static boolean isPercentileFunction(final Function function) {
+        String functionName = function.getName().toLowerCase();
+        return "percentile_approx".equals(functionName) || "median".equals(functionName);
+    }
+
+    /**
+     * Get the percentile requested by a percentile function, i.e: PERCENTILE_APPROX(field, 0.95) -&gt; 0.95
+     * and MEDIAN(field) -&gt; 0.5.
+     * @param function the percentile {@link Function}
+     * @return the percentile as a number between 0 and 1
+     * @throws ParseException if the percentile is missing or not a number between 0 and 1
+     */
+    @SuppressWarnings("checkstyle:magicnumber")
+    public static double getPercentileFromFunction(final Function function) throws ParseException {
+        if ("median".equals(function.getName().toLowerCase())) {
+            return 0.5;
+        }
+        isTrue(function.getParameters() != null && function.getParameters().getExpressions().size() == 2,
+                function.getName() + " function requires a field and a percentile");
+        Expression percentileExpression = function.getParameters().getExpressions().get(1);
+        double percentile;
+        if (DoubleValue.class.isInstance(percentileExpression)) {
+            percentile = ((DoubleValue) percentileExpression).getValue();
+        } else if (LongValue.class.isInstance(percentileExpression)) {
+            percentile = ((LongValue) percentileExpression).getValue();
+        } else {
+            throw new ParseException(function.getName() + " percentile must be a number: " + percentileExpression);
+        }
+        isTrue(percentile >= 0 && percentile <= 1, function.getName() + " percentile must be between 0 and 1");
+        return percentile;
     }
 
     /**
@@ -756,7 +817,8 @@ public final class SqlUtils {
      */
     public static Map.Entry<String, String> generateAggField(final Function function,
                                                              final String alias) throws ParseException {
-        String field = getFieldFromFunction(function);
+        String field = isPercentileFunction(function) ? getStringValue(function.getParameters()
+                .getExpressions().get(0)) : getFieldFromFunction(function);
         String functionName = function.getName().toLowerCase();
         if ("*".equals(field) || functionName.equals("count")) {
             return new AbstractMap.SimpleEntry<>(field, (alias == null ? functionName : alias));
@@ -812,7 +874,7 @@ public final class SqlUtils {
      */
     public static boolean isTotalGroup(final List<SelectItem> selectItems) {
         for (SelectItem sitem : selectItems) {
-            if (isAggregateExpression(sitem.toString())) {
+            if (isAggregateExpression(sitem.toString()) && !WindowFunctionProcessor.isWindowFunction(sitem)) {
                 return true;
             }
         }
@@ -0,0 +1,455 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.view;
+
+import org.bson.BsonRegularExpression;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Class used to evaluate the filters and expressions that the converter generates against documents in the JVM,
+ * i.e: to decide if a changed document still matches the WHERE clause of an {@link IncrementalGroupByView}.  Only
+ * the operators that the converter generates are supported, and values are compared in the BSON type order.  Like
+ * MongoDB, a filter on a field of the documents of an array matches when one of the documents matches.
+ */
+public final class DocumentMatcher {
+
+    /**
+     * Compares values in the BSON type order, numbers of different types are compared by value.
+     */
+    public static final Comparator<Object> BSON_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(final Object left, final Object right) {
+            return compareValues(left, right);
+        }
+    };
+
+    private static final Object MISSING = new Object();
+    private static final Pattern ARRAY_INDEX = Pattern.compile("\\d{1,9}");
+    private static final List<String> QUERY_OPERATORS = Arrays.asList("$eq", "$ne", "$gt", "$gte", "$lt", "$lte",
+            "$in", "$nin", "$exists", "$not", "$regex", "$options");
+    private static final List<String> EXPRESSION_OPERATORS = Arrays.asList("$eq", "$ne", "$gt", "$gte", "$lt",
+            "$lte", "$and", "$or", "$not", "$literal");
+
+    private DocumentMatcher() {
+
+    }
+
+    /**
+     * Check if the operators of a filter can be evaluated by {@link #matches(Document, Document)}.
+     * @param query the filter
+     * @return the first operator that is not supported or null if all of them are supported
+     */
+    @SuppressWarnings("unchecked")
+    public static String getUnsupportedOperator(final Document query) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            String unsupported = null;
+            if ("$and".equals(entry.getKey()) || "$or".equals(entry.getKey()) || "$nor".equals(entry.getKey())) {
+                for (Object clause : (List<Object>) entry.getValue()) {
+                    unsupported = getUnsupportedOperator((Document) clause);
+                    if (unsupported != null) {
+                        return unsupported;
+                    }
+                }
+            } else if ("$expr".equals(entry.getKey())) {
+                unsupported = getUnsupportedExpressionOperator(entry.getValue());
+            } else if (entry.getKey().startsWith("$")) {
+                unsupported = entry.getKey();
+            } else {
+                unsupported = getUnsupportedConditionOperator(entry.getValue());
+            }
+            if (unsupported != null) {
+                return unsupported;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if the operators of an aggregation expression can be evaluated by {@link #evaluate(Object, Document)}.
+     * @param expression the expression
+     * @return the first operator that is not supported or null if all of them are supported
+     */
+    @SuppressWarnings("unchecked")
+    public static String getUnsupportedExpressionOperator(final Object expression) {
+        if (expression instanceof String && ((String) expression).startsWith("$$")) {
+            return (String) expression;
+        } else if (expression instanceof List) {
+            for (Object element : (List<Object>) expression) {
+                String unsupported = getUnsupportedExpressionOperator(element);
+                if (unsupported != null) {
+                    return unsupported;
+                }
+            }
+        } else if (expression instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) expression).entrySet()) {
+                if (entry.getKey().startsWith("$") && !EXPRESSION_OPERATORS.contains(entry.getKey())) {
+                    return entry.getKey();
+                }
+                String unsupported = "$literal".equals(entry.getKey()) ? null
+                        : getUnsupportedExpressionOperator(entry.getValue());
+                if (unsupported != null) {
+                    return unsupported;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if a document matches a filter.
+     * @param query the filter
+     * @param document the document
+     * @return true if the document matches
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean matches(final Document query, final Document document) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            String key = entry.getKey();
+            boolean matches;
+            if ("$and".equals(key)) {
+                matches = true;
+                for (Object clause : (List<Object>) entry.getValue()) {
+                    matches &= matches((Document) clause, document);
+                }
+            } else if ("$or".equals(key) || "$nor".equals(key)) {
+                boolean any = false;
+                for (Object clause : (List<Object>) entry.getValue()) {
+                    any |= matches((Document) clause, document);
+                }
+                matches = "$or".equals(key) == any;
+            } else if ("$expr".equals(key)) {
+                matches = isTrue(evaluate(entry.getValue(), document));
+            } else {
+                matches = matchesCondition(getPath(document, Arrays.asList(key.split("\\.")), true),
+                        entry.getValue());
+            }
+            if (!matches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate an aggregation expression, i.e: "$amount" or {"$gt": ["$count", 2]}.
+     * @param expression the expression
+     * @param document the document that field paths are read from
+     * @return the value of the expression, null for a missing field
+     */
+    @SuppressWarnings("unchecked")
+    public static Object evaluate(final Object expression, final Document document) {
+        if (expression instanceof String && ((String) expression).startsWith("$")) {
+            return getValue(document, ((String) expression).substring(1));
+        } else if (expression instanceof List) {
+            List<Object> values = new ArrayList<>();
+            for (Object element : (List<Object>) expression) {
+                values.add(evaluate(element, document));
+            }
+            return values;
+        } else if (!(expression instanceof Document)) {
+            return expression;
+        }
+        Document expressionDocument = (Document) expression;
+        String operator = expressionDocument.size() == 1 ? expressionDocument.keySet().iterator().next() : "";
+        if (!operator.startsWith("$")) {
+            Document object = new Document();
+            for (Map.Entry<String, Object> entry : expressionDocument.entrySet()) {
+                object.put(entry.getKey(), evaluate(entry.getValue(), document));
+            }
+            return object;
+        } else if ("$literal".equals(operator)) {
+            return expressionDocument.get(operator);
+        }
+        Object operand = evaluate(expressionDocument.get(operator), document);
+        List<Object> arguments = operand instanceof List ? (List<Object>) operand : Arrays.asList(operand);
+        switch (operator) {
+            case "$and":
+                for (Object argument : arguments) {
+                    if (!isTrue(argument)) {
+                        return false;
+                    }
+                }
+                return true;
+            case "$or":
+                for (Object argument : arguments) {
+                    if (isTrue(argument)) {
+                        return true;
+                    }
+                }
+                return false;
+            case "$not":
+                return !isTrue(arguments.get(0));
+            default:
+                return compare(operator, compareValues(arguments.get(0), arguments.get(1)));
+        }
+    }
+
+    /**
+     * Get the value of a field, i.e: "address.city".
+     * @param document the document
+     * @param path the path of the field, separated by dots
+     * @return the value or null if the field is missing
+     */
+    public static Object getValue(final Document document, final String path) {
+        Object value = getPath(document, Arrays.asList(path.split("\\.")), false);
+        return value == MISSING ? null : value;
+    }
+
+    private static String getUnsupportedConditionOperator(final Object condition) {
+        if (!isOperatorDocument(condition)) {
+            return null;
+        }
+        for (Map.Entry<String, Object> entry : ((Document) condition).entrySet()) {
+            if (!QUERY_OPERATORS.contains(entry.getKey())) {
+                return entry.getKey();
+            }
+            String unsupported = "$not".equals(entry.getKey()) ? getUnsupportedConditionOperator(entry.getValue())
+                    : null;
+            if (unsupported != null) {
+                return unsupported;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean matchesCondition(final Object value, final Object condition) {
+        if (!isOperatorDocument(condition)) {
+            return matchesValue(value, condition);
+        }
+        Document operators = (Document) condition;
+        for (Map.Entry<String, Object> entry : operators.entrySet()) {
+            Object operand = entry.getValue();
+            boolean matches;
+            switch (entry.getKey()) {
+                case "$eq":
+                    matches = matchesValue(value, operand);
+                    break;
+                case "$ne":
+                    matches = !matchesValue(value, operand);
+                    break;
+                case "$in":
+                case "$nin":
+                    boolean any = false;
+                    for (Object element : (List<Object>) operand) {
+                        any |= matchesValue(value, element);
+                    }
+                    matches = "$in".equals(entry.getKey()) == any;
+                    break;
+                case "$exists":
+                    matches = (value != MISSING) == isTrue(operand);
+                    break;
+                case "$not":
+                    matches = !matchesCondition(value, operand);
+                    break;
+                case "$regex":
+                    String options = operators.getString("$options");
+                    matches = matchesValue(value, operand instanceof String
+                            ? new BsonRegularExpression((String) operand, options) : operand);
+                    break;
+                case "$options":
+                    matches = true;
+                    break;
+                default:
+                    matches = matchesRange(value, entry.getKey(), operand);
+            }
+            if (!matches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //a field that holds an array matches when one of the elements matches
+    @SuppressWarnings("unchecked")
+    private static boolean matchesValue(final Object value, final Object expected) {
+        if (expected instanceof Pattern || expected instanceof BsonRegularExpression) {
+            Pattern pattern = expected instanceof Pattern ? (Pattern) expected : toPattern(
+                    (BsonRegularExpression) expected);
+            if (value instanceof List) {
+                for (Object element : (List<Object>) value) {
+                    if (element instanceof String && pattern.matcher((String) element).find()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return value instanceof String && pattern.matcher((String) value).find();
+        }
+        if (expected == null) {
+            return value == MISSING || value == null || value instanceof List
+                    && (((List<Object>) value).contains(null) || ((List<Object>) value).contains(MISSING));
+        }
+        if (value instanceof List && !(expected instanceof List)) {
+            for (Object element : (List<Object>) value) {
+                if (element != null && element != MISSING && typeOrder(element) == typeOrder(expected)
+                        && compareValues(element, expected) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return value != MISSING && value != null && typeOrder(value) == typeOrder(expected)
+                && compareValues(value, expected) == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean matchesRange(final Object value, final String operator, final Object operand) {
+        List<Object> values = value instanceof List ? (List<Object>) value : Arrays.asList(value);
+        for (Object element : values) {
+            if (element != MISSING && element != null && operand != null
+                    && typeOrder(element) == typeOrder(operand) && compare(operator, compareValues(element, operand))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean compare(final String operator, final int comparison) {
+        switch (operator) {
+            case "$eq":
+                return comparison == 0;
+            case "$ne":
+                return comparison != 0;
+            case "$gt":
+                return comparison > 0;
+            case "$gte":
+                return comparison >= 0;
+            case "$lt":
+                return comparison < 0;
+            case "$lte":
+                return comparison <= 0;
+            default:
+                throw new UnsupportedOperationException(operator + " is not supported");
+        }
+    }
+
+    private static Pattern toPattern(final BsonRegularExpression regularExpression) {
+        int flags = 0;
+        String options = regularExpression.getOptions();
+        if (options.contains("i")) {
+            flags |= Pattern.CASE_INSENSITIVE;
+        }
+        if (options.contains("m")) {
+            flags |= Pattern.MULTILINE;
+        }
+        if (options.contains("s")) {
+            flags |= Pattern.DOTALL;
+        }
+        return Pattern.compile(regularExpression.getPattern(), flags);
+    }
+
+    private static boolean isOperatorDocument(final Object condition) {
+        return condition instanceof Document && !((Document) condition).isEmpty()
+                && ((Document) condition).keySet().iterator().next().startsWith("$");
+    }
+
+    private static boolean isTrue(final Object value) {
+        return value != null && value != MISSING && !Boolean.FALSE.equals(value)
+                && !(value instanceof Number && ((Number) value).doubleValue() == 0);
+    }
+
+    /*
+     * the value of a field, a path through an array reads the field of every document of the array.  A query reads
+     * them like mql, i.e: {"items.sku": "x"}, numeric keys are array indexes, the values are flattened into one list
+     * that has MISSING for the documents without the field, and an expression reads them like the aggregation
+     * framework, as an array of the values of the documents that have the field
+     */
+    @SuppressWarnings("unchecked")
+    private static Object getPath(final Object value, final List<String> keys, final boolean query) {
+        if (keys.isEmpty()) {
+            return value;
+        }
+        String key = keys.get(0);
+        if (value instanceof Document) {
+            Document document = (Document) value;
+            return document.containsKey(key) ? getPath(document.get(key), keys.subList(1, keys.size()), query)
+                    : MISSING;
+        } else if (!(value instanceof List)) {
+            return MISSING;
+        }
+        List<Object> elements = (List<Object>) value;
+        if (query && ARRAY_INDEX.matcher(key).matches()) {
+            int index = Integer.parseInt(key);
+            return index < elements.size() ? getPath(elements.get(index), keys.subList(1, keys.size()), true)
+                    : MISSING;
+        }
+        List<Object> values = new ArrayList<>();
+        boolean found = false;
+        for (Object element : elements) {
+            if (!(element instanceof Document)) {
+                continue;
+            }
+            Object elementValue = getPath(element, keys, query);
+            found |= elementValue != MISSING;
+            if (query && elementValue instanceof List) {
+                values.addAll((List<Object>) elementValue);
+            } else if (query || elementValue != MISSING) {
+                values.add(elementValue);
+            }
+        }
+        return query && !found ? MISSING : values;
+    }
+
+    @SuppressWarnings("checkstyle:magicnumber")
+    private static int typeOrder(final Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number || value instanceof Decimal128) {
+            return 1;
+        } else if (value instanceof String) {
+            return 2;
+        } else if (value instanceof Document) {
+            return 3;
+        } else if (value instanceof List) {
+            return 4;
+        } else if (value instanceof ObjectId) {
+            return 5;
+        } else if (value instanceof Boolean) {
+            return 6;
+        } else if (value instanceof Date) {
+            return 7;
+        }
+        return 8;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(final Object left, final Object right) {
+        int typeComparison = Integer.compare(typeOrder(left), typeOrder(right));
+        if (typeComparison != 0 || left == null) {
+            return typeComparison;
+        } else if (isInteger(left) && isInteger(right)) {
+            return Long.compare(((Number) left).longValue(), ((Number) right).longValue());
+        } else if (left instanceof Decimal128 || right instanceof Decimal128) {
+            return toBigDecimal(left).compareTo(toBigDecimal(right));
+        } else if (left instanceof Number) {
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        } else if (left instanceof Comparable && left.getClass().equals(right.getClass())) {
+            return ((Comparable<Object>) left).compareTo(right);
+        }
+        return left.toString().compareTo(right.toString());
+    }
+
+    private static boolean isInteger(final Object number) {
+        return number instanceof Long || number instanceof Integer;
+    }
+
+    private static BigDecimal toBigDecimal(final Object number) {
+        if (number instanceof Decimal128) {
+            return ((Decimal128) number).bigDecimalValue();
+        } else if (isInteger(number)) {
+            return BigDecimal.valueOf(((Number) number).longValue());
+        }
+        return BigDecimal.valueOf(((Number) number).doubleValue());
+    }
+
+}
@@ -0,0 +1,481 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.view;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.FullDocument;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The results of a GROUP BY query kept up to date from the change stream of the collection, so that they can be
+ * read without running the aggregation again.  The collection is read once when the view is started, after that
+ * every inserted, updated, replaced or deleted document only changes the group that it was in and the group that
+ * it is in now.  COUNT, SUM, MIN, MAX and AVG are supported, AVG is kept as a sum and a count and MIN and MAX keep
+ * the values of the group so that a deleted minimum or maximum can be replaced.  The group of every document that
+ * matches the WHERE clause is kept in memory, so that a change can be taken back out of the group.  Change streams
+ * need a replica set or a sharded cluster.
+ */
+public class IncrementalGroupByView implements Closeable {
+
+    private static final List<String> ACCUMULATORS = Arrays.asList("$sum", "$avg", "$min", "$max");
+    private static final List<String> POST_GROUP_STAGES = Arrays.asList("$match", "$sort", "$skip", "$limit",
+            "$project");
+    private static final List<String> LOGICAL_OPERATORS = Arrays.asList("$and", "$or", "$nor");
+
+    private final MongoCollection<Document> mongoCollection;
+    private final Document filter;
+    private final Object groupId;
+    private final List<String> accumulatorNames = new ArrayList<>();
+    private final List<String> accumulatorOperators = new ArrayList<>();
+    private final List<Object> accumulatorOperands = new ArrayList<>();
+    private final List<Document> postGroupSteps = new ArrayList<>();
+    private final Map<Object, Contribution> contributions = new HashMap<>();
+    private final Map<Object, GroupState> groups = new LinkedHashMap<>();
+    private MongoCursor<Document> changeStream;
+    private RuntimeException failure;
+    private boolean closed;
+
+    /**
+     * Default constructor.
+     * @param mongoCollection the collection that is grouped
+     * @param pipeline the aggregation pipeline of the GROUP BY query, a $match with the WHERE clause, the $group and
+     * $match, $sort, $skip, $limit and $project steps after the $group
+     * @throws ParseException if the pipeline has other steps or the $group has other accumulators
+     */
+    public IncrementalGroupByView(final MongoCollection<Document> mongoCollection, final List<Document> pipeline)
+            throws ParseException {
+        this.mongoCollection = mongoCollection;
+        List<Document> filters = new ArrayList<>();
+        Document group = null;
+        for (Document step : pipeline) {
+            String stage = step.keySet().iterator().next();
+            if (group == null && "$match".equals(stage)) {
+                filters.add(step.get(stage, Document.class));
+            } else if (group == null && "$group".equals(stage)) {
+                group = step.get(stage, Document.class);
+            } else if (group != null && POST_GROUP_STAGES.contains(stage)) {
+                postGroupSteps.add(step);
+            } else {
+                throw new ParseException(stage + " is not supported in an incremental view");
+            }
+        }
+        if (group == null) {
+            throw new ParseException("an incremental view needs a GROUP BY or an aggregate function");
+        }
+        this.filter = filters.size() == 1 ? filters.get(0)
+                : filters.isEmpty() ? new Document() : new Document("$and", filters);
+        this.groupId = group.get("_id");
+        for (Map.Entry<String, Object> entry : group.entrySet()) {
+            if (!"_id".equals(entry.getKey())) {
+                addAccumulator(entry.getKey(), entry.getValue());
+            }
+        }
+        checkSupported();
+    }
+
+    /**
+     * Open the change stream of the collection and read the collection.  The change stream is opened first, so
+     * that the changes made while the collection is read are applied after it.
+     */
+    public void start() {
+        final MongoCursor<Document> cursor = mongoCollection.watch(Arrays.asList(
+                new Document("$match", new Document("operationType",
+                        new Document("$in", Arrays.asList("insert", "update", "replace", "delete")))),
+                new Document("$project", getChangeStreamProjection())))
+                .fullDocument(FullDocument.UPDATE_LOOKUP).withDocumentClass(Document.class).iterator();
+        synchronized (this) {
+            changeStream = cursor;
+        }
+        try (MongoCursor<Document> documents = mongoCollection.find(filter).projection(getProjection()).iterator()) {
+            while (documents.hasNext()) {
+                Document document = documents.next();
+                synchronized (this) {
+                    put(document.get("_id"), document);
+                }
+            }
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readChanges(cursor);
+            }
+        }, "incremental-view-" + mongoCollection.getNamespace().getCollectionName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the current results of the query.
+     * @return the same documents that the aggregation returns, in O(groups)
+     * @throws IllegalStateException if the change stream failed and the results are no longer up to date
+     */
+    public List<Document> getResults() {
+        List<Document> results = new ArrayList<>();
+        synchronized (this) {
+            if (failure != null) {
+                throw new IllegalStateException("the change stream of the view failed", failure);
+            }
+            for (Map.Entry<Object, GroupState> group : groups.entrySet()) {
+                Document result = new Document("_id", group.getKey());
+                for (int i = 0; i < accumulatorNames.size(); i++) {
+                    result.put(accumulatorNames.get(i), group.getValue().states[i]
+                            .getResult(accumulatorOperators.get(i)));
+                }
+                results.add(result);
+            }
+        }
+        for (Document step : postGroupSteps) {
+            results = applyStep(step, results);
+        }
+        return results;
+    }
+
+    /**
+     * Close the change stream, the results are no longer kept up to date.
+     */
+    @Override
+    public void close() {
+        MongoCursor<Document> cursor;
+        synchronized (this) {
+            closed = true;
+            cursor = changeStream;
+        }
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    private void readChanges(final MongoCursor<Document> cursor) {
+        try {
+            while (cursor.hasNext()) {
+                applyChange(cursor.next());
+            }
+            fail(new IllegalStateException("the collection was dropped or renamed"));
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Apply one document of the change stream to the groups.
+     * @param change the change event, with its operationType, documentKey and fullDocument
+     */
+    synchronized void applyChange(final Document change) {
+        Object id = change.get("documentKey", Document.class).get("_id");
+        Document fullDocument = change.get("fullDocument", Document.class);
+        //an updated document that no longer matches, or was deleted before it was looked up, is removed
+        if (!"delete".equals(change.getString("operationType")) && fullDocument != null
+                && DocumentMatcher.matches(filter, fullDocument)) {
+            put(id, fullDocument);
+        } else {
+            remove(id);
+        }
+    }
+
+    private synchronized void fail(final RuntimeException e) {
+        if (!closed) {
+            failure = e;
+        }
+    }
+
+    private void put(final Object id, final Document document) {
+        remove(id);
+        Object[] values = new Object[accumulatorOperands.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = DocumentMatcher.evaluate(accumulatorOperands.get(i), document);
+        }
+        Contribution contribution = new Contribution(DocumentMatcher.evaluate(groupId, document), values);
+        GroupState group = groups.get(contribution.groupKey);
+        if (group == null) {
+            group = new GroupState(accumulatorOperators);
+            groups.put(contribution.groupKey, group);
+        }
+        group.add(contribution.values, 1);
+        contributions.put(id, contribution);
+    }
+
+    private void remove(final Object id) {
+        Contribution contribution = contributions.remove(id);
+        if (contribution == null) {
+            return;
+        }
+        GroupState group = groups.get(contribution.groupKey);
+        group.add(contribution.values, -1);
+        if (group.documents == 0) {
+            groups.remove(contribution.groupKey);
+        }
+    }
+
+    private void addAccumulator(final String name, final Object accumulator) throws ParseException {
+        if (!(accumulator instanceof Document) || ((Document) accumulator).size() != 1
+                || !ACCUMULATORS.contains(((Document) accumulator).keySet().iterator().next())) {
+            throw new ParseException(name + " cannot be kept up to date in an incremental view, only COUNT, SUM, "
+                    + "MIN, MAX and AVG can");
+        }
+        String operator = ((Document) accumulator).keySet().iterator().next();
+        accumulatorNames.add(name);
+        accumulatorOperators.add(operator);
+        accumulatorOperands.add(((Document) accumulator).get(operator));
+    }
+
+    private void checkSupported() throws ParseException {
+        List<String> unsupported = new ArrayList<>();
+        unsupported.add(DocumentMatcher.getUnsupportedOperator(filter));
+        unsupported.add(DocumentMatcher.getUnsupportedExpressionOperator(groupId));
+        unsupported.add(DocumentMatcher.getUnsupportedExpressionOperator(accumulatorOperands));
+        for (Document step : postGroupSteps) {
+            if (step.containsKey("$match")) {
+                unsupported.add(DocumentMatcher.getUnsupportedOperator(step.get("$match", Document.class)));
+            } else if (step.containsKey("$project")) {
+                unsupported.add(DocumentMatcher.getUnsupportedExpressionOperator(step.get("$project")));
+            }
+        }
+        for (String operator : unsupported) {
+            if (operator != null) {
+                throw new ParseException(operator + " is not supported in an incremental view");
+            }
+        }
+    }
+
+    //only the fields that the view reads are sent, a field inside another field that is sent is left out
+    private Document getProjection() {
+        Set<String> paths = new LinkedHashSet<>();
+        addQueryPaths(filter, paths);
+        addExpressionPaths(groupId, paths);
+        addExpressionPaths(accumulatorOperands, paths);
+        Document projection = new Document();
+        for (String path : paths) {
+            boolean nested = false;
+            for (String other : paths) {
+                nested |= path.startsWith(other + ".");
+            }
+            if (!nested) {
+                projection.put(path, 1);
+            }
+        }
+        return projection;
+    }
+
+    private Document getChangeStreamProjection() {
+        Document projection = new Document("operationType", 1).append("documentKey", 1);
+        for (String path : getProjection().keySet()) {
+            projection.put("fullDocument." + path, 1);
+        }
+        if (!projection.containsKey("fullDocument._id")) {
+            projection.put("fullDocument._id", 1);
+        }
+        return projection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addQueryPaths(final Document query, final Set<String> paths) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            if (LOGICAL_OPERATORS.contains(entry.getKey())) {
+                for (Object clause : (List<Object>) entry.getValue()) {
+                    addQueryPaths((Document) clause, paths);
+                }
+            } else if ("$expr".equals(entry.getKey())) {
+                addExpressionPaths(entry.getValue(), paths);
+            } else {
+                paths.add(entry.getKey());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addExpressionPaths(final Object expression, final Set<String> paths) {
+        if (expression instanceof String && ((String) expression).startsWith("$")) {
+            paths.add(((String) expression).substring(1));
+        } else if (expression instanceof List) {
+            for (Object element : (List<Object>) expression) {
+                addExpressionPaths(element, paths);
+            }
+        } else if (expression instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) expression).entrySet()) {
+                if (!"$literal".equals(entry.getKey())) {
+                    addExpressionPaths(entry.getValue(), paths);
+                }
+            }
+        }
+    }
+
+    private static List<Document> applyStep(final Document step, final List<Document> results) {
+        Map.Entry<String, Object> stageEntry = step.entrySet().iterator().next();
+        Object argument = stageEntry.getValue();
+        List<Document> applied = new ArrayList<>();
+        switch (stageEntry.getKey()) {
+            case "$match":
+                for (Document result : results) {
+                    if (DocumentMatcher.matches((Document) argument, result)) {
+                        applied.add(result);
+                    }
+                }
+                return applied;
+            case "$sort":
+                applied.addAll(results);
+                Collections.sort(applied, getComparator((Document) argument));
+                return applied;
+            case "$skip":
+                return new ArrayList<>(results.subList(Math.min(((Number) argument).intValue(), results.size()),
+                        results.size()));
+            case "$limit":
+                return new ArrayList<>(results.subList(0, Math.min(((Number) argument).intValue(), results.size())));
+            default:
+                for (Document result : results) {
+                    applied.add(project((Document) argument, result));
+                }
+                return applied;
+        }
+    }
+
+    private static Comparator<Document> getComparator(final Document sort) {
+        return new Comparator<Document>() {
+            @Override
+            public int compare(final Document left, final Document right) {
+                for (Map.Entry<String, Object> entry : sort.entrySet()) {
+                    boolean descending = ((Number) entry.getValue()).intValue() < 0;
+                    int comparison = DocumentMatcher.BSON_ORDER.compare(
+                            DocumentMatcher.getValue(descending ? right : left, entry.getKey()),
+                            DocumentMatcher.getValue(descending ? left : right, entry.getKey()));
+                    if (comparison != 0) {
+                        return comparison;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    private static Document project(final Document projection, final Document result) {
+        boolean exclusion = true;
+        for (Object value : projection.values()) {
+            exclusion &= isFlag(value) && !isIncluded(value);
+        }
+        Document projected = new Document();
+        if (exclusion) {
+            projected.putAll(result);
+            projected.keySet().removeAll(projection.keySet());
+            return projected;
+        }
+        if (!projection.containsKey("_id") || isIncluded(projection.get("_id"))) {
+            projected.put("_id", result.get("_id"));
+        }
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            if (isFlag(entry.getValue())) {
+                if (isIncluded(entry.getValue()) && result.containsKey(entry.getKey())) {
+                    projected.put(entry.getKey(), result.get(entry.getKey()));
+                }
+            } else {
+                projected.put(entry.getKey(), DocumentMatcher.evaluate(entry.getValue(), result));
+            }
+        }
+        return projected;
+    }
+
+    private static boolean isFlag(final Object value) {
+        return value instanceof Number || value instanceof Boolean;
+    }
+
+    private static boolean isIncluded(final Object value) {
+        return Boolean.TRUE.equals(value) || value instanceof Number && ((Number) value).doubleValue() != 0;
+    }
+
+    private static final class Contribution {
+        private final Object groupKey;
+        private final Object[] values;
+
+        private Contribution(final Object groupKey, final Object[] values) {
+            this.groupKey = groupKey;
+            this.values = values;
+        }
+    }
+
+    private static final class GroupState {
+        private final AccumulatorState[] states;
+        private long documents;
+
+        private GroupState(final List<String> operators) {
+            states = new AccumulatorState[operators.size()];
+            for (int i = 0; i < states.length; i++) {
+                states[i] = new AccumulatorState("$min".equals(operators.get(i)) || "$max".equals(operators.get(i)));
+            }
+        }
+
+        private void add(final Object[] values, final int sign) {
+            documents += sign;
+            for (int i = 0; i < states.length; i++) {
+                states[i].add(values[i], sign);
+            }
+        }
+    }
+
+    //$sum and $avg ignore values that are not numbers, and $min and $max ignore null
+    private static final class AccumulatorState {
+        private final TreeMap<Object, Integer> values;
+        private long longSum;
+        private double doubleSum;
+        private long numbers;
+        private long longs;
+        private long doubles;
+
+        private AccumulatorState(final boolean keepValues) {
+            this.values = keepValues ? new TreeMap<Object, Integer>(DocumentMatcher.BSON_ORDER) : null;
+        }
+
+        private void add(final Object value, final int sign) {
+            if (values != null && value != null) {
+                Integer count = values.get(value);
+                int newCount = (count != null ? count : 0) + sign;
+                if (newCount == 0) {
+                    values.remove(value);
+                } else {
+                    values.put(value, newCount);
+                }
+            }
+            if (!(value instanceof Number)) {
+                return;
+            }
+            numbers += sign;
+            if (value instanceof Integer || value instanceof Long) {
+                longSum += sign * ((Number) value).longValue();
+                longs += value instanceof Long ? sign : 0;
+            } else {
+                doubleSum += sign * ((Number) value).doubleValue();
+                doubles += sign;
+                if (doubles == 0) {
+                    doubleSum = 0;
+                }
+            }
+        }
+
+        private Object getResult(final String operator) {
+            switch (operator) {
+                case "$min":
+                    return values.isEmpty() ? null : values.firstKey();
+                case "$max":
+                    return values.isEmpty() ? null : values.lastKey();
+                case "$avg":
+                    return numbers == 0 ? null : (longSum + doubleSum) / numbers;
+                default:
+                    if (doubles > 0) {
+                        return longSum + doubleSum;
+                    }
+                    return longs > 0 || longSum != (int) longSum ? (Object) longSum : (Object) (int) longSum;
+            }
+        }
+    }
+
+}
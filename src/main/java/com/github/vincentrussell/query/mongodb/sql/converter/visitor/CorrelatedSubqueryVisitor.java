@@ -0,0 +1,83 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.visitor;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.util.SqlUtils;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.schema.Column;
+import org.bson.Document;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Find the columns in a subquery condition that reference the outer query.  When lets are provided the
+ * columns are also rewritten for a lookup sub pipeline: outer columns become let variables ($$field)
+ * and the columns of the subquery lose the table name so they keep their field type.
+ */
+public class CorrelatedSubqueryVisitor extends ExpressionVisitorAdapter {
+    private final Set<String> outerTables;
+    private final Set<String> innerTables;
+    private final Document lets;
+    private boolean correlated = false;
+
+    /**
+     * Default constructor.
+     * @param outerTables the names and aliases of the tables in the outer query
+     * @param innerTables the names and aliases of the tables in the subquery
+     * @param lets the lookup lets to fill with the outer columns or null to only find the outer columns
+     */
+    public CorrelatedSubqueryVisitor(final Set<String> outerTables, final Set<String> innerTables,
+                                     final Document lets) {
+        this.outerTables = outerTables;
+        this.innerTables = innerTables;
+        this.lets = lets;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void visit(final Column column) {
+        if (!SqlUtils.isColumn(column)) {
+            return;
+        }
+        String columnName = column.getName(false);
+        int dotIndex = columnName.indexOf('.');
+        String table = dotIndex > 0 ? columnName.substring(0, dotIndex) : null;
+        boolean isOuter = table != null && outerTables.contains(table) && !innerTables.contains(table);
+        correlated = correlated || isOuter;
+        if (lets == null) {
+            return;
+        }
+        String fieldName = table != null && (isOuter || innerTables.contains(table))
+                ? columnName.substring(dotIndex + 1) : columnName;
+        column.setColumnName(isOuter ? "$$" + getVariable(lets, fieldName) : fieldName);
+        column.setTable(null);
+    }
+
+    /**
+     * Get the let variable of a field of the outer query, which is added to the lets the first time.  The variables
+     * are named v0, v1, ... because a variable has to start with a lowercase letter, which field names like _id do
+     * not, and field names like a.b and a_b would be the same variable once the dot is replaced.
+     * @param lets the lookup lets
+     * @param fieldName the field of the outer query
+     * @return the name of the variable, without $$
+     */
+    public static String getVariable(final Document lets, final String fieldName) {
+        for (Map.Entry<String, Object> let : lets.entrySet()) {
+            if (("$" + fieldName).equals(let.getValue())) {
+                return let.getKey();
+            }
+        }
+        String variable = "v" + lets.size();
+        lets.put(variable, "$" + fieldName);
+        return variable;
+    }
+
+    /**
+     * Will return true if a column from the outer query was found.
+     * @return true if a column from the outer query was found
+     */
+    public boolean isCorrelated() {
+        return correlated;
+    }
+}
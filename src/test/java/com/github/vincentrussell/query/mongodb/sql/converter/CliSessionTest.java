@@ -0,0 +1,36 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class CliSessionTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void statementsAreKeptAsTheyWereWritten() throws IOException, ParseException {
+        File historyFile = new File(temporaryFolder.getRoot(), "history");
+        String multiLine = "select *\nfrom orders\r\nwhere note = 'line one\n  line two' and path = 'c:\\\\new'";
+        try (CliSession cliSession = new CliSession(null, historyFile, CliSession.DEFAULT_STATEMENT_CACHE_SIZE)) {
+            cliSession.addHistory("  " + multiLine + "\n");
+            cliSession.addHistory("select * from orders");
+            assertEquals(Arrays.asList(multiLine, "select * from orders"), cliSession.getHistory());
+        }
+        assertEquals(2, FileUtils.readLines(historyFile, StandardCharsets.UTF_8).size());
+        try (CliSession cliSession = new CliSession(null, historyFile, CliSession.DEFAULT_STATEMENT_CACHE_SIZE)) {
+            assertEquals(Arrays.asList(multiLine, "select * from orders"), cliSession.getHistory());
+            assertEquals(multiLine, cliSession.getStatementFromHistory("!1"));
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContinuousQueryIteratorTest {
+
+    private final List<BsonDocument> savedTokens = new ArrayList<>();
+    private final ResumeTokenStore resumeTokenStore = new ResumeTokenStore() {
+        @Override
+        public BsonDocument getResumeToken() {
+            return savedTokens.isEmpty() ? null : savedTokens.get(savedTokens.size() - 1);
+        }
+
+        @Override
+        public void saveResumeToken(final BsonDocument resumeToken) {
+            savedTokens.add(resumeToken);
+        }
+    };
+
+    @Test
+    public void resumeTokenIsSavedWhenTheNextDocumentIsAskedFor() {
+        ChangeStreamCursor cursor = new ChangeStreamCursor(
+                batch(100, change(1, new Document("_id", "a")), change(2, new Document("_id", "b"))));
+        ContinuousQueryIterator iterator = new ContinuousQueryIterator(cursor, resumeTokenStore);
+        assertEquals(new Document("_id", "a"), iterator.next());
+        assertEquals(Collections.emptyList(), savedTokens);
+        assertEquals(new Document("_id", "b"), iterator.next());
+        assertEquals(Collections.singletonList(token(1)), savedTokens);
+        assertEquals(token(2), iterator.getResumeToken());
+        iterator.close();
+        assertEquals(Arrays.asList(token(1), token(100)), savedTokens);
+        assertTrue(cursor.closed);
+    }
+
+    @Test
+    public void batchesWithoutMatchesMoveTheResumeTokenForward() {
+        ContinuousQueryIterator iterator = new ContinuousQueryIterator(new ChangeStreamCursor(batch(100),
+                batch(101, change(1, null)), batch(102), batch(102), batch(103, change(2, new Document("_id", "a")))),
+                resumeTokenStore);
+        assertEquals(new Document("_id", "a"), iterator.next());
+        assertEquals(Arrays.asList(token(100), token(101), token(102)), savedTokens);
+        assertEquals(token(2), iterator.getResumeToken());
+    }
+
+    @Test
+    public void iteratorEndsWhenTheChangeStreamIsClosed() {
+        ContinuousQueryIterator iterator = new ContinuousQueryIterator(new ChangeStreamCursor(
+                batch(100, change(1, new Document("_id", "a")))), resumeTokenStore);
+        assertEquals(new Document("_id", "a"), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertEquals(Collections.singletonList(token(100)), savedTokens);
+    }
+
+    private static BsonDocument token(final int value) {
+        return new BsonDocument("_data", new BsonInt32(value));
+    }
+
+    private static ChangeStreamDocument<Document> change(final int token, final Document fullDocument) {
+        return new ChangeStreamDocument<>(fullDocument != null ? OperationType.INSERT : OperationType.UPDATE,
+                token(token), null, null, fullDocument, null, null, null, null, null);
+    }
+
+    @SafeVarargs
+    private static Batch batch(final int postBatchResumeToken, final ChangeStreamDocument<Document>... changes) {
+        return new Batch(token(postBatchResumeToken), Arrays.asList(changes));
+    }
+
+    private static final class Batch {
+        private final BsonDocument postBatchResumeToken;
+        private final List<ChangeStreamDocument<Document>> changes;
+
+        private Batch(final BsonDocument postBatchResumeToken, final List<ChangeStreamDocument<Document>> changes) {
+            this.postBatchResumeToken = postBatchResumeToken;
+            this.changes = changes;
+        }
+    }
+
+    //returns the batches like a change stream cursor and is closed on the server after the last one
+    private static final class ChangeStreamCursor implements MongoChangeStreamCursor<ChangeStreamDocument<Document>> {
+        private final Deque<Batch> batches;
+        private Batch batch;
+        private Iterator<ChangeStreamDocument<Document>> changes = Collections.emptyIterator();
+        private BsonDocument resumeToken;
+        private boolean closed;
+
+        private ChangeStreamCursor(final Batch... batches) {
+            this.batches = new ArrayDeque<>(Arrays.asList(batches));
+        }
+
+        @Override
+        public BsonDocument getResumeToken() {
+            return resumeToken;
+        }
+
+        @Override
+        public ChangeStreamDocument<Document> tryNext() {
+            if (!changes.hasNext()) {
+                batch = batches.poll();
+                if (batch == null) {
+                    return null;
+                }
+                changes = batch.changes.iterator();
+                resumeToken = batch.postBatchResumeToken;
+                if (!changes.hasNext()) {
+                    return null;
+                }
+            }
+            ChangeStreamDocument<Document> change = changes.next();
+            resumeToken = changes.hasNext() ? change.getResumeToken() : batch.postBatchResumeToken;
+            return change;
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return batches.isEmpty() && !changes.hasNext() ? null : new ServerCursor(1, new ServerAddress());
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return new ServerAddress();
+        }
+
+        @Override
+        public boolean hasNext() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ChangeStreamDocument<Document> next() {
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+}
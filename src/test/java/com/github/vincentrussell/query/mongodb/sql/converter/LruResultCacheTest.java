@@ -0,0 +1,122 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.google.common.collect.Lists;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+
+public class LruResultCacheTest {
+
+    private static final Set<String> ORDERS = Collections.singleton("orders");
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void repeatedQueryIsReadFromTheCache() {
+        LruResultCache cache = new LruResultCache(10, 1024, 60000);
+        List<Document> results = Lists.newArrayList(cache.get(plan("a"), ORDERS, loader(new Document("total", 5))));
+        results.get(0).put("total", 6);
+        assertEquals(Arrays.asList(new Document("total", 5)), Lists.newArrayList(cache.get(plan("a"), ORDERS, loader())));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void invalidateDropsTheQueriesThatReadTheCollection() {
+        LruResultCache cache = new LruResultCache(10, 1024, 60000);
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        Lists.newArrayList(cache.get(plan("b"), new HashSet<>(Arrays.asList("orders", "customers")), loader()));
+        Lists.newArrayList(cache.get(plan("c"), Collections.singleton("customers"), loader()));
+        cache.invalidate("orders");
+        assertEquals(1, cache.size());
+        Lists.newArrayList(cache.get(plan("c"), Collections.singleton("customers"), loader()));
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedQueryIsEvicted() {
+        LruResultCache cache = new LruResultCache(2, 1024, 60000);
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        Lists.newArrayList(cache.get(plan("b"), ORDERS, loader()));
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        Lists.newArrayList(cache.get(plan("c"), ORDERS, loader()));
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        assertEquals(3, loads.get());
+        Lists.newArrayList(cache.get(plan("b"), ORDERS, loader()));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void resultsLargerThanMaxBytesAreNotCached() {
+        LruResultCache cache = new LruResultCache(10, 30, 60000);
+        Document large = new Document("text", "more than thirty bytes of text");
+        Document small = new Document("a", 1);
+        assertEquals(Arrays.asList(small, large, small), Lists.newArrayList(cache.get(plan("a"), ORDERS, loader(small, large, small))));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void resultsThatAreNotReadToTheEndAreNotCached() {
+        LruResultCache cache = new LruResultCache(10, 1024, 60000);
+        QueryResultIterator<Document> results = cache.get(plan("a"), ORDERS, loader(new Document("a", 1), new Document("a", 2)));
+        assertEquals(new Document("a", 1), results.next());
+        assertEquals(0, cache.size());
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void resultsAreNotCachedWhenTheCollectionChangesDuringTheQuery() {
+        final LruResultCache cache = new LruResultCache(10, 1024, 60000);
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, new Supplier<QueryResultIterator<Document>>() {
+            @Override
+            public QueryResultIterator<Document> get() {
+                cache.invalidate("orders");
+                return iterator();
+            }
+        }));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void resultsExpire() throws InterruptedException {
+        LruResultCache cache = new LruResultCache(10, 1024, 1);
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        Thread.sleep(5);
+        Lists.newArrayList(cache.get(plan("a"), ORDERS, loader()));
+        assertEquals(2, loads.get());
+    }
+
+    private static Document plan(final String status) {
+        return new Document("collection", "orders").append("query", new Document("status", status));
+    }
+
+    private Supplier<QueryResultIterator<Document>> loader(final Document... results) {
+        return new Supplier<QueryResultIterator<Document>>() {
+            @Override
+            public QueryResultIterator<Document> get() {
+                loads.incrementAndGet();
+                return iterator(results);
+            }
+        };
+    }
+
+    private static QueryResultIterator<Document> iterator(final Document... results) {
+        return new QueryResultIterator<>(Arrays.asList(results).iterator(), new Closeable() {
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+}
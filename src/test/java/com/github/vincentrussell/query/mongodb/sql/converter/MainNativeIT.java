@@ -0,0 +1,157 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the scenarios of {@link MainTest} against the native image of the cli, which is built with the native profile:
+ * mvn -Pnative verify -Dit.test=MainNativeIT.  The tests are skipped when the native image was not built.
+ */
+public class MainNativeIT {
+
+    private static final String SQL = "select column1 from my_table where value IN (\"theValue1\",\"theValue2\","
+            + "\"theValue3\")";
+    private static final String MONGO_QUERY = "******Mongo Query:*********\n" +
+            "\n" +
+            "db.my_table.find({\n" +
+            "  \"value\": {\n" +
+            "    \"$in\": [\n" +
+            "      \"theValue1\",\n" +
+            "      \"theValue2\",\n" +
+            "      \"theValue3\"\n" +
+            "    ]\n" +
+            "  }\n" +
+            "} , {\n" +
+            "  \"_id\": 0,\n" +
+            "  \"column1\": 1\n" +
+            "})";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File sourceFile;
+    private File destinationFile;
+    private String output;
+    private String error;
+
+    @BeforeClass
+    public static void nativeImageWasBuilt() {
+        assumeTrue(System.getProperty("native.image") != null && new File(System.getProperty("native.image")).canExecute());
+    }
+
+    @Before
+    public void before() throws IOException {
+        sourceFile = temporaryFolder.newFile();
+        destinationFile = temporaryFolder.newFile();
+    }
+
+    @Test
+    public void missingArgumentsPrintsHelp() throws IOException, InterruptedException {
+        assertNotEquals(0, run(""));
+        assertThat(error, containsString("Missing required option: s or i"));
+        assertThat(output, containsString("usage: " + Main.class.getName()));
+    }
+
+    @Test
+    public void providedHostButNoDB() throws IOException, InterruptedException {
+        assertNotEquals(0, run("", "-s", sourceFile.getAbsolutePath(), "-h", "localhost"));
+        assertThat(error, containsString("provided option h, but missing db"));
+    }
+
+    @Test
+    public void providedUsernameButNoPassword() throws IOException, InterruptedException {
+        assertNotEquals(0, run("", "-s", sourceFile.getAbsolutePath(), "-h", "localhost", "-db", "database",
+                "-u", "username"));
+        assertThat(error, containsString("provided option u, but missing p"));
+    }
+
+    @Test
+    public void interactiveMode() throws IOException, InterruptedException {
+        assertEquals(0, run(SQL + "\n", "-i"));
+        assertEquals(MONGO_QUERY, output.replace(Main.ENTER_SQL_TEXT, "").trim());
+    }
+
+    @Test
+    public void loopModeKeepsTheHistoryOfTheStatements() throws IOException, InterruptedException {
+        File historyFile = temporaryFolder.newFile();
+        assertEquals(0, run(SQL + ";\ny\n!1;\nn\n", "-i", "-l", "-hf", historyFile.getAbsolutePath()));
+        assertEquals(Arrays.asList(SQL, SQL), FileUtils.readLines(historyFile, StandardCharsets.UTF_8));
+        assertEquals(2, output.split("\\*\\*\\*\\*\\*\\*Mongo Query:\\*\\*\\*\\*\\*\\*\\*\\*\\*").length - 1);
+    }
+
+    @Test
+    public void sourceFileNotFound() throws IOException, InterruptedException {
+        sourceFile.delete();
+        assertNotEquals(0, run("", "-s", sourceFile.getAbsolutePath(), "-d", destinationFile.getAbsolutePath()));
+        assertThat(error, containsString("FileNotFoundException"));
+    }
+
+    @Test
+    public void destinationExists() throws IOException, InterruptedException {
+        assertNotEquals(0, run("", "-s", sourceFile.getAbsolutePath(), "-d", destinationFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void successfulRun() throws IOException, InterruptedException {
+        destinationFile.delete();
+        FileUtils.writeStringToFile(sourceFile, SQL, StandardCharsets.UTF_8);
+        assertEquals(0, run("", "-s", sourceFile.getAbsolutePath(), "-d", destinationFile.getAbsolutePath()));
+        assertEquals(MONGO_QUERY, FileUtils.readFileToString(destinationFile, StandardCharsets.UTF_8).trim());
+    }
+
+    @Test
+    public void successfulRunSqlInline() throws IOException, InterruptedException {
+        destinationFile.delete();
+        assertEquals(0, run("", "-d", destinationFile.getAbsolutePath(), "-sql", SQL));
+        assertEquals(MONGO_QUERY, FileUtils.readFileToString(destinationFile, StandardCharsets.UTF_8).trim());
+    }
+
+    @Test
+    public void successfulRunSystemOut() throws IOException, InterruptedException {
+        FileUtils.writeStringToFile(sourceFile, SQL, StandardCharsets.UTF_8);
+        assertEquals(0, run("", "-s", sourceFile.getAbsolutePath()));
+        assertEquals(MONGO_QUERY, output.trim());
+    }
+
+    @Test
+    public void naturalLanguageDate() throws IOException, InterruptedException {
+        assertEquals(0, run("", "-sql", "select * from my_table where date(column,'natural') >= '5000 days ago'"));
+        assertThat(output, containsString("\"$gte\": ISODate(\""));
+    }
+
+    private int run(final String input, final String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("native.image"));
+        command.addAll(Arrays.asList(args));
+        File outputFile = temporaryFolder.newFile();
+        File errorFile = temporaryFolder.newFile();
+        Process process = new ProcessBuilder(command).redirectOutput(outputFile).redirectError(errorFile).start();
+        try (OutputStream outputStream = process.getOutputStream()) {
+            IOUtils.write(input, outputStream, StandardCharsets.UTF_8);
+        }
+        int exitValue = process.waitFor();
+        output = FileUtils.readFileToString(outputFile, StandardCharsets.UTF_8);
+        error = FileUtils.readFileToString(errorFile, StandardCharsets.UTF_8);
+        return exitValue;
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.github.vincentrussell.query.mongodb.sql.converter;
 
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Rule;
@@ -17,6 +18,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
@@ -175,6 +177,29 @@ public class MainTest {
 
     }
 
+    @Test
+    public void loopModeKeepsTheHistoryOfTheStatements() throws IOException, InterruptedException {
+        exit.expectSystemExitWithStatus(0);
+        final File historyFile = temporaryFolder.newFile();
+        final String sql = "select column1 from my_table where value = \"theValue1\"";
+        systemInMock.provideLines(sql);
+
+        runInSeparateThread(new ExceptionRunnable() {
+            @Override
+            public void run() throws Exception {
+                Main.main(new String[]{"-i", "-l", "-hf", historyFile.getAbsolutePath()});
+            }
+        });
+
+        systemInMock.provideLines("y", "!1");
+        Thread.sleep(1000);
+        systemInMock.provideLines("n");
+        Thread.sleep(1000);
+
+        assertEquals(Arrays.asList(sql, sql), FileUtils.readLines(historyFile, StandardCharsets.UTF_8));
+        assertEquals(2, systemOutRule.getLog().split(Pattern.quote("******Mongo Query:*********")).length - 1);
+    }
+
     private void runInSeparateThread(final ExceptionRunnable runnable) throws InterruptedException {
         final ExecutorService executorService = Executors.newFixedThreadPool(1);
         executorService.submit(new Runnable() {
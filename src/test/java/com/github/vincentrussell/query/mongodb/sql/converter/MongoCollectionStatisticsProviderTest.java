@@ -0,0 +1,26 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MongoCollectionStatisticsProviderTest {
+
+    @Test
+    public void fullCountIsTheFractionInTheIndexBounds() {
+        assertEquals(0.01, MongoCollectionStatisticsProvider.getIndexSelectivity(100, 10000, 1), 0);
+        assertEquals(1, MongoCollectionStatisticsProvider.getIndexSelectivity(999, 999, 2), 0);
+    }
+
+    @Test
+    public void countThatStoppedAtTheLimitIsEstimatedLikeAnUnindexedFilter() {
+        assertEquals(0.5, MongoCollectionStatisticsProvider.getIndexSelectivity(1000, 1000000, 1), 0);
+        assertEquals(0.25, MongoCollectionStatisticsProvider.getIndexSelectivity(1000, 1000000, 2), 0);
+    }
+
+    @Test
+    public void countThatStoppedAtTheLimitIsNeverBelowTheCountedFraction() {
+        assertEquals(0.8, MongoCollectionStatisticsProvider.getIndexSelectivity(1000, 1250, 3), 0);
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.rule.MongoRule;
+import com.github.vincentrussell.query.mongodb.sql.converter.view.IncrementalGroupByView;
+import com.google.common.collect.Lists;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MongoV4_3_1ChangeStreamIT {
+
+    //change streams need a replica set, the other ITs keep their standalone server
+    @ClassRule
+    public static MongoRule mongoRule = new MongoRule(MongoV4_3_1QueryConverterIT.Version.V4_3_1, "rs0");
+
+    @Test
+    public void watchedQuerySavesTheResumeTokenOfBatchesWithoutMatches() throws Exception {
+        //change streams do not watch the local database
+        MongoDatabase database = mongoRule.getDatabase("watch");
+        MongoCollection<Document> jobs = database.getCollection("jobs");
+        File tokenFile = File.createTempFile("watch", ".token");
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(tokenFile.delete());
+            FileResumeTokenStore resumeTokenStore = new FileResumeTokenStore(tokenFile);
+            QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from jobs where status = 'failed'").build();
+            final ContinuousQueryIterator iterator = queryConverter.watch(database, resumeTokenStore);
+            jobs.insertOne(new Document("_id", 1).append("status", "done"));
+            Future<Document> next = executorService.submit(new Callable<Document>() {
+                @Override
+                public Document call() {
+                    return iterator.next();
+                }
+            });
+            //the post batch resume token of the empty batches moves past the change that does not match
+            long deadline = System.currentTimeMillis() + 10000;
+            while (resumeTokenStore.getResumeToken() == null || hasChangesAfter(jobs, resumeTokenStore.getResumeToken())) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(100);
+            }
+            jobs.insertOne(new Document("_id", 2).append("status", "failed"));
+            assertEquals(new Document("_id", 2).append("status", "failed"), next.get(10, TimeUnit.SECONDS));
+            iterator.close();
+
+            jobs.insertOne(new Document("_id", 3).append("status", "failed"));
+            try (ContinuousQueryIterator resumed = queryConverter.watch(database, new FileResumeTokenStore(tokenFile))) {
+                assertEquals(new Document("_id", 3).append("status", "failed"), resumed.next());
+            }
+        } finally {
+            executorService.shutdownNow();
+            jobs.drop();
+            tokenFile.delete();
+        }
+    }
+
+    @Test
+    public void incrementalViewAppliesTheChangesOfTheCollection() throws Exception {
+        MongoDatabase database = mongoRule.getDatabase("views");
+        MongoCollection<Document> orders = database.getCollection("orders");
+        try {
+            orders.insertMany(Arrays.asList(order(1, "eu", 10, "open"), order(2, "eu", 20, "open"), order(3, "us", 5, "open")));
+            try (IncrementalGroupByView view = new QueryConverter.Builder().sqlString("select region, count(*) as c, sum(amount) as s, min(amount) as lo, "
+                    + "max(amount) as hi, avg(amount) as av from orders where status = 'open' group by region order by region").build()
+                    .incrementalView(database)) {
+                assertEquals(Arrays.asList(groupResult("eu", 2, 30, 10, 20, 15.0), groupResult("us", 1, 5, 5, 5, 5.0)), view.getResults());
+
+                orders.replaceOne(new Document("_id", 2), order(2, "us", 20, "open"));
+                orders.deleteOne(new Document("_id", 3));
+                orders.insertOne(order(5, "eu", 7, "open"));
+                orders.updateOne(new Document("_id", 1), new Document("$set", new Document("status", "closed")));
+                awaitResults(view, Arrays.asList(groupResult("eu", 1, 7, 7, 7, 7.0), groupResult("us", 1, 20, 20, 20, 20.0)));
+
+                orders.insertOne(order(6, "us", 2.5, "open"));
+                awaitResults(view, Arrays.asList(groupResult("eu", 1, 7, 7, 7, 7.0), groupResult("us", 2, 22.5, 2.5, 20, 11.25)));
+            }
+        } finally {
+            orders.drop();
+        }
+    }
+
+    @Test
+    public void incrementalViewMatchesTheFieldsOfArrays() throws Exception {
+        MongoDatabase database = mongoRule.getDatabase("views");
+        MongoCollection<Document> orders = database.getCollection("orders");
+        try {
+            orders.insertOne(Document.parse("{_id: 1, region: 'eu', items: [{sku: 'x'}, {sku: 'y'}]}"));
+            try (IncrementalGroupByView view = new QueryConverter.Builder().sqlString("select region, count(*) as c from orders where items.sku = 'y' group by region").build()
+                    .incrementalView(database)) {
+                assertEquals(Lists.newArrayList(new Document("region", "eu").append("c", 1)), view.getResults());
+                orders.insertOne(Document.parse("{_id: 2, region: 'eu', items: [{sku: 'y'}]}"));
+                orders.insertOne(Document.parse("{_id: 3, region: 'eu', items: [{sku: 'z'}]}"));
+                awaitResults(view, Lists.newArrayList(new Document("region", "eu").append("c", 2)));
+                assertEquals(Lists.newArrayList(view.getResults()), Lists.newArrayList((Iterator<Document>) new QueryConverter.Builder()
+                        .sqlString("select region, count(*) as c from orders where items.sku = 'y' group by region").build().run(database)));
+            }
+        } finally {
+            orders.drop();
+        }
+    }
+
+    private static boolean hasChangesAfter(MongoCollection<Document> collection, BsonDocument resumeToken) {
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = collection.watch().resumeAfter(resumeToken).cursor()) {
+            return cursor.tryNext() != null;
+        }
+    }
+
+    private static void awaitResults(IncrementalGroupByView view, List<Document> expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!expected.equals(view.getResults()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, view.getResults());
+    }
+
+    private static Document order(int id, String region, Number amount, String status) {
+        return new Document("_id", id).append("region", region).append("amount", amount).append("status", status);
+    }
+
+    private static Document groupResult(String region, int count, Number sum, Number min, Number max, double avg) {
+        return new Document("region", region).append("c", count).append("s", sum).append("lo", min)
+                .append("hi", max).append("av", avg);
+    }
+
+}
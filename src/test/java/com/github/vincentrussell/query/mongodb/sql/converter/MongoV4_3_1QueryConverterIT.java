@@ -1,12 +1,26 @@
 package com.github.vincentrussell.query.mongodb.sql.converter;
 
+import com.github.vincentrussell.query.mongodb.sql.converter.compiled.CompiledQuery;
+import com.github.vincentrussell.query.mongodb.sql.converter.join.BatchedNestedLoopJoinIterator;
 import com.github.vincentrussell.query.mongodb.sql.converter.rule.MongoRule;
 import com.google.common.collect.Lists;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
 import de.flapdoodle.embed.mongo.distribution.Feature;
 import de.flapdoodle.embed.mongo.distribution.IFeatureAwareVersion;
+import org.bson.BsonArray;
 import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
 import org.bson.BsonString;
+import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.json.JSONException;
@@ -15,14 +29,29 @@ import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class MongoV4_3_1QueryConverterIT extends AbstractQueryConverterIT {
 
+    private static final List<Document> JOIN_EVENTS = Arrays.asList(
+            new Document("_id", 1).append("accountId", 10).append("type", "click"),
+            new Document("_id", 2).append("accountId", 20L).append("type", "view"),
+            new Document("_id", 3).append("accountId", 10.0).append("type", "view"),
+            new Document("_id", 4).append("accountId", 30).append("type", "click"),
+            new Document("_id", 5).append("type", "orphan"));
+
     @ClassRule
     public static MongoRule mongoRule = new MongoRule(Version.V4_3_1);
 
@@ -184,6 +213,15 @@ public class MongoV4_3_1QueryConverterIT extends AbstractQueryConverterIT {
                 "}]",toJson(results),false);
     }
 
+    @Test
+    public void simpleInnerJoinWhereInJoinTable() throws ParseException, JSONException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.Phone as Phonet1, t2.managerStaffId as managerStaffIdt2 from "+COLLECTION_CUSTOMERS+" as t1 inner join " + COLLECTION_STORES + " as t2 on t1.Country = t2.Country where t2.managerStaffId = '1'").build();
+        QueryResultIterator<Document> distinctIterable = queryConverter.run(mongoDatabase);
+        List<Document> results = Lists.newArrayList(distinctIterable);
+        assertEquals(5, results.size());
+        assertNull(((Document) ((List<Document>) queryConverter.getQueryAsDocument().get("query")).get(0).get("$lookup")).get("localField"));
+    }
+
     @Test
     public void subqueryJoinByOneGetMaxOfGroup() throws ParseException, JSONException, IOException {
         QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select r.cuisine as cuisine, trest.totalrestaurats as total from "+COLLECTION+" as r inner join (select cuisine, count(*) as totalrestaurats from "+COLLECTION+" group by cuisine) as trest on r.cuisine = trest.cuisine order by trest.totalrestaurats asc, cuisine asc limit 15").build();
@@ -427,6 +465,217 @@ public class MongoV4_3_1QueryConverterIT extends AbstractQueryConverterIT {
         }
     }
 
+    @Test
+    public void inlinedSemiJoinReadsTheSubqueryEveryRun() throws ParseException {
+        MongoCollection<Document> orders = mongoDatabase.getCollection("semi_join_orders");
+        MongoCollection<Document> vips = mongoDatabase.getCollection("semi_join_vips");
+        try {
+            orders.insertOne(new Document("_id", 1).append("customer", "a"));
+            orders.insertOne(new Document("_id", 2).append("customer", "b"));
+            vips.insertOne(new Document("name", "a"));
+            QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select _id from semi_join_orders where customer in (select name from semi_join_vips)")
+                    .semiJoinInlineThreshold(10).build();
+            Document queryDocument = queryConverter.getQueryAsDocument();
+            assertEquals(Lists.newArrayList(new Document("_id", 1)), Lists.newArrayList((Iterator<Document>) queryConverter.run(mongoDatabase)));
+            vips.insertOne(new Document("name", "b"));
+            assertEquals(Lists.newArrayList(new Document("_id", 1), new Document("_id", 2)), Lists.newArrayList((Iterator<Document>) queryConverter.run(mongoDatabase)));
+            assertEquals(queryDocument, queryConverter.getQueryAsDocument());
+        } finally {
+            orders.drop();
+            vips.drop();
+        }
+    }
+
+    @Test
+    public void percentileFallbackLeavesOutValuesThatAreNotNumbers() throws ParseException {
+        MongoCollection<Document> scores = mongoDatabase.getCollection("percentile_scores");
+        try {
+            scores.insertMany(Arrays.asList(new Document("_id", 1).append("region", "a").append("score", null),
+                    new Document("_id", 2).append("region", "a").append("score", null),
+                    new Document("_id", 3).append("region", "a").append("score", 1),
+                    new Document("_id", 4).append("region", "a").append("score", 2L),
+                    new Document("_id", 5).append("region", "a").append("score", 3.0),
+                    new Document("_id", 6).append("region", "a").append("score", "x"),
+                    new Document("_id", 7).append("region", "a"),
+                    new Document("_id", 8).append("region", "b").append("score", "y")));
+            QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select region, median(score) as m from percentile_scores group by region order by region")
+                    .percentileFallback(true).build();
+            assertEquals(Lists.newArrayList(new Document("region", "a").append("m", 2L), new Document("region", "b")),
+                    Lists.newArrayList((Iterator<Document>) queryConverter.run(mongoDatabase)));
+        } finally {
+            scores.drop();
+        }
+    }
+
+    @Test
+    public void theTimeLeftAndTheCommentAreSentWithTheQuery() throws ParseException, IOException {
+        List<BsonDocument> finds = Collections.synchronizedList(new ArrayList<BsonDocument>());
+        try (MongoClient mongoClient = findRecordingClient(finds)) {
+            QueryExecution execution = new QueryExecution(1, TimeUnit.MINUTES);
+            QueryConverter queryConverter = new QueryConverter.Builder()
+                    .sqlString("select /*+ MAXTIME(90000) */ * from " + COLLECTION + " where borough = 'Manhattan'").build();
+            try (QueryResultIterator<Document> iterator = queryConverter.run(mongoClient.getDatabase("local"), execution)) {
+                assertTrue(iterator.hasNext());
+            }
+        }
+        assertEquals(1, finds.size());
+        long maxTime = finds.get(0).getNumber("maxTimeMS").longValue();
+        assertTrue(maxTime > 0 && maxTime <= 60000);
+        assertEquals(new BsonString("Manhattan"), finds.get(0).getDocument("filter").get("borough"));
+    }
+
+    @Test
+    public void cancelKillsTheCursorOnTheServer() throws ParseException {
+        MongoDatabase admin = mongoRule.getDatabase("admin");
+        QueryExecution execution = new QueryExecution();
+        QueryResultIterator<Document> iterator = new QueryConverter.Builder().sqlString("select /*+ BATCHSIZE(10) */ * from " + COLLECTION)
+                .build().run(mongoDatabase, execution);
+        assertTrue(iterator.hasNext());
+        iterator.next();
+        Document operations = new Document("$currentOp", new Document("idleCursors", true));
+        Document match = new Document("$match", new Document("cursor.originatingCommand.comment", execution.getComment()));
+        assertEquals(1, Lists.newArrayList(admin.aggregate(Arrays.asList(operations, match))).size());
+        execution.cancel(admin);
+        try {
+            iterator.hasNext();
+            fail();
+        } catch (CancellationException e) {
+            assertEquals(0, Lists.newArrayList(admin.aggregate(Arrays.asList(operations, match))).size());
+        }
+    }
+
+    @Test
+    public void batchedJoinSendsOneInQueryPerBatchWithDistinctKeys() throws IOException {
+        List<BsonDocument> finds = Collections.synchronizedList(new ArrayList<BsonDocument>());
+        try (MongoClient mongoClient = findRecordingClient(finds)) {
+            MongoCollection<Document> accounts = joinAccounts(mongoClient);
+            try {
+                List<Document> rows = batchedJoin(accounts, false, 3, 1, new QueryExecution());
+                assertEquals(Arrays.asList(
+                        joinedEvent(1, 10, "click", "a"),
+                        joinedEvent(2, 20L, "view", "b"),
+                        joinedEvent(2, 20L, "view", "c"),
+                        joinedEvent(3, 10.0, "view", "a"),
+                        new Document("_id", 5).append("type", "orphan").append("a", new Document("id", null).append("name", "d"))),
+                        rows);
+                assertEquals(2, finds.size());
+                assertEquals(new BsonDocument("id", new BsonDocument("$in", new BsonArray(Arrays.<BsonValue>asList(new BsonInt64(10), new BsonInt64(20))))),
+                        finds.get(0).getDocument("filter"));
+                assertEquals(new BsonDocument("id", new BsonDocument("$in", new BsonArray(Arrays.asList(new BsonInt64(30), BsonNull.VALUE)))),
+                        finds.get(1).getDocument("filter"));
+            } finally {
+                accounts.drop();
+            }
+        }
+    }
+
+    @Test
+    public void batchedLeftJoinKeepsUnmatchedRows() throws IOException {
+        MongoCollection<Document> accounts = joinAccounts(null);
+        try {
+            List<Document> rows = batchedJoin(accounts, true, 2, 2, new QueryExecution());
+            assertEquals(6, rows.size());
+            assertEquals(new Document("_id", 4).append("accountId", 30).append("type", "click"), rows.get(4));
+        } finally {
+            accounts.drop();
+        }
+    }
+
+    @Test
+    public void everyBatchOfTheJoinIsSentTheTimeLeftBeforeTheDeadline() throws IOException {
+        List<BsonDocument> finds = Collections.synchronizedList(new ArrayList<BsonDocument>());
+        try (MongoClient mongoClient = findRecordingClient(finds)) {
+            MongoCollection<Document> accounts = joinAccounts(mongoClient);
+            try {
+                batchedJoin(accounts, false, 1, 2, new QueryExecution(1, TimeUnit.MINUTES));
+                assertEquals(JOIN_EVENTS.size(), finds.size());
+                for (BsonDocument find : finds) {
+                    long maxTime = find.getNumber("maxTimeMS").longValue();
+                    assertTrue(maxTime > 0 && maxTime <= 60000);
+                }
+            } finally {
+                accounts.drop();
+            }
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancelledBatchedJoinStops() throws IOException {
+        MongoCollection<Document> accounts = joinAccounts(null);
+        try {
+            QueryExecution execution = new QueryExecution();
+            execution.cancel();
+            batchedJoin(accounts, false, 2, 2, execution);
+        } finally {
+            accounts.drop();
+        }
+    }
+
+    @Test
+    public void boundCompiledQueryRunsWithTheEncodedPlan() throws ParseException, IOException {
+        List<BsonDocument> finds = Collections.synchronizedList(new ArrayList<BsonDocument>());
+        MongoCollection<Document> orders = mongoDatabase.getCollection("compiled_orders");
+        try (MongoClient mongoClient = findRecordingClient(finds)) {
+            orders.insertMany(Arrays.asList(new Document("_id", 1).append("total", 5).append("status", "open"),
+                    new Document("_id", 2).append("total", 9).append("status", "open"),
+                    new Document("_id", 3).append("total", 7).append("status", "closed")));
+            List<String> parameterNames = new ArrayList<>();
+            String queryDocumentJson = CompiledQuery.convert("select total from compiled_orders where status = :status order by total desc", parameterNames).toJson();
+            CompiledQuery openOrders = new CompiledQuery(parameterNames, queryDocumentJson).bind("open");
+            List<Object> totals = new ArrayList<>();
+            try (QueryResultIterator<Document> iterator = openOrders.run(mongoClient.getDatabase("local"))) {
+                while (iterator.hasNext()) {
+                    totals.add(iterator.next().get("total"));
+                }
+            }
+            assertEquals(Arrays.<Object>asList(9, 5), totals);
+            assertEquals(1, finds.size());
+            assertEquals(new BsonDocument("status", new BsonString("open")), finds.get(0).getDocument("filter"));
+            assertEquals(new BsonDocument("total", new BsonInt32(-1)), finds.get(0).getDocument("sort"));
+        } finally {
+            orders.drop();
+        }
+    }
+
+    private static MongoClient findRecordingClient(final List<BsonDocument> finds) {
+        return MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(mongoRule.getConnectionString()))
+                .addCommandListener(new CommandListener() {
+                    @Override
+                    public void commandStarted(CommandStartedEvent event) {
+                        if ("find".equals(event.getCommandName())) {
+                            finds.add(event.getCommand());
+                        }
+                    }
+                }).build());
+    }
+
+    //the accounts of the batched join, read through the client when it is not null
+    private static MongoCollection<Document> joinAccounts(MongoClient mongoClient) {
+        MongoCollection<Document> accounts = (mongoClient != null ? mongoClient.getDatabase("join") : mongoRule.getDatabase("join"))
+                .getCollection("accounts");
+        accounts.drop();
+        mongoRule.getDatabase("join").getCollection("accounts").insertMany(Arrays.asList(
+                new Document("id", 10L).append("name", "a"),
+                new Document("id", 20L).append("name", "b"),
+                new Document("id", 20L).append("name", "c"),
+                new Document("id", null).append("name", "d")));
+        return accounts;
+    }
+
+    private static List<Document> batchedJoin(MongoCollection<Document> accounts, boolean preserveUnmatched, int batchSize,
+                                              int parallelism, QueryExecution execution) throws IOException {
+        try (BatchedNestedLoopJoinIterator iterator = new BatchedNestedLoopJoinIterator(JOIN_EVENTS.iterator(), "accountId",
+                accounts, "id", null, new Document("_id", 0), "a", preserveUnmatched, batchSize, parallelism, execution)) {
+            return Lists.newArrayList(iterator);
+        }
+    }
+
+    private static Document joinedEvent(int id, Object accountId, String type, String name) {
+        return new Document("_id", id).append("accountId", accountId).append("type", type)
+                .append("a", new Document("id", ((Number) accountId).longValue()).append("name", name));
+    }
+
     public enum Version implements IFeatureAwareVersion {
 
         V4_3_1("4.3.1", Feature.SYNC_DELAY, Feature.STORAGE_ENGINE, Feature.ONLY_64BIT,
@@ -7,7 +7,11 @@ import org.junit.rules.ExpectedException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 
@@ -107,6 +111,75 @@ public class QueryConverterJoinTest {
         		"}])",byteArrayOutputStream.toString("UTF-8"));
     }
     
+    @Test
+    public void writeInnerJoinByTwoFieldsWithConciseLookups() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.column1, t2.column2 from my_table as t1 inner join my_table2 as t2 on t1.column = t2.column and t2.column2 = t1.column2")
+                .conciseLookups(true).build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.my_table.aggregate([{\n" +
+        		"  \"$lookup\": {\n" +
+        		"    \"from\": \"my_table2\",\n" +
+        		"    \"localField\": \"column\",\n" +
+        		"    \"foreignField\": \"column\",\n" +
+        		"    \"let\": {\n" +
+        		"      \"column2\": \"$column2\"\n" +
+        		"    },\n" +
+        		"    \"pipeline\": [\n" +
+        		"      {\n" +
+        		"        \"$match\": {\n" +
+        		"          \"$expr\": {\n" +
+        		"            \"$eq\": [\n" +
+        		"              \"$$column2\",\n" +
+        		"              \"$column2\"\n" +
+        		"            ]\n" +
+        		"          }\n" +
+        		"        }\n" +
+        		"      }\n" +
+        		"    ],\n" +
+        		"    \"as\": \"t2\"\n" +
+        		"  }\n" +
+        		"},{\n" +
+        		"  \"$unwind\": {\n" +
+        		"    \"path\": \"$t2\",\n" +
+        		"    \"preserveNullAndEmptyArrays\": false\n" +
+        		"  }\n" +
+        		"},{\n" +
+        		"  \"$project\": {\n" +
+        		"    \"_id\": 0,\n" +
+        		"    \"column1\": 1,\n" +
+        		"    \"t2.column2\": 1\n" +
+        		"  }\n" +
+        		"}])",byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void writeInnerJoinByOneFieldWhereInJoinTableWithConciseLookups() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.column1, t2.column2 from my_table as t1 inner join my_table2 as t2 on t1.column = t2.column where t2.column2 = 'x'")
+                .conciseLookups(true).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("from", "my_table2").append("localField", "column").append("foreignField", "column")
+                .append("pipeline", Arrays.asList(new Document("$match", new Document("column2", "x"))))
+                .append("as", "t2"), steps.get(0).get("$lookup"));
+    }
+
+    @Test
+    public void writeInnerJoinByOneFieldWithEqualityLookups() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.column1, t2.column2 from my_table as t1 inner join my_table2 as t2 on t1.column = t2.column")
+                .equalityLookups(true).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("from", "my_table2").append("localField", "column").append("foreignField", "column")
+                .append("as", "t2"), steps.get(0).get("$lookup"));
+    }
+
+    @Test
+    public void writeInnerJoinByOneFieldWhereInJoinTableWithEqualityLookups() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.column1, t2.column2 from my_table as t1 inner join my_table2 as t2 on t1.column = t2.column where t2.column2 = 'x'")
+                .equalityLookups(true).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("column", "$column"), steps.get(0).get("$lookup", Document.class).get("let"));
+    }
+
     @Test
     public void writeInnerJoinByTwoNestedFields() throws ParseException, IOException {
         QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.nested1.column1, t2.nested2.column2 from my_table as t1 inner join my_table2 as t2 on t1.nested1.column = t2.nested2.column and t2.nested2.column2 = t1.nested1.column1").build();
@@ -1117,6 +1190,152 @@ public class QueryConverterJoinTest {
         return document;
     }
 
+    @Test
+    public void leftJoinTopNSortsAndLimitsBeforeLookup() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.column1, t2.column2 from my_table as t1 left join my_table2 as t2 on t1.column = t2.column where t1.value = 1 order by t1.column1 desc limit 10 offset 20").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(Arrays.asList("$match", "$sort", "$limit", "$lookup", "$unwind", "$limit", "$skip", "$project"),
+                stepNames(steps));
+        assertEquals(new Document("$sort", new Document("column1", -1)), steps.get(1));
+        assertEquals(new Document("$limit", 30L), steps.get(2));
+        assertEquals(new Document("$limit", 30L), steps.get(5));
+        assertEquals(new Document("$skip", 20L), steps.get(6));
+    }
+
+    @Test
+    public void innerJoinTopNKeepsSortAfterLookup() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.column1, t2.column2 from my_table as t1 inner join my_table2 as t2 on t1.column = t2.column order by t1.column1 limit 10").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(Arrays.asList("$lookup", "$unwind", "$sort", "$limit", "$project"), stepNames(steps));
+    }
+
+    @Test
+    public void leftJoinTopNOnJoinedFieldKeepsSortAfterLookup() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select t1.column1, t2.column2 from my_table as t1 left join my_table2 as t2 on t1.column = t2.column order by t2.column2 limit 10").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(Arrays.asList("$lookup", "$unwind", "$sort", "$limit", "$project"), stepNames(steps));
+    }
+
+    @Test
+    public void innerJoinDrivenFromSmallestCollection() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select e.type, a.name from huge_events as e inner join tiny_accounts as a on e.accountId = a.id where e.type = 'click'")
+                .collectionStatisticsProvider(statistics("huge_events", 1000000L, "tiny_accounts", 100L)).build();
+        Document queryDocument = queryConverter.getQueryAsDocument();
+        List<Document> steps = (List<Document>) queryDocument.get("query");
+        assertEquals("tiny_accounts", queryDocument.getString("collection"));
+        assertEquals(Arrays.asList("$lookup", "$unwind", "$replaceRoot", "$project", "$project"), stepNames(steps));
+        assertEquals(new Document("from", "huge_events").append("let", new Document("id", "$id"))
+                .append("pipeline", Arrays.asList(new Document("$match", new Document("$and", Arrays.asList(
+                        new Document("$expr", new Document("$eq", Arrays.asList("$accountId", "$$id"))),
+                        new Document("type", "click"))))))
+                .append("as", "e"), steps.get(0).get("$lookup"));
+        assertEquals(new Document("$replaceRoot", new Document("newRoot", new Document("$mergeObjects",
+                Arrays.asList("$e", new Document("a", "$$ROOT"))))), steps.get(2));
+        assertEquals(new Document("$project", new Document("a.e", 0)), steps.get(3));
+        assertEquals(new Document("$project", new Document("_id", 0).append("type", 1).append("a.name", 1)), steps.get(4));
+    }
+
+    @Test
+    public void innerJoinsLookedUpFromSmallestToLargest() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select e.type, a.name, m.x from huge_events as e inner join mid as m on m.eventId = e.id inner join tiny_accounts as a on e.accountId = a.id and a.region = 'eu'")
+                .equalityLookups(true).collectionStatisticsProvider(statistics("huge_events", 1000000L, "mid", 5000L, "tiny_accounts", 100L)).build();
+        Document queryDocument = queryConverter.getQueryAsDocument();
+        List<Document> steps = (List<Document>) queryDocument.get("query");
+        assertEquals("tiny_accounts", queryDocument.getString("collection"));
+        assertEquals(Arrays.asList("$match", "$lookup", "$unwind", "$lookup", "$unwind", "$replaceRoot", "$project",
+                "$project"), stepNames(steps));
+        assertEquals(new Document("$match", new Document("region", "eu")), steps.get(0));
+        assertEquals("huge_events", steps.get(1).get("$lookup", Document.class).getString("from"));
+        assertEquals("e.id", steps.get(3).get("$lookup", Document.class).getString("localField"));
+        assertEquals(new Document("$replaceRoot", new Document("newRoot", new Document("$mergeObjects",
+                Arrays.asList("$e", new Document("a", "$$ROOT").append("m", "$m"))))), steps.get(5));
+        assertEquals(new Document("$project", new Document("a.e", 0).append("a.m", 0)), steps.get(6));
+    }
+
+    @Test
+    public void leftJoinIsNotReordered() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select e.type, a.name from huge_events as e left join tiny_accounts as a on e.accountId = a.id")
+                .collectionStatisticsProvider(statistics("huge_events", 1000000L, "tiny_accounts", 100L)).build();
+        Document queryDocument = queryConverter.getQueryAsDocument();
+        assertEquals("huge_events", queryDocument.getString("collection"));
+        assertEquals(Arrays.asList("$lookup", "$unwind", "$project"),
+                stepNames((List<Document>) queryDocument.get("query")));
+    }
+
+    @Test
+    public void joinPredicatesUseInferredFieldTypes() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select e.type, a.name from events as e inner join accounts as a on e.accountId = a.id where a.tier = '2' and e.code = 7")
+                .schemaProvider(schema("events", "code", FieldType.STRING, "accounts", "tier", FieldType.NUMBER)).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("$match", new Document("code", "7")), steps.get(0));
+        assertEquals(Arrays.asList(new Document("$match", new Document("$and", Arrays.asList(
+                new Document("$expr", new Document("$eq", Arrays.asList("$$accountid", "$id"))),
+                new Document("tier", 2L))))), steps.get(1).get("$lookup", Document.class).get("pipeline"));
+    }
+
+    @Test
+    public void orAcrossJoinedTablesUsesInferredFieldTypes() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select e.type, a.name from events as e inner join accounts as a on e.accountId = a.id where a.tier = '2' or e.code = 7")
+                .schemaProvider(schema("events", "code", FieldType.STRING, "accounts", "tier", FieldType.NUMBER)).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("$match", new Document("$or", Arrays.asList(new Document("a.tier", 2L),
+                new Document("code", "7")))), steps.get(2));
+    }
+
+    @Test
+    public void fieldTypeMappingTakesPrecedenceOverInferredFieldTypes() throws ParseException {
+        Map<String, FieldType> fieldTypes = new HashMap<>();
+        fieldTypes.put("a.tier", FieldType.STRING);
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select e.type, a.name from events as e inner join accounts as a on e.accountId = a.id where a.tier = 2")
+                .fieldNameToFieldTypeMapping(fieldTypes)
+                .schemaProvider(schema("accounts", "tier", FieldType.NUMBER)).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(Arrays.asList(new Document("$match", new Document("$and", Arrays.asList(
+                new Document("$expr", new Document("$eq", Arrays.asList("$$accountid", "$id"))),
+                new Document("tier", "2"))))), steps.get(0).get("$lookup", Document.class).get("pipeline"));
+    }
+
+    private static SchemaProvider schema(final Object... collectionsFieldsAndTypes) {
+        final Map<String, Map<String, FieldType>> fieldTypes = new HashMap<>();
+        for (int i = 0; i < collectionsFieldsAndTypes.length; i += 3) {
+            Map<String, FieldType> collectionFieldTypes = new HashMap<>();
+            collectionFieldTypes.put((String) collectionsFieldsAndTypes[i + 1], (FieldType) collectionsFieldsAndTypes[i + 2]);
+            fieldTypes.put((String) collectionsFieldsAndTypes[i], collectionFieldTypes);
+        }
+        return new SchemaProvider() {
+            @Override
+            public Map<String, FieldType> getFieldTypes(String collection) {
+                return fieldTypes.containsKey(collection) ? fieldTypes.get(collection) : new HashMap<String, FieldType>();
+            }
+        };
+    }
+
+    private static CollectionStatisticsProvider statistics(final Object... collectionsAndCounts) {
+        final Map<String, Long> counts = new HashMap<>();
+        for (int i = 0; i < collectionsAndCounts.length; i += 2) {
+            counts.put((String) collectionsAndCounts[i], (Long) collectionsAndCounts[i + 1]);
+        }
+        return new CollectionStatisticsProvider() {
+            @Override
+            public long getDocumentCount(String collection) {
+                return counts.get(collection);
+            }
+
+            @Override
+            public double getSelectivity(String collection, Document filter) {
+                return filter.isEmpty() ? 1 : 0.01;
+            }
+        };
+    }
+
+    private static List<String> stepNames(List<Document> steps) {
+        List<String> names = new ArrayList<>();
+        for (Document step : steps) {
+            names.add(step.keySet().iterator().next());
+        }
+        return names;
+    }
+
     private static Document documentValuesArray(String key, Object... values) {
         return new Document(key,Arrays.asList(values));
     }
@@ -9,6 +9,8 @@ import org.junit.rules.ExpectedException;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 
@@ -789,6 +791,172 @@ public class QueryConverterSubqueryTest {
         		"}])",byteArrayOutputStream.toString("UTF-8"));
     }
     
+    @Test
+    public void writeCorrelatedExistsSemiJoin() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough, cuisine from Restaurants r where r.borough = 'Bronx' and exists (select 1 from Grades g where g.restaurant_id = r.restaurant_id and g.score > 10)").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.Restaurants.aggregate([{\n" +
+                "  \"$match\": {\n" +
+                "    \"borough\": \"Bronx\"\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$lookup\": {\n" +
+                "    \"from\": \"Grades\",\n" +
+                "    \"let\": {\n" +
+                "      \"v0\": \"$restaurant_id\"\n" +
+                "    },\n" +
+                "    \"pipeline\": [\n" +
+                "      {\n" +
+                "        \"$match\": {\n" +
+                "          \"$expr\": {\n" +
+                "            \"$eq\": [\n" +
+                "              \"$restaurant_id\",\n" +
+                "              \"$$v0\"\n" +
+                "            ]\n" +
+                "          }\n" +
+                "        }\n" +
+                "      },\n" +
+                "      {\n" +
+                "        \"$match\": {\n" +
+                "          \"score\": {\n" +
+                "            \"$gt\": 10\n" +
+                "          }\n" +
+                "        }\n" +
+                "      },\n" +
+                "      {\n" +
+                "        \"$limit\": 1\n" +
+                "      }\n" +
+                "    ],\n" +
+                "    \"as\": \"__semi_join_0\"\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$match\": {\n" +
+                "    \"__semi_join_0\": {\n" +
+                "      \"$size\": 1\n" +
+                "    }\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$project\": {\n" +
+                "    \"_id\": 0,\n" +
+                "    \"borough\": 1,\n" +
+                "    \"cuisine\": 1\n" +
+                "  }\n" +
+                "}])", byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void notInSubqueryAntiJoin() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from Restaurants where restaurant_id not in (select restaurant_id from Closed where year = 2020)").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(3, steps.size());
+        Document lookup = steps.get(0).get("$lookup", Document.class);
+        assertEquals("Closed", lookup.getString("from"));
+        assertEquals(new Document("v0", "$restaurant_id"), lookup.get("let"));
+        assertEquals(Arrays.asList(
+                document("$match", document("$expr", documentValuesArray("$eq", "$restaurant_id", "$$v0"))),
+                document("$match", document("year", 2020L)),
+                document("$project", new Document("_id", 0).append("restaurant_id", 1)),
+                document("$limit", 1)), lookup.get("pipeline"));
+        assertEquals(document("$match", document("__semi_join_0", document("$size", 0))), steps.get(1));
+        assertEquals(document("$project", document("__semi_join_0", 0)), steps.get(2));
+    }
+
+    @Test
+    public void notExistsSubqueryAntiJoin() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from Restaurants r where not exists (select 1 from Closed c where c.restaurant_id = r.restaurant_id)").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(3, steps.size());
+        Document lookup = steps.get(0).get("$lookup", Document.class);
+        assertEquals("Closed", lookup.getString("from"));
+        assertEquals(Arrays.asList(
+                document("$match", document("$expr", documentValuesArray("$eq", "$restaurant_id", "$$v0"))),
+                document("$limit", 1)), lookup.get("pipeline"));
+        assertEquals(document("$match", document("__semi_join_0", document("$size", 0))), steps.get(1));
+        assertEquals(document("$project", document("__semi_join_0", 0)), steps.get(2));
+    }
+
+    @Test
+    public void notExistsSubqueryJoinedWithAnd() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from Restaurants r where r.borough = 'Bronx' and not exists (select 1 from Closed c where c.restaurant_id = r.restaurant_id) and r.cuisine = 'Irish'").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(4, steps.size());
+        assertEquals(document("$match", document("$and", document("borough", "Bronx"), document("cuisine", "Irish"))), steps.get(0));
+        assertEquals("Closed", steps.get(1).get("$lookup", Document.class).getString("from"));
+        assertEquals(document("$match", document("__semi_join_0", document("$size", 0))), steps.get(2));
+    }
+
+    @Test
+    public void notOfANotInSubqueryIsASemiJoin() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from Restaurants where not (restaurant_id not in (select restaurant_id from Closed))").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(document("$match", document("__semi_join_0", document("$size", 1))), steps.get(1));
+    }
+
+    @Test
+    public void inSubqueryWithColumnsQualifiedByTheTableName() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from x where a in (select u.b from u where u.d = 7)").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(Arrays.asList(
+                document("$match", document("$expr", documentValuesArray("$eq", "$b", "$$v0"))),
+                document("$match", document("d", 7L)),
+                document("$project", new Document("_id", 0).append("b", 1)),
+                document("$limit", 1)), steps.get(0).get("$lookup", Document.class).get("pipeline"));
+    }
+
+    @Test
+    public void existsSubqueryWithColumnsQualifiedByTheTableName() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from x where exists (select 1 from u where u.d = 7 and u.b = x.a)").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(Arrays.asList(
+                document("$match", document("$expr", documentValuesArray("$eq", "$b", "$$v0"))),
+                document("$match", document("d", 7L)),
+                document("$limit", 1)), steps.get(0).get("$lookup", Document.class).get("pipeline"));
+    }
+
+    @Test
+    public void correlatedSubqueryVariablesAreValidAndUnique() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from x where exists (select 1 from u where u.b = x._id and u.c = x.a_b and u.d = x.a.b and u.e = x._id)").build();
+        Document lookup = ((List<Document>) queryConverter.getQueryAsDocument().get("query")).get(0).get("$lookup", Document.class);
+        assertEquals(new Document("v0", "$_id").append("v1", "$a_b").append("v2", "$a.b"), lookup.get("let"));
+        assertEquals(document("$match", document("$and", Arrays.asList(
+                document("$expr", documentValuesArray("$eq", "$b", "$$v0")),
+                document("$expr", documentValuesArray("$eq", "$c", "$$v1")),
+                document("$expr", documentValuesArray("$eq", "$d", "$$v2")),
+                document("$expr", documentValuesArray("$eq", "$e", "$$v0"))))),
+                ((List<Document>) lookup.get("pipeline")).get(0));
+    }
+
+    @Test
+    public void correlatedSubqueryUsesTheFieldTypes() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from x where exists (select 1 from u where u.b = x.a or u.d = 5)")
+                .fieldNameToFieldTypeMapping(new HashMap<String, FieldType>() {{
+                    put("d", FieldType.STRING);
+                }}).build();
+        Document lookup = ((List<Document>) queryConverter.getQueryAsDocument().get("query")).get(0).get("$lookup", Document.class);
+        assertEquals(document("$match", document("$or", Arrays.asList(
+                document("$expr", documentValuesArray("$eq", "$b", "$$v0")),
+                document("d", "5")))),
+                ((List<Document>) lookup.get("pipeline")).get(0));
+    }
+
+    @Test
+    public void inSubqueryWithLimitMatchesAfterSubquery() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough from Restaurants where restaurant_id in (select restaurant_id as id from Grades order by score desc limit 10)").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        List<Document> pipeline = (List<Document>) steps.get(0).get("$lookup", Document.class).get("pipeline");
+        assertEquals(document("$match", document("$expr", documentValuesArray("$eq", "$id", "$$v0"))),
+                pipeline.get(pipeline.size() - 2));
+        assertEquals(document("$limit", 1), pipeline.get(pipeline.size() - 1));
+    }
+
+    @Test
+    public void inSubqueryInsideOrNotSupported() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage("IN (SELECT ...) and EXISTS (SELECT ...) are only supported when joined with AND in the where clause");
+        new QueryConverter.Builder().sqlString("select * from Restaurants where borough = 'Bronx' or restaurant_id in (select restaurant_id from Grades)").build();
+    }
+
     private static Document document(String key, Object... values) {
         Document document = new Document();
         if (values !=null && values.length > 1) {
@@ -16,6 +16,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -745,9 +746,7 @@ public class QueryConverterTest {
         queryConverter.write(byteArrayOutputStream);
         assertEquals("db.Restaurants.aggregate([{\n" +
                 "  \"$match\": {\n" +
-                "    \"_id\": {\n" +
-                "      \"$oid\": \"5e97ae59c63d1b3ff8e07c74\"\n" +
-                "    }\n" +
+                "    \"_id\": ObjectId(\"5e97ae59c63d1b3ff8e07c74\")\n" +
                 "  }\n" +
                 "},{\n" +
                 "  \"$project\": {\n" +
@@ -842,21 +841,11 @@ public class QueryConverterTest {
                 "  \"$match\": {\n" +
                 "    \"_id\": {\n" +
                 "      \"$in\": [\n" +
-                "        {\n" +
-                "          \"$oid\": \"5e97ae59c63d1b3ff8e07c74\"\n" +
-                "        },\n" +
-                "        {\n" +
-                "          \"$oid\": \"5e97ae58c63d1b3ff8e07c73\"\n" +
-                "        },\n" +
-                "        {\n" +
-                "          \"$oid\": \"5e97ae58c63d1b3ff8e07c72\"\n" +
-                "        },\n" +
-                "        {\n" +
-                "          \"$oid\": \"5e97ae58c63d1b3ff8e07c71\"\n" +
-                "        },\n" +
-                "        {\n" +
-                "          \"$oid\": \"5e97ae58c63d1b3ff8e07c70\"\n" +
-                "        }\n" +
+                "        ObjectId(\"5e97ae59c63d1b3ff8e07c74\"),\n" +
+                "        ObjectId(\"5e97ae58c63d1b3ff8e07c73\"),\n" +
+                "        ObjectId(\"5e97ae58c63d1b3ff8e07c72\"),\n" +
+                "        ObjectId(\"5e97ae58c63d1b3ff8e07c71\"),\n" +
+                "        ObjectId(\"5e97ae58c63d1b3ff8e07c70\")\n" +
                 "      ]\n" +
                 "    }\n" +
                 "  }\n" +
@@ -2157,9 +2146,9 @@ public class QueryConverterTest {
         		"    \"column2\": 1\n" + 
         		"  }\n" + 
         		"},{\n" + 
-        		"  \"$skip\": 3\n" +
+        		"  \"$limit\": 7\n" +
         		"},{\n" + 
-        		"  \"$limit\": 4\n" + 
+        		"  \"$skip\": 3\n" + 
         		"},{\n" + 
         		"  \"$project\": {\n" + 
         		"    \"_id\": 0,\n" + 
@@ -2224,9 +2213,9 @@ public class QueryConverterTest {
         		"    \"column2\": 1\n" + 
         		"  }\n" + 
         		"},{\n" + 
-        		"  \"$skip\": 3\n" +
+        		"  \"$limit\": 7\n" +
         		"},{\n" + 
-        		"  \"$limit\": 4\n" +
+        		"  \"$skip\": 3\n" +
         		"},{\n" + 
         		"  \"$project\": {\n" + 
         		"    \"_id\": 0,\n" + 
@@ -2253,9 +2242,9 @@ public class QueryConverterTest {
         		"    \"sub2.column2\": 1\n" + 
         		"  }\n" + 
         		"},{\n" + 
-        		"  \"$skip\": 3\n" +
+        		"  \"$limit\": 7\n" +
         		"},{\n" + 
-        		"  \"$limit\": 4\n" + 
+        		"  \"$skip\": 3\n" + 
         		"},{\n" + 
         		"  \"$project\": {\n" + 
         		"    \"_id\": 0,\n" + 
@@ -3101,6 +3090,517 @@ public class QueryConverterTest {
                 "}])",byteArrayOutputStream.toString("UTF-8"));
     }
 
+    @Test
+    public void countAllUseEstimatedDocumentCount() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select count(*) from my_table")
+                .useEstimatedDocumentCount(true).build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.my_table.estimatedDocumentCount()", byteArrayOutputStream.toString("UTF-8"));
+        assertEquals(Boolean.TRUE, queryConverter.getQueryAsDocument().getBoolean("estimatedDocumentCount"));
+    }
+
+    @Test
+    public void countAllWithWhereClauseIgnoresEstimatedDocumentCount() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select count(*) from my_table where value = 1")
+                .useEstimatedDocumentCount(true).build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.my_table.count({\n" +
+                "  \"value\": 1\n" +
+                "})", byteArrayOutputStream.toString("UTF-8"));
+        assertNull(queryConverter.getQueryAsDocument().get("estimatedDocumentCount"));
+    }
+
+    @Test
+    public void coveredFindQueryIsHintedToTheIndex() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select status, createdAt from orders where status = 'open' order by createdAt desc limit 10")
+                .indexProvider(indexes(new Document("status", 1).append("createdAt", -1).append("total", 1), new Document("status", 1).append("createdAt", -1))).build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.orders.find({\n" +
+                "  \"status\": \"open\"\n" +
+                "} , {\n" +
+                "  \"_id\": 0,\n" +
+                "  \"status\": 1,\n" +
+                "  \"createdAt\": 1\n" +
+                "}).sort({\n" +
+                "  \"createdAt\": -1\n" +
+                "}).limit(10).hint({\n" +
+                "  \"status\": 1,\n" +
+                "  \"createdAt\": -1\n" +
+                "})", byteArrayOutputStream.toString("UTF-8"));
+        assertEquals(Boolean.TRUE, queryConverter.getQueryAsDocument().getBoolean("covered"));
+    }
+
+    @Test
+    public void selectAllIsNotCovered() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from orders where status = 'open'")
+                .indexProvider(indexes(new Document("status", 1).append("total", 1))).build();
+        Document queryDocument = queryConverter.getQueryAsDocument();
+        assertNull(queryDocument.get("projection"));
+        assertNull(queryDocument.get("hint"));
+        assertNull(queryDocument.get("covered"));
+    }
+
+    @Test
+    public void coveredCountIsHintedToTheIndex() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select count(*) from orders where total > 100")
+                .indexProvider(indexes(new Document("total", 1))).build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.orders.count({\n" +
+                "  \"total\": {\n" +
+                "    \"$gt\": 100\n" +
+                "  }\n" +
+                "} , {\n" +
+                "  \"hint\": {\n" +
+                "    \"total\": 1\n" +
+                "  }\n" +
+                "})", byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void queryNotCoveredWhenAFieldIsNotInTheIndex() throws ParseException {
+        IndexProvider indexProvider = indexes(new Document("status", 1).append("total", 1), new Document("total", 1).append("status", 1));
+        assertNull(new QueryConverter.Builder().sqlString("select status, customer from orders where status = 'open'")
+                .indexProvider(indexProvider).build().getQueryAsDocument().get("hint"));
+        assertNull(new QueryConverter.Builder().sqlString("select status from orders where total = 5 or customer = 'x'")
+                .indexProvider(indexProvider).build().getQueryAsDocument().get("hint"));
+        assertNull(new QueryConverter.Builder().sqlString("select status from orders where status is null")
+                .indexProvider(indexProvider).build().getQueryAsDocument().get("hint"));
+    }
+
+    private static IndexProvider indexes(final Document... indexes) {
+        return new IndexProvider() {
+            @Override
+            public List<Document> getIndexes(String collection) {
+                return Arrays.asList(indexes);
+            }
+        };
+    }
+
+    @Test
+    public void selectAllExcept() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * except (audit, `html`) from docs where x = 1").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.docs.find({\n" +
+                "  \"x\": 1\n" +
+                "} , {\n" +
+                "  \"audit\": 0,\n" +
+                "  \"html\": 0\n" +
+                "})", byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void selectAllExceptWithJoin() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * except (d.audit, u.password) from docs d "
+                + "inner join users u on d.userId = u._id").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("$project", new Document("audit", 0).append("u.password", 0)), steps.get(steps.size() - 1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void defaultExcludedFields() throws ParseException {
+        HashMap<String, List<String>> excluded = new HashMap<>();
+        excluded.put("docs", Arrays.asList("html"));
+        excluded.put("users", Arrays.asList("password"));
+        assertEquals(new Document("html", 0).append("audit", 0), new QueryConverter.Builder()
+                .sqlString("select * except (audit) from docs").defaultExcludedFields(excluded).build()
+                .getQueryAsDocument().get("projection"));
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from docs d inner join users u on d.userId = u._id")
+                .defaultExcludedFields(excluded).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("$project", new Document("html", 0).append("u.password", 0)), steps.get(steps.size() - 1));
+        assertEquals(new Document("_id", 0).append("html", 1), new QueryConverter.Builder().sqlString("select html from docs")
+                .defaultExcludedFields(excluded).build().getQueryAsDocument().get("projection"));
+    }
+
+    @Test
+    public void changeStreamPipeline() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select name, status from jobs "
+                + "where status = 'FAILED' and (attempts > 3 or owner = 'ops')").build();
+        assertEquals(Arrays.asList(
+                new Document("$match", new Document("operationType", new Document("$in", Arrays.asList("insert", "update", "replace")))
+                        .append("$and", Arrays.asList(new Document("fullDocument.status", "FAILED"),
+                                new Document("$or", Arrays.asList(new Document("fullDocument.attempts", new Document("$gt", 3L)),
+                                        new Document("fullDocument.owner", "ops")))))),
+                new Document("$project", new Document("operationType", 1).append("documentKey", 1)
+                        .append("fullDocument.name", 1).append("fullDocument.status", 1))),
+                queryConverter.getChangeStreamPipeline());
+        assertEquals(new Document("$project", new Document("fullDocument.log", 0)), new QueryConverter.Builder()
+                .sqlString("select * except (log) from jobs").build().getChangeStreamPipeline().get(1));
+    }
+
+    @Test
+    public void changeStreamPipelineOnlyForFilterAndProjection() {
+        for (String sql : Arrays.asList("select count(*) from jobs", "select * from jobs order by status",
+                "select status, count(*) from jobs group by status", "select * from jobs limit 5")) {
+            try {
+                new QueryConverter.Builder().sqlString(sql).build().getChangeStreamPipeline();
+                fail(sql);
+            } catch (ParseException e) {
+                assertEquals("only select queries with a where clause and columns can be watched", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void hintCommentsSetTheExecutionOptionsOfAFindQuery() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder()
+                .sqlString("select /*+ INDEX(status_1) MAXTIME(500) BATCHSIZE(100) READ(secondaryPreferred) "
+                        + "NOCURSORTIMEOUT COLLATION(en, 2) */ a from orders where status = 'open'").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.orders.find({\n" +
+                "  \"status\": \"open\"\n" +
+                "} , {\n" +
+                "  \"_id\": 0,\n" +
+                "  \"a\": 1\n" +
+                "}).hint(\"status_1\").maxTimeMS(500).batchSize(100).readPref(\"secondaryPreferred\")" +
+                ".noCursorTimeout().collation({\n" +
+                "  \"locale\": \"en\",\n" +
+                "  \"strength\": 2\n" +
+                "})", byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void indexHintOfAnAggregationUsesTheKeysOfTheIndex() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder()
+                .sqlString("select /*+ INDEX(status_1_createdAt_-1) MAXTIME(50) ALLOWDISK */ status, count(*) "
+                        + "from orders group by status").build();
+        assertEquals(new Document("allowDiskUse", true).append("maxTimeMS", 50L)
+                        .append("hint", new Document("status", 1).append("createdAt", -1)),
+                queryConverter.getQueryAsDocument().get("options"));
+    }
+
+    @Test
+    public void unknownHintComment() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage(containsString("unknown hint PARALLEL"));
+        new QueryConverter.Builder().sqlString("select /*+ PARALLEL(4) */ * from orders").build();
+    }
+
+    @Test
+    public void hintCommentInAStringIsNotAHint() throws ParseException {
+        Document queryDocument = new QueryConverter.Builder()
+                .sqlString("select a from orders where a = '/*+ MAXTIME(5) */'").build().getQueryAsDocument();
+        assertEquals(new Document("a", "/*+ MAXTIME(5) */"), queryDocument.get("query"));
+        assertNull(queryDocument.get("maxTimeMS"));
+    }
+
+    @Test
+    public void onlyTheHintCommentAfterTheLeadingSelectIsRead() throws ParseException {
+        Document queryDocument = new QueryConverter.Builder()
+                .sqlString("SELECT /*+ INDEX('a*/b') */ a from orders where b = 1").build().getQueryAsDocument();
+        assertEquals("a*/b", queryDocument.get("hint"));
+        assertEquals(new Document("b", 1L), queryDocument.get("query"));
+    }
+
+    @Test
+    public void writeShellTypesIndented() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select * from my_table "
+                + "where date(column,'yyyy-MM-dd') >= '2016-12-12' and _id = OID('5e97ae59c63d1b3ff8e07c74')").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.my_table.find({\n" +
+                "  \"$and\": [\n" +
+                "    {\n" +
+                "      \"column\": {\n" +
+                "        \"$gte\": ISODate(\"2016-12-12T00:00:00Z\")\n" +
+                "      }\n" +
+                "    },\n" +
+                "    {\n" +
+                "      \"_id\": ObjectId(\"5e97ae59c63d1b3ff8e07c74\")\n" +
+                "    }\n" +
+                "  ]\n" +
+                "})",byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void writeCompact() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select column1 from my_table "
+                + "where value IN ('theValue1','the\"Value2') and _id = OID('5e97ae59c63d1b3ff8e07c74') "
+                + "order by column1 desc limit 5").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream, false);
+        assertEquals("db.my_table.find({\"$and\": [{\"value\": {\"$in\": [\"theValue1\", \"the\\\"Value2\"]}}, "
+                + "{\"_id\": ObjectId(\"5e97ae59c63d1b3ff8e07c74\")}]} , {\"_id\": 0, \"column1\": 1})"
+                + ".sort({\"column1\": -1}).limit(5)", byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void countDistinctGroupBy() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough, count(distinct cuisine) as c from Restaurants group by borough").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.Restaurants.aggregate([{\n" +
+                "  \"$group\": {\n" +
+                "    \"_id\": {\n" +
+                "      \"_id\": \"$borough\",\n" +
+                "      \"distinctValue\": \"$cuisine\"\n" +
+                "    }\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$group\": {\n" +
+                "    \"_id\": \"$_id._id\",\n" +
+                "    \"c\": {\n" +
+                "      \"$sum\": {\n" +
+                "        \"$cond\": [\n" +
+                "          {\n" +
+                "            \"$gt\": [\n" +
+                "              \"$_id.distinctValue\",\n" +
+                "              null\n" +
+                "            ]\n" +
+                "          },\n" +
+                "          1,\n" +
+                "          0\n" +
+                "        ]\n" +
+                "      }\n" +
+                "    }\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$project\": {\n" +
+                "    \"borough\": \"$_id\",\n" +
+                "    \"c\": 1,\n" +
+                "    \"_id\": 0\n" +
+                "  }\n" +
+                "}])",byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void approxCountDistinctWithoutGroupBy() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select approx_count_distinct(cuisine) from Restaurants where borough = 'Bronx'").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(4, steps.size());
+        assertEquals(document("$match", document("borough", "Bronx")), steps.get(0));
+        assertEquals(document("$group", document("_id", new Document("_id", new Document())
+                .append("distinctValue", "$cuisine"))), steps.get(1));
+        assertEquals("$_id._id", steps.get(2).get("$group", Document.class).get("_id"));
+        assertEquals(new Document("approx_count_distinct_cuisine", 1).append("_id", 0), steps.get(3).get("$project"));
+    }
+
+    @Test
+    public void countDistinctWithOtherAggregate() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage("COUNT(DISTINCT) cannot be combined with other aggregate functions");
+        new QueryConverter.Builder().sqlString("select count(distinct cuisine), count(*) from Restaurants").build();
+    }
+
+    @Test
+    public void percentileAndMedian() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough, percentile_approx(score, 0.95) as p95, median(score) from Restaurants group by borough").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(2, steps.size());
+        assertEquals(new Document("_id", "$borough")
+                .append("p95", document("$percentile", new Document("input", "$score")
+                        .append("p", Arrays.asList(0.95)).append("method", "approximate")))
+                .append("median_score", document("$median", new Document("input", "$score")
+                        .append("method", "approximate"))), steps.get(0).get("$group"));
+        assertEquals(new Document("borough", "$_id")
+                .append("p95", document("$arrayElemAt", "$p95", 0))
+                .append("median_score", 1)
+                .append("_id", 0), steps.get(1).get("$project"));
+    }
+
+    @Test
+    public void percentileFallback() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select median(score) as m from Restaurants")
+                .percentileFallback(true).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(3, steps.size());
+        assertEquals(document("$sort", document("score", 1)), steps.get(0));
+        assertEquals(document("$group", new Document("_id", new Document()).append("m", document("$push", "$score"))), steps.get(1));
+        assertEquals(new Document("m", document("$let", new Document("vars", document("numbers", document("$filter",
+                new Document("input", "$m").append("as", "value").append("cond", document("$in", document("$type", "$$value"),
+                        Arrays.asList("double", "int", "long", "decimal")))))).append("in",
+                document("$arrayElemAt", "$$numbers", document("$floor",
+                document("$multiply", document("$subtract", document("$size", "$$numbers"), 1), 0.5))))))
+                .append("_id", 0), steps.get(2).get("$project"));
+    }
+
+    @Test
+    public void percentileOutOfRange() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage("percentile must be between 0 and 1");
+        new QueryConverter.Builder().sqlString("select percentile_approx(score, 95) from Restaurants").build();
+    }
+
+    @Test
+    public void rowNumberOverPartition() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select name, row_number() over (partition by borough order by score desc) as rn from Restaurants where cuisine = 'Italian' order by rn limit 5").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.Restaurants.aggregate([{\n" +
+                "  \"$match\": {\n" +
+                "    \"cuisine\": \"Italian\"\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$setWindowFields\": {\n" +
+                "    \"partitionBy\": \"$borough\",\n" +
+                "    \"sortBy\": {\n" +
+                "      \"score\": -1\n" +
+                "    },\n" +
+                "    \"output\": {\n" +
+                "      \"rn\": {\n" +
+                "        \"$documentNumber\": {}\n" +
+                "      }\n" +
+                "    }\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$sort\": {\n" +
+                "    \"rn\": 1\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$limit\": 5\n" +
+                "},{\n" +
+                "  \"$project\": {\n" +
+                "    \"_id\": 0,\n" +
+                "    \"name\": 1,\n" +
+                "    \"rn\": 1\n" +
+                "  }\n" +
+                "}])",byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void runningSumAndRankShareOneWindowStage() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select r.borough, "
+                + "sum(r.score) over (partition by r.borough order by r.grade rows between 2 preceding and current row) as moving, "
+                + "rank() over (partition by r.borough order by r.grade) from Restaurants r").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(2, steps.size());
+        assertEquals(document("$setWindowFields", new Document("partitionBy", "$borough")
+                .append("sortBy", document("grade", 1))
+                .append("output", new Document("moving", new Document("$sum", "$score")
+                        .append("window", document("documents", -2L, "current")))
+                        .append("rank", document("$rank", new Document())))), steps.get(0));
+        assertEquals(new Document("_id", 0).append("borough", 1).append("moving", 1).append("rank", 1),
+                steps.get(1).get("$project"));
+    }
+
+    @Test
+    public void runningSumOnANumericOrderByIncludesTheRowsWithTheSameValue() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough, "
+                + "sum(score) over (partition by borough order by grade desc) as running from Restaurants")
+                .fieldNameToFieldTypeMapping(Collections.singletonMap("grade", FieldType.NUMBER)).build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(new Document("running", new Document("$sum", "$score")
+                .append("window", document("range", "unbounded", "current"))),
+                ((Document) steps.get(0).get("$setWindowFields")).get("output"));
+    }
+
+    @Test
+    public void runningSumWithoutANumericOrderByAddsTheRowsWithTheSameValueOneAtATime() throws ParseException {
+        for (String orderBy : Arrays.asList("name", "grade, name")) {
+            QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough, "
+                    + "count(*) over (partition by borough order by " + orderBy + ") as running from Restaurants")
+                    .fieldNameToFieldTypeMapping(Collections.singletonMap("grade", FieldType.NUMBER)).build();
+            List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+            assertEquals(new Document("running", new Document("$sum", 1)
+                    .append("window", document("documents", "unbounded", "current"))),
+                    ((Document) steps.get(0).get("$setWindowFields")).get("output"));
+        }
+    }
+
+    @Test
+    public void lagLeadAndWholePartitionCount() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select name, "
+                + "lag(score, 2, 0) over (order by day) as prev, lead(score) over (order by day), "
+                + "count(*) over (partition by borough, cuisine) as c from Restaurants").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(3, steps.size());
+        assertEquals(document("$setWindowFields", new Document("sortBy", document("day", 1))
+                .append("output", new Document("prev", document("$shift", new Document("output", "$score")
+                        .append("by", -2L).append("default", 0L)))
+                        .append("lead_score", document("$shift", new Document("output", "$score")
+                                .append("by", 1L))))), steps.get(0));
+        assertEquals(document("$setWindowFields", new Document("partitionBy",
+                new Document("borough", "$borough").append("cuisine", "$cuisine"))
+                .append("output", document("c", document("$sum", 1)))), steps.get(1));
+    }
+
+    @Test
+    public void windowFunctionWithGroupBy() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage("window functions cannot be combined with GROUP BY, DISTINCT or aggregate functions");
+        new QueryConverter.Builder().sqlString("select borough, row_number() over (order by borough) from Restaurants group by borough").build();
+    }
+
+    @Test
+    public void rowNumberWithoutOrderBy() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage("ROW_NUMBER requires ORDER BY in the OVER clause");
+        new QueryConverter.Builder().sqlString("select borough, row_number() over () from Restaurants").build();
+    }
+
+    @Test
+    public void unionAllShardCollections() throws ParseException, IOException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough, cuisine from Restaurants_2024_01 where score > 5 union all select borough, cuisine from Restaurants_2024_02 order by borough limit 10").build();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        queryConverter.write(byteArrayOutputStream);
+        assertEquals("db.Restaurants_2024_01.aggregate([{\n" +
+                "  \"$match\": {\n" +
+                "    \"score\": {\n" +
+                "      \"$gt\": 5\n" +
+                "    }\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$project\": {\n" +
+                "    \"_id\": 0,\n" +
+                "    \"borough\": 1,\n" +
+                "    \"cuisine\": 1\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$unionWith\": {\n" +
+                "    \"coll\": \"Restaurants_2024_02\",\n" +
+                "    \"pipeline\": [\n" +
+                "      {\n" +
+                "        \"$project\": {\n" +
+                "          \"_id\": 0,\n" +
+                "          \"borough\": 1,\n" +
+                "          \"cuisine\": 1\n" +
+                "        }\n" +
+                "      }\n" +
+                "    ]\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$sort\": {\n" +
+                "    \"borough\": 1\n" +
+                "  }\n" +
+                "},{\n" +
+                "  \"$limit\": 10\n" +
+                "}])", byteArrayOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void unionDeduplicatesAndRenamesByPosition() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder().sqlString("select borough, cuisine as c from Restaurants union select city, type from Shops").build();
+        List<Document> steps = (List<Document>) queryConverter.getQueryAsDocument().get("query");
+        assertEquals(4, steps.size());
+        assertEquals(document("$unionWith", new Document("coll", "Shops").append("pipeline", Arrays.asList(
+                document("$project", new Document("_id", 0).append("borough", "$city").append("c", "$type"))))),
+                steps.get(1));
+        assertEquals(document("$group", document("_id", "$$ROOT")), steps.get(2));
+        assertEquals(document("$replaceRoot", document("newRoot", "$_id")), steps.get(3));
+    }
+
+    @Test
+    public void unionWithDifferentNumberOfColumns() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage("each select in a UNION must have the same number of columns");
+        new QueryConverter.Builder().sqlString("select borough from Restaurants union all select city, type from Shops").build();
+    }
+
+    @Test
+    public void intersectNotSupported() throws ParseException {
+        expectedException.expect(ParseException.class);
+        expectedException.expectMessage("only UNION and UNION ALL are supported: INTERSECT");
+        new QueryConverter.Builder().sqlString("select borough from Restaurants intersect select city from Shops").build();
+    }
+
     private static Document document(String key, Object... values) {
         Document document = new Document();
         if (values !=null && values.length > 1) {
@@ -0,0 +1,111 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.CompiledPlanHolder;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryExecutionTest {
+
+    @Test
+    public void theSamePlanIsSentWithEveryRun() throws ParseException {
+        QueryConverter queryConverter = new QueryConverter.Builder()
+                .sqlString("select a, b from orders where status = 'open' order by b").build();
+        CompiledPlanHolder compiledPlan = queryConverter.getCompiledPlan();
+        assertSame(compiledPlan, queryConverter.getCompiledPlan());
+        assertEquals(new Document("status", "open"), Document.parse(compiledPlan.getFilter().toJson()));
+        assertEquals(1, compiledPlan.getSort().getInt32("b").getValue());
+    }
+
+    @Test(expected = MongoExecutionTimeoutException.class)
+    public void queryIsNotStartedAfterTheDeadline() throws ParseException {
+        //the deadline is checked before the client connects
+        try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:1")) {
+            new QueryConverter.Builder().sqlString("select count(*) from orders where status = 'open'").build()
+                    .run(mongoClient.getDatabase("db"), new QueryExecution(0, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void cancelClosesTheRegisteredResources() throws InterruptedException {
+        final QueryExecution execution = new QueryExecution();
+        Resource cursor = execution.register(new Resource());
+        Resource join = execution.register(new Resource());
+        Resource closedCursor = execution.register(new Resource());
+        execution.unregister(closedCursor);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                execution.cancel();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(execution.isCancelled());
+        assertEquals(1, cursor.closed);
+        assertEquals(1, join.closed);
+        assertEquals(0, closedCursor.closed);
+        execution.cancel();
+        assertEquals(1, cursor.closed);
+    }
+
+    @Test
+    public void resourceRegisteredAfterCancelIsClosed() {
+        QueryExecution execution = new QueryExecution();
+        execution.cancel();
+        Resource cursor = new Resource();
+        try {
+            execution.register(cursor);
+            fail();
+        } catch (CancellationException e) {
+            assertEquals(1, cursor.closed);
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancelledQuerySendsNoMoreCommands() {
+        QueryExecution execution = new QueryExecution(1, TimeUnit.HOURS);
+        execution.cancel();
+        execution.getMaxTimeMS(null);
+    }
+
+    @Test
+    public void timeLimitIsTheSmallerOfTheHintAndTheTimeLeft() {
+        QueryExecution execution = new QueryExecution(1, TimeUnit.HOURS);
+        assertEquals(Long.valueOf(500), execution.getMaxTimeMS(500L));
+        long timeLeft = execution.getMaxTimeMS(null);
+        assertTrue(timeLeft > TimeUnit.MINUTES.toMillis(59) && timeLeft <= TimeUnit.HOURS.toMillis(1));
+        assertEquals(timeLeft, execution.getMaxTimeMS(TimeUnit.HOURS.toMillis(2)), 1000);
+        assertFalse(execution.isCancelled());
+    }
+
+    @Test
+    public void queryWithoutADeadlineOnlySendsTheHint() {
+        QueryExecution execution = new QueryExecution();
+        assertNull(execution.getMaxTimeMS(null));
+        assertEquals(Long.valueOf(500), execution.getMaxTimeMS(500L));
+    }
+
+    private static final class Resource implements Closeable {
+        private int closed;
+
+        @Override
+        public void close() {
+            closed++;
+        }
+    }
+
+}
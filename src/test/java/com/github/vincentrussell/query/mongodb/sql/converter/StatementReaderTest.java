@@ -0,0 +1,49 @@
+package com.github.vincentrussell.query.mongodb.sql.converter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatementReaderTest {
+
+    @Test
+    public void statementsEndWithASemicolonAtTheEndOfALine() throws IOException {
+        String input = "select * from orders\nwhere status = 'a;\n';  \nselect count(*) from orders;\ny\n";
+        try (StatementReader reader = new StatementReader(new ByteArrayInputStream(
+                input.getBytes(StandardCharsets.UTF_8)), 1, TimeUnit.MINUTES)) {
+            assertEquals("select * from orders\nwhere status = 'a;\n'", reader.readStatement());
+            assertEquals("select count(*) from orders", reader.readStatement());
+            assertEquals("y", reader.readLine(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void statementWithoutASemicolonEndsAfterTheIdleTimeout() throws IOException {
+        PipedOutputStream outputStream = new PipedOutputStream();
+        try (StatementReader reader = new StatementReader(new PipedInputStream(outputStream), 300,
+                TimeUnit.MILLISECONDS)) {
+            outputStream.write("select *\nfrom orders\n".getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            long start = System.nanoTime();
+            assertEquals("select *\nfrom orders\n", reader.readStatement());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readLineTimesOut() throws IOException {
+        try (StatementReader reader = new StatementReader(new PipedInputStream(new PipedOutputStream()), 1,
+                TimeUnit.SECONDS)) {
+            reader.readLine(300, TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
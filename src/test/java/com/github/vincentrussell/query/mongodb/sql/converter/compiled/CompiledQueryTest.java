@@ -0,0 +1,142 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.compiled;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.holder.CompiledPlanHolder;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledQueryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<String> errors = new ArrayList<>();
+
+    @Test
+    public void queryIsConvertedWhenTheCodeIsCompiled() throws Exception {
+        Class<?> openOrders = compile("@MongoSql(name = \"OpenOrders\", value = \"select id, total from orders "
+                + "where status = :status and total > :minTotal and note = ':notAParameter' order by total desc\")");
+        assertEquals(Arrays.asList("status", "minTotal"), getQuery(openOrders).getParameterNames());
+        assertEquals(new Document("$and", Arrays.asList(new Document("status", "open"),
+                new Document("total", new Document("$gt", 100L)), new Document("note", ":notAParameter"))),
+                bind(openOrders, "open", 100L).getQueryDocument().get("query"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queryWithParametersThatAreNotBoundCannotRun() throws Exception {
+        CompiledQuery openOrders = getQuery(compile("@MongoSql(name = \"OpenOrders\", value = \"select * from orders "
+                + "where status = :status\")"));
+        //the parameters are checked before the client connects
+        try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:1")) {
+            openOrders.run(mongoClient.getDatabase("db"));
+        }
+    }
+
+    @Test
+    public void planIsEncodedWhenTheParametersAreBound() throws ParseException {
+        List<String> parameterNames = new ArrayList<>();
+        CompiledQuery openOrders = new CompiledQuery(CompiledQuery.convert(
+                "select id, total from orders where status = :status order by total desc", parameterNames),
+                parameterNames, false);
+        assertNull(openOrders.getCompiledPlan());
+        CompiledQuery bound = openOrders.bind("open");
+        CompiledPlanHolder plan = bound.getCompiledPlan();
+        assertSame(plan, bound.getCompiledPlan());
+        assertEquals(new Document("status", "open"), Document.parse(plan.getFilter().toJson()));
+        assertEquals(-1, plan.getSort().getInt32("total").getValue());
+        assertNull(plan.getPipeline());
+    }
+
+    @Test
+    public void sqlThatCannotBeConvertedIsACompilationError() throws Exception {
+        assertEquals(null, compile("@MongoSql(name = \"BrokenQuery\", value = \"select from where\")"));
+        assertTrue(errors.toString(), errors.get(0).startsWith("unable to convert the sql of BrokenQuery"));
+    }
+
+    @Test
+    public void parameterInALikePatternIsACompilationError() throws Exception {
+        assertEquals(null, compile("@MongoSql(name = \"NameQuery\", value = \"select * from orders "
+                + "where name like :p\")"));
+        assertTrue(errors.toString(), errors.get(0).contains("the parameter :p can only be used as a value"));
+    }
+
+    @Test
+    public void parameterThatIsAPrefixOfAnotherParameterIsFound() throws ParseException {
+        List<String> parameterNames = new ArrayList<>();
+        Document queryDocument = CompiledQuery.convert("select * from orders where a = :p and b = :p2",
+                parameterNames);
+        assertEquals(Arrays.asList("p", "p2"), parameterNames);
+        assertEquals(new Document("$and", Arrays.asList(new Document("a", 1L), new Document("b", 2L))),
+                new CompiledQuery(queryDocument, parameterNames, false).bind(1L, 2L).getQueryDocument().get("query"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void bindFailsWhenAParameterIsNotAWholeValue() {
+        new CompiledQuery(new Document("query", new Document("name", new Document("$regex", "^"
+                + CompiledQuery.getPlaceholder("p") + "$"))), Arrays.asList("p"), false).bind("x");
+    }
+
+    //compiles a class with the annotation and returns the generated class, or null if the compilation failed
+    private Class<?> compile(final String annotation) throws IOException, ClassNotFoundException {
+        final File directory = temporaryFolder.newFolder();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaFileObject source = new SimpleJavaFileObject(URI.create("string:///queries/Queries.java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+                return "package queries;\nimport " + MongoSql.class.getName() + ";\n" + annotation
+                        + "\npublic class Queries {}";
+            }
+        };
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                Arrays.asList("-d", directory.getAbsolutePath(), "-s", directory.getAbsolutePath(),
+                        "-classpath", System.getProperty("java.class.path")), null, Arrays.asList(source));
+        task.setProcessors(Arrays.asList(new MongoSqlProcessor()));
+        if (!task.call()) {
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                errors.add(diagnostic.getMessage(null));
+            }
+            return null;
+        }
+        URLClassLoader classLoader = new URLClassLoader(new URL[] {directory.toURI().toURL()},
+                CompiledQueryTest.class.getClassLoader());
+        return classLoader.loadClass("queries." + annotation.replaceAll(".*name = \"(\\w+)\".*", "$1"));
+    }
+
+    private static CompiledQuery getQuery(final Class<?> generatedClass) throws ReflectiveOperationException {
+        return (CompiledQuery) generatedClass.getField("QUERY").get(null);
+    }
+
+    private static CompiledQuery bind(final Class<?> generatedClass, final Object... values)
+            throws ReflectiveOperationException {
+        Class<?>[] parameterTypes = new Class<?>[values.length];
+        Arrays.fill(parameterTypes, Object.class);
+        return (CompiledQuery) generatedClass.getMethod("bind", parameterTypes).invoke(null, values);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.compiled;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class PlanStoreTest {
+
+    private static final String OPEN_ORDERS = "select id, total from orders where status = :status order by total desc";
+    private static final String ALL_ORDERS = "select * from orders";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void plansAreReadByAnotherStore() throws IOException, ParseException {
+        File file = new File(temporaryFolder.getRoot(), "plans");
+        try (PlanStore planStore = new PlanStore(file)) {
+            assertEquals(2, planStore.preload(Arrays.asList(OPEN_ORDERS, ALL_ORDERS, ALL_ORDERS)));
+            assertEquals(0, planStore.preload(Arrays.asList(OPEN_ORDERS, ALL_ORDERS)));
+        }
+        try (PlanStore planStore = new PlanStore(file, true)) {
+            assertEquals(0, planStore.preload(Arrays.asList("select  id, total from orders\nwhere status = :status "
+                    + "order by total desc", ALL_ORDERS)));
+            CompiledQuery query = planStore.get(OPEN_ORDERS);
+            assertEquals(Arrays.asList("status"), query.getParameterNames());
+            assertEquals(new Document("status", "open"), query.bind("open").getQueryDocument().get("query"));
+            assertEquals(new Document("total", -1), query.getQueryDocument().get("sort"));
+            assertEquals(1, planStore.preload(Arrays.asList("select * from orders where note = 'a  b'")));
+            assertEquals(2, planStore.size());
+        }
+    }
+
+    @Test
+    public void plansAppendedByAnotherStoreAreFound() throws IOException, ParseException {
+        File file = new File(temporaryFolder.getRoot(), "plans");
+        try (PlanStore writer = new PlanStore(file); PlanStore reader = new PlanStore(file, true)) {
+            assertEquals(0, reader.size());
+            writer.get(ALL_ORDERS);
+            assertEquals(0, reader.preload(Arrays.asList(ALL_ORDERS)));
+            assertEquals(1, reader.size());
+        }
+    }
+
+    @Test
+    public void planThatWasNotWrittenCompletelyIsOverwritten() throws IOException, ParseException {
+        File file = new File(temporaryFolder.getRoot(), "plans");
+        try (PlanStore planStore = new PlanStore(file)) {
+            planStore.get(ALL_ORDERS);
+        }
+        long length = file.length();
+        try (FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            outputStream.write(new byte[] {100, 0, 0, 0, 2, 'f'});
+        }
+        try (PlanStore planStore = new PlanStore(file)) {
+            assertEquals(1, planStore.size());
+            assertEquals(1, planStore.preload(Arrays.asList(OPEN_ORDERS)));
+        }
+        try (PlanStore planStore = new PlanStore(file, true)) {
+            assertEquals(2, planStore.size());
+            assertEquals(true, file.length() > length + 6);
+        }
+    }
+
+    @Test
+    public void plansOfAnotherVersionAreIgnored() throws IOException, ParseException {
+        File file = new File(temporaryFolder.getRoot(), "plans");
+        new PlanStore(file).close();
+        BasicOutputBuffer outputBuffer = new BasicOutputBuffer();
+        new DocumentCodec().encode(new BsonBinaryWriter(outputBuffer), new Document("fingerprint",
+                PlanStore.fingerprint(ALL_ORDERS)).append("version", "0.1").append("sql", ALL_ORDERS)
+                .append("parameterNames", Arrays.asList()).append("queryDocument", new Document("collection", "old")),
+                EncoderContext.builder().build());
+        try (FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            outputStream.write(outputBuffer.toByteArray());
+        }
+        try (PlanStore planStore = new PlanStore(file)) {
+            assertEquals(0, planStore.size());
+            assertEquals(1, planStore.preload(Arrays.asList(ALL_ORDERS)));
+            assertEquals("orders", planStore.get(ALL_ORDERS).getQueryDocument().get("collection"));
+            assertEquals(1, planStore.size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void fileThatIsNotAPlanStoreCannotBeOpened() throws IOException {
+        File file = temporaryFolder.newFile();
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write("{\"a\": 1}".getBytes("UTF-8"));
+        }
+        new PlanStore(file).close();
+    }
+
+}
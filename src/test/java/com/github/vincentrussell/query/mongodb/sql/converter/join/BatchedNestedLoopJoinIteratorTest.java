@@ -0,0 +1,153 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryExecution;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryResultIterator;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchedNestedLoopJoinIteratorTest {
+
+    private static final List<Document> EVENTS = Arrays.asList(
+            new Document("_id", 1).append("accountId", 10L).append("type", "click"),
+            new Document("_id", 2).append("accountId", 20L).append("type", "view"),
+            new Document("_id", 3).append("accountId", 10L).append("type", "view"),
+            new Document("_id", 4).append("accountId", 30L).append("type", "click"),
+            new Document("_id", 5).append("type", "orphan"));
+
+    private static final List<Document> ACCOUNTS = Arrays.asList(
+            new Document("id", 10L).append("name", "a"),
+            new Document("id", 20L).append("name", "b"),
+            new Document("id", 20L).append("name", "c"),
+            new Document("id", null).append("name", "d"));
+
+    private final List<Document> queries = Collections.synchronizedList(new ArrayList<Document>());
+    private final AtomicInteger openLookups = new AtomicInteger();
+    private final CountDownLatch secondLookup = new CountDownLatch(1);
+    private volatile boolean firstLookupWaits;
+
+    @Test
+    public void innerJoinKeepsTheOrderOfTheLeftDocuments() throws IOException {
+        //the lookup of the first batch waits for the second one, so the second batch is read first
+        firstLookupWaits = true;
+        List<Document> rows = join(null, false, 2, 2);
+        assertEquals(Arrays.asList(
+                event(1, 10L, "click", "a"),
+                event(2, 20L, "view", "b"),
+                event(2, 20L, "view", "c"),
+                event(3, 10L, "view", "a"),
+                new Document("_id", 5).append("type", "orphan").append("a", ACCOUNTS.get(3))),
+                rows);
+    }
+
+    @Test
+    public void leftJoinKeepsUnmatchedRows() throws IOException {
+        List<Document> rows = join(null, true, 2, 2);
+        assertEquals(6, rows.size());
+        assertEquals(EVENTS.get(3), rows.get(4));
+    }
+
+    @Test
+    public void oneLookupPerBatchWithTheDistinctKeys() throws IOException {
+        join(null, false, 3, 1);
+        assertEquals(Arrays.asList(
+                new Document("id", new Document("$in", Arrays.<Object>asList(10L, 20L))),
+                new Document("id", new Document("$in", Arrays.<Object>asList(30L, null)))),
+                queries);
+        assertEquals(0, openLookups.get());
+    }
+
+    @Test
+    public void whereClauseIsAddedToEveryLookup() throws IOException {
+        join(new Document("name", "b"), false, 5, 1);
+        assertEquals(Collections.singletonList(new Document("$and", Arrays.asList(new Document("name", "b"),
+                new Document("id", new Document("$in", Arrays.<Object>asList(10L, 20L, 30L, null)))))), queries);
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancelledJoinStops() throws IOException {
+        QueryExecution execution = new QueryExecution();
+        execution.cancel();
+        //the lookup is cancelled before the client connects
+        try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:1");
+             BatchedNestedLoopJoinIterator iterator = new BatchedNestedLoopJoinIterator(EVENTS.iterator(), "accountId",
+                     mongoClient.getDatabase("db").getCollection("accounts"), "id", null, null, "a", false, 2, 2,
+                     execution)) {
+            iterator.hasNext();
+        }
+    }
+
+    private List<Document> join(final Document filter, final boolean preserveUnmatched, final int batchSize,
+                                final int parallelism) throws IOException {
+        BatchedNestedLoopJoinIterator iterator = new BatchedNestedLoopJoinIterator(EVENTS.iterator(), "accountId",
+                new Function<Document, QueryResultIterator<Document>>() {
+                    @Override
+                    public QueryResultIterator<Document> apply(final Document query) {
+                        return lookup(query);
+                    }
+                }, "id", filter, "a", preserveUnmatched, batchSize, parallelism);
+        List<Document> rows = Lists.newArrayList(iterator);
+        iterator.close();
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private QueryResultIterator<Document> lookup(final Document query) {
+        boolean first;
+        synchronized (queries) {
+            first = queries.isEmpty();
+            queries.add(query);
+        }
+        if (first && firstLookupWaits) {
+            try {
+                assertTrue(secondLookup.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (!first) {
+            secondLookup.countDown();
+        }
+        Document keyFilter = query.containsKey("$and") ? ((List<Document>) query.get("$and")).get(1) : query;
+        List<Object> keys = (List<Object>) keyFilter.get("id", Document.class).get("$in");
+        List<Document> matches = new ArrayList<>();
+        for (Document account : ACCOUNTS) {
+            if (keys.contains(account.get("id"))) {
+                matches.add(account);
+            }
+        }
+        openLookups.incrementAndGet();
+        final AtomicBoolean closed = new AtomicBoolean();
+        return new QueryResultIterator<>(matches.iterator(), new Closeable() {
+            @Override
+            public void close() {
+                if (closed.compareAndSet(false, true)) {
+                    openLookups.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private static Document event(final int id, final long accountId, final String type, final String name) {
+        return new Document("_id", id).append("accountId", accountId).append("type", type)
+                .append("a", new Document("id", accountId).append("name", name));
+    }
+
+}
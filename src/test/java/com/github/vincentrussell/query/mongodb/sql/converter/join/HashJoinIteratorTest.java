@@ -0,0 +1,133 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.join;
+
+import com.google.common.collect.Lists;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class HashJoinIteratorTest {
+
+    private static final List<Document> EVENTS = Arrays.asList(
+            new Document("_id", 1).append("accountId", 10).append("type", "click"),
+            new Document("_id", 2).append("accountId", 20L).append("type", "view"),
+            new Document("_id", 3).append("accountId", 10.0).append("type", "view"),
+            new Document("_id", 4).append("accountId", 30).append("type", "click"),
+            new Document("_id", 5).append("type", "orphan"));
+
+    private static final List<Document> ACCOUNTS = Arrays.asList(
+            new Document("id", 10).append("name", "a"),
+            new Document("id", 20).append("name", "b"),
+            new Document("id", 20).append("name", "c"),
+            new Document("id", null).append("name", "d"));
+
+    @Test
+    public void innerJoin() throws IOException {
+        List<Document> rows = join(false, false, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(
+                event(1, 10, "click", "a"),
+                event(2, 20L, "view", "b"),
+                event(2, 20L, "view", "c"),
+                event(3, 10.0, "view", "a"),
+                new Document("_id", 5).append("type", "orphan").append("a", new Document("id", null).append("name", "d"))),
+                rows);
+    }
+
+    @Test
+    public void leftJoinKeepsUnmatchedRows() throws IOException {
+        List<Document> rows = join(false, true, Long.MAX_VALUE);
+        assertEquals(6, rows.size());
+        assertEquals(new Document("_id", 4).append("accountId", 30).append("type", "click"), rows.get(4));
+    }
+
+    @Test
+    public void innerJoinBuiltFromLeftSide() throws IOException {
+        HashJoinIterator hashJoinIterator = new HashJoinIterator(EVENTS.iterator(), "accountId", ACCOUNTS.iterator(),
+                "id", "a", true, false, Long.MAX_VALUE);
+        List<Document> rows = Lists.newArrayList(hashJoinIterator);
+        hashJoinIterator.close();
+        assertEquals(sorted(join(false, false, Long.MAX_VALUE)), sorted(rows));
+    }
+
+    @Test
+    public void spilledJoinHasTheSameRows() throws IOException {
+        assertEquals(sorted(join(false, false, Long.MAX_VALUE)), sorted(join(false, false, 1)));
+        assertEquals(sorted(join(false, true, Long.MAX_VALUE)), sorted(join(false, true, 1)));
+    }
+
+    @Test
+    public void nestedJoinKeys() throws IOException {
+        HashJoinIterator hashJoinIterator = new HashJoinIterator(ACCOUNTS.iterator(), "id",
+                Collections.singletonList(new Document("_id", 1).append("t1", new Document("accountId", 20))).iterator(),
+                "t1.accountId", "a", false, false, Long.MAX_VALUE);
+        assertEquals(2, Lists.newArrayList(hashJoinIterator).size());
+        hashJoinIterator.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void arrayJoinKeysAreNotSupported() throws IOException {
+        try (HashJoinIterator hashJoinIterator = new HashJoinIterator(ACCOUNTS.iterator(), "id",
+                Collections.singletonList(new Document("_id", 1).append("accountId", Arrays.asList(10, 20))).iterator(),
+                "accountId", "a", false, false, Long.MAX_VALUE)) {
+            Lists.newArrayList(hashJoinIterator);
+        }
+    }
+
+    @Test
+    public void spillFilesAreDeletedWhenTheJoinIsClosed() throws IOException {
+        File temporaryDirectory = new File(System.getProperty("java.io.tmpdir"));
+        int spillFiles = countSpillFiles(temporaryDirectory);
+        HashJoinIterator hashJoinIterator = new HashJoinIterator(ACCOUNTS.iterator(), "id", EVENTS.iterator(),
+                "accountId", "a", false, false, 1);
+        hashJoinIterator.hasNext();
+        hashJoinIterator.close();
+        assertEquals(spillFiles, countSpillFiles(temporaryDirectory));
+    }
+
+    private static int countSpillFiles(final File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith("sql-to-mongo-join") && name.endsWith(".spill");
+            }
+        });
+        return names != null ? names.length : 0;
+    }
+
+    private static List<Document> join(boolean buildIsLeft, boolean preserveUnmatched, long memoryBudget) throws IOException {
+        HashJoinIterator hashJoinIterator = new HashJoinIterator(ACCOUNTS.iterator(), "id", EVENTS.iterator(),
+                "accountId", "a", buildIsLeft, preserveUnmatched, memoryBudget);
+        List<Document> rows = Lists.newArrayList(hashJoinIterator);
+        hashJoinIterator.close();
+        return rows;
+    }
+
+    private static Document event(int id, Object accountId, String type, String name) {
+        Document account = null;
+        for (Document document : ACCOUNTS) {
+            if (name.equals(document.getString("name"))) {
+                account = document;
+            }
+        }
+        return new Document("_id", id).append("accountId", accountId).append("type", type).append("a", account);
+    }
+
+    private static List<String> sorted(List<Document> rows) {
+        List<String> json = new ArrayList<>();
+        for (Document row : rows) {
+            json.add(row.toJson());
+        }
+        Collections.sort(json, Comparator.<String>naturalOrder());
+        return json;
+    }
+
+}
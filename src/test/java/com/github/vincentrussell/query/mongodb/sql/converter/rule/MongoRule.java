@@ -9,19 +9,24 @@ import de.flapdoodle.embed.mongo.MongodExecutable;
 import de.flapdoodle.embed.mongo.MongodProcess;
 import de.flapdoodle.embed.mongo.MongodStarter;
 import de.flapdoodle.embed.mongo.config.ImmutableMongoCmdOptions;
+import de.flapdoodle.embed.mongo.config.ImmutableMongodConfig;
 import de.flapdoodle.embed.mongo.config.MongodConfig;
 import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.config.Storage;
 import de.flapdoodle.embed.mongo.distribution.IFeatureAwareVersion;
 import de.flapdoodle.embed.process.runtime.Network;
+import org.bson.Document;
 import org.junit.rules.ExternalResource;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.Collections;
 import java.util.Random;
 
 public class MongoRule extends ExternalResource {
 
     private final IFeatureAwareVersion version;
+    private final String replicaSetName;
     private MongodStarter starter = MongodStarter.getDefaultInstance();
     private MongodProcess mongodProcess;
     private MongodExecutable mongodExecutable;
@@ -32,12 +37,25 @@ public class MongoRule extends ExternalResource {
 
 
     public MongoRule(IFeatureAwareVersion version) {
+        this(version, null);
+    }
+
+    /**
+     * @param replicaSetName the name of the single member replica set to start, which change streams need, or null
+     *                       for a standalone server
+     */
+    public MongoRule(IFeatureAwareVersion version, String replicaSetName) {
         this.version = version;
+        this.replicaSetName = replicaSetName;
     }
 
     @Override
     protected void before() throws Throwable {
-        MongodConfig mongodConfig = MongodConfig.builder()
+        ImmutableMongodConfig.Builder builder = MongodConfig.builder();
+        if (replicaSetName != null) {
+            builder.replication(new Storage(null, replicaSetName, 0));
+        }
+        MongodConfig mongodConfig = builder
                 .version(version)
                 .cmdOptions(ImmutableMongoCmdOptions.builder()
                         .useNoPrealloc(false)
@@ -48,7 +66,28 @@ public class MongoRule extends ExternalResource {
 
         mongodExecutable = starter.prepare(mongodConfig);
         mongodProcess = mongodExecutable.start();
-        mongoClient = MongoClients.create(new ConnectionString("mongodb://localhost:" + port));
+        mongoClient = MongoClients.create(new ConnectionString(getConnectionString()));
+        if (replicaSetName != null) {
+            initiateReplicaSet();
+        }
+    }
+
+    private void initiateReplicaSet() throws InterruptedException {
+        MongoDatabase admin = mongoClient.getDatabase("admin");
+        admin.runCommand(new Document("replSetInitiate", new Document("_id", replicaSetName)
+                .append("members", Collections.singletonList(new Document("_id", 0)
+                        .append("host", "localhost:" + port)))));
+        for (int i = 0; i < 300; i++) {
+            if (Boolean.TRUE.equals(admin.runCommand(new Document("isMaster", 1)).getBoolean("ismaster"))) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("the replica set " + replicaSetName + " did not elect a primary");
+    }
+
+    public String getConnectionString() {
+        return "mongodb://localhost:" + port;
     }
 
     public MongoDatabase getDatabase(String databaseName) {
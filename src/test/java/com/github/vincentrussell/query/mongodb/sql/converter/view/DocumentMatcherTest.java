@@ -0,0 +1,48 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.view;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentMatcherTest {
+
+    private static final Document ORDER = Document.parse("{\"_id\": 1, \"items\": [{\"sku\": \"x\", \"qty\": 2, "
+            + "\"tags\": [\"red\", \"big\"]}, {\"sku\": \"y\", \"qty\": 7}, {\"qty\": 1}], \"ship\": {\"to\": \"eu\"}}");
+
+    @Test
+    public void fieldsOfTheDocumentsOfAnArrayAreMatchedLikeMql() {
+        assertTrue(DocumentMatcher.matches(new Document("items.sku", "x"), ORDER));
+        assertTrue(DocumentMatcher.matches(new Document("items.sku", "y"), ORDER));
+        assertFalse(DocumentMatcher.matches(new Document("items.sku", "z"), ORDER));
+        assertTrue(DocumentMatcher.matches(new Document("items.qty", new Document("$gt", 5)), ORDER));
+        assertFalse(DocumentMatcher.matches(new Document("items.qty", new Document("$gt", 7)), ORDER));
+        assertTrue(DocumentMatcher.matches(new Document("items.sku", new Document("$in", Arrays.asList("z", "x"))),
+                ORDER));
+        assertFalse(DocumentMatcher.matches(new Document("items.sku", new Document("$ne", "x")), ORDER));
+        assertTrue(DocumentMatcher.matches(new Document("items.tags", "big"), ORDER));
+        assertTrue(DocumentMatcher.matches(new Document("items.1.sku", "y"), ORDER));
+        assertFalse(DocumentMatcher.matches(new Document("items.0.sku", "y"), ORDER));
+        assertTrue(DocumentMatcher.matches(new Document("ship.to", "eu"), ORDER));
+    }
+
+    @Test
+    public void documentsOfAnArrayWithoutTheFieldMatchNull() {
+        assertTrue(DocumentMatcher.matches(new Document("items.sku", null), ORDER));
+        assertTrue(DocumentMatcher.matches(new Document("items.sku", new Document("$exists", true)), ORDER));
+        assertFalse(DocumentMatcher.matches(new Document("items.color", new Document("$exists", true)), ORDER));
+        assertFalse(DocumentMatcher.matches(new Document("items.qty", null), ORDER));
+    }
+
+    @Test
+    public void expressionsReadTheFieldsOfAnArrayLikeTheAggregationFramework() {
+        assertEquals(Arrays.asList("x", "y"), DocumentMatcher.getValue(ORDER, "items.sku"));
+        assertEquals(Collections.emptyList(), DocumentMatcher.getValue(ORDER, "items.color"));
+    }
+
+}
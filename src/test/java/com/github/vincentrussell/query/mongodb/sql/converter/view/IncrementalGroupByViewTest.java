@@ -0,0 +1,110 @@
+package com.github.vincentrussell.query.mongodb.sql.converter.view;
+
+import com.github.vincentrussell.query.mongodb.sql.converter.ParseException;
+import com.github.vincentrussell.query.mongodb.sql.converter.QueryConverter;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class IncrementalGroupByViewTest {
+
+    //the pipeline of: select region, count(*) as c, sum(amount) as s, min(amount) as lo, max(amount) as hi,
+    //avg(amount) as av from orders where status = 'open' group by region order by region
+    private static final List<Document> PIPELINE = Arrays.asList(
+            Document.parse("{$match: {status: 'open'}}"),
+            Document.parse("{$group: {_id: '$region', c: {$sum: 1}, s: {$sum: '$amount'}, lo: {$min: '$amount'}, "
+                    + "hi: {$max: '$amount'}, av: {$avg: '$amount'}}}"),
+            Document.parse("{$sort: {_id: 1}}"),
+            Document.parse("{$project: {region: '$_id', c: 1, s: 1, lo: 1, hi: 1, av: 1, _id: 0}}"));
+
+    @Test
+    public void onlyDecomposableAggregatesAreSupported() {
+        //the queries are rejected before the client connects
+        try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:1")) {
+            for (String sql : Arrays.asList("select region, count(distinct status) from orders group by region",
+                    "select o.region, count(*) from orders o inner join customers c on o.cid = c._id "
+                            + "group by o.region")) {
+                try {
+                    new QueryConverter.Builder().sqlString(sql).build()
+                            .incrementalView(mongoClient.getDatabase("db"));
+                    fail(sql);
+                } catch (ParseException e) {
+                    //expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void insertedDocumentsAreAddedToTheirGroup() throws ParseException {
+        try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:1")) {
+            IncrementalGroupByView view = newView(mongoClient);
+            view.applyChange(change("insert", order(1, "eu", 10, "open")));
+            view.applyChange(change("insert", order(2, "eu", 4, "open")));
+            view.applyChange(change("insert", order(3, "us", 20, "open")));
+            view.applyChange(change("insert", order(4, "us", 100, "closed")));
+            assertEquals(Arrays.asList(groupResult("eu", 2, 14, 4, 10, 7.0), groupResult("us", 1, 20, 20, 20, 20.0)),
+                    view.getResults());
+        }
+    }
+
+    @Test
+    public void changedAndDeletedDocumentsAreTakenOutOfTheirGroup() throws ParseException {
+        try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:1")) {
+            IncrementalGroupByView view = newView(mongoClient);
+            view.applyChange(change("insert", order(1, "eu", 10, "open")));
+            view.applyChange(change("insert", order(2, "eu", 4, "open")));
+            view.applyChange(change("insert", order(3, "eu", 7, "open")));
+            //the minimum is deleted, the maximum no longer matches and a document moves to another group
+            view.applyChange(change("delete", 2));
+            view.applyChange(change("update", order(1, "eu", 10, "closed")));
+            view.applyChange(change("replace", order(3, "us", 2.5, "open")));
+            assertEquals(Collections.singletonList(groupResult("us", 1, 2.5, 2.5, 2.5, 2.5)), view.getResults());
+            view.applyChange(change("update", order(1, "us", 10, "open")));
+            assertEquals(Collections.singletonList(groupResult("us", 2, 12.5, 2.5, 10, 6.25)), view.getResults());
+        }
+    }
+
+    @Test
+    public void documentsThatAreNotLookedUpAreRemoved() throws ParseException {
+        try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:1")) {
+            IncrementalGroupByView view = newView(mongoClient);
+            view.applyChange(change("insert", order(1, "eu", 10, "open")));
+            //the document was deleted before the update was looked up
+            view.applyChange(change("update", 1));
+            assertEquals(Collections.emptyList(), view.getResults());
+        }
+    }
+
+    //the view is not started, so the client never connects
+    private static IncrementalGroupByView newView(final MongoClient mongoClient) throws ParseException {
+        return new IncrementalGroupByView(mongoClient.getDatabase("db").getCollection("orders"), PIPELINE);
+    }
+
+    private static Document change(final String operationType, final Document fullDocument) {
+        return change(operationType, (Integer) fullDocument.get("_id")).append("fullDocument", fullDocument);
+    }
+
+    private static Document change(final String operationType, final int id) {
+        return new Document("operationType", operationType).append("documentKey", new Document("_id", id));
+    }
+
+    private static Document order(final int id, final String region, final Number amount, final String status) {
+        return new Document("_id", id).append("region", region).append("amount", amount).append("status", status);
+    }
+
+    private static Document groupResult(final String region, final int count, final Number sum, final Number min,
+                                        final Number max, final double avg) {
+        return new Document("region", region).append("c", count).append("s", sum).append("lo", min)
+                .append("hi", max).append("av", avg);
+    }
+
+}